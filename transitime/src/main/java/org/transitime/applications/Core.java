@@ -51,6 +51,7 @@ import org.transitime.modules.Module;
 import org.transitime.monitoring.PidFile;
 import org.transitime.utils.SettableSystemTime;
 import org.transitime.utils.SystemTime;
+import org.transitime.utils.VirtualClock;
 import org.transitime.utils.SystemCurrentTime;
 import org.transitime.utils.Time;
 
@@ -77,7 +78,7 @@ public class Core {
 	private final Time time;
 
 	// So that can access the current time, even when in playback mode
-	private SystemTime systemTime = new SystemCurrentTime();
+	private volatile SystemTime systemTime = new SystemCurrentTime();
 	
 	// Set by command line option. Specifies config rev to use if set
 	private static String configRevStr = null;
@@ -285,6 +286,27 @@ public class Core {
 		this.systemTime = new SettableSystemTime(systemEpochTime);
 	}
 	
+	/**
+	 * For when replaying AVL data using a VirtualClock that is advanced by
+	 * the replay.
+	 * 
+	 * @param systemTime
+	 */
+	public void setSystemTime(SystemTime systemTime) {
+		this.systemTime = systemTime;
+	}
+	
+	/**
+	 * Modules that normally poll based on the computer clock, such as the
+	 * TimeoutHandlerModule, should not do so when a VirtualClock is used
+	 * since then the replay drives them.
+	 * 
+	 * @return true if the system time is a VirtualClock
+	 */
+	public boolean isUsingVirtualClock() {
+		return systemTime instanceof VirtualClock;
+	}
+	
 	/**
 	 * Returns the Core logger so that each class doesn't need to create
 	 * its own and have it be configured properly.
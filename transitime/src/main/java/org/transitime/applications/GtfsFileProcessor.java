@@ -35,6 +35,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.ConfigFileReader;
 import org.transitime.configData.AgencyConfig;
+import org.transitime.gtfs.ConfigSnapshot;
+import org.transitime.gtfs.DbConfig;
 import org.transitime.gtfs.GtfsData;
 import org.transitime.gtfs.HttpGetGtfsFile;
 import org.transitime.gtfs.TitleFormatter;
@@ -293,6 +295,19 @@ public class GtfsFileProcessor {
 						trimPathBeforeFirstStopOfTrip, titleFormatter);
 		gtfsData.processData();
 
+		// If using config snapshots then read the newly stored config back
+		// in, which causes the snapshot to be written, so that the core 
+		// system can start up quickly with the new config. Only done if new
+		// revs stored since otherwise the core system won't be using this
+		// config rev and the snapshot would be keyed on the old travel
+		// times rev.
+		if (ConfigSnapshot.isEnabled() && shouldStoreNewRevs) {
+			logger.info("Writing config snapshot for configRev={}", 
+					gtfsData.getConfigRev());
+			DbConfig dbConfig = new DbConfig(AgencyConfig.getAgencyId());
+			dbConfig.read(gtfsData.getConfigRev());
+		}
+		
 		// Log possibly useful info
 		titleFormatter.logRegexesThatDidNotMakeDifference();
 
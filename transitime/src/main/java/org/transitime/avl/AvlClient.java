@@ -79,6 +79,9 @@ public class AvlClient implements Runnable {
 		// Put a try/catch around everything so that if unexpected exception 
 		// occurs an e-mail is sent and the avl client thread isn't killed.
 		try {
+			VehicleIngestionStats.get(avlReport.getVehicleId())
+					.recordProcessed(avlReport.getTime());
+			
 			// If the data is bad throw it out
 			String errorMsg = avlReport.validateData();
 			if (errorMsg != null) {
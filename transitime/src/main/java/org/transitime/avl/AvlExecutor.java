@@ -16,6 +16,9 @@
  */
 package org.transitime.avl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -23,6 +26,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.db.structs.AvlReport;
@@ -37,6 +41,19 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitime.avl.numThreads .
  * The queue size is set using the Java property transitime.avl.queueSize .
  * <p>
+ * If transitime.avl.shardByVehicle is set then instead of a single queue
+ * shared by all of the threads each thread gets its own lane, with its own
+ * queue. AVL reports are hashed to a lane by vehicle ID so that the reports
+ * for a vehicle are always processed in order by the same thread.
+ * <p>
+ * If transitime.avl.coalesceByVehicle is set then CoalescingAvlQueues are
+ * used so that when processing gets behind a queued AVL report for a vehicle
+ * is replaced by a newer one instead of the queue filling up. Pollers of AVL
+ * feeds can call waitWhileBackedUp() so that they slow down instead of having
+ * AVL reports rejected. Statistics on the ingestion for each vehicle,
+ * including how many reports were dropped, are kept in
+ * VehicleIngestionStats and are summarized by the AvlFeedMonitor.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -45,11 +62,17 @@ import org.transitime.utils.threading.NamedThreadFactory;
  */
 public class AvlExecutor {
 	
-	// The actual executor
+	// The actual executor. Null if sharding by vehicle.
 	ThreadPoolExecutor avlClientExecutor = null;
 	
-	// Singleton class
-	private static AvlExecutor singleton;
+	// The queue for the executor. Null if sharding by vehicle.
+	private BlockingQueue<Runnable> workQueue = null;
+	
+	// The lanes for when sharding by vehicle. Null if not sharding.
+	private AvlExecutorLane[] lanes = null;
+	
+	// Singleton class. Volatile for double checked locking.
+	private static volatile AvlExecutor singleton;
 	
 	/********************* Configurable parameters *************************/
 	
@@ -76,6 +99,39 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue shardByVehicle = 
+			new BooleanConfigValue("transitime.avl.shardByVehicle", false,
+					"If true then instead of all AVL threads sharing a single "
+					+ "queue each thread gets its own lane and queue. AVL "
+					+ "reports are assigned to a lane using the vehicle ID so "
+					+ "that reports for a vehicle are always processed in "
+					+ "order and reports for different vehicles don't block "
+					+ "each other. The number of lanes is set by "
+					+ "transitime.avl.numThreads and can be as large as the "
+					+ "number of available processors.");
+	
+	private static IntegerConfigValue laneQueueSize = 
+			new IntegerConfigValue("transitime.avl.laneQueueSize", 500,
+					"When transitime.avl.shardByVehicle is true, how many "
+					+ "items can go into the queue for each lane before "
+					+ "AVL reports are rejected.");
+	
+	private static BooleanConfigValue coalesceByVehicle = 
+			new BooleanConfigValue("transitime.avl.coalesceByVehicle", false,
+					"If true then when AVL processing gets behind a queued "
+					+ "AVL report for a vehicle is replaced by a newer report "
+					+ "for the vehicle instead of both being queued. This way "
+					+ "the queue only fills up if there are more vehicles "
+					+ "than queue slots. See also "
+					+ "transitime.avl.maxCoalesceSecs.");
+	
+	private static IntegerConfigValue backpressurePercent = 
+			new IntegerConfigValue("transitime.avl.backpressurePercent", 75,
+					"When an AVL queue is more than this percent full then "
+					+ "AVL feed pollers wait for the queue to drain before "
+					+ "polling again instead of adding reports that would "
+					+ "just be rejected.");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -96,29 +152,55 @@ public class AvlExecutor {
 					+ "specified. Therefore using 1 thread.", numberThreads);
 			numberThreads = 1;
 		}
-		if (numberThreads > MAX_THREADS) {
+		// When sharding can use all of the cores even if there are more
+		// than MAX_THREADS of them
+		int maxThreads = shardByVehicle.getValue() ? 
+				Math.max(MAX_THREADS, 
+						Runtime.getRuntime().availableProcessors()) 
+				: MAX_THREADS;
+		if (numberThreads > maxThreads) {
 			logger.error("Number of threads must be no greater than {} but "
 					+ "{} was specified. Therefore using {} threads.",
-					MAX_THREADS, numberThreads, MAX_THREADS);
-			numberThreads = MAX_THREADS;
+					maxThreads, numberThreads, maxThreads);
+			numberThreads = maxThreads;
+		}
+
+		// If sharding by vehicle then create a lane for each thread instead
+		// of a single ThreadPoolExecutor
+		if (shardByVehicle.getValue()) {
+			logger.info("Starting AvlExecutor for directly handling AVL "
+					+ "reports via queues sharded by vehicle instead of JMS. "
+					+ "laneQueueSize={} and numberLanes={}",
+					laneQueueSize.getValue(), numberThreads);
+			
+			lanes = new AvlExecutorLane[numberThreads];
+			for (int i = 0; i < numberThreads; ++i)
+				lanes[i] = new AvlExecutorLane(i, laneQueueSize.getValue(),
+						coalesceByVehicle.getValue());
+			return;
 		}
 
 		logger.info("Starting AvlExecutor for directly handling AVL reports " +
 				"via a queue instead of JMS. maxAVLQueueSize={} and "
-				+ "numberThreads={}", 
-				maxAVLQueueSize, numberThreads);
+				+ "numberThreads={} coalesceByVehicle={}", 
+				maxAVLQueueSize, numberThreads, coalesceByVehicle.getValue());
 
 		// Start up the ThreadPoolExecutor
 		int corePoolSize = 1;
 		int maximumPoolSize = numberThreads;
 		long keepAliveTime = 1; /* 1 hour */
-		BlockingQueue<Runnable> workQueue = new AvlQueue(maxAVLQueueSize);
+		workQueue = coalesceByVehicle.getValue() ? 
+				new CoalescingAvlQueue(maxAVLQueueSize) : 
+					new AvlQueue(maxAVLQueueSize);
 		NamedThreadFactory avlClientThreadFactory =
 				new NamedThreadFactory("avlClient");
 		// Called when queue fills up
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
+				VehicleIngestionStats.get(
+						((AvlClient) arg0).getAvlReport().getVehicleId())
+						.recordDropped();
 				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
 						+ AgencyConfig.getAgencyId() + ". The work "
 						+ "queue with capacity " + maxAVLQueueSize 
@@ -143,17 +225,26 @@ public class AvlExecutor {
 	}
 	
 	/**
-	 * Returns singleton instance. Not synchronized since it is OK if an
-	 * executor is replaced by a new one.
+	 * Returns singleton instance. Since the executor creates threads, and
+	 * lanes when sharding by vehicle, it must only be created once. Uses
+	 * double checked locking so that the usual case of the executor already
+	 * having been created doesn't require synchronization.
 	 * 
 	 * @return the singleton AvlExecutor
 	 */
 	public static AvlExecutor getInstance() {
-		if (singleton == null) {
-			singleton = new AvlExecutor();
+		AvlExecutor executor = singleton;
+		if (executor == null) {
+			synchronized (AvlExecutor.class) {
+				executor = singleton;
+				if (executor == null) {
+					executor = new AvlExecutor();
+					singleton = executor;
+				}
+			}
 		}
 		
-		return singleton;
+		return executor;
 	}
 	
 	/**
@@ -184,8 +275,84 @@ public class AvlExecutor {
 		boolean testing = useTestExecutor.length > 0 && useTestExecutor[0];
 		Runnable avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
+		VehicleIngestionStats.get(newAvlReport.getVehicleId()).recordQueued(
+				newAvlReport.getTime());
+
+		if (lanes != null)
+			getLane(newAvlReport.getVehicleId()).execute((AvlClient) avlClient);
+		else
+			avlClientExecutor.execute(avlClient);
+	}
+
+	/**
+	 * Returns the lane that AVL reports for the vehicle are to be processed
+	 * by. Should only be called when sharding by vehicle.
+	 * 
+	 * @param vehicleId
+	 * @return the lane for the vehicle
+	 */
+	private AvlExecutorLane getLane(String vehicleId) {
+		// Mask off the sign bit instead of using Math.abs() since
+		// Math.abs(Integer.MIN_VALUE) is negative
+		int hash = vehicleId.hashCode() & Integer.MAX_VALUE;
+		return lanes[hash % lanes.length];
+	}
 
-		avlClientExecutor.execute(avlClient);		
+	/**
+	 * Returns the lanes being used when sharding AVL reports by vehicle, so
+	 * that their queue depth and latency can be monitored.
+	 * 
+	 * @return List of lanes. Empty if not sharding by vehicle.
+	 */
+	public List<AvlExecutorLane> getLanes() {
+		if (lanes == null)
+			return Collections.emptyList();
+		
+		List<AvlExecutorLane> laneList = new ArrayList<AvlExecutorLane>();
+		Collections.addAll(laneList, lanes);
+		return laneList;
+	}
+
+	/**
+	 * Returns true if a queue is more than transitime.avl.backpressurePercent
+	 * full. When sharding by vehicle true is returned if any of the lanes is
+	 * backed up since the vehicles of that lane would have reports rejected.
+	 * 
+	 * @return true if AVL processing is backed up
+	 */
+	public boolean isBackedUp() {
+		int percent = backpressurePercent.getValue();
+		if (lanes == null) {
+			int capacity = workQueue.size() + workQueue.remainingCapacity();
+			return workQueue.size() * 100L > (long) capacity * percent;
+		}
+		
+		for (AvlExecutorLane lane : lanes) {
+			if (lane.getQueueSize() * 100L 
+					> (long) lane.getQueueCapacity() * percent)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * For applying backpressure to AVL feed pollers. If AVL processing is
+	 * backed up then waits until it has caught up, but no longer than
+	 * maxWaitMsec. This way a poller slows down instead of reading in AVL
+	 * reports that would simply be rejected because the queue is full.
+	 * 
+	 * @param maxWaitMsec
+	 *            Maximum time to wait
+	 * @return How long waited in msec
+	 */
+	public long waitWhileBackedUp(long maxWaitMsec) {
+		long startTime = System.currentTimeMillis();
+		long elapsedMsec = 0;
+		while (isBackedUp() && elapsedMsec < maxWaitMsec) {
+			Time.sleep(Math.min(100, maxWaitMsec - elapsedMsec));
+			elapsedMsec = System.currentTimeMillis() - startTime;
+		}
+		return elapsedMsec;
 	}
 
 	/**
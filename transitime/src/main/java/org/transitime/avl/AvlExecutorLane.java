@@ -0,0 +1,258 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.logging.Markers;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * A single worker lane for when AvlExecutor is sharding AVL reports by
+ * vehicle. Each lane has exactly one thread and its own AvlQueue. Since all of
+ * the AVL reports for a vehicle are hashed to the same lane they are processed
+ * strictly in order, and reports for different vehicles in different lanes
+ * never block each other.
+ * <p>
+ * Also keeps track of metrics for the lane, such as queue depth and how long
+ * it takes from when an AVL report is queued until it has been processed, so
+ * that monitoring can determine if a lane is getting behind.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class AvlExecutorLane {
+
+	// Identifies the lane, for logging and monitoring
+	private final int laneNumber;
+
+	// The queue for the lane. Kept as a member so can determine its size.
+	// Either an AvlQueue or a CoalescingAvlQueue.
+	private final BlockingQueue<Runnable> queue;
+	private final int queueCapacity;
+
+	// The single threaded executor for the lane
+	private final ThreadPoolExecutor executor;
+
+	// Metrics for the lane
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong totalLatencyMsec = new AtomicLong();
+	private final AtomicLong maxLatencyMsec = new AtomicLong();
+	private volatile long lastLatencyMsec = 0;
+
+	private static boolean emailSentDueToQueueFull = false;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlExecutorLane.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the lane and starts up its executor.
+	 *
+	 * @param laneNumber
+	 *            Identifies the lane
+	 * @param queueSize
+	 *            How many AVL reports can be queued for the lane before they
+	 *            are rejected
+	 * @param coalesce
+	 *            If true then uses a CoalescingAvlQueue so that queued
+	 *            reports for a vehicle are replaced by newer ones
+	 */
+	AvlExecutorLane(int laneNumber, final int queueSize, boolean coalesce) {
+		this.laneNumber = laneNumber;
+		this.queue = coalesce ? 
+				new CoalescingAvlQueue(queueSize) : new AvlQueue(queueSize);
+		this.queueCapacity = queueSize;
+
+		// Called when queue for the lane fills up
+		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
+			@Override
+			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
+				rejectedCount.incrementAndGet();
+				VehicleIngestionStats.get(
+						((AvlClient) arg0).getAvlReport().getVehicleId())
+						.recordDropped();
+				String message = "Rejected AVL report in AvlExecutor lane "
+						+ AvlExecutorLane.this.laneNumber + " for agencyId="
+						+ AgencyConfig.getAgencyId() + ". The work "
+						+ "queue with capacity " + queueSize
+						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
+				// If first one then send out an e-mail message since this can
+				// be a serious issue indicating that system is locked up.
+				if (!emailSentDueToQueueFull) {
+					emailSentDueToQueueFull = true;
+					logger.error(Markers.email(), message);
+				} else {
+					logger.error(message);
+				}
+			}};
+
+		// Exactly one thread per lane so that AVL reports for a vehicle are
+		// processed in order
+		executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.HOURS, queue,
+				new NamedThreadFactory("avlLane" + laneNumber),
+				rejectedHandler);
+	}
+
+	/**
+	 * Queues the AvlClient to be run by the thread for this lane. Wraps the
+	 * AvlClient so that the latency can be determined once it has been
+	 * processed.
+	 *
+	 * @param avlClient
+	 */
+	void execute(AvlClient avlClient) {
+		executor.execute(new TimedAvlClient(avlClient));
+	}
+
+	/**
+	 * Records how long it took to process an AVL report, from when it was
+	 * queued until when it was finished.
+	 *
+	 * @param latencyMsec
+	 */
+	private void recordLatency(long latencyMsec) {
+		processedCount.incrementAndGet();
+		totalLatencyMsec.addAndGet(latencyMsec);
+		lastLatencyMsec = latencyMsec;
+
+		// Update max in a thread safe way without locking
+		long max;
+		do {
+			max = maxLatencyMsec.get();
+		} while (latencyMsec > max
+				&& !maxLatencyMsec.compareAndSet(max, latencyMsec));
+	}
+
+	/**
+	 * Wraps an AvlClient so that the time it was queued is remembered and the
+	 * latency can be recorded after it is run. Extends AvlClient since
+	 * AvlQueue needs to be able to get the AvlReport.
+	 */
+	private class TimedAvlClient extends AvlClient {
+		private final AvlClient avlClient;
+		private final long queuedTime;
+
+		private TimedAvlClient(AvlClient avlClient) {
+			super(avlClient.getAvlReport());
+			this.avlClient = avlClient;
+			this.queuedTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public void run() {
+			try {
+				avlClient.run();
+			} finally {
+				recordLatency(System.currentTimeMillis() - queuedTime);
+			}
+		}
+	}
+
+	/**
+	 * @return Identifies the lane
+	 */
+	public int getLaneNumber() {
+		return laneNumber;
+	}
+
+	/**
+	 * @return Number of AVL reports currently queued for the lane
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Number of AVL reports that can be queued for the lane
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return Number of AVL reports processed by the lane
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return Number of AVL reports rejected because lane queue was full
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return Average latency, from queuing until finished processing, of the
+	 *         AVL reports processed by the lane. 0 if none processed yet.
+	 */
+	public long getAverageLatencyMsec() {
+		long count = processedCount.get();
+		return count == 0 ? 0 : totalLatencyMsec.get() / count;
+	}
+
+	/**
+	 * @return Max latency of the AVL reports processed by the lane since the
+	 *         max was last reset
+	 */
+	public long getMaxLatencyMsec() {
+		return maxLatencyMsec.get();
+	}
+
+	/**
+	 * Returns the max latency and resets it so that the next call returns
+	 * the max for just the following interval. For monitoring, so that a
+	 * single spike doesn't get reported forever.
+	 * 
+	 * @return Max latency of the AVL reports processed by the lane since the
+	 *         max was last reset
+	 */
+	public long getAndResetMaxLatencyMsec() {
+		return maxLatencyMsec.getAndSet(0);
+	}
+
+	/**
+	 * @return Latency of the most recent AVL report processed by the lane
+	 */
+	public long getLastLatencyMsec() {
+		return lastLatencyMsec;
+	}
+
+	@Override
+	public String toString() {
+		return "AvlExecutorLane ["
+				+ "laneNumber=" + laneNumber
+				+ ", queueSize=" + getQueueSize()
+				+ ", processedCount=" + getProcessedCount()
+				+ ", rejectedCount=" + getRejectedCount()
+				+ ", averageLatencyMsec=" + getAverageLatencyMsec()
+				+ ", maxLatencyMsec=" + getMaxLatencyMsec()
+				+ ", lastLatencyMsec=" + getLastLatencyMsec()
+				+ "]";
+	}
+}
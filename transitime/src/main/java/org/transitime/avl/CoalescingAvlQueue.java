@@ -0,0 +1,255 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.Time;
+
+/**
+ * A queue of AvlClient runnables that coalesces the queued AVL reports for a
+ * vehicle. Unlike AvlQueue, which queues every report and throws out the
+ * obsolete ones only once they are taken from the queue, a new report for a
+ * vehicle that already has a report waiting in the queue simply replaces the
+ * waiting one. This way a vehicle only takes up one slot in the queue no
+ * matter how far behind processing gets, so the queue only fills up if there
+ * are more vehicles than slots.
+ * <p>
+ * Not every waiting report is replaced. If the assignment of the new report
+ * is different then the waiting report is kept so that the assignment change
+ * is not lost. And the waiting report is kept if the new report is more than
+ * transitime.avl.maxCoalesceSecs later than the first report coalesced into
+ * the slot. This way the processed reports for a vehicle are never too far
+ * apart, which is needed for determining arrivals and departures reasonably
+ * accurately.
+ * <p>
+ * Note: like AvlQueue this has to be a queue of Runnables instead of
+ * AvlClients since that is what ThreadPoolExecutor expects.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class CoalescingAvlQueue extends ArrayBlockingQueue<Runnable> {
+
+	// The slot waiting in the queue for each vehicle. Keyed on vehicle ID.
+	private final ConcurrentHashMap<String, PendingAvlClient>
+			pendingByVehicle =
+					new ConcurrentHashMap<String, PendingAvlClient>();
+
+	private static IntegerConfigValue maxCoalesceSecs =
+			new IntegerConfigValue("transitime.avl.maxCoalesceSecs", 60,
+					"When transitime.avl.coalesceByVehicle is true a queued "
+					+ "AVL report for a vehicle is replaced by a newer one "
+					+ "only if the newer one is no more than this many "
+					+ "seconds later than the first report coalesced. Keeps "
+					+ "processed reports close enough together to determine "
+					+ "arrivals and departures.");
+
+	private static final long serialVersionUID = -3155410766839409327L;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CoalescingAvlQueue.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The slot in the queue for a vehicle. Holds the latest AvlClient for the
+	 * vehicle until the slot is taken from the queue. Extends AvlClient so
+	 * that the ThreadPoolExecutor rejection handlers can get the AVL report.
+	 */
+	private static class PendingAvlClient extends AvlClient {
+		private AvlClient avlClient;
+		private final long firstAvlTime;
+		private boolean taken = false;
+
+		private PendingAvlClient(AvlClient avlClient) {
+			super(avlClient.getAvlReport());
+			this.avlClient = avlClient;
+			this.firstAvlTime = avlClient.getAvlReport().getTime();
+		}
+
+		/**
+		 * Replaces the waiting AvlClient with the new one if the slot hasn't
+		 * yet been taken from the queue and the new report can be coalesced.
+		 *
+		 * @param newAvlClient
+		 * @return true if replaced
+		 */
+		private synchronized boolean replace(AvlClient newAvlClient) {
+			if (taken)
+				return false;
+
+			AvlReport waitingReport = avlClient.getAvlReport();
+			AvlReport newReport = newAvlClient.getAvlReport();
+			if (newReport.getTime() < waitingReport.getTime())
+				return false;
+			if (newReport.getTime() - firstAvlTime > maxCoalesceSecs.getValue()
+					* Time.MS_PER_SEC)
+				return false;
+			if (!equal(newReport.getAssignmentId(),
+					waitingReport.getAssignmentId())
+					|| newReport.getAssignmentType() != waitingReport
+							.getAssignmentType())
+				return false;
+
+			avlClient = newAvlClient;
+			return true;
+		}
+
+		/**
+		 * Marks the slot as taken from the queue so that reports are no
+		 * longer coalesced into it.
+		 */
+		private synchronized void markTaken() {
+			taken = true;
+		}
+
+		@Override
+		public synchronized AvlReport getAvlReport() {
+			return avlClient.getAvlReport();
+		}
+
+		@Override
+		public void run() {
+			AvlClient client;
+			synchronized (this) {
+				client = avlClient;
+			}
+			client.run();
+		}
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	/**
+	 * Constructs the queue to have specified size.
+	 *
+	 * @param queueSize
+	 *            How many vehicles can have AVL reports waiting in the queue
+	 */
+	public CoalescingAvlQueue(int queueSize) {
+		super(queueSize);
+	}
+
+	/**
+	 * Marks a slot that was taken from the queue so that no more reports are
+	 * coalesced into it.
+	 *
+	 * @param runnable
+	 *            From the queue. Can be null.
+	 * @return the runnable
+	 */
+	private Runnable taken(Runnable runnable) {
+		if (runnable instanceof PendingAvlClient) {
+			PendingAvlClient pending = (PendingAvlClient) runnable;
+			pending.markTaken();
+			pendingByVehicle.remove(pending.getAvlReport().getVehicleId(),
+					pending);
+		}
+		return runnable;
+	}
+
+	/**
+	 * Adds the AvlClient to the queue, coalescing it with the report already
+	 * waiting for the vehicle if possible. Used by ThreadPoolExecutor.
+	 */
+	@Override
+	public boolean offer(Runnable runnable) {
+		if (!(runnable instanceof AvlClient))
+			throw new IllegalArgumentException("Runnable must be AvlClient.");
+		AvlClient avlClient = (AvlClient) runnable;
+		String vehicleId = avlClient.getAvlReport().getVehicleId();
+
+		// If report already waiting for vehicle then try to replace it
+		PendingAvlClient pending = pendingByVehicle.get(vehicleId);
+		if (pending != null && pending.replace(avlClient)) {
+			VehicleIngestionStats.get(vehicleId).recordCoalesced();
+			logger.debug("Coalesced AVL report into the one already queued "
+					+ "for vehicleId={}. {}", vehicleId,
+					avlClient.getAvlReport());
+			return true;
+		}
+
+		// Need a new slot for the vehicle
+		pending = new PendingAvlClient(avlClient);
+		if (!super.offer(pending))
+			return false;
+		pendingByVehicle.put(vehicleId, pending);
+		return true;
+	}
+
+	/**
+	 * The remaining methods for adding to the queue are not used by
+	 * ThreadPoolExecutor but are included for completeness. They go through
+	 * offer() so that the reports are coalesced.
+	 */
+	@Override
+	public boolean add(Runnable runnable) {
+		if (!offer(runnable))
+			throw new IllegalStateException("Queue full");
+		return true;
+	}
+
+	@Override
+	public void put(Runnable runnable) throws InterruptedException {
+		while (!offer(runnable))
+			Time.sleep(10);
+	}
+
+	@Override
+	public boolean offer(Runnable runnable, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long endTime = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(runnable)) {
+			if (System.nanoTime() >= endTime)
+				return false;
+			Time.sleep(10);
+		}
+		return true;
+	}
+
+	@Override
+	public Runnable poll() {
+		return taken(super.poll());
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return taken(super.poll(timeout, unit));
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		return taken(super.take());
+	}
+
+	/**
+	 * @return Number of vehicles with an AVL report waiting in the queue
+	 */
+	public int getNumVehiclesWaiting() {
+		return pendingByVehicle.size();
+	}
+}
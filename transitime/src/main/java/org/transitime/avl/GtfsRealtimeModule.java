@@ -17,7 +17,13 @@
 package org.transitime.avl;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.feed.gtfsRt.GtfsRtVehiclePositionsReader;
 import org.transitime.modules.Module;
@@ -31,6 +37,15 @@ import org.transitime.modules.Module;
  */
 public class GtfsRealtimeModule extends PollUrlAvlModule {
 
+	// The GPS time of the last AVL report for each vehicle so that positions
+	// that haven't changed since the previous poll can be filtered out.
+	// Keyed on vehicle ID. Only accessed by the module thread.
+	private final Map<String, Long> lastGpsTimeByVehicle =
+			new HashMap<String, Long>();
+	
+	private static final Logger logger = LoggerFactory
+			.getLogger(GtfsRealtimeModule.class);
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -42,6 +57,9 @@ public class GtfsRealtimeModule extends PollUrlAvlModule {
 		// GTFS-realtime is already binary so don't want to get compressed
 		// version since that would just be a waste.
 		useCompression = false;
+		
+		// Don't need to read and process the feed if it hasn't changed
+		useConditionalRequests = true;
 	}
 
 	/* (non-Javadoc)
@@ -53,7 +71,24 @@ public class GtfsRealtimeModule extends PollUrlAvlModule {
 		Collection<AvlReport> avlReports =
 				GtfsRtVehiclePositionsReader.process(inputStream);
 
-		return avlReports;
+		// Filter out the positions that are not newer than the previous one
+		// for the vehicle. Feeds are often polled more frequently than the
+		// vehicles report so most of the positions are simply repeated.
+		Collection<AvlReport> newAvlReports = 
+				new ArrayList<AvlReport>(avlReports.size());
+		for (AvlReport avlReport : avlReports) {
+			Long lastGpsTime = 
+					lastGpsTimeByVehicle.get(avlReport.getVehicleId());
+			if (lastGpsTime != null && avlReport.getTime() <= lastGpsTime)
+				continue;
+			lastGpsTimeByVehicle.put(avlReport.getVehicleId(), 
+					avlReport.getTime());
+			newAvlReports.add(avlReport);
+		}
+		
+		logger.debug("Of the {} AVL reports from the GTFS-realtime feed {} "
+				+ "were new.", avlReports.size(), newAvlReports.size());
+		return newAvlReports;
 	}
 
 	/**
@@ -21,6 +21,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -32,6 +33,7 @@ import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.AvlConfig;
@@ -75,11 +77,28 @@ public abstract class PollUrlAvlModule extends AvlModule {
 					+ "so that predictions and such are generated. But if "
 					+ "debugging then can set this param to false.");
 	
+	private static IntegerConfigValue maxBackpressureWaitSecs = 
+			new IntegerConfigValue("transitime.avl.maxBackpressureWaitSecs", 
+					60,
+					"When not using JMS and AVL processing is backed up the "
+					+ "feed is not polled again until the AVL queue has "
+					+ "drained, but waits no longer than this many seconds. "
+					+ "See transitime.avl.backpressurePercent.");
+	
 	// Usually want to use compression when reading data but for some AVL
 	// feeds might be binary where don't want additional compression. A
 	// superclass can override this value.
 	protected boolean useCompression = true;
 	
+	// If true then If-Modified-Since and If-None-Match headers are sent so
+	// that the feed doesn't need to be read and processed again if it hasn't
+	// changed. A subclass can set this to true if the feed supports it.
+	protected boolean useConditionalRequests = false;
+	
+	// From the previous response, for conditional requests
+	private String lastModified = null;
+	private String eTag = null;
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(PollUrlAvlModule.class);
 
@@ -204,6 +223,24 @@ public abstract class PollUrlAvlModule extends AvlModule {
 		// Set any additional AVL feed specific request headers
 		setRequestHeaders(con);
 		
+		// If feed hasn't changed since last poll then don't need to read it
+		if (useConditionalRequests && con instanceof HttpURLConnection) {
+			if (lastModified != null)
+				con.setRequestProperty("If-Modified-Since", lastModified);
+			if (eTag != null)
+				con.setRequestProperty("If-None-Match", eTag);
+			
+			HttpURLConnection httpCon = (HttpURLConnection) con;
+			if (httpCon.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				logger.info("AVL feed not modified since last poll so not "
+						+ "processing it. Took {} msec.", timer.elapsedMsec());
+				closeForKeepAlive(httpCon.getInputStream());
+				return;
+			}
+			lastModified = con.getHeaderField("Last-Modified");
+			eTag = con.getHeaderField("ETag");
+		}
+		
 		// Create appropriate input stream depending on whether content is 
 		// compressed or not
 		InputStream in = con.getInputStream();
@@ -221,7 +258,7 @@ public abstract class PollUrlAvlModule extends AvlModule {
 		// Call the abstract method to actually process the data
 		timer.resetTimer();
 		Collection<AvlReport> avlReportsReadIn = processData(in);		
-		in.close();
+		closeForKeepAlive(in);
 		logger.debug("Time to parse document {} msec", timer.elapsedMsec());
 		
 		// Process all the reports read in
@@ -229,6 +266,25 @@ public abstract class PollUrlAvlModule extends AvlModule {
 			processAvlReports(avlReportsReadIn);
 	}
 	
+	/**
+	 * Reads any remaining data and closes the stream. HttpURLConnection only
+	 * reuses a keep-alive connection for the next poll if the response has
+	 * been completely read, so this avoids having to open a new connection
+	 * each polling cycle.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	private static void closeForKeepAlive(InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) >= 0)
+				;
+		} finally {
+			in.close();
+		}
+	}
+	
 	/** 
 	 * Does all of the work for the class. Runs forever and reads in 
 	 * AVL data from feed and processes it.
@@ -271,6 +327,18 @@ public abstract class PollUrlAvlModule extends AvlModule {
 			} else {
 				Time.sleep(sleepTime);
 			}
+			
+			// If AVL processing is backed up then wait for it to catch up
+			// before polling again. Otherwise the AVL reports read in would
+			// just be rejected because the queue is full.
+			if (!AvlConfig.shouldUseJms()) {
+				long waitedMsec = AvlExecutor.getInstance().waitWhileBackedUp(
+						maxBackpressureWaitSecs.getValue() * Time.MS_PER_SEC);
+				if (waitedMsec > 0)
+					logger.warn("AVL processing is backed up so waited {} "
+							+ "msec before polling AVL feed again.", 
+							waitedMsec);
+			}
 		}
 	}
 	
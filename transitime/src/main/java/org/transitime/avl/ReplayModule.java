@@ -0,0 +1,528 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringConfigValue;
+import org.transitime.core.AvlProcessor;
+import org.transitime.core.VehicleState;
+import org.transitime.core.dataCache.VehicleStateManager;
+import org.transitime.core.schedBasedPreds.SchedBasedPredsModule;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.modules.Module;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+import org.transitime.utils.VirtualClock;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * For replaying a large amount of AVL data, such as a full service day, as
+ * quickly as possible while still getting the same results each time. Useful
+ * for validating configuration changes and for determining how many AVL
+ * reports the system can handle before deploying.
+ * <p>
+ * The AVL reports are read from the database a window at a time, or from a
+ * CSV file as with BatchCsvAvlFeedModule. The system time is a VirtualClock
+ * that is advanced in ticks of transitime.replay.tickSecs. The reports for
+ * a tick are processed, each using its own AVL time as the system time, and
+ * then the clock is set to the end of the tick and the timeouts, and
+ * optionally the schedule based predictions, are handled. Since the replay
+ * drives these instead of them polling on the computer clock the results
+ * don't depend on how fast the replay runs.
+ * <p>
+ * The reports for a tick can be processed in parallel lanes. The vehicles
+ * are divided among the lanes by vehicle ID so the reports for a vehicle are
+ * always processed in order by the same lane. Interactions between vehicles
+ * within a tick, such as two vehicles being auto assigned to the same block,
+ * can depend on thread timing so for exactly reproducible results use a
+ * single lane.
+ * <p>
+ * Usually want to set transitime.db.storeDataInDatabase to false so that
+ * the replay doesn't write the generated data to the database again.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class ReplayModule extends Module {
+
+	// Advanced by the replay
+	private VirtualClock clock;
+
+	// For processing the vehicles in parallel. Null if only a single lane.
+	private ExecutorService laneExecutor = null;
+
+	// For reporting throughput
+	private final AtomicLong reportsProcessed = new AtomicLong();
+	private final AtomicLong predictionsGenerated = new AtomicLong();
+
+	/*********** Configurable Parameters for this module ***********/
+
+	private static StringConfigValue replayCsvFileName =
+			new StringConfigValue("transitime.replay.csvFileName",
+					"",
+					"If set then the AVL reports are read from this CSV file, "
+					+ "using the same format as for BatchCsvAvlFeedModule, "
+					+ "instead of from the database.");
+
+	private static StringConfigValue replayVehicleId =
+			new StringConfigValue("transitime.replay.vehicleId",
+					"",
+					"If set then only the AVL reports for this vehicle are "
+					+ "replayed. Otherwise all vehicles are.");
+
+	private static StringConfigValue replayStartTimeStr =
+			new StringConfigValue("transitime.replay.startTime",
+					"",
+					"Date and time of when to start the replay when reading "
+					+ "AVL reports from the database. Format is "
+					+ "\"MM-dd-yyyy HH:mm:ss\".");
+
+	private static StringConfigValue replayEndTimeStr =
+			new StringConfigValue("transitime.replay.endTime",
+					"",
+					"Date and time of when to end the replay when reading AVL "
+					+ "reports from the database. If not set then replays up "
+					+ "to the current time.");
+
+	private static IntegerConfigValue dbReadWindowMinutes =
+			new IntegerConfigValue("transitime.replay.dbReadWindowMinutes",
+					5,
+					"How many minutes worth of AVL reports to read from the "
+					+ "database at a time.");
+
+	private static IntegerConfigValue numLanes =
+			new IntegerConfigValue("transitime.replay.numLanes",
+					1,
+					"Number of threads to process the vehicles in parallel. "
+					+ "Results are only exactly reproducible with a single "
+					+ "lane since interactions between vehicles can then "
+					+ "depend on thread timing.");
+
+	private static IntegerConfigValue tickSecs =
+			new IntegerConfigValue("transitime.replay.tickSecs",
+					10,
+					"How many seconds the virtual clock is advanced at a "
+					+ "time. After the AVL reports for a tick are processed "
+					+ "the timeouts are handled.");
+
+	private static BooleanConfigValue schedBasedPreds =
+			new BooleanConfigValue("transitime.replay.schedBasedPreds",
+					false,
+					"Whether the replay should create schedule based "
+					+ "predictions for blocks without a vehicle, as the "
+					+ "SchedBasedPredsModule does when running in real time.");
+
+	private static IntegerConfigValue schedBasedPredsIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.replay.schedBasedPredsIntervalSecs",
+					4 * Time.SEC_PER_MIN,
+					"How frequently in virtual time the replay creates "
+					+ "schedule based predictions when "
+					+ "transitime.replay.schedBasedPreds is true.");
+
+	private static IntegerConfigValue statsLoggingIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.replay.statsLoggingIntervalSecs",
+					30,
+					"How frequently in real time the progress and throughput "
+					+ "of the replay is logged.");
+
+	/********************* Logging **************************/
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ReplayModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Provides the AVL reports in time order. For the database the reports
+	 * are read a window at a time so that a full day of data doesn't need to
+	 * be in memory at once.
+	 */
+	private static class ReplaySource {
+		private final ArrayDeque<AvlReport> buffer =
+				new ArrayDeque<AvlReport>();
+		private final String vehicleId;
+		private long dbReadBeginTime;
+		private final long dbReadEndTime;
+
+		/**
+		 * For reports from a CSV file. They are sorted by time, and by
+		 * vehicle ID for reports with the same time, so that the order is
+		 * always the same.
+		 *
+		 * @param avlReports
+		 */
+		private ReplaySource(List<AvlReport> avlReports) {
+			List<AvlReport> sorted = new ArrayList<AvlReport>(avlReports);
+			Collections.sort(sorted, new Comparator<AvlReport>() {
+				@Override
+				public int compare(AvlReport r1, AvlReport r2) {
+					if (r1.getTime() != r2.getTime())
+						return r1.getTime() < r2.getTime() ? -1 : 1;
+					return r1.getVehicleId().compareTo(r2.getVehicleId());
+				}
+			});
+			buffer.addAll(sorted);
+			this.vehicleId = null;
+			this.dbReadBeginTime = 0;
+			this.dbReadEndTime = 0;
+		}
+
+		/**
+		 * For reports from the database.
+		 *
+		 * @param vehicleId
+		 *            Null if for all vehicles
+		 * @param beginTime
+		 * @param endTime
+		 */
+		private ReplaySource(String vehicleId, long beginTime, long endTime) {
+			this.vehicleId = vehicleId;
+			this.dbReadBeginTime = beginTime;
+			this.dbReadEndTime = endTime;
+		}
+
+		/**
+		 * Reads the next window of AVL reports from the database into the
+		 * buffer.
+		 */
+		private void readWindowFromDb() {
+			long start = dbReadBeginTime;
+			long end = Math.min(start + dbReadWindowMinutes.getValue()
+					* Time.MS_PER_MIN, dbReadEndTime);
+			List<AvlReport> avlReports = AvlReport.getAvlReportsFromDb(
+					new Date(start), new Date(end), vehicleId,
+					"ORDER BY time, vehicleId");
+			if (avlReports == null) {
+				logger.error("Could not read AVL reports from database for "
+						+ "between beginTime={} and endTime={} so ending "
+						+ "replay.", Time.dateTimeStr(start),
+						Time.dateTimeStr(end));
+				dbReadBeginTime = dbReadEndTime;
+				return;
+			}
+			logger.debug("Read {} AVL reports for between beginTime={} and "
+					+ "endTime={}", avlReports.size(), Time.dateTimeStr(start),
+					Time.dateTimeStr(end));
+			buffer.addAll(avlReports);
+			dbReadBeginTime = end;
+		}
+
+		/**
+		 * Makes sure the buffer contains all the reports before the
+		 * specified time, if there are any.
+		 *
+		 * @param time
+		 */
+		private void fill(long time) {
+			while (dbReadBeginTime < dbReadEndTime
+					&& (buffer.isEmpty() || buffer.peekLast().getTime() < time))
+				readWindowFromDb();
+		}
+
+		/**
+		 * @return Time of the next AVL report, or Long.MAX_VALUE if there
+		 *         are no more
+		 */
+		private long getNextTime() {
+			while (buffer.isEmpty() && dbReadBeginTime < dbReadEndTime)
+				readWindowFromDb();
+			return buffer.isEmpty() ? Long.MAX_VALUE : buffer.peek().getTime();
+		}
+
+		/**
+		 * Removes and returns the AVL reports before the specified time.
+		 *
+		 * @param time
+		 * @return the reports, in time order
+		 */
+		private List<AvlReport> getReportsBefore(long time) {
+			fill(time);
+			List<AvlReport> avlReports = new ArrayList<AvlReport>();
+			while (!buffer.isEmpty() && buffer.peek().getTime() < time)
+				avlReports.add(buffer.poll());
+			return avlReports;
+		}
+	}
+
+	/**
+	 * @param agencyId
+	 */
+	public ReplayModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Parses a time configured for the replay. Exits if it is invalid.
+	 *
+	 * @param timeStr
+	 * @param paramName
+	 * @return the epoch time
+	 */
+	private static long parseTime(String timeStr, String paramName) {
+		try {
+			return Time.parse(timeStr).getTime();
+		} catch (java.text.ParseException e) {
+			logger.error("Time \"{}\" specified by {} parameter could not be "
+					+ "parsed. Format must be \"MM-dd-yyyy HH:mm:ss\"",
+					timeStr, paramName);
+			System.exit(-1);
+
+			// Will never be reached because the above state exits program but
+			// needed so compiler doesn't complain.
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates the source of AVL reports based on the configuration. Exits if
+	 * the configuration is invalid.
+	 *
+	 * @return the source
+	 */
+	private static ReplaySource createSource() {
+		String vehicleId = replayVehicleId.getValue().isEmpty() ?
+				null : replayVehicleId.getValue();
+
+		// If CSV file specified then use it
+		if (!replayCsvFileName.getValue().isEmpty()) {
+			List<AvlReport> avlReports =
+					(new AvlCsvReader(replayCsvFileName.getValue())).get();
+			if (vehicleId != null) {
+				List<AvlReport> forVehicle = new ArrayList<AvlReport>();
+				for (AvlReport avlReport : avlReports) {
+					if (vehicleId.equals(avlReport.getVehicleId()))
+						forVehicle.add(avlReport);
+				}
+				avlReports = forVehicle;
+			}
+			return new ReplaySource(avlReports);
+		}
+
+		// Reading from the database so need the start time
+		if (replayStartTimeStr.getValue().isEmpty()) {
+			logger.error("Neither transitime.replay.csvFileName nor "
+					+ "transitime.replay.startTime were set so cannot replay "
+					+ "AVL data. Exiting.");
+			System.exit(-1);
+		}
+		long startTime = parseTime(replayStartTimeStr.getValue(),
+				"transitime.replay.startTime");
+		long endTime = replayEndTimeStr.getValue().isEmpty() ?
+				System.currentTimeMillis()
+				: parseTime(replayEndTimeStr.getValue(),
+						"transitime.replay.endTime");
+		return new ReplaySource(vehicleId, startTime, endTime);
+	}
+
+	/**
+	 * Processes the AVL report using its own time as the system time for the
+	 * current thread. Then counts the predictions generated.
+	 *
+	 * @param avlReport
+	 */
+	private void processAvlReport(AvlReport avlReport) {
+		clock.setForCurrentThread(avlReport.getTime());
+		try {
+			AvlProcessor.getInstance().processAvlReport(avlReport);
+		} catch (Exception e) {
+			logger.error("Exception when processing AVL report {}. {}",
+					avlReport, e.getMessage(), e);
+		} finally {
+			clock.clearForCurrentThread();
+		}
+		reportsProcessed.incrementAndGet();
+
+		VehicleState vehicleState = VehicleStateManager.getInstance()
+				.getVehicleState(avlReport.getVehicleId());
+		synchronized (vehicleState) {
+			List<IpcPrediction> predictions = vehicleState.getPredictions();
+			if (predictions != null)
+				predictionsGenerated.addAndGet(predictions.size());
+		}
+	}
+
+	/**
+	 * Processes the AVL reports for a tick. If using multiple lanes then the
+	 * vehicles are divided among the lanes and this method returns once all
+	 * lanes are done.
+	 *
+	 * @param avlReports
+	 *            In time order
+	 */
+	private void processTick(List<AvlReport> avlReports) {
+		if (laneExecutor == null) {
+			for (AvlReport avlReport : avlReports)
+				processAvlReport(avlReport);
+			return;
+		}
+
+		// Divide the reports among the lanes, keeping them in order
+		int lanes = numLanes.getValue();
+		List<List<AvlReport>> reportsByLane = new ArrayList<List<AvlReport>>();
+		for (int i = 0; i < lanes; ++i)
+			reportsByLane.add(new ArrayList<AvlReport>());
+		for (AvlReport avlReport : avlReports) {
+			int lane = (avlReport.getVehicleId().hashCode() & 0x7fffffff)
+					% lanes;
+			reportsByLane.get(lane).add(avlReport);
+		}
+
+		// Process the lanes and wait till they are all done
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final List<AvlReport> laneReports : reportsByLane) {
+			if (laneReports.isEmpty())
+				continue;
+			futures.add(laneExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (AvlReport avlReport : laneReports)
+						processAvlReport(avlReport);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				logger.error("Exception in replay lane. {}", e.getMessage(),
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Logs the progress and throughput of the replay.
+	 *
+	 * @param timer
+	 *            For when the replay started
+	 * @param replayStartTime
+	 *            Virtual time the replay started at
+	 */
+	private void logStats(IntervalTimer timer, long replayStartTime) {
+		long elapsedMsec = Math.max(timer.elapsedMsec(), 1);
+		long virtualMsec = clock.get() - replayStartTime;
+		logger.info("Replay at {}. Processed {} AVL reports and generated {} "
+				+ "predictions in {} msec. {} reports/sec and {}x real time.",
+				Time.dateTimeStr(clock.get()), reportsProcessed.get(),
+				predictionsGenerated.get(), elapsedMsec,
+				reportsProcessed.get() * Time.MS_PER_SEC / elapsedMsec,
+				virtualMsec / elapsedMsec);
+	}
+
+	/**
+	 * @return Number of AVL reports processed by the replay
+	 */
+	public long getReportsProcessed() {
+		return reportsProcessed.get();
+	}
+
+	/**
+	 * @return Total number of predictions that the vehicles had after each
+	 *         AVL report was processed
+	 */
+	public long getPredictionsGenerated() {
+		return predictionsGenerated.get();
+	}
+
+	/* Replays the AVL data tick by tick
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.info("Starting module {} for agencyId={}",
+				getClass().getName(), getAgencyId());
+
+		ReplaySource source = createSource();
+		long replayStartTime = source.getNextTime();
+		if (replayStartTime == Long.MAX_VALUE) {
+			logger.info("No AVL reports to replay. Exiting.");
+			System.exit(0);
+		}
+
+		// Use the virtual clock for the system time
+		clock = new VirtualClock(replayStartTime);
+		Core.getInstance().setSystemTime(clock);
+
+		if (numLanes.getValue() > 1)
+			laneExecutor = Executors.newFixedThreadPool(numLanes.getValue(),
+					new NamedThreadFactory("replayLane"));
+
+		long tickMsec = Math.max(tickSecs.getValue(), 1) * Time.MS_PER_SEC;
+		long schedBasedPredsMsec =
+				schedBasedPredsIntervalSecs.getValue() * Time.MS_PER_SEC;
+		long lastSchedBasedPredsTime = 0;
+		IntervalTimer timer = new IntervalTimer();
+		IntervalTimer statsTimer = new IntervalTimer();
+
+		// Process tick by tick until there are no more reports
+		long tickEnd = replayStartTime + tickMsec;
+		while (source.getNextTime() != Long.MAX_VALUE) {
+			processTick(source.getReportsBefore(tickEnd));
+
+			// Advance the clock to the end of the tick and handle what
+			// normally is done by polling
+			clock.set(tickEnd);
+			Core.getInstance().getTimeoutHandlerModule()
+					.handlePossibleTimeouts();
+			if (schedBasedPreds.getValue()
+					&& tickEnd >= lastSchedBasedPredsTime + schedBasedPredsMsec) {
+				SchedBasedPredsModule.createSchedBasedPredsAsNecessary();
+				lastSchedBasedPredsTime = tickEnd;
+			}
+
+			if (statsTimer.elapsedMsec() >=
+					statsLoggingIntervalSecs.getValue() * Time.MS_PER_SEC) {
+				logStats(timer, replayStartTime);
+				statsTimer.resetTimer();
+			}
+
+			tickEnd += tickMsec;
+		}
+
+		logStats(timer, replayStartTime);
+		logger.info("Replayed all AVL reports so done. Exiting.");
+		if (laneExecutor != null)
+			laneExecutor.shutdown();
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on how the AVL reports for a vehicle are ingested by
+ * AvlExecutor. Keeps track of how many reports were queued, coalesced because
+ * a newer report for the vehicle superseded them, dropped because the queue
+ * was full, and processed. Also keeps track of the AVL times of the last
+ * report queued and processed so that can determine how far behind the
+ * processing for a vehicle is.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class VehicleIngestionStats {
+
+	private final String vehicleId;
+
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private volatile long lastQueuedAvlTime = 0;
+	private volatile long lastProcessedAvlTime = 0;
+
+	// Keyed on vehicle ID
+	private static final ConcurrentHashMap<String, VehicleIngestionStats>
+			statsByVehicle =
+					new ConcurrentHashMap<String, VehicleIngestionStats>();
+
+	/********************** Member Functions **************************/
+
+	private VehicleIngestionStats(String vehicleId) {
+		this.vehicleId = vehicleId;
+	}
+
+	/**
+	 * Returns the stats for the vehicle, creating them if necessary.
+	 *
+	 * @param vehicleId
+	 * @return the stats for the vehicle
+	 */
+	public static VehicleIngestionStats get(String vehicleId) {
+		VehicleIngestionStats stats = statsByVehicle.get(vehicleId);
+		if (stats == null) {
+			stats = new VehicleIngestionStats(vehicleId);
+			VehicleIngestionStats existing =
+					statsByVehicle.putIfAbsent(vehicleId, stats);
+			if (existing != null)
+				stats = existing;
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the stats for all vehicles that have had AVL reports
+	 */
+	public static Collection<VehicleIngestionStats> getAll() {
+		return Collections.unmodifiableCollection(statsByVehicle.values());
+	}
+
+	void recordQueued(long avlTime) {
+		queuedCount.incrementAndGet();
+		if (avlTime > lastQueuedAvlTime)
+			lastQueuedAvlTime = avlTime;
+	}
+
+	void recordCoalesced() {
+		coalescedCount.incrementAndGet();
+	}
+
+	void recordDropped() {
+		droppedCount.incrementAndGet();
+	}
+
+	void recordProcessed(long avlTime) {
+		processedCount.incrementAndGet();
+		if (avlTime > lastProcessedAvlTime)
+			lastProcessedAvlTime = avlTime;
+	}
+
+	public String getVehicleId() {
+		return vehicleId;
+	}
+
+	/**
+	 * @return Number of AVL reports for the vehicle that were queued
+	 */
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	/**
+	 * @return Number of queued AVL reports that were replaced by a newer
+	 *         report for the vehicle before they were processed
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return Number of AVL reports that were dropped because the queue was
+	 *         full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return Number of AVL reports for the vehicle that were processed
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return AVL time of the latest report queued for the vehicle
+	 */
+	public long getLastQueuedAvlTime() {
+		return lastQueuedAvlTime;
+	}
+
+	/**
+	 * @return AVL time of the latest report processed for the vehicle
+	 */
+	public long getLastProcessedAvlTime() {
+		return lastProcessedAvlTime;
+	}
+
+	/**
+	 * @return How far behind, in AVL time, the processing of reports for the
+	 *         vehicle is compared to the latest report queued. 0 if caught up.
+	 */
+	public long getLagMsec() {
+		return Math.max(lastQueuedAvlTime - lastProcessedAvlTime, 0);
+	}
+
+	@Override
+	public String toString() {
+		return "VehicleIngestionStats ["
+				+ "vehicleId=" + vehicleId
+				+ ", queuedCount=" + getQueuedCount()
+				+ ", coalescedCount=" + getCoalescedCount()
+				+ ", droppedCount=" + getDroppedCount()
+				+ ", processedCount=" + getProcessedCount()
+				+ ", lagMsec=" + getLagMsec()
+				+ "]";
+	}
+}
@@ -1,21 +1,89 @@
 package org.transitime.avl.calAmp;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.avl.AvlModule;
 import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
+/**
+ * For receiving CalAmp reports via UDP. Uses a DatagramChannel with a large
+ * receive buffer so that the bursts of packets that occur when all of the
+ * modems report at the same time don't get dropped by the kernel. Each
+ * receive thread has its own direct ByteBuffer that packets are read into.
+ * The receive thread only parses the packets. Once the packets that have
+ * arrived have been read the resulting AvlReports are handed off as a batch
+ * to be processed by the AVL executor (or JMS) so that slow processing of an
+ * AVL report doesn't hold up receiving.
+ * <p>
+ * Keeps counts of packets received, parsed into AVL reports, malformed, and
+ * dropped because they were not a report with a valid GPS fix. These are
+ * logged periodically.
+ * 
+ * @author SkiBu Smith
+ *
+ */
 public class CalAmpAvlModule extends AvlModule {
 
+	// Counters for monitoring
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong packetsParsed = new AtomicLong();
+	private final AtomicLong packetsMalformed = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	
 	private static IntegerConfigValue calAmpFeedPort = new IntegerConfigValue(
 			"transitime.avl.calAmpFeedPort", 20500,
 			"The port number for the UDP socket connection for the "
 					+ "CalAmp GPS tracker feed.");
 
+	private static IntegerConfigValue receiveBufferSize = 
+			new IntegerConfigValue(
+					"transitime.avl.calAmpReceiveBufferSize", 4*1024*1024,
+					"Size in bytes of the socket receive buffer for the "
+					+ "CalAmp feed. Needs to be large enough to hold the "
+					+ "burst of packets that occurs when many modems report "
+					+ "at once. The OS might limit the actual size.");
+	
+	private static IntegerConfigValue maxPacketSize = 
+			new IntegerConfigValue(
+					"transitime.avl.calAmpMaxPacketSize", 1024,
+					"Size in bytes of the buffer that each CalAmp packet is "
+					+ "read into. Larger packets are truncated and treated as "
+					+ "malformed.");
+	
+	private static IntegerConfigValue numReceiveThreads = 
+			new IntegerConfigValue(
+					"transitime.avl.calAmpReceiveThreads", 1,
+					"Number of threads receiving and parsing packets for the "
+					+ "CalAmp feed.");
+	
+	private static IntegerConfigValue maxBatchSize = 
+			new IntegerConfigValue(
+					"transitime.avl.calAmpMaxBatchSize", 200,
+					"Maximum number of CalAmp AVL reports to read before "
+					+ "handing them off to be processed.");
+	
+	private static IntegerConfigValue statsLoggingIntervalSecs = 
+			new IntegerConfigValue(
+					"transitime.avl.calAmpStatsLoggingIntervalSecs", 
+					5*Time.SEC_PER_MIN,
+					"How frequently the counts of CalAmp packets received, "
+					+ "parsed, malformed, and dropped are logged.");
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(CalAmpAvlModule.class);
 
@@ -30,31 +98,149 @@ public class CalAmpAvlModule extends AvlModule {
 		super(agencyId);
 	}
 
-	private void processPackets(DatagramSocket socket) {
-		// Read from the socket
+	/**
+	 * Parses the packet in the buffer into an AvlReport and updates the
+	 * counters.
+	 * 
+	 * @param buffer
+	 *            Contains the packet, flipped so ready for reading
+	 * @return the AvlReport, or null if packet malformed or not a valid
+	 *         report
+	 */
+	private AvlReport parsePacket(ByteBuffer buffer) {
+		packetsReceived.incrementAndGet();
+		
+		// If packet filled the buffer then it was likely truncated
+		if (buffer.limit() >= buffer.capacity()) {
+			packetsMalformed.incrementAndGet();
+			logger.error("CalAmp packet was at least {} bytes long and was "
+					+ "therefore truncated. Increase "
+					+ "transitime.avl.calAmpMaxPacketSize.", 
+					buffer.capacity());
+			return null;
+		}
+		
+		// The parsing code works with byte arrays
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		Report.logMessage(bytes, bytes.length);
+		
 		try {
-			// Create the DatagramPacket that data is read into
-			byte[] buf = new byte[256];
-			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			Report report = Report.parse(bytes);
+			AvlReport avlReport = report != null ? report.getAvlReport() : null;
+			if (avlReport != null)
+				packetsParsed.incrementAndGet();
+			else
+				packetsDropped.incrementAndGet();
+			return avlReport;
+		} catch (RuntimeException e) {
+			packetsMalformed.incrementAndGet();
+			logger.error("Exception while parsing CalAmp message. {}", 
+					e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Receives packets until the channel is closed. Waits for packets to be
+	 * available and then reads all the ones that have arrived, up to
+	 * transitime.avl.calAmpMaxBatchSize, before handing the batch off to be
+	 * processed.
+	 * 
+	 * @param channel
+	 *            Non-blocking channel
+	 * @throws IOException
+	 */
+	private void receivePackets(DatagramChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(maxPacketSize.getValue());
+		List<AvlReport> batch = new ArrayList<AvlReport>();
 
+		Selector selector = Selector.open();
+		try {
+			channel.register(selector, SelectionKey.OP_READ);
 			while (true) {
-				// Get the bytes containing the report via UDP
-				socket.receive(packet);
+				selector.select();
+				selector.selectedKeys().clear();
 				
-				// Convert the bytes into a report
-				Report report = Report.parseReport(packet);
+				// Read all the packets that have arrived
+				while (batch.size() < maxBatchSize.getValue()) {
+					buffer.clear();
+					if (channel.receive(buffer) == null)
+						break;
+					buffer.flip();
+					
+					AvlReport avlReport = parsePacket(buffer);
+					if (avlReport != null)
+						batch.add(avlReport);
+				}
 				
-				// Actually process the report. Creates an AvlReport and 
-				// processes it
-				if (report != null)
-					report.process();
+				// Hand off the batch to be processed
+				if (!batch.isEmpty()) {
+					processAvlReports(batch);
+					batch.clear();
+				}
 			}
-		} catch (Exception e) {
-			logger.error("Exception while parsing CalAmp message. {}", 
-					e.getMessage(), e);
-		}		
+		} finally {
+			selector.close();
+		}
 	}
 	
+	/**
+	 * Starts a thread for receiving packets from the channel.
+	 * 
+	 * @param channel
+	 * @param threadFactory
+	 */
+	private void startReceiveThread(final DatagramChannel channel,
+			NamedThreadFactory threadFactory) {
+		Runnable receiver = new Runnable() {
+			@Override
+			public void run() {
+				while (channel.isOpen()) {
+					try {
+						receivePackets(channel);
+					} catch (ClosedChannelException e) {
+						logger.error("CalAmp DatagramChannel was closed.");
+					} catch (Exception e) {
+						logger.error("Unexpected exception receiving CalAmp "
+								+ "packets. {}", e.getMessage(), e);
+						Time.sleep(Time.MS_PER_SEC);
+					}
+				}
+			}
+		};
+		threadFactory.newThread(receiver).start();
+	}
+	
+	/**
+	 * @return Number of packets received
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	/**
+	 * @return Number of packets successfully parsed into AVL reports
+	 */
+	public long getPacketsParsed() {
+		return packetsParsed.get();
+	}
+
+	/**
+	 * @return Number of packets that could not be parsed
+	 */
+	public long getPacketsMalformed() {
+		return packetsMalformed.get();
+	}
+
+	/**
+	 * @return Number of packets dropped because they were not a report with
+	 *         a valid GPS fix
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
@@ -64,31 +250,39 @@ public class CalAmpAvlModule extends AvlModule {
 		logger.info("Started module {} for agencyId={}", getClass().getName(),
 				getAgencyId());
 
-		while (true) {
-			logger.info("Starting DatagramSocket on port {}",
-					calAmpFeedPort.getValue());
-
-			try {
-				// Open up the DatagramSocket
-				DatagramSocket socket = null;
-				try {
-					socket = new DatagramSocket(calAmpFeedPort.getValue());
-				} catch (SocketException e1) {
-					logger.error("Exception occurred opening DatagramSocket "
-							+ "on port {}. {}", calAmpFeedPort.getValue(),
-							e1.getMessage(), e1);
-					System.exit(-1);
-				}
+		logger.info("Starting DatagramChannel on port {}",
+				calAmpFeedPort.getValue());
 
-				// Process the data from the socket
-				processPackets(socket);
+		// Open up the DatagramChannel
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF,
+					receiveBufferSize.getValue());
+			channel.bind(new InetSocketAddress(calAmpFeedPort.getValue()));
+			channel.configureBlocking(false);
+			logger.info("CalAmp DatagramChannel receive buffer size is {} "
+					+ "bytes.", 
+					channel.getOption(StandardSocketOptions.SO_RCVBUF));
+		} catch (IOException e1) {
+			logger.error("Exception occurred opening DatagramChannel "
+					+ "on port {}. {}", calAmpFeedPort.getValue(),
+					e1.getMessage(), e1);
+			System.exit(-1);
+		}
 
-				// If made it here something went wrong so close up
-				// DatagramSocket and try again.
-				socket.close();
-			} catch (Exception e) {
-				logger.error("Unexpected exception {}", e.getMessage(), e);
-			}
+		// Start the threads that receive and parse the packets
+		NamedThreadFactory threadFactory = 
+				new NamedThreadFactory("calAmpReceiver");
+		for (int i = 0; i < Math.max(numReceiveThreads.getValue(), 1); ++i)
+			startReceiveThread(channel, threadFactory);
+		
+		// Log the counts periodically
+		while (true) {
+			Time.sleep(statsLoggingIntervalSecs.getValue() * Time.MS_PER_SEC);
+			logger.info("CalAmp packets received={} parsed={} malformed={} "
+					+ "dropped={}", getPacketsReceived(), getPacketsParsed(),
+					getPacketsMalformed(), getPacketsDropped());
 		}
 	}
 	
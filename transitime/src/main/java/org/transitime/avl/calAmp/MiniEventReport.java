@@ -246,6 +246,21 @@ public class MiniEventReport extends Report {
 	 */
 	@Override
 	public void process() {
+		AvlReport avlReport = getAvlReport();
+		if (avlReport != null) {
+			// Use AvlExecutor to actually process the data using a thread
+			// executor
+			AvlExecutor.getInstance().processAvlReport(avlReport);
+		}
+	}
+	
+	/**
+	 * Converts the CalAmp MiniEventReport into an AvlReport.
+	 * 
+	 * @return the AvlReport, or null if the GPS fix is not valid
+	 */
+	@Override
+	public AvlReport getAvlReport() {
 		if (isValidGps()) {
 			logger.debug("Processing GPS fix mini event report {}", this);
 
@@ -262,13 +277,11 @@ public class MiniEventReport extends Report {
 			AvlReport avlReport =
 					new AvlReport(vehicleId, getEpochTime(), getLat(),
 							getLon(), getSpeed(), getHeading(), "CalAmp");
-
-			// Use AvlExecutor to actually process the data using a thread
-			// executor
-			AvlExecutor.getInstance().processAvlReport(avlReport);
+			return avlReport;
 		} else {
 			logger.error("GPS fix mini event report is not valid. Fix status "
 					+ "is \"{}\". {}", getFixStatusStr(), this);
+			return null;
 		}
 	}
 	
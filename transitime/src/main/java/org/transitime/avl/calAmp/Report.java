@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.AvlReport;
 
 public abstract class Report {
 	
@@ -44,6 +45,15 @@ public abstract class Report {
 	 */
 	public abstract void process();
 	
+	/**
+	 * Converts the report into an AvlReport so that it can be processed
+	 * along with other reports.
+	 * 
+	 * @return the AvlReport, or null if the report doesn't contain a valid
+	 *         GPS fix
+	 */
+	public abstract AvlReport getAvlReport();
+	
 	/**
 	 * Returns the mobile ID associated with the report
 	 * 
@@ -115,7 +125,27 @@ public abstract class Report {
 	 */
 	public static Report parseReport(DatagramPacket packet) {
 		byte[] bytes = packet.getData();
+		logMessage(bytes, packet.getLength());
 
+		try {
+			return parse(bytes);
+		} catch (Exception e) {
+			logger.error("Exception while parsing CalAmp message. {}", 
+					e.getMessage(), e);
+		}
+		
+		// Didn't successfully create a report so return null
+		return null;
+	}
+	
+	/**
+	 * Logs the message in hexadecimal format if debug logging enabled.
+	 * 
+	 * @param bytes
+	 * @param length
+	 *            Length of the message
+	 */
+	static void logMessage(byte[] bytes, int length) {
 		// Log the entire message in hexadecimal format
 		if (logger.isDebugEnabled()) {
 			// Log total length of packets so have an idea of how much data 
@@ -130,40 +160,46 @@ public abstract class Report {
 			
 			// Actually log message
 			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < packet.getLength(); ++i) {
+			for (int i = 0; i < length; ++i) {
 				sb.append(String.format("%02X", bytes[i]));
 			}
 			logger.debug("Message={}", sb.toString());
 		}
+	}
+	
+	/**
+	 * Reads the CalAmp report from the bytes. Unlike parseReport() exceptions
+	 * for malformed messages are not caught so that the caller can determine
+	 * what went wrong.
+	 * 
+	 * @param bytes
+	 *            The message
+	 * @return The Report, or null if not a type of report that is handled
+	 * @throws RuntimeException
+	 *             if the message is malformed, such as being truncated
+	 */
+	static Report parse(byte[] bytes) {
+		// Read options header
+		OptionsHeader optionsHeader = OptionsHeader.getOptionsHeader(bytes);
+		int messageStartIdx =
+				optionsHeader != null ? optionsHeader.getNextPart() : 0;
+		logger.debug("Options header {}", optionsHeader);
 
-		try {
-			// Read options header
-			OptionsHeader optionsHeader = OptionsHeader.getOptionsHeader(bytes);
-			int messageStartIdx =
-					optionsHeader != null ? optionsHeader.getNextPart() : 0;
-			logger.debug("Options header {}", optionsHeader);
-
-			// Read message header, which specifies type of report
-			MessageHeader messageHeader =
-					MessageHeader.getMessageHeader(bytes, messageStartIdx);
-			logger.debug("Message header {}", messageHeader);
+		// Read message header, which specifies type of report
+		MessageHeader messageHeader =
+				MessageHeader.getMessageHeader(bytes, messageStartIdx);
+		logger.debug("Message header {}", messageHeader);
 
-			if (messageHeader.isMiniEventReport()) {
-				MiniEventReport miniEventReport =
-						MiniEventReport.getMiniEventReport(optionsHeader,
-								messageHeader, bytes,
-								messageHeader.getNextPart());
-				return miniEventReport;
-			} else {
-				logger.info("Not a Mini Event Report so ignoring.");
-			}
-		} catch (Exception e) {
-			logger.error("Exception while parsing CalAmp message. {}", 
-					e.getMessage(), e);
+		if (messageHeader.isMiniEventReport()) {
+			MiniEventReport miniEventReport =
+					MiniEventReport.getMiniEventReport(optionsHeader,
+							messageHeader, bytes,
+							messageHeader.getNextPart());
+			return miniEventReport;
+		} else {
+			logger.info("Not a Mini Event Report so ignoring.");
+			return null;
 		}
-		
-		// Didn't successfully create a report so return null
-		return null;
 	}
 
 	/**
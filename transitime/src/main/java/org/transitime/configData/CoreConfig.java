@@ -106,6 +106,31 @@ public class CoreConfig {
 					"that the separate thread can run to write to the db and " +
 					"thereby empty out the queue.");
 	
+	/**
+	 * Normally the trips for a block are lazy loaded from the database the
+	 * first time they are needed, which is serialized on a single global
+	 * lock. If transitime.core.eagerlyLoadSchedule is set to true then all
+	 * of the blocks, trips, trip patterns, stop paths, and schedule times are
+	 * instead read in at startup so that they can be accessed by multiple
+	 * threads without any locking or further database access.
+	 * 
+	 * @return true if should read in full schedule at startup
+	 */
+	public static boolean eagerlyLoadSchedule() {
+		return eagerlyLoadSchedule.getValue();
+	}
+	private static BooleanConfigValue eagerlyLoadSchedule =
+			new BooleanConfigValue("transitime.core.eagerlyLoadSchedule", 
+					false,
+					"Normally the trips for a block are lazy loaded from the " +
+					"database the first time they are needed, which is " +
+					"serialized on a single global lock. If set to true then " +
+					"all of the blocks, trips, trip patterns, stop paths, " +
+					"and schedule times are instead read in at startup so " +
+					"that they can be accessed by multiple threads without " +
+					"any locking or further database access. Startup takes " +
+					"longer and more memory is used.");
+	
 	/**
 	 * The semicolon separated list of names of all of the modules that should
 	 * be automatically started.
@@ -17,6 +17,7 @@
 
 package org.transitime.configData;
 
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
 
@@ -104,4 +105,111 @@ public class DbSetupConfig {
 					+ "on the file system and in the classpath. Can specify "
 					+ "mysql_hibernate.cfg.xml or postgres_hibernate.cfg.xml");
 
+	/**
+	 * If set then overrides hibernate.jdbc.batch_size from the hibernate
+	 * config file so that many rows can be written with each JDBC
+	 * executeBatch(). Null if should use value from config file.
+	 * 
+	 * @return
+	 */
+	public static Integer getJdbcBatchSize() {
+		return jdbcBatchSize.getValue();
+	}
+	private static IntegerConfigValue jdbcBatchSize =
+			new IntegerConfigValue("transitime.db.jdbcBatchSize",
+					null,
+					"If set then overrides hibernate.jdbc.batch_size from the "
+					+ "hibernate config file. Setting to a large value such "
+					+ "as 1000 along with transitime.db.dataDbLoggerHighThroughput "
+					+ "allows many rows to be written with each JDBC batch. "
+					+ "For MySQL also add rewriteBatchedStatements=true to the "
+					+ "db URL so that the batches are sent as multi-row "
+					+ "inserts. For PostgreSQL use reWriteBatchedInserts=true.");
+	
+	/**
+	 * For when the DataDbLogger needs to write lots of data, such as for a
+	 * large agency during rush hour.
+	 * 
+	 * @return
+	 */
+	public static boolean getDataDbLoggerHighThroughput() {
+		return dataDbLoggerHighThroughput.getValue();
+	}
+	private static BooleanConfigValue dataDbLoggerHighThroughput =
+			new BooleanConfigValue("transitime.db.dataDbLoggerHighThroughput",
+					false,
+					"If true then DataDbLogger uses a separate queue and "
+					+ "writer thread for each of the main types of data, "
+					+ "AvlReports, Matches, ArrivalDepartures, Predictions, "
+					+ "and VehicleEvents, and commits a large group of objects "
+					+ "in each transaction. Should be used with "
+					+ "transitime.db.jdbcBatchSize.");
+	
+	/**
+	 * Max number of objects that DataDbLogger commits in a single transaction
+	 * when in high throughput mode.
+	 * 
+	 * @return
+	 */
+	public static int getDataDbLoggerGroupCommitSize() {
+		return dataDbLoggerGroupCommitSize.getValue();
+	}
+	private static IntegerConfigValue dataDbLoggerGroupCommitSize =
+			new IntegerConfigValue("transitime.db.dataDbLoggerGroupCommitSize",
+					5000,
+					"When transitime.db.dataDbLoggerHighThroughput is true "
+					+ "this is the max number of objects that DataDbLogger "
+					+ "commits in a single transaction.");
+	
+	/**
+	 * Directory for the DataDbLogger journal, where data is written when it
+	 * cannot be stored in the database quickly enough. Null if journal not
+	 * to be used.
+	 * 
+	 * @return
+	 */
+	public static String getDataDbLoggerJournalDirectory() {
+		return dataDbLoggerJournalDirectory.getValue();
+	}
+	private static StringConfigValue dataDbLoggerJournalDirectory =
+			new StringConfigValue("transitime.db.dataDbLoggerJournalDirectory",
+					null,
+					"Directory where DataDbLogger writes data to a local "
+					+ "journal when its queue is full, such as when the "
+					+ "database is down for maintenance. The data is written "
+					+ "to the database once it is available again. If not set "
+					+ "then no journal is used and data is lost when the "
+					+ "queue is full.");
+	
+	/**
+	 * If all data should be written to the journal first instead of only
+	 * when the DataDbLogger queue is full.
+	 * 
+	 * @return
+	 */
+	public static boolean getDataDbLoggerJournalAllWrites() {
+		return dataDbLoggerJournalAllWrites.getValue();
+	}
+	private static BooleanConfigValue dataDbLoggerJournalAllWrites =
+			new BooleanConfigValue("transitime.db.dataDbLoggerJournalAllWrites",
+					false,
+					"If true then all data is first written to the DataDbLogger "
+					+ "journal and then replayed into the database, so that "
+					+ "data is not lost even if the application is stopped "
+					+ "while data is queued. Only used if "
+					+ "transitime.db.dataDbLoggerJournalDirectory is set.");
+	
+	/**
+	 * Size of each DataDbLogger journal segment file.
+	 * 
+	 * @return
+	 */
+	public static int getDataDbLoggerJournalSegmentSizeMB() {
+		return dataDbLoggerJournalSegmentSizeMB.getValue();
+	}
+	private static IntegerConfigValue dataDbLoggerJournalSegmentSizeMB =
+			new IntegerConfigValue("transitime.db.dataDbLoggerJournalSegmentSizeMB",
+					16,
+					"When a DataDbLogger journal segment file reaches this size "
+					+ "in MB a new segment is started.");
 }
@@ -25,6 +25,7 @@ import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.core.predAccuracy.PredictionAccuracyModule;
+import org.transitime.core.travelTimes.OnlineTravelTimes;
 import org.transitime.db.structs.Arrival;
 import org.transitime.db.structs.ArrivalDeparture;
 import org.transitime.db.structs.AvlReport;
@@ -369,6 +370,11 @@ public class ArrivalDepartureGeneratorDefaultImpl
 		
 		// Generate prediction accuracy info as appropriate
 		PredictionAccuracyModule.handleArrivalDeparture(arrivalDeparture);
+		
+		// Update how vehicles are currently traveling
+		if (OnlineTravelTimes.isEnabled())
+			OnlineTravelTimes.getInstance().handleArrivalDeparture(
+					arrivalDeparture);
 	}
 	
 	/**
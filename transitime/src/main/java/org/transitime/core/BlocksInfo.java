@@ -18,11 +18,16 @@
 package org.transitime.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.transitime.applications.Core;
 import org.transitime.db.structs.Block;
@@ -32,14 +37,162 @@ import org.transitime.utils.Time;
 /**
  * Contains information on Blocks as a whole, such as which blocks are currently
  * active.
+ * <p>
+ * So that determining the active blocks doesn't require looking at every
+ * block for the current service IDs, which is done frequently by the
+ * schedule based predictions and timeout modules, the blocks for each service
+ * ID are indexed by start time.
  *
  * @author SkiBu Smith
  *
  */
 public class BlocksInfo {
 
+	// The block indexes, keyed on service ID. Cleared if the DbConfig
+	// changes.
+	private static final ConcurrentHashMap<String, BlocksForService> 
+			blocksByServiceCache = 
+				new ConcurrentHashMap<String, BlocksForService>();
+	private static volatile DbConfig dbConfigForCache = null;
+	
 	/********************** Member Functions **************************/
 
+	/**
+	 * The blocks for a service ID sorted by start time. Also has for each
+	 * index the maximum end time of the blocks up to and including that index
+	 * so that a search for the blocks active at a time can stop once it
+	 * reaches blocks that have all ended. Immutable. Package-private so that
+	 * it can be tested without needing the Core.
+	 */
+	static class BlocksForService {
+		private final Block[] blocks;
+		private final int[] startTimes;
+		private final int[] maxEndTimes;
+		
+		BlocksForService(Collection<Block> blocksForService) {
+			blocks = blocksForService.toArray(new Block[blocksForService.size()]);
+			Arrays.sort(blocks, new Comparator<Block>() {
+				@Override
+				public int compare(Block b1, Block b2) {
+					return Integer.compare(b1.getStartTime(), b2.getStartTime());
+				}
+			});
+			
+			startTimes = new int[blocks.length];
+			maxEndTimes = new int[blocks.length];
+			int maxEndTime = Integer.MIN_VALUE;
+			for (int i = 0; i < blocks.length; ++i) {
+				startTimes[i] = blocks[i].getStartTime();
+				maxEndTime = Math.max(maxEndTime, blocks[i].getEndTime());
+				maxEndTimes[i] = maxEndTime;
+			}
+		}
+		
+		/**
+		 * Returns index of first block with start time greater than or equal
+		 * to the specified time.
+		 */
+		private int firstIndexAtOrAfter(long secsInDay) {
+			int low = 0;
+			int high = startTimes.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (startTimes[mid] < secsInDay)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+		
+		/**
+		 * Adds the blocks that are active at the specified time of day, using
+		 * the same criteria as Block.isActive().
+		 * 
+		 * @param secsInDay
+		 *            Can be more than a day or negative when looking at blocks
+		 *            for the previous or next day
+		 * @param allowableBeforeTimeSecs
+		 * @param allowableAfterStartTimeSecs
+		 * @param results
+		 */
+		void addActiveBlocks(int secsInDay,
+				int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs,
+				Collection<Block> results) {
+			// Only blocks with startTime - allowableBeforeTimeSecs < secsInDay
+			// can be active. Search backwards from the last one of those
+			// until all the earlier blocks are no longer active.
+			int end = firstIndexAtOrAfter(
+					(long) secsInDay + allowableBeforeTimeSecs);
+			for (int i = end - 1; i >= 0; --i) {
+				int allowableEndTime;
+				if (allowableAfterStartTimeSecs < 0) {
+					// All earlier blocks have ended too
+					if (maxEndTimes[i] <= secsInDay)
+						break;
+					allowableEndTime = blocks[i].getEndTime();
+				} else {
+					allowableEndTime = 
+							startTimes[i] + allowableAfterStartTimeSecs;
+					// Since sorted by start time all earlier blocks have 
+					// ended too
+					if (allowableEndTime <= secsInDay)
+						break;
+				}
+				if (secsInDay > startTimes[i] - allowableBeforeTimeSecs 
+						&& secsInDay < allowableEndTime)
+					results.add(blocks[i]);
+			}
+		}
+		
+		/**
+		 * Adds the blocks whose start time is after minSecsInDay and before
+		 * maxSecsInDay.
+		 */
+		void addBlocksStartingBetween(int minSecsInDay,
+				int maxSecsInDay, Collection<Block> results) {
+			for (int i = firstIndexAtOrAfter((long) minSecsInDay + 1); 
+					i < startTimes.length && startTimes[i] < maxSecsInDay; 
+					++i)
+				results.add(blocks[i]);
+		}
+	}
+	
+	/**
+	 * Clears the block indexes. For when the configuration has been re-read
+	 * into the same DbConfig, in which case the DbConfig check in
+	 * getBlocksForService() would not notice that the blocks have changed.
+	 * Called by DbConfig.read().
+	 */
+	public static void clearCache() {
+		blocksByServiceCache.clear();
+	}
+	
+	/**
+	 * Returns the BlocksForService index for the service ID, creating it if
+	 * necessary.
+	 * 
+	 * @param dbConfig
+	 * @param serviceId
+	 * @return the index
+	 */
+	private static BlocksForService getBlocksForService(DbConfig dbConfig,
+			String serviceId) {
+		// If configuration changed then need to recreate the indexes
+		if (dbConfig != dbConfigForCache) {
+			blocksByServiceCache.clear();
+			dbConfigForCache = dbConfig;
+		}
+		
+		BlocksForService blocksForService = blocksByServiceCache.get(serviceId);
+		if (blocksForService == null) {
+			blocksForService = 
+					new BlocksForService(dbConfig.getBlocks(serviceId));
+			blocksByServiceCache.put(serviceId, blocksForService);
+		}
+		return blocksForService;
+	}
+	
 	/**
 	 * Looks at all blocks that are for the current service ID and returns list
 	 * of ones that will start within beforeStartTimeSecs.
@@ -63,18 +216,21 @@ public class BlocksInfo {
 		Date now = core.getSystemDate();
 		Collection<String> currentServiceIds = 
 				core.getServiceUtils().getServiceIds(now);
+		int secsInDay = core.getTime().getSecondsIntoDay(now);
 	
-		// For each service ID ...
+		// For each service ID find the blocks that are about to start, 
+		// using same criteria as Block.isBeforeStartTime()
+		DbConfig dbConfig = core.getDbConfig();
 		for (String serviceId : currentServiceIds) {
-			DbConfig dbConfig = core.getDbConfig();
-			Collection<Block> blocks = dbConfig.getBlocks(serviceId);
-			
-			// If the block is about to be or currently active then
-			// add it to the list to be returned
-			for (Block block : blocks) {
-				if (block.isBeforeStartTime(now, beforeStartTimeSecs))
-					aboutToStartBlocks.add(block);
-			}
+			BlocksForService blocksForService = 
+					getBlocksForService(dbConfig, serviceId);
+			blocksForService.addBlocksStartingBetween(secsInDay, 
+					secsInDay + beforeStartTimeSecs, aboutToStartBlocks);
+			// Also handle where now is before midnight but start time is after
+			blocksForService.addBlocksStartingBetween(
+					secsInDay - Time.SEC_PER_DAY, 
+					secsInDay - Time.SEC_PER_DAY + beforeStartTimeSecs,
+					aboutToStartBlocks);
 		}
 		
 		// Done!
@@ -151,38 +307,52 @@ public class BlocksInfo {
 			serviceIds.addAll(nextDayServiceIds);
 		}
 		
-		// For each service ID ...
-		for (String serviceId : serviceIds) {
-			DbConfig dbConfig = core.getDbConfig();
-			Collection<Block> blocks = dbConfig.getBlocks(serviceId);
-			
-			// If the block is about to be or currently active then
-			// add it to the list to be returned
-			for (Block block : blocks) {
-				// If this is a block to ignore then simply continue to the 
-				// next one
-				if (blockIdsToIgnore != null
-						&& blockIdsToIgnore.contains(block.getId()))
+		// For each day that a block could be active for, the previous, current,
+		// and next day, look at the blocks for the service IDs that are valid
+		// for that day. Use same criteria as Block.isActive(). A block could 
+		// match for more than one day so use an identity set to avoid 
+		// duplicates.
+		Set<Block> matchingBlocks = Collections.newSetFromMap(
+				new IdentityHashMap<Block, Boolean>());
+		DbConfig dbConfig = core.getDbConfig();
+		for (int dayOffset = -1; dayOffset <= 1; ++dayOffset) {
+			List<String> serviceIdsForDay = core.getServiceUtils()
+					.getServiceIdsForDay(now + dayOffset * Time.DAY_IN_MSECS);
+			int secsInDayForOffset = 
+					secsInDayForAvlReport - dayOffset * Time.SEC_PER_DAY;
+			for (String serviceId : serviceIdsForDay) {
+				if (!serviceIds.contains(serviceId))
 					continue;
 				
-				// Determine if block is for specified route. If routeIds is
-				// null then interested in all routes
-				boolean forSpecifiedRoute = true;
-				if (routeIds != null && !routeIds.isEmpty()) {
-					forSpecifiedRoute = false;
-					for (String routeId : routeIds) {
-						if (block.getRouteIds().contains(routeId)) {
-							forSpecifiedRoute = true;
-							break;
+				List<Block> blocksActiveForDay = new ArrayList<Block>();
+				getBlocksForService(dbConfig, serviceId).addActiveBlocks(
+						secsInDayForOffset, allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs, blocksActiveForDay);
+				
+				for (Block block : blocksActiveForDay) {
+					// If this is a block to ignore then simply continue to the 
+					// next one
+					if (blockIdsToIgnore != null
+							&& blockIdsToIgnore.contains(block.getId()))
+						continue;
+					
+					// Determine if block is for specified route. If routeIds 
+					// is null then interested in all routes
+					boolean forSpecifiedRoute = true;
+					if (routeIds != null && !routeIds.isEmpty()) {
+						forSpecifiedRoute = false;
+						for (String routeId : routeIds) {
+							if (block.getRouteIds().contains(routeId)) {
+								forSpecifiedRoute = true;
+								break;
+							}
 						}
 					}
+					
+					// If block is for specified route then add it to the list
+					if (forSpecifiedRoute && matchingBlocks.add(block))
+						activeBlocks.add(block);
 				}
-				
-				// If block currently active and is for specified route then
-				// add it to the list
-				if (block.isActive(now, allowableBeforeTimeSecs,
-						allowableAfterStartTimeSecs) && forSpecifiedRoute)
-					activeBlocks.add(block);
 			}
 		}
 		
@@ -18,15 +18,16 @@ package org.transitime.core;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitime.applications.Core;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.db.structs.Agency;
 import org.transitime.db.structs.Calendar;
@@ -47,6 +48,22 @@ public class ServiceUtils {
 	
 	private final DbConfig dbConfig;
 	
+	// For determining the start of the day without locking
+	private final Time time;
+	
+	// The service IDs only change at day boundaries so they are cached,
+	// keyed on the start of the day. This way don't have to look through
+	// all of the calendars for every AVL report. The cached collections
+	// are unmodifiable.
+	private final ConcurrentHashMap<Long, List<String>> serviceIdsForDayCache =
+			new ConcurrentHashMap<Long, List<String>>();
+	private final ConcurrentHashMap<Long, Collection<String>> 
+			serviceIdsInclPreviousDayCache = 
+				new ConcurrentHashMap<Long, Collection<String>>();
+	
+	// So cache doesn't grow forever. Only a few days are typically used.
+	private static final int MAX_CACHED_DAYS = 30;
+	
 	private static IntegerConfigValue minutesIntoMorningToIncludePreviousServiceIds =
 			new IntegerConfigValue(
 					"transitime.service.minutesIntoMorningToIncludePreviousServiceIds",
@@ -75,6 +92,18 @@ public class ServiceUtils {
 						new GregorianCalendar(agency.getTimeZone())
 						: new GregorianCalendar();
 		this.dbConfig = dbConfig;
+		this.time = new Time(dbConfig);
+	}
+	
+	/**
+	 * Clears the cached service IDs. For when the calendars have been
+	 * changed, which is why DbConfig.read() calls this when the configuration
+	 * is re-read. Otherwise the cache is automatically updated at day
+	 * boundaries since it is keyed on the day.
+	 */
+	public void clearCache() {
+		serviceIdsForDayCache.clear();
+		serviceIdsInclPreviousDayCache.clear();
 	}
 
 	/**
@@ -168,14 +197,38 @@ public class ServiceUtils {
 	 * Determines list of current service IDs for the specified time. These
 	 * service IDs designate which block assignments are currently active.
 	 * <p>
-	 * Uses already read in calendars, but does a good number of calculations so
-	 * still a bit expensive.
+	 * The result is cached for the day so this is inexpensive except for the
+	 * first call for a day.
 	 * 
 	 * @param epochTime
 	 *            The current time that determining service IDs for
-	 * @return List of service IDs that are active for the specified time.
+	 * @return Unmodifiable list of service IDs that are active for the
+	 *         specified time.
 	 */
 	public List<String> getServiceIdsForDay(Date epochTime) {
+		Long startOfDay = time.getStartOfDay(epochTime.getTime());
+		List<String> serviceIds = serviceIdsForDayCache.get(startOfDay);
+		if (serviceIds == null) {
+			serviceIds = Collections.unmodifiableList(
+					determineServiceIdsForDay(epochTime));
+			if (serviceIdsForDayCache.size() >= MAX_CACHED_DAYS)
+				serviceIdsForDayCache.clear();
+			serviceIdsForDayCache.put(startOfDay, serviceIds);
+		}
+		return serviceIds;
+	}
+	
+	/**
+	 * Determines list of current service IDs for the specified time by
+	 * looking through the calendars and calendar dates. Uses already read in
+	 * calendars, but does a good number of calculations so still a bit
+	 * expensive.
+	 * 
+	 * @param epochTime
+	 *            The current time that determining service IDs for
+	 * @return List of service IDs that are active for the specified time.
+	 */
+	private List<String> determineServiceIdsForDay(Date epochTime) {
 		List<String> serviceIds = new ArrayList<String>();
 		
 		// Make sure haven't accidentally let all calendars expire
@@ -229,12 +282,13 @@ public class ServiceUtils {
 	 * Determines list of current service IDs for the specified time. These
 	 * service IDs designate which block assignments are currently active.
 	 * <p>
-	 * Uses already read in calendars, but does a good number of calculations so
-	 * still a bit expensive.
+	 * The result is cached for the day so this is inexpensive except for the
+	 * first call for a day.
 	 * 
 	 * @param epochTime
 	 *            The current time that determining service IDs for
-	 * @return List of service IDs that are active for the specified time.
+	 * @return Unmodifiable list of service IDs that are active for the
+	 *         specified time.
 	 */
 	public List<String> getServiceIdsForDay(long epochTime) {
 		return getServiceIdsForDay(new Date(epochTime));
@@ -248,28 +302,36 @@ public class ServiceUtils {
 	 * day. Important for late night service. These service IDs designate which
 	 * block assignments are currently active.
 	 * <p>
-	 * Uses already read in calendars, but does a good number of calculations so
-	 * still a bit expensive.
+	 * The result is cached for the day so this is inexpensive except for the
+	 * first call for a day.
 	 * 
 	 * @param epochTime
 	 *            The current time that determining service IDs for
-	 * @return List of service IDs that are active for the specified time,
-	 *         includes ones for previous day if epochTime specifies it is early
-	 *         in the morning.
+	 * @return Unmodifiable collection of service IDs that are active for the
+	 *         specified time, includes ones for previous day if epochTime
+	 *         specifies it is early in the morning.
 	 */
 	public Collection<String> getServiceIds(Date epochTime) {
 		List<String> serviceIdsForDay = getServiceIdsForDay(epochTime);
-		Time time = Core.getInstance().getTime();
 		if (time.getSecondsIntoDay(epochTime) > minutesIntoMorningToIncludePreviousServiceIds
 				.getValue() * Time.MIN_IN_SECS)
 			return serviceIdsForDay;
 
-		List<String> serviceIdsForPreviousDay =
-				getServiceIdsForDay(epochTime.getTime() - 1 * Time.DAY_IN_MSECS);
+		Long startOfDay = time.getStartOfDay(epochTime.getTime());
+		Collection<String> serviceIds = 
+				serviceIdsInclPreviousDayCache.get(startOfDay);
+		if (serviceIds == null) {
+			List<String> serviceIdsForPreviousDay = getServiceIdsForDay(
+					epochTime.getTime() - 1 * Time.DAY_IN_MSECS);
 
-		Set<String> set = new HashSet<String>(serviceIdsForDay);
-		set.addAll(serviceIdsForPreviousDay);
-		return set;
+			Set<String> set = new HashSet<String>(serviceIdsForDay);
+			set.addAll(serviceIdsForPreviousDay);
+			serviceIds = Collections.unmodifiableSet(set);
+			if (serviceIdsInclPreviousDayCache.size() >= MAX_CACHED_DAYS)
+				serviceIdsInclPreviousDayCache.clear();
+			serviceIdsInclPreviousDayCache.put(startOfDay, serviceIds);
+		}
+		return serviceIds;
 	}
 	
 	/**
@@ -28,6 +28,7 @@ import org.transitime.db.structs.ScheduleTime;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.Vector;
 import org.transitime.utils.Geo;
+import org.transitime.utils.ProjectedPath;
 import org.transitime.utils.Time;
 
 /**
@@ -81,13 +82,29 @@ public class SpatialMatch {
 	 *            same trip pattern. It can be for a separate block.
 	 */
 	public SpatialMatch(SpatialMatch toCopy, Trip newTrip) {
+		this(toCopy, newTrip, toCopy.avlTime);
+	}
+	
+	/**
+	 * Same as SpatialMatch(toCopy, newTrip) but also sets the AVL time. For
+	 * when the match being copied was determined for a different AVL report,
+	 * such as a match from the spatial match cache shared by vehicles.
+	 * 
+	 * @param toCopy
+	 *            The SpatialMatch to copy (except for the trip/block info)
+	 * @param newTrip
+	 *            The new trip to use for the copy
+	 * @param avlTime
+	 *            The time of the AVL report the copy is for
+	 */
+	public SpatialMatch(SpatialMatch toCopy, Trip newTrip, long avlTime) {
 		if (toCopy.getTrip().getTripPattern() != newTrip.getTripPattern())
 			logger.error("Trying to create a copy of a SpatialMatch using a "
 					+ "new trip but they have different trip patterns. "
 					+ "toCopy={} toCopy.tripPattern={} newTrip.tripPattern={}",
 					toCopy, toCopy.getTrip().getTripPattern().toShortString(),
 					newTrip.getTripPattern().toShortString());
-		this.avlTime = toCopy.avlTime;
+		this.avlTime = avlTime;
 		
 		// Use the new block and trip index info
 		this.block = newTrip.getBlock();
@@ -579,14 +596,11 @@ public class SpatialMatch {
 	 * @return Distance in meters
 	 */
 	public double getDistanceAlongStopPath() {
-		double distance = 0.0;
-		for (int segIndex=0; segIndex<segmentIndex; ++segIndex) {
-			Vector v = block.getSegmentVector(tripIndex, stopPathIndex,
-					segIndex);
-			distance += v.length();
-		}
-		distance += distanceAlongSegment;
-		return distance;
+		// Use the precomputed distances along the path so that don't
+		// need to determine length of each segment
+		StopPath stopPath = block.getStopPath(tripIndex, stopPathIndex);
+		return stopPath.getProjectedPath().getDistanceAlongPath(segmentIndex)
+				+ distanceAlongSegment;
 	}
 	
 	/**
@@ -595,13 +609,10 @@ public class SpatialMatch {
 	 * @return Distance in meters
 	 */
 	public double getDistanceRemainingInStopPath() {
-		double distance = -distanceAlongSegment;
 		StopPath stopPath = block.getStopPath(tripIndex, stopPathIndex);
-		int numSegments = stopPath.getSegmentVectors().size();
-		for (int segIndex=segmentIndex; segIndex<numSegments; ++segIndex) {
-			distance += stopPath.getSegmentVector(segIndex).length();
-		}
-		return distance;
+		ProjectedPath path = stopPath.getProjectedPath();
+		return path.getLength() - path.getDistanceAlongPath(segmentIndex)
+				- distanceAlongSegment;
 	}
 	
 	/**
@@ -35,6 +35,7 @@ import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VectorWithHeading;
 import org.transitime.utils.Geo;
+import org.transitime.utils.ProjectedPath;
 import org.transitime.utils.Time;
 
 /**
@@ -400,6 +401,24 @@ public class SpatialMatcher {
 	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
 			AvlReport avlReport, Block block,
 			List<Trip> tripsToInvestigate) {
+		// Since layover matches are filtered out a trip can only match if
+		// one of its segments is within the auto assign distance. Use the
+		// spatial index to quickly weed out the trips that are not near
+		// the AVL report so don't need to look at each of their segments.
+		if (!tripsToInvestigate.isEmpty()) {
+			Set<String> nearbyTripPatternIds = StopPathSpatialIndex
+					.getInstance().getTripPatternIdsWithinDistance(
+							avlReport.getLocation(),
+							CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+			List<Trip> nearbyTrips = new ArrayList<Trip>();
+			for (Trip trip : tripsToInvestigate) {
+				if (nearbyTripPatternIds.contains(
+						trip.getTripPattern().getId()))
+					nearbyTrips.add(trip);
+			}
+			tripsToInvestigate = nearbyTrips;
+		}
+		
 		// Get all the spatial matches
 		List<SpatialMatch> allSpatialMatches =
 				getSpatialMatches(avlReport, block, tripsToInvestigate,
@@ -548,12 +567,19 @@ public class SpatialMatcher {
 			Indices potentialMatchIndices,
 			List<SpatialMatch> spatialMatches,
 			MatchingType matchingType) {
-		// Convenience variables
+		// Convenience variables. Uses the projected path so that distances
+		// can be determined without creating objects. This method is called
+		// for a great many segments so this is important.
 		VectorWithHeading segmentVector = potentialMatchIndices.getSegment();
+		ProjectedPath projectedPath = 
+				potentialMatchIndices.getStopPath().getProjectedPath();
+		int segmentIndex = potentialMatchIndices.getSegmentIndex();
+		double avlLat = avlReport.getLocation().getLat();
+		double avlLon = avlReport.getLocation().getLon();
 		double distanceToSegment = 
-				segmentVector.distance(avlReport.getLocation());
-		double distanceAlongSegment = 
-				segmentVector.matchDistanceAlongVector(avlReport.getLocation());
+				projectedPath.distanceToSegment(segmentIndex, avlLat, avlLon);
+		double distanceAlongSegment = projectedPath.distanceAlongSegment(
+				segmentIndex, avlLat, avlLon);
 		boolean atLayover = potentialMatchIndices.isLayover();
 
 		// Make sure only searching starting from previous spatial match. 
@@ -600,21 +626,20 @@ public class SpatialMatcher {
 		// If layover then need to set distanceAlongSegment to the length of 
 		// the path so that the match is with the actual stop.
 		if (atLayover) {
-			distanceAlongSegment = potentialMatchIndices.getSegment().length();
+			distanceAlongSegment = projectedPath.getSegmentLength(segmentIndex);
 		}
 		
-		// Create the SpatialMatch object for the specified indices
-		SpatialMatch spatialMatch = new SpatialMatch(
-				avlReport.getTime(),
-				potentialMatchIndices.getBlock(),
-				potentialMatchIndices.getTripIndex(),
-				potentialMatchIndices.getStopPathIndex(),
-				potentialMatchIndices.getSegmentIndex(), 
-				distanceToSegment,
-				distanceAlongSegment);
-		logger.debug("For vehicleId={} examining match to see if it should " +
-				"be included in list of spatial matches. {}", 
-				avlReport.getVehicleId(), spatialMatch);
+		// The SpatialMatch object for the specified indices. Only created 
+		// if actually needed since usually it isn't.
+		SpatialMatch spatialMatch = null;
+		if (logger.isDebugEnabled()) {
+			logger.debug("For vehicleId={} examining match to see if it " +
+					"should be included in list of spatial matches. " +
+					"indices={} distanceToSegment={} distanceAlongSegment={}", 
+					avlReport.getVehicleId(), potentialMatchIndices,
+					Geo.distanceFormat(distanceToSegment),
+					Geo.distanceFormat(distanceAlongSegment));
+		}
 		
 		// If the match is better than the previous one then it trending 
 		// towards a minimum so keep track of it if heading and distance are OK. 
@@ -626,6 +651,9 @@ public class SpatialMatcher {
 							potentialMatchIndices, matchingType);
 			if (headingOK && distanceOK) {
 				// Heading and distance OK so store this as a potential match
+				spatialMatch = createSpatialMatch(avlReport,
+						potentialMatchIndices, distanceToSegment,
+						distanceAlongSegment);
 				previousPotentialSpatialMatch = spatialMatch;
 				
 				logger.debug("For vehicleId={} distanceToSegment={} is better " +
@@ -691,6 +719,10 @@ public class SpatialMatcher {
 		if (atLayover
 				&& withinAllowableDistanceOfLayover(avlReport.getVehicleId(),
 						avlReport.getLocation(), potentialMatchIndices)) {
+			if (spatialMatch == null)
+				spatialMatch = createSpatialMatch(avlReport,
+						potentialMatchIndices, distanceToSegment,
+						distanceAlongSegment);
 			logger.debug("For vehicleId={} segment is at a layover so adding " +
 					"it to list of spatial matches. {}",
 					avlReport.getVehicleId(), spatialMatch);
@@ -705,10 +737,36 @@ public class SpatialMatcher {
 		if (smallestDistanceSpatialMatch == null 
 				|| distanceToSegment < 
 					smallestDistanceSpatialMatch.getDistanceToSegment()) {
+			if (spatialMatch == null)
+				spatialMatch = createSpatialMatch(avlReport,
+						potentialMatchIndices, distanceToSegment,
+						distanceAlongSegment);
 			smallestDistanceSpatialMatch = spatialMatch;
 		}
 	}
 	
+	/**
+	 * Creates the SpatialMatch object for the specified indices.
+	 * 
+	 * @param avlReport
+	 * @param indices
+	 * @param distanceToSegment
+	 * @param distanceAlongSegment
+	 * @return the new SpatialMatch
+	 */
+	private static SpatialMatch createSpatialMatch(AvlReport avlReport,
+			Indices indices, double distanceToSegment,
+			double distanceAlongSegment) {
+		return new SpatialMatch(
+				avlReport.getTime(),
+				indices.getBlock(),
+				indices.getTripIndex(),
+				indices.getStopPathIndex(),
+				indices.getSegmentIndex(), 
+				distanceToSegment,
+				distanceAlongSegment);
+	}
+	
 	/**
 	 * Starts at the previous match and goes from that point forward through the
 	 * block assignment looking for the best spatial matches. Intended for when
@@ -0,0 +1,351 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Geo;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A grid based spatial index of all of the segments of all of the stop paths
+ * for the current config rev. Makes it possible to quickly determine which
+ * segments, and therefore which trip patterns, are within a specified
+ * distance of an AVL location without having to look at every segment of
+ * every trip. This is important for auto assigning since otherwise would need
+ * to look at every segment of every active block for each unassigned vehicle.
+ * <p>
+ * The index is built once, the first time it is accessed, and then again only
+ * if the config rev changes.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class StopPathSpatialIndex {
+
+	// The config rev that the index was built for
+	private final int configRev;
+
+	// Size of a grid cell in degrees
+	private final double cellSizeLatDegrees;
+	private final double cellSizeLonDegrees;
+
+	// The grid. Keyed on the row and column of the cell.
+	private final Map<Long, List<Segment>> grid =
+			new HashMap<Long, List<Segment>>();
+
+	// Total number of segments in the index, for logging
+	private int numberOfSegments = 0;
+
+	private static volatile StopPathSpatialIndex singleton = null;
+
+	// For converting between degrees of latitude and meters
+	private static final double METERS_PER_DEGREE_LAT =
+			Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+
+	// So that conversion of a distance to degrees is always conservative even
+	// though distance to a segment is determined with an approximation
+	private static final double SEARCH_DISTANCE_MARGIN = 1.1;
+
+	private static DoubleConfigValue cellSizeMeters =
+			new DoubleConfigValue("transitime.core.spatialIndexCellSize",
+					200.0,
+					"Size in meters of each cell of the grid used to quickly "
+					+ "find the stop path segments near an AVL location. "
+					+ "Should be similar in size to "
+					+ "maxDistanceFromSegmentForAutoAssigning.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(StopPathSpatialIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Identifies a segment of a stop path of a trip pattern that is in the
+	 * index.
+	 */
+	public static class Segment {
+		private final TripPattern tripPattern;
+		private final int stopPathIndex;
+		private final int segmentIndex;
+		private final VectorWithHeading vector;
+
+		private Segment(TripPattern tripPattern, int stopPathIndex,
+				int segmentIndex, VectorWithHeading vector) {
+			this.tripPattern = tripPattern;
+			this.stopPathIndex = stopPathIndex;
+			this.segmentIndex = segmentIndex;
+			this.vector = vector;
+		}
+
+		public TripPattern getTripPattern() {
+			return tripPattern;
+		}
+
+		public int getStopPathIndex() {
+			return stopPathIndex;
+		}
+
+		public int getSegmentIndex() {
+			return segmentIndex;
+		}
+
+		public VectorWithHeading getVector() {
+			return vector;
+		}
+
+		@Override
+		public String toString() {
+			return "Segment ["
+					+ "tripPatternId=" + tripPattern.getId()
+					+ ", stopPathIndex=" + stopPathIndex
+					+ ", segmentIndex=" + segmentIndex
+					+ "]";
+		}
+	}
+
+	/**
+	 * Returns the index for the current config rev, building it if it hasn't
+	 * been built yet or if the config rev has changed. Only synchronizes
+	 * when the index needs to be built so that the AVL threads don't
+	 * contend for a lock just to read it.
+	 *
+	 * @return the spatial index
+	 */
+	public static StopPathSpatialIndex getInstance() {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		StopPathSpatialIndex index = singleton;
+		if (index == null || index.configRev != dbConfig.getConfigRev()) {
+			synchronized (StopPathSpatialIndex.class) {
+				index = singleton;
+				if (index == null
+						|| index.configRev != dbConfig.getConfigRev()) {
+					index = new StopPathSpatialIndex(dbConfig);
+					singleton = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index using all of the trip patterns for all of the routes
+	 * in the configuration.
+	 *
+	 * @param dbConfig
+	 */
+	private StopPathSpatialIndex(DbConfig dbConfig) {
+		IntervalTimer timer = new IntervalTimer();
+
+		this.configRev = dbConfig.getConfigRev();
+
+		// Get all of the trip patterns. Use a map keyed on trip pattern ID
+		// so that each one is only indexed once.
+		Map<String, TripPattern> tripPatterns =
+				new HashMap<String, TripPattern>();
+		for (Route route : dbConfig.getRoutes()) {
+			List<TripPattern> tripPatternsForRoute =
+					dbConfig.getTripPatternsForRoute(route.getId());
+			if (tripPatternsForRoute == null)
+				continue;
+			for (TripPattern tripPattern : tripPatternsForRoute)
+				tripPatterns.put(tripPattern.getId(), tripPattern);
+		}
+
+		// The width of a cell in degrees of longitude depends on the latitude.
+		// Since the agency covers a small area use the latitude of the first
+		// stop for the whole grid.
+		double referenceLat = 0.0;
+		for (TripPattern tripPattern : tripPatterns.values()) {
+			if (!tripPattern.getStopPaths().isEmpty()) {
+				referenceLat = tripPattern.getStopPath(0).getStopLocation()
+						.getLat();
+				break;
+			}
+		}
+		cellSizeLatDegrees = cellSizeMeters.getValue() / METERS_PER_DEGREE_LAT;
+		cellSizeLonDegrees = cellSizeLatDegrees
+				/ Math.cos(Math.toRadians(referenceLat));
+
+		// Add each segment of each stop path to the grid
+		for (TripPattern tripPattern : tripPatterns.values()) {
+			List<StopPath> stopPaths = tripPattern.getStopPaths();
+			for (int stopPathIndex = 0; stopPathIndex < stopPaths.size();
+					++stopPathIndex) {
+				List<VectorWithHeading> vectors =
+						stopPaths.get(stopPathIndex).getSegmentVectors();
+				if (vectors == null)
+					continue;
+				for (int segmentIndex = 0; segmentIndex < vectors.size();
+						++segmentIndex) {
+					add(new Segment(tripPattern, stopPathIndex, segmentIndex,
+							vectors.get(segmentIndex)));
+				}
+			}
+		}
+
+		logger.info("Created StopPathSpatialIndex for configRev={} with {} "
+				+ "trip patterns, {} segments, and {} grid cells. Took {} "
+				+ "msec.", configRev, tripPatterns.size(), numberOfSegments,
+				grid.size(), timer.elapsedMsec());
+	}
+
+	/**
+	 * Returns key for the grid cell specified by row and column.
+	 *
+	 * @param row
+	 * @param column
+	 * @return key for grid map
+	 */
+	private static long cellKey(int row, int column) {
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	private int row(double lat) {
+		return (int) Math.floor(lat / cellSizeLatDegrees);
+	}
+
+	private int column(double lon) {
+		return (int) Math.floor(lon / cellSizeLonDegrees);
+	}
+
+	/**
+	 * Adds the segment to every grid cell that its bounding box covers.
+	 *
+	 * @param segment
+	 */
+	private void add(Segment segment) {
+		Location l1 = segment.getVector().getL1();
+		Location l2 = segment.getVector().getL2();
+		int minRow = row(Math.min(l1.getLat(), l2.getLat()));
+		int maxRow = row(Math.max(l1.getLat(), l2.getLat()));
+		int minColumn = column(Math.min(l1.getLon(), l2.getLon()));
+		int maxColumn = column(Math.max(l1.getLon(), l2.getLon()));
+
+		for (int row = minRow; row <= maxRow; ++row) {
+			for (int column = minColumn; column <= maxColumn; ++column) {
+				Long key = cellKey(row, column);
+				List<Segment> segmentsForCell = grid.get(key);
+				if (segmentsForCell == null) {
+					segmentsForCell = new ArrayList<Segment>(4);
+					grid.put(key, segmentsForCell);
+				}
+				segmentsForCell.add(segment);
+			}
+		}
+
+		++numberOfSegments;
+	}
+
+	/**
+	 * Returns the segments from the grid cells that could possibly contain
+	 * segments within the specified distance of the location. Since the
+	 * segments are only filtered by grid cell some of them can be further
+	 * away than the distance. A segment can be in the returned collection
+	 * multiple times if it spans several grid cells.
+	 *
+	 * @param loc
+	 * @param distance
+	 * @return candidate segments. Not null.
+	 */
+	private Collection<Segment> getCandidateSegments(Location loc,
+			double distance) {
+		double searchDistance = distance * SEARCH_DISTANCE_MARGIN;
+		double deltaLat = searchDistance / METERS_PER_DEGREE_LAT;
+		double deltaLon = deltaLat / Math.cos(Math.toRadians(loc.getLat()));
+		int minRow = row(loc.getLat() - deltaLat);
+		int maxRow = row(loc.getLat() + deltaLat);
+		int minColumn = column(loc.getLon() - deltaLon);
+		int maxColumn = column(loc.getLon() + deltaLon);
+
+		List<Segment> candidates = new ArrayList<Segment>();
+		for (int row = minRow; row <= maxRow; ++row) {
+			for (int column = minColumn; column <= maxColumn; ++column) {
+				List<Segment> segmentsForCell = grid.get(cellKey(row, column));
+				if (segmentsForCell != null)
+					candidates.addAll(segmentsForCell);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Returns the segments that are within the specified distance of the
+	 * location.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            In meters
+	 * @return List of segments within distance. Not null.
+	 */
+	public List<Segment> getSegmentsWithinDistance(Location loc,
+			double distance) {
+		Set<Segment> segments = new HashSet<Segment>();
+		for (Segment segment : getCandidateSegments(loc, distance)) {
+			if (segment.getVector().distance(loc) <= distance)
+				segments.add(segment);
+		}
+		return new ArrayList<Segment>(segments);
+	}
+
+	/**
+	 * Returns IDs of trip patterns that have at least one segment within the
+	 * specified distance of the location. Since a vehicle can only be
+	 * spatially matched to a non-layover stop path of a trip pattern if it is
+	 * close to one of the segments, trip patterns not in the returned set
+	 * don't need to be investigated.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            In meters
+	 * @return Set of trip pattern IDs. Not null.
+	 */
+	public Set<String> getTripPatternIdsWithinDistance(Location loc,
+			double distance) {
+		Set<String> tripPatternIds = new HashSet<String>();
+		for (Segment segment : getCandidateSegments(loc, distance)) {
+			String tripPatternId = segment.getTripPattern().getId();
+			if (!tripPatternIds.contains(tripPatternId)
+					&& segment.getVector().distance(loc) <= distance)
+				tripPatternIds.add(tripPatternId);
+		}
+		return tripPatternIds;
+	}
+
+	/**
+	 * @return The config rev that the index was built for
+	 */
+	public int getConfigRev() {
+		return configRev;
+	}
+}
@@ -16,8 +16,13 @@
  */
 package org.transitime.core;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,17 +46,33 @@ import org.transitime.utils.Time;
  * are not in service are likely to get turned off and not report their position
  * for a long period of time. Plus since they are already not predictable there
  * is no need to be make them unpredictable when there is a timeout.
+ * <p>
+ * Instead of looking at every vehicle each polling cycle the time when each
+ * vehicle could next time out is kept in a deadline map. When an AVL report
+ * is received the deadline for the vehicle is rescheduled. Each polling cycle
+ * only the vehicles whose deadline has passed are examined. If such a vehicle
+ * hasn't actually timed out, such as a vehicle at a wait stop that is not yet
+ * past the scheduled departure time, then it is rescheduled for when it could
+ * next time out. This way the work is proportional to the number of vehicles
+ * that are due instead of the size of the fleet, and the lock for the
+ * deadlines is only held briefly so that AVL processing is never held up.
  * 
  * @author SkiBu Smith
  * 
  */
 public class TimeoutHandlerModule extends Module {
 
-	// For keeping track of the last AVL report for each vehicle. Keyed on 
-	// vehicle ID. Synchronize map modifications since elsewhere the elements 
-	// can be removed from the map.
-	private HashMap<String, AvlReport> avlReportsMap = 
-			new HashMap<String, AvlReport>();
+	// The vehicles whose deadline is at a time, keyed on the deadline in
+	// DEADLINE_RESOLUTION_MSEC units. And the deadline for each vehicle,
+	// keyed on vehicle ID, so that can reschedule a vehicle. Both are
+	// protected by synchronizing on deadlinesByTime.
+	private final TreeMap<Long, Set<String>> deadlinesByTime =
+			new TreeMap<Long, Set<String>>();
+	private final Map<String, Long> deadlineByVehicle =
+			new HashMap<String, Long>();
+
+	// Deadlines are grouped by second so that there are fewer entries
+	private static final long DEADLINE_RESOLUTION_MSEC = Time.MS_PER_SEC;
 
 	/********************* Parameters *********************************/
 
@@ -60,11 +81,11 @@ public class TimeoutHandlerModule extends Module {
 					"transitime.timeout.pollingRateSecs", 
 					30,
 					"Specifies in seconds how frequently the TimeoutHandler "
-					+ "should actually look for timeouts. Don't want to do "
-					+ "this too frequently because because "
-					+ "TimeoutHandler.handlePossibleTimeout() is called with "
-					+ "every new AVL report and it has to look at every "
-					+ "vehicle to see if has been timed out.");
+					+ "should actually look for timeouts. Only the vehicles "
+					+ "whose deadline for a possible timeout has passed are "
+					+ "examined. Also the interval at which schedule based "
+					+ "vehicles, and vehicles at wait stops without a "
+					+ "scheduled departure time, are reexamined.");
 
 	private static IntegerConfigValue allowableNoAvlSecs =
 			new IntegerConfigValue(
@@ -102,18 +123,82 @@ public class TimeoutHandlerModule extends Module {
 	}
 
 	/**
-	 * Stores the specified AVL report into map so know the last time received
-	 * AVL data for the vehicle.
+	 * Schedules the vehicle to be examined for a timeout at the specified
+	 * time, replacing any deadline it already has.
+	 * 
+	 * @param vehicleId
+	 * @param deadline
+	 *            Epoch time when vehicle should be examined
+	 * @param onlyIfNotScheduled
+	 *            If true then the deadline is not changed if the vehicle
+	 *            already has one. For when the timeout handler reschedules a
+	 *            vehicle so that it doesn't override the deadline for an AVL
+	 *            report that was just received.
+	 */
+	private void scheduleDeadline(String vehicleId, long deadline,
+			boolean onlyIfNotScheduled) {
+		// Round up so vehicle is not examined before the deadline
+		long deadlineKey = (deadline + DEADLINE_RESOLUTION_MSEC - 1)
+				/ DEADLINE_RESOLUTION_MSEC;
+		
+		synchronized (deadlinesByTime) {
+			Long previousKey = deadlineByVehicle.get(vehicleId);
+			if (previousKey != null) {
+				if (onlyIfNotScheduled || previousKey == deadlineKey)
+					return;
+				Set<String> vehicleIds = deadlinesByTime.get(previousKey);
+				if (vehicleIds != null) {
+					vehicleIds.remove(vehicleId);
+					if (vehicleIds.isEmpty())
+						deadlinesByTime.remove(previousKey);
+				}
+			}
+			
+			deadlineByVehicle.put(vehicleId, deadlineKey);
+			Set<String> vehicleIds = deadlinesByTime.get(deadlineKey);
+			if (vehicleIds == null) {
+				vehicleIds = new HashSet<String>();
+				deadlinesByTime.put(deadlineKey, vehicleIds);
+			}
+			vehicleIds.add(vehicleId);
+		}
+	}
+	
+	/**
+	 * Removes the vehicles whose deadline is at or before now from the
+	 * deadlines and returns them.
+	 * 
+	 * @param now
+	 * @return IDs of vehicles that need to be examined
+	 */
+	private List<String> removeDueVehicles(long now) {
+		List<String> dueVehicleIds = new ArrayList<String>();
+		long nowKey = now / DEADLINE_RESOLUTION_MSEC;
+		synchronized (deadlinesByTime) {
+			while (!deadlinesByTime.isEmpty()
+					&& deadlinesByTime.firstKey() <= nowKey) {
+				Set<String> vehicleIds =
+						deadlinesByTime.pollFirstEntry().getValue();
+				for (String vehicleId : vehicleIds)
+					deadlineByVehicle.remove(vehicleId);
+				dueVehicleIds.addAll(vehicleIds);
+			}
+		}
+		return dueVehicleIds;
+	}
+	
+	/**
+	 * Stores the specified AVL report so know the last time received AVL data
+	 * for the vehicle. Reschedules the deadline for when the vehicle could
+	 * time out.
 	 * 
 	 * @param avlReport
 	 *            AVL report to store
 	 */
 	public void storeAvlReport(AvlReport avlReport) {
-		// Synchronize map modifications since elsewhere the elements can be removed
-		// from the map.
-		synchronized (avlReportsMap) {
-			avlReportsMap.put(avlReport.getVehicleId(), avlReport);
-		}
+		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
+		scheduleDeadline(avlReport.getVehicleId(),
+				avlReport.getTime() + maxNoAvl, false);
 	}
 	
 	/**
@@ -123,9 +208,10 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return Time when vehicle should next be examined, or -1 if timed out
 	 */
-	private void handlePredictablePossibleTimeout(VehicleState vehicleState, long now, Iterator<AvlReport> mapIterator) {
+	private long handlePredictablePossibleTimeout(VehicleState vehicleState,
+			long now) {
 		// If haven't reported in too long...
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now > vehicleState.getAvlReport().getTime() + maxNoAvl) {
@@ -145,24 +231,13 @@ public class TimeoutHandlerModule extends Module {
 			logger.info("For vehicleId={} {}", 
 					vehicleState.getVehicleId(), eventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();
-			
+			return -1;
 		}
+		
+		// Not timed out yet
+		return vehicleState.getAvlReport().getTime() + maxNoAvl + 1;
 	}
 	
-	/**
-	 * Don't need to worry about vehicles that are not predictable. But might as
-	 * well remove vehicle from map so don't examine vehicle every
-	 * TimeoutHandleModule polling cycle
-	 * 
-	 * @param mapIterator
-	 *            So can remove AVL report from map
-	 */
-	private void handleNotPredictablePossibleTimeout(Iterator<AvlReport> mapIterator) {
-		mapIterator.remove();
-	}
-
 	/**
 	 * For schedule based predictions. If past the scheduled departure time by
 	 * more than allowed amount then the schedule based vehicle is removed.
@@ -172,10 +247,10 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return Time when vehicle should next be examined, or -1 if timed out
 	 */
-	private void handleSchedBasedPredsPossibleTimeout(VehicleState vehicleState,
-					long now, Iterator<AvlReport> mapIterator) {
+	private long handleSchedBasedPredsPossibleTimeout(VehicleState vehicleState,
+					long now) {
 		// If should timeout the schedule based vehicle...
 		String shouldTimeoutEventDescription =
 				SchedBasedPredsModule.shouldTimeoutVehicle(vehicleState, now);				
@@ -189,9 +264,12 @@ public class TimeoutHandlerModule extends Module {
 					+ "event. {}", 
 					vehicleState.getVehicleId(), shouldTimeoutEventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();			
+			return -1;
 		}
+		
+		// Whether timed out depends on the block and schedule instead of
+		// on the AVL time so simply check again next polling cycle
+		return now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
 	}
 	
 	/**
@@ -201,15 +279,15 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return Time when vehicle should next be examined, or -1 if timed out
 	 */
-	private void handleWaitStopPossibleTimeout(VehicleState vehicleState,
-			long now, Iterator<AvlReport> mapIterator) {
+	private long handleWaitStopPossibleTimeout(VehicleState vehicleState,
+			long now) {
 		// If hasn't been too long between AVL reports then everything is fine
 		// and simply return
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now < vehicleState.getAvlReport().getTime() + maxNoAvl)
-			return;
+			return vehicleState.getAvlReport().getTime() + maxNoAvl;
 
 		// It has been a long time since an AVL report so see if also past the 
 		// scheduled time for the wait stop
@@ -253,56 +331,70 @@ public class TimeoutHandlerModule extends Module {
 				logger.info("For vehicleId={} {}", 
 						vehicleState.getVehicleId(), eventDescription);
 				
-				// Remove vehicle from map for next time looking for timeouts
-				mapIterator.remove();
+				return -1;
 			}
+			
+			// Not yet far enough past the scheduled departure time
+			return scheduledDepartureTime + maxNoAvlAfterSchedDepartSecs + 1;
 		}
+		
+		// No scheduled departure time so check again next polling cycle in
+		// case the match changes
+		return now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
 	}
 
 	/**
-	 * Goes through all vehicles and finds ones that have timed out
+	 * Goes through the vehicles whose deadline has passed and handles the
+	 * ones that have timed out. The ones that have not timed out are
+	 * rescheduled.
 	 */
 	public void handlePossibleTimeouts() {
 		// Determine what now is. Don't use System.currentTimeMillis() since
 		// that doesn't work for playback.
 		long now = Core.getInstance().getSystemTime();
 
-		// Sync access to avlReportsMap since it can be simultaneously 
-		// modified elsewhere
-		synchronized (avlReportsMap) {				
-			// Using an Iterator instead of for(AvlReport a : map.values()) 
-			// because removing elements while iterating. Way to do this without
-			// getting concurrent access exception is to use an Iterator.
-			Iterator<AvlReport> mapIterator = avlReportsMap.values().iterator();
-			while (mapIterator.hasNext()) {
-				AvlReport avlReport = mapIterator.next();
-	
-				// Get state of vehicle and handle based on it
-				VehicleState vehicleState = VehicleStateManager.getInstance()
-						.getVehicleState(avlReport.getVehicleId());
-	
-				// Need to synchronize on vehicleState since it might be getting
-				// modified via a separate main AVL processing executor thread.
-				synchronized (vehicleState) {
-					if (!vehicleState.isPredictable()) {
-						// Vehicle is not predictable
-						handleNotPredictablePossibleTimeout(mapIterator);
-					} else if (vehicleState.isForSchedBasedPreds()) {
-						// Handle schedule based predictions vehicle
-						handleSchedBasedPredsPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else if (vehicleState.isWaitStop()) {
-						// Handle where vehicle is at a wait stop
-						handleWaitStopPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else {
-						// Not a special case. Simply determine if vehicle 
-						// timed out
-						handlePredictablePossibleTimeout(vehicleState, now,
-								mapIterator);
-					}
+		// Only the lock for the deadlines is held while determining the
+		// due vehicles so that AVL processing is not held up
+		List<String> dueVehicleIds = removeDueVehicles(now);
+		if (!dueVehicleIds.isEmpty())
+			logger.debug("Examining {} vehicles for possible timeouts.",
+					dueVehicleIds.size());
+		
+		for (String vehicleId : dueVehicleIds) {
+			// Get state of vehicle and handle based on it
+			VehicleState vehicleState = VehicleStateManager.getInstance()
+					.getVehicleState(vehicleId);
+
+			// Need to synchronize on vehicleState since it might be getting
+			// modified via a separate main AVL processing executor thread.
+			long nextDeadline;
+			synchronized (vehicleState) {
+				if (!vehicleState.isPredictable()) {
+					// Vehicle is not predictable so don't need to examine it
+					// again until it gets another AVL report
+					nextDeadline = -1;
+				} else if (vehicleState.isForSchedBasedPreds()) {
+					// Handle schedule based predictions vehicle
+					nextDeadline = 
+							handleSchedBasedPredsPossibleTimeout(vehicleState, 
+									now);
+				} else if (vehicleState.isWaitStop()) {
+					// Handle where vehicle is at a wait stop
+					nextDeadline = 
+							handleWaitStopPossibleTimeout(vehicleState, now);
+				} else {
+					// Not a special case. Simply determine if vehicle 
+					// timed out
+					nextDeadline = 
+							handlePredictablePossibleTimeout(vehicleState, now);
 				}
 			}
+			
+			// If vehicle not timed out then examine it again later. Don't 
+			// override a deadline set by a new AVL report.
+			if (nextDeadline >= 0)
+				scheduleDeadline(vehicleId, Math.max(nextDeadline, now + 1),
+						true);
 		}
 	}
 
@@ -325,8 +417,11 @@ public class TimeoutHandlerModule extends Module {
 				// For determining when to poll next
 				IntervalTimer timer = new IntervalTimer();
 
-				// Do the actual work
-				handlePossibleTimeouts();
+				// Do the actual work. If replaying AVL data using a virtual
+				// clock then the replay calls handlePossibleTimeouts() itself
+				// at the proper virtual times.
+				if (!Core.getInstance().isUsingVirtualClock())
+					handlePossibleTimeouts();
 
 				// Wait appropriate amount of time till poll again
 				long sleepTime = pollingRateSecs.getValue() * Time.MS_PER_SEC
@@ -22,15 +22,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
 import org.transitime.configData.CoreConfig;
+import org.transitime.core.travelTimes.OnlineTravelTimes;
 import org.transitime.db.structs.Location;
 import org.transitime.db.structs.ScheduleTime;
 import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.Trip;
 import org.transitime.utils.Time;
 
 /**
  * Singleton class that contains methods for determining how long a vehicle is
  * expected to take to get from one point to another on the assignment. Heavily
  * used both for doing temporal matching and for generating predictions.
+ * <p>
+ * If online travel times are enabled then the historic travel times are
+ * adjusted by OnlineTravelTimes to reflect how vehicles are currently
+ * traveling.
  * 
  * @author SkiBu Smith
  */
@@ -206,6 +212,24 @@ public class TravelTimes {
 		return scheduleEpochTime;
 	}
 	
+	/**
+	 * Returns the factor that the historic travel times for the stop path
+	 * should be multiplied by to reflect how vehicles are currently
+	 * traveling. The same factor is used for full and partial stop paths so
+	 * that the travel times are consistent.
+	 * 
+	 * @param trip
+	 * @param stopPathIndex
+	 * @return factor, 1.0 if online travel times not enabled
+	 */
+	private static double travelTimeRatio(Trip trip, int stopPathIndex) {
+		if (!OnlineTravelTimes.isEnabled())
+			return 1.0;
+		
+		return OnlineTravelTimes.getInstance().getTravelTimeRatio(trip,
+				stopPathIndex);
+	}
+	
 	/**
 	 * This class is so that travelTimeIndexForPartialPath() can return more
 	 * than a single piece of information.
@@ -300,7 +324,8 @@ public class TravelTimes {
 				++i) {
 			travelTimeMsec += travelTimesForStopPath.getTravelTimeSegmentMsec(i);
 		}
-		return travelTimeMsec; 
+		return (int) (travelTimeMsec 
+				* travelTimeRatio(match.getTrip(), match.getStopPathIndex())); 
 	}
 	
 	/**
@@ -336,7 +361,8 @@ public class TravelTimes {
 				timeTravelInfo.fractionCompleted);
 
 		travelTimeMsec += travelTimeInPartialSegmentToMatch;		
-		return travelTimeMsec;
+		return (int) (travelTimeMsec 
+				* travelTimeRatio(match.getTrip(), match.getStopPathIndex()));
 	}
 	
 	/**
@@ -350,7 +376,9 @@ public class TravelTimes {
 	public int expectedTravelTimeForStopPath(Indices indices) {
 		TravelTimesForStopPath travelTimesForPath = 
 				indices.getTrip().getTravelTimesForStopPath(indices.getStopPathIndex());
-		return travelTimesForPath.getStopPathTravelTimeMsec();
+		return (int) (travelTimesForPath.getStopPathTravelTimeMsec() 
+				* travelTimeRatio(indices.getTrip(), 
+						indices.getStopPathIndex()));
 	}
 
 	/**
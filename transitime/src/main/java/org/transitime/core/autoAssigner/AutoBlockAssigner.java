@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,7 @@ import org.transitime.configData.CoreConfig;
 import org.transitime.core.BlocksInfo;
 import org.transitime.core.SpatialMatch;
 import org.transitime.core.SpatialMatcher;
+import org.transitime.core.StopPathSpatialIndex;
 import org.transitime.core.TemporalDifference;
 import org.transitime.core.TemporalMatch;
 import org.transitime.core.TemporalMatcher;
@@ -43,6 +45,7 @@ import org.transitime.core.dataCache.VehicleStateManager;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.DbConfig;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
 
@@ -79,6 +82,11 @@ public class AutoBlockAssigner {
 	private Map<String, SpatialMatch> spatialMatchCache = 
 			new HashMap<String, SpatialMatch>();
 	
+	// IDs of the trip patterns that have a segment near the AVL report,
+	// determined using the spatial index. Trip patterns not in the set
+	// can't possibly have a non-layover spatial match. Lazily set.
+	private Set<String> nearbyTripPatternIds = null;
+	
 	/****************************** Config params **********************/
 	
 	private static BooleanConfigValue autoAssignerEnabled =
@@ -350,6 +358,20 @@ public class AutoBlockAssigner {
 		// haven't looked at the associated trip pattern yet.
 		List<Trip> tripsNeedToInvestigate = new ArrayList<Trip>();
 		
+		// For using spatial matches found for other vehicles that are at
+		// about the same location
+		SharedSpatialMatchCache sharedCache =
+				SharedSpatialMatchCache.getInstance();
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		
+		// Use the spatial index to determine which trip patterns are even
+		// near the AVL report. Only need to do this once for all the blocks.
+		if (nearbyTripPatternIds == null) {
+			nearbyTripPatternIds = StopPathSpatialIndex.getInstance()
+					.getTripPatternIdsWithinDistance(avlReport.getLocation(),
+							CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+		}
+		
 		// Go through the activeTrips and determine which ones actually need
 		// to be investigated. If the associated trip pattern was already 
 		// examined then use the spatial match (or null) previous found
@@ -363,6 +385,21 @@ public class AutoBlockAssigner {
 					+ "matches.", vehicleId, trip.getId(), 
 					trip.getTripPattern().getId());
 			
+			// If trip pattern not near the AVL report then there is no
+			// spatial match so remember that in the cache
+			if (!nearbyTripPatternIds.contains(tripPatternId)) 
+				spatialMatchCache.put(tripPatternId, null);
+			
+			// If not yet determined for this AVL report then see if 
+			// determined for another vehicle at about the same location
+			if (!spatialMatchCache.containsKey(tripPatternId)
+					&& sharedCache.addToReportCache(avlReport, dbConfig,
+							tripPatternId, spatialMatchCache)) {
+				logger.debug("For vehicleId={} for tripPatternId={} using "
+						+ "spatial match results from shared cache.", 
+						vehicleId, tripPatternId);
+			}
+			
 			// If spatial match results already in cache...
 			if (spatialMatchCache.containsKey(tripPatternId)) {
 				// Already processed this trip pattern so use cached results. 
@@ -422,8 +459,11 @@ public class AutoBlockAssigner {
 						newSpatialMatch);
 			
 			// Cache it
-			spatialMatchCache.put(newSpatialMatch.getTrip().getTripPattern()
-					.getId(), newSpatialMatch);
+			String tripPatternId =
+					newSpatialMatch.getTrip().getTripPattern().getId();
+			spatialMatchCache.put(tripPatternId, newSpatialMatch);
+			sharedCache.put(avlReport, dbConfig, tripPatternId,
+					newSpatialMatch);
 			
 			// Add to list of spatial matches to return
 			spatialMatches.add(newSpatialMatch);
@@ -451,6 +491,7 @@ public class AutoBlockAssigner {
 			// investigated then mark in cache that no match
 			if (!spatialMatchFound) {
 				spatialMatchCache.put(tripPatternId, null);
+				sharedCache.put(avlReport, dbConfig, tripPatternId, null);
 				
 				logger.debug("For vehicleId={} for tripId={} with "
 						+ "tripPatternId={} no spatial match found so storing "
@@ -0,0 +1,323 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.autoAssigner;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.core.SpatialMatch;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Time;
+
+/**
+ * A cache of the spatial matches to trip patterns that is shared by all
+ * vehicles being auto assigned. AutoBlockAssigner already caches the matches
+ * by trip pattern while determining the assignment for an AVL report, but
+ * that cache is only for the single report. When many vehicles log on at
+ * about the same place, such as at a garage during pull-out, each vehicle
+ * would otherwise need to spatially match to the same trip patterns all over
+ * again.
+ * <p>
+ * The matches are keyed on the location of the AVL report quantized to a
+ * grid, the heading quantized to a bucket, and the trip pattern ID. A match
+ * found for one vehicle is therefore reused for other vehicles that are
+ * within the same grid cell and are heading in a similar direction. The
+ * distances of a reused match are for the vehicle that was first matched so
+ * they can be off by up to the size of a grid cell.
+ * <p>
+ * The cache only holds matches for the current time bucket, based on the
+ * AVL time, so that stale matches don't accumulate. It is also limited in
+ * size and is cleared if the configuration changes, since the matches
+ * reference the blocks and trips of the configuration.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class SharedSpatialMatchCache {
+
+	// The current contents of the cache. Replaced when the time bucket or
+	// the configuration changes.
+	private volatile Generation generation = null;
+
+	// For when there was no spatial match to the trip pattern. Needed
+	// since ConcurrentHashMap can't store nulls.
+	private static final CachedMatch NO_MATCH = new CachedMatch(null);
+
+	private static final SharedSpatialMatchCache singleton =
+			new SharedSpatialMatchCache();
+
+	// Approximate meters per degree of latitude
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	/****************************** Config params **********************/
+
+	private static IntegerConfigValue cellSizeMeters =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.sharedCacheCellSizeMeters",
+					10,
+					"Size of the grid cells that AVL locations are quantized "
+					+ "to for the spatial match cache shared by vehicles. "
+					+ "Vehicles within the same cell share spatial matches so "
+					+ "distances of a match can be off by up to this "
+					+ "amount.");
+
+	private static IntegerConfigValue headingBucketDegrees =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.sharedCacheHeadingDegrees",
+					20,
+					"Size in degrees of the buckets that AVL headings are "
+					+ "quantized to for the spatial match cache shared by "
+					+ "vehicles.");
+
+	private static IntegerConfigValue timeBucketSecs =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.sharedCacheTimeBucketSecs",
+					60,
+					"How long in seconds spatial matches are kept in the "
+					+ "spatial match cache shared by vehicles. The cache is "
+					+ "cleared when the AVL time moves to a new bucket.");
+
+	private static IntegerConfigValue maxEntries =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.sharedCacheMaxEntries",
+					100000,
+					"Maximum number of trip pattern matches to store in the "
+					+ "spatial match cache shared by vehicles. Once reached "
+					+ "no more matches are cached until the next time "
+					+ "bucket.");
+
+	/*********************** Logging **********************************/
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SharedSpatialMatchCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The contents of the cache for a time bucket and configuration.
+	 */
+	private static class Generation {
+		private final DbConfig dbConfig;
+		private final long timeBucket;
+		private final ConcurrentHashMap<Key, CachedMatch> matches =
+				new ConcurrentHashMap<Key, CachedMatch>();
+
+		private Generation(DbConfig dbConfig, long timeBucket) {
+			this.dbConfig = dbConfig;
+			this.timeBucket = timeBucket;
+		}
+	}
+
+	/**
+	 * The spatial match, or null if there was no match to the trip pattern.
+	 */
+	private static class CachedMatch {
+		private final SpatialMatch spatialMatch;
+
+		private CachedMatch(SpatialMatch spatialMatch) {
+			this.spatialMatch = spatialMatch;
+		}
+	}
+
+	/**
+	 * The quantized location and heading of an AVL report along with the
+	 * trip pattern ID.
+	 */
+	private static class Key {
+		private final int latCell;
+		private final int lonCell;
+		private final int headingBucket;
+		private final String tripPatternId;
+
+		private Key(int latCell, int lonCell, int headingBucket,
+				String tripPatternId) {
+			this.latCell = latCell;
+			this.lonCell = lonCell;
+			this.headingBucket = headingBucket;
+			this.tripPatternId = tripPatternId;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 + latCell;
+			result = 31 * result + lonCell;
+			result = 31 * result + headingBucket;
+			result = 31 * result + tripPatternId.hashCode();
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return latCell == other.latCell
+					&& lonCell == other.lonCell
+					&& headingBucket == other.headingBucket
+					&& tripPatternId.equals(other.tripPatternId);
+		}
+	}
+
+	/**
+	 * Singleton so use getInstance()
+	 */
+	private SharedSpatialMatchCache() {}
+
+	/**
+	 * @return the singleton SharedSpatialMatchCache
+	 */
+	public static SharedSpatialMatchCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the key for the AVL report and trip pattern. The longitude
+	 * cells are scaled by the latitude of the cell so that the cells are
+	 * roughly square.
+	 *
+	 * @param avlReport
+	 * @param tripPatternId
+	 * @return the key
+	 */
+	private static Key getKey(AvlReport avlReport, String tripPatternId) {
+		double cellDegrees = Math.max(cellSizeMeters.getValue(), 1)
+				/ METERS_PER_DEGREE;
+		int latCell = (int) Math.floor(avlReport.getLat() / cellDegrees);
+		double cellLat = (latCell + 0.5) * cellDegrees;
+		double lonCellDegrees =
+				cellDegrees / Math.max(Math.cos(Math.toRadians(cellLat)), 0.01);
+		int lonCell = (int) Math.floor(avlReport.getLon() / lonCellDegrees);
+
+		// Vehicles without a valid heading get their own bucket
+		int headingBucket;
+		float heading = avlReport.getHeading();
+		if (Float.isNaN(heading)) {
+			headingBucket = -1;
+		} else {
+			double normalizedHeading = ((heading % 360) + 360) % 360;
+			headingBucket = (int) (normalizedHeading
+					/ Math.max(headingBucketDegrees.getValue(), 1));
+		}
+
+		return new Key(latCell, lonCell, headingBucket, tripPatternId);
+	}
+
+	/**
+	 * Returns the generation of the cache for the AVL report. If the AVL
+	 * report is for a newer time bucket, or the configuration has changed,
+	 * then a new empty generation is started. Returns null if the AVL report
+	 * is for an older time bucket, which can happen since vehicles are
+	 * processed in separate threads, so that the cache is simply not used.
+	 *
+	 * @param avlReport
+	 * @param dbConfig
+	 * @return the generation, or null if cache shouldn't be used for report
+	 */
+	private Generation getGeneration(AvlReport avlReport, DbConfig dbConfig) {
+		long timeBucket = avlReport.getTime()
+				/ (Math.max(timeBucketSecs.getValue(), 1) * Time.MS_PER_SEC);
+
+		Generation current = generation;
+		if (current != null && current.dbConfig == dbConfig
+				&& current.timeBucket == timeBucket)
+			return current;
+
+		synchronized (this) {
+			current = generation;
+			if (current != null && current.dbConfig == dbConfig) {
+				if (current.timeBucket == timeBucket)
+					return current;
+				if (current.timeBucket > timeBucket)
+					return null;
+			}
+
+			if (current != null && current.dbConfig != dbConfig)
+				logger.info("Configuration changed so clearing shared spatial "
+						+ "match cache.");
+			generation = new Generation(dbConfig, timeBucket);
+			return generation;
+		}
+	}
+
+	/**
+	 * If the trip pattern has already been matched for an AVL report with
+	 * about the same location and heading then adds the result to the
+	 * per AVL report cache of AutoBlockAssigner. The match is copied so that
+	 * it has the time of the AVL report.
+	 *
+	 * @param avlReport
+	 * @param dbConfig
+	 *            The current configuration
+	 * @param tripPatternId
+	 * @param reportCache
+	 *            Cache for the AVL report, keyed on trip pattern ID. A null
+	 *            value means no match.
+	 * @return true if the result was found and added to reportCache
+	 */
+	public boolean addToReportCache(AvlReport avlReport, DbConfig dbConfig,
+			String tripPatternId, Map<String, SpatialMatch> reportCache) {
+		Generation current = getGeneration(avlReport, dbConfig);
+		if (current == null)
+			return false;
+		CachedMatch cachedMatch =
+				current.matches.get(getKey(avlReport, tripPatternId));
+		if (cachedMatch == null)
+			return false;
+
+		SpatialMatch spatialMatch = cachedMatch.spatialMatch;
+		reportCache.put(tripPatternId, spatialMatch == null ? null
+				: new SpatialMatch(spatialMatch, spatialMatch.getTrip(),
+						avlReport.getTime()));
+		return true;
+	}
+
+	/**
+	 * Stores the result of spatially matching the AVL report to the trip
+	 * pattern so that it can be used for other vehicles.
+	 *
+	 * @param avlReport
+	 * @param dbConfig
+	 *            The current configuration
+	 * @param tripPatternId
+	 * @param spatialMatch
+	 *            The match, or null if there was no match to the trip pattern
+	 */
+	public void put(AvlReport avlReport, DbConfig dbConfig,
+			String tripPatternId, SpatialMatch spatialMatch) {
+		Generation current = getGeneration(avlReport, dbConfig);
+		if (current == null || current.matches.size() >= maxEntries.getValue())
+			return;
+
+		current.matches.put(getKey(avlReport, tripPatternId),
+				spatialMatch != null ? new CachedMatch(spatialMatch) : NO_MATCH);
+	}
+
+	/**
+	 * Clears the cache.
+	 */
+	public synchronized void clear() {
+		generation = null;
+	}
+
+}
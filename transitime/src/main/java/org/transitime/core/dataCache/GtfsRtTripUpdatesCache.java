@@ -0,0 +1,728 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.Agency;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * Maintains the GTFS-realtime TripUpdates feed within the core system so that
+ * it doesn't have to be regenerated from all of the predictions each time a
+ * client requests it. PredictionDataCache.updatePredictions() hands the new
+ * predictions for a vehicle to this cache. Only that vehicle is marked as
+ * changed and the FeedEntity objects for its trips are created the next time
+ * the feed is built. The full feed is kept as an already serialized protobuf
+ * byte array that is only rebuilt when predictions have changed, or when
+ * predictions have expired or come within the time range of the feed. Since
+ * rebuilding is done while synchronized only one thread rebuilds at a time and
+ * the other requesting threads simply use the result.
+ * <p>
+ * Clients can also request a DIFFERENTIAL feed containing only the trips that
+ * have changed since a time, usually the header timestamp of the previous feed
+ * they received. Entities that are no longer in the feed are included as
+ * deleted entities. If the time is too far in the past to know which entities
+ * have been deleted then the full dataset is returned instead.
+ * <p>
+ * The entity ID is the trip ID. If more than one vehicle has predictions for
+ * a trip then the vehicle ID is appended for the additional vehicles. Once
+ * assigned, an entity ID stays with the vehicle for as long as it has the
+ * trip, so that differential feeds update and delete the same entities that
+ * the client received earlier. If the vehicle that has the plain trip ID
+ * drops the trip while another vehicle still has it then the plain trip ID
+ * is handed to the other vehicle instead of being deleted.
+ * <p>
+ * The FeedEntity objects for a vehicle only include the predictions that have
+ * not yet expired and that are within PREDICTION_MAX_FUTURE_SECS, just as when
+ * the feed was created from PredictionDataCache.getAllPredictions(). Since a
+ * vehicle that stops reporting doesn't get new predictions the entities are
+ * recreated once the earliest of its predictions expires, or once a later
+ * prediction comes within range, so that stale times are not published.
+ * <p>
+ * Note: for predictions that are schedule based instead of GPS based the
+ * StopTimeEvent uncertainty is set to SCHED_BASED_PRED_UNCERTAINTY_VALUE so
+ * that the client can treat the prediction differently. If a vehicle is
+ * delayed and not moving then uncertainty is set to DELAYED_UNCERTAINTY_VALUE.
+ * And if a vehicle is late and the prediction is for a subsequent trip then
+ * uncertainty is set to LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtTripUpdatesCache {
+
+	// Make this class available as a singleton
+	private static final GtfsRtTripUpdatesCache singleton =
+			new GtfsRtTripUpdatesCache();
+
+	// Latest predictions for each vehicle. Keyed on vehicle ID.
+	private final Map<String, VehicleEntry> vehicleEntries =
+			new ConcurrentHashMap<String, VehicleEntry>();
+
+	// Entities that are no longer in the feed, so that they can be included
+	// as deleted entities in a differential feed. Keyed on entity ID, the
+	// value is when the entity was deleted. Only accessed while synchronized.
+	private final Map<String, Long> deletedEntities =
+			new HashMap<String, Long>();
+
+	// The vehicle ID for each entity ID that is in use, so that entity IDs
+	// stay the same from feed to feed. Only accessed while synchronized.
+	private final Map<String, String> entityIdOwners =
+			new HashMap<String, String>();
+
+	// Incremented each time predictions for a vehicle change
+	private final AtomicLong version = new AtomicLong();
+
+	// The most recently built full feed
+	private volatile SerializedFeed fullFeed = null;
+
+	// Differential requests for earlier than this time get the full feed
+	// since don't know which entities were deleted before then
+	private long deletedEntitiesKnownSince = System.currentTimeMillis();
+
+	// For outputting date in GTFS-realtime format. Only accessed while
+	// synchronized. Created when first needed since the agency timezone
+	// is not known when this class is loaded.
+	private SimpleDateFormat gtfsRealtimeDateFormatter = null;
+
+	// 25 minutes
+	private static final int PREDICTION_MAX_FUTURE_SECS = 25 * 60;
+
+	// For when creating StopTimeEvent for schedule based prediction
+	// 5 minutes (300 seconds)
+	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60;
+
+	// For when creating StopTimeEvent and the vehicle is delayed
+	private static final int DELAYED_UNCERTAINTY_VALUE =
+			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
+
+	// If vehicle is late and prediction is for a subsequent trip then
+	// the predictions are not as certain because it is reasonably likely
+	// that another vehicle will take over the subsequent trip. Takes
+	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE =
+			DELAYED_UNCERTAINTY_VALUE + 1;
+
+	// How long deleted entities are remembered for differential feeds
+	private static final long DELETED_ENTITIES_RETENTION_MSEC =
+			10 * Time.MS_PER_MIN;
+
+	private static IntegerConfigValue minRebuildIntervalMsec =
+			new IntegerConfigValue(
+					"transitime.core.tripUpdatesFeedMinRebuildIntervalMsec",
+					1000,
+					"The GTFS-realtime TripUpdates feed is only rebuilt when "
+					+ "predictions have changed, but no more frequently than "
+					+ "this. Keeps the feed from being rebuilt for every "
+					+ "request when there are many clients.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(GtfsRtTripUpdatesCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The latest predictions for a vehicle along with the FeedEntity objects
+	 * created from them. The entities are created the first time the feed is
+	 * built after the predictions changed and are recreated once they are
+	 * no longer valid because predictions have expired or come into range.
+	 */
+	private static class VehicleEntry {
+		private final String vehicleId;
+		// Predictions grouped by trip ID, in trip order
+		private final Map<String, List<IpcPrediction>> predsByTrip;
+		private final long timeChanged;
+		// Null until created
+		private List<FeedEntity> entities = null;
+		// System time when the entities need to be recreated
+		private long entitiesValidUntil = 0;
+		// When the entities last changed without the predictions changing,
+		// so that they are included in differential feeds
+		private long timeEntitiesChanged = 0;
+
+		private VehicleEntry(String vehicleId,
+				Map<String, List<IpcPrediction>> predsByTrip,
+				long timeChanged) {
+			this.vehicleId = vehicleId;
+			this.predsByTrip = predsByTrip;
+			this.timeChanged = timeChanged;
+		}
+	}
+
+	/**
+	 * An already serialized feed message along with what it was built from.
+	 */
+	private static class SerializedFeed {
+		private final byte[] bytes;
+		private final long version;
+		private final long timeCreated;
+		// System time when predictions expire or come into range
+		private final long validUntil;
+
+		private SerializedFeed(byte[] bytes, long version, long timeCreated,
+				long validUntil) {
+			this.bytes = bytes;
+			this.version = version;
+			this.timeCreated = timeCreated;
+			this.validUntil = validUntil;
+		}
+	}
+
+	/**
+	 * Constructor declared private because singleton class
+	 */
+	private GtfsRtTripUpdatesCache() {
+	}
+
+	/**
+	 * Returns singleton object for this class.
+	 *
+	 * @return
+	 */
+	public static GtfsRtTripUpdatesCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Updates the predictions for a vehicle. Called by
+	 * PredictionDataCache.updatePredictions(). Only records the predictions
+	 * so is inexpensive. The FeedEntity objects are created when the feed is
+	 * next built.
+	 *
+	 * @param vehicleId
+	 * @param newPredictionsForVehicle
+	 *            The new predictions for the vehicle. If empty then the
+	 *            vehicle no longer has predictions.
+	 */
+	public void updatePredictions(String vehicleId,
+			List<IpcPrediction> newPredictionsForVehicle) {
+		long now = System.currentTimeMillis();
+
+		// Group the predictions by trip
+		Map<String, List<IpcPrediction>> predsByTrip =
+				new LinkedHashMap<String, List<IpcPrediction>>();
+		for (IpcPrediction pred : newPredictionsForVehicle) {
+			List<IpcPrediction> predsForTrip = predsByTrip.get(pred.getTripId());
+			if (predsForTrip == null) {
+				predsForTrip = new ArrayList<IpcPrediction>();
+				predsByTrip.put(pred.getTripId(), predsForTrip);
+			}
+			predsForTrip.add(pred);
+		}
+
+		// Entities for trips that the vehicle no longer has are deleted the
+		// next time a feed is built, by updateEntityIds()
+		if (predsByTrip.isEmpty())
+			vehicleEntries.remove(vehicleId);
+		else
+			vehicleEntries.put(vehicleId,
+					new VehicleEntry(vehicleId, predsByTrip, now));
+
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Returns the serialized GTFS-realtime TripUpdates feed. The full feed is
+	 * only rebuilt if predictions have changed and it is older than
+	 * transitime.core.tripUpdatesFeedMinRebuildIntervalMsec.
+	 *
+	 * @param changedSinceSecs
+	 *            If greater than 0 then a DIFFERENTIAL feed is returned with
+	 *            just the trips that have changed since this epoch time in
+	 *            seconds. If 0 then the FULL_DATASET feed is returned.
+	 * @return the serialized FeedMessage
+	 */
+	public byte[] getFeed(long changedSinceSecs) {
+		if (changedSinceSecs > 0) {
+			byte[] differentialFeed =
+					buildDifferentialFeed(changedSinceSecs * Time.MS_PER_SEC);
+			if (differentialFeed != null)
+				return differentialFeed;
+		}
+
+		// If the cached full feed is still good then use it without
+		// synchronizing
+		SerializedFeed feed = fullFeed;
+		if (feed != null && isCurrent(feed))
+			return feed.bytes;
+
+		return rebuildFullFeed();
+	}
+
+	/**
+	 * @param feed
+	 * @return true if the feed doesn't need to be rebuilt
+	 */
+	private boolean isCurrent(SerializedFeed feed) {
+		return (feed.version == version.get() 
+					&& Core.getInstance().getSystemTime() < feed.validUntil)
+				|| System.currentTimeMillis() - feed.timeCreated
+						< minRebuildIntervalMsec.getValue();
+	}
+
+	/**
+	 * Rebuilds the full feed. Synchronized so that only a single thread
+	 * rebuilds the feed. Threads that were waiting for the rebuild simply
+	 * return the newly built feed.
+	 *
+	 * @return the serialized full feed
+	 */
+	private synchronized byte[] rebuildFullFeed() {
+		// If another thread rebuilt the feed while waiting then done
+		SerializedFeed feed = fullFeed;
+		if (feed != null && isCurrent(feed))
+			return feed.bytes;
+
+		IntervalTimer timer = new IntervalTimer();
+
+		// Read version before building so that a change while building
+		// causes another rebuild
+		long versionBeingBuilt = version.get();
+		long now = System.currentTimeMillis();
+		purgeDeletedEntities(now);
+
+		// Make sure the entities only contain current predictions and 
+		// determine when the feed needs to be rebuilt because of time passing
+		long systemTime = Core.getInstance().getSystemTime();
+		long validUntil = Long.MAX_VALUE;
+		for (VehicleEntry entry : vehicleEntries.values()) {
+			refreshEntities(entry, systemTime, now);
+			validUntil = Math.min(validUntil, entry.entitiesValidUntil);
+		}
+		updateEntityIds(systemTime, now);
+		
+		FeedMessage message = createMessage(Incrementality.FULL_DATASET, now,
+				vehicleEntries.values(), Collections.<String> emptySet());
+		feed = new SerializedFeed(message.toByteArray(), versionBeingBuilt,
+				now, validUntil);
+		fullFeed = feed;
+
+		logger.debug("Rebuilding GTFS-realtime TripUpdates feed with {} "
+				+ "entities took {} msec", message.getEntityCount(),
+				timer.elapsedMsec());
+		return feed.bytes;
+	}
+
+	/**
+	 * Builds a differential feed containing the trips that have changed since
+	 * the specified time, along with the entities that have been deleted
+	 * since then. Synchronized since the FeedEntity objects for the changed
+	 * vehicles might need to be created. Also purges the old deleted
+	 * entities so that they don't accumulate when clients only request
+	 * differential feeds.
+	 *
+	 * @param changedSince
+	 *            epoch time in msec
+	 * @return the serialized differential feed, or null if changedSince is
+	 *         too far in the past to know which entities were deleted
+	 */
+	private synchronized byte[] buildDifferentialFeed(long changedSince) {
+		purgeDeletedEntities(System.currentTimeMillis());
+		if (changedSince < deletedEntitiesKnownSince)
+			return null;
+
+		long now = System.currentTimeMillis();
+		long systemTime = Core.getInstance().getSystemTime();
+		for (VehicleEntry entry : vehicleEntries.values())
+			refreshEntities(entry, systemTime, now);
+		updateEntityIds(systemTime, now);
+
+		// Determine changed entries after updating the entity IDs since
+		// a vehicle's entities change if it is handed an entity ID
+		List<VehicleEntry> changedEntries = new ArrayList<VehicleEntry>();
+		for (VehicleEntry entry : vehicleEntries.values()) {
+			if (entry.timeChanged >= changedSince
+					|| entry.timeEntitiesChanged >= changedSince)
+				changedEntries.add(entry);
+		}
+
+		Set<String> deletedEntityIds = new HashSet<String>();
+		for (Map.Entry<String, Long> deleted : deletedEntities.entrySet()) {
+			if (deleted.getValue() >= changedSince)
+				deletedEntityIds.add(deleted.getKey());
+		}
+
+		return createMessage(Incrementality.DIFFERENTIAL, now, changedEntries,
+				deletedEntityIds).toByteArray();
+	}
+
+	/**
+	 * Removes deleted entities that are too old to be of use for
+	 * differential feeds. Should only be called while synchronized.
+	 *
+	 * @param now
+	 */
+	private void purgeDeletedEntities(long now) {
+		long oldestTimeToKeep = now - DELETED_ENTITIES_RETENTION_MSEC;
+		Iterator<Long> iterator = deletedEntities.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() < oldestTimeToKeep)
+				iterator.remove();
+		}
+		deletedEntitiesKnownSince = Math.max(deletedEntitiesKnownSince,
+				oldestTimeToKeep);
+	}
+
+	/**
+	 * Returns the entity ID to use for the trip of the vehicle. This is the
+	 * trip ID unless another vehicle already has that entity ID, in which
+	 * case the vehicle ID is appended. Records that the vehicle has the
+	 * entity ID. Should only be called while synchronized.
+	 *
+	 * @param tripId
+	 * @param vehicleId
+	 * @return the entity ID
+	 */
+	private String getEntityId(String tripId, String vehicleId) {
+		String owner = entityIdOwners.get(tripId);
+		String entityId = owner == null || owner.equals(vehicleId) ?
+				tripId : tripId + "_" + vehicleId;
+		entityIdOwners.put(entityId, vehicleId);
+		return entityId;
+	}
+
+	/**
+	 * Releases the entity IDs that are no longer used by the current
+	 * entities of the vehicles. If another vehicle still has the trip for a
+	 * released trip ID then that vehicle is given the trip ID as its entity
+	 * ID, so that the trip is not deleted while it still has predictions.
+	 * Otherwise the released entity IDs are recorded as deleted so that
+	 * differential feeds remove them. The FeedEntity objects for all of the
+	 * vehicles need to have been created first. Should only be called while
+	 * synchronized.
+	 *
+	 * @param systemTime
+	 *            Current system time, for if entities need to be recreated
+	 * @param now
+	 *            Current clock time, for recording changes
+	 */
+	private void updateEntityIds(long systemTime, long now) {
+		// Determine the entity IDs in use and which vehicles have a trip
+		// under an entity ID with the vehicle ID appended
+		Set<String> entityIdsInUse = new HashSet<String>();
+		Map<String, VehicleEntry> entriesWithAppendedId =
+				new HashMap<String, VehicleEntry>();
+		for (VehicleEntry entry : vehicleEntries.values()) {
+			for (FeedEntity entity : getEntities(entry)) {
+				entityIdsInUse.add(entity.getId());
+				String tripId = entity.getTripUpdate().getTrip().getTripId();
+				if (!entity.getId().equals(tripId))
+					entriesWithAppendedId.put(tripId, entry);
+			}
+		}
+
+		// Entity IDs that are being used again are no longer deleted
+		for (String entityId : entityIdsInUse)
+			deletedEntities.remove(entityId);
+
+		// Release the entity IDs that are no longer in use
+		List<String> releasedEntityIds = new ArrayList<String>();
+		Iterator<String> iterator = entityIdOwners.keySet().iterator();
+		while (iterator.hasNext()) {
+			String entityId = iterator.next();
+			if (!entityIdsInUse.contains(entityId)) {
+				iterator.remove();
+				releasedEntityIds.add(entityId);
+			}
+		}
+
+		for (String entityId : releasedEntityIds) {
+			// If another vehicle still has the trip then recreate its
+			// entities so that it gets the trip ID as the entity ID
+			VehicleEntry entry = entriesWithAppendedId.remove(entityId);
+			if (entry == null) {
+				deletedEntities.put(entityId, now);
+				continue;
+			}
+
+			List<FeedEntity> oldEntities = entry.entities;
+			createEntities(entry, systemTime);
+			entry.timeEntitiesChanged = now;
+			Set<String> newEntityIds = new HashSet<String>();
+			for (FeedEntity entity : entry.entities) {
+				newEntityIds.add(entity.getId());
+				deletedEntities.remove(entity.getId());
+			}
+			for (FeedEntity entity : oldEntities) {
+				if (!newEntityIds.contains(entity.getId())) {
+					entityIdOwners.remove(entity.getId());
+					deletedEntities.put(entity.getId(), now);
+				}
+			}
+			
+			// So that the full feed is rebuilt with the new entity IDs
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates a GTFS-realtime message for the vehicle entries passed in.
+	 *
+	 * @param incrementality
+	 * @param now
+	 *            For the header timestamp
+	 * @param entries
+	 *            The vehicles to include
+	 * @param deletedEntityIds
+	 *            Entities to include as deleted
+	 * @return the GTFS-realtime FeedMessage
+	 */
+	private FeedMessage createMessage(Incrementality incrementality, long now,
+			Iterable<VehicleEntry> entries, Set<String> deletedEntityIds) {
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+
+		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(incrementality)
+				.setTimestamp(now / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		// The entity IDs are already unique since they were assigned by
+		// getEntityId()
+		Set<String> entityIds = new HashSet<String>();
+		for (VehicleEntry entry : entries) {
+			for (FeedEntity entity : getEntities(entry)) {
+				entityIds.add(entity.getId());
+				message.addEntity(entity);
+			}
+		}
+
+		for (String entityId : deletedEntityIds) {
+			if (!entityIds.contains(entityId)) {
+				message.addEntity(FeedEntity.newBuilder().setId(entityId)
+						.setIsDeleted(true));
+			}
+		}
+
+		return message.build();
+	}
+
+	/**
+	 * Makes sure that the FeedEntity objects for the vehicle are current,
+	 * creating them if they haven't been created yet or if predictions have
+	 * since expired or come within range. If trips are dropped because all
+	 * of their predictions have expired then updateEntityIds() records them
+	 * as deleted so that differential feeds remove them. Should only be
+	 * called while synchronized.
+	 *
+	 * @param entry
+	 * @param systemTime
+	 *            Current system time, for determining which predictions to
+	 *            include
+	 * @param now
+	 *            Current clock time, for recording changes
+	 */
+	private void refreshEntities(VehicleEntry entry, long systemTime,
+			long now) {
+		if (entry.entities != null && systemTime < entry.entitiesValidUntil)
+			return;
+
+		List<FeedEntity> oldEntities = entry.entities;
+		createEntities(entry, systemTime);
+		
+		// Entities changed due to time passing
+		if (oldEntities != null)
+			entry.timeEntitiesChanged = now;
+	}
+	
+	/**
+	 * Returns the FeedEntity objects for the vehicle, creating them if
+	 * haven't done so yet. Should only be called while synchronized.
+	 *
+	 * @param entry
+	 * @return the FeedEntity objects, one per trip
+	 */
+	private List<FeedEntity> getEntities(VehicleEntry entry) {
+		if (entry.entities == null)
+			createEntities(entry, Core.getInstance().getSystemTime());
+		return entry.entities;
+	}
+	
+	/**
+	 * Creates the FeedEntity objects for the vehicle using only the 
+	 * predictions that have not expired and are not too far in the future.
+	 * Also sets when the entities will need to be recreated.
+	 *
+	 * @param entry
+	 * @param systemTime
+	 */
+	private void createEntities(VehicleEntry entry, long systemTime) {
+		long maxPredictionTime = systemTime
+				+ PREDICTION_MAX_FUTURE_SECS * Time.MS_PER_SEC;
+		long validUntil = Long.MAX_VALUE;
+
+		List<FeedEntity> entities = new ArrayList<FeedEntity>();
+		for (List<IpcPrediction> predsForTrip : entry.predsByTrip.values()) {
+			// Only include predictions that have not expired and are not
+			// too far in the future
+			List<IpcPrediction> predsToUse = new ArrayList<IpcPrediction>();
+			for (IpcPrediction pred : predsForTrip) {
+				long predTime = pred.getPredictionTime();
+				if (predTime < systemTime)
+					continue;
+				if (predTime <= maxPredictionTime) {
+					predsToUse.add(pred);
+					
+					// Need to recreate once this prediction expires
+					validUntil = Math.min(validUntil, predTime + 1);
+				} else {
+					// Need to recreate once prediction comes into range
+					validUntil = Math.min(validUntil, 
+							predTime - PREDICTION_MAX_FUTURE_SECS 
+								* Time.MS_PER_SEC);
+				}
+			}
+			if (predsToUse.isEmpty())
+				continue;
+
+			try {
+				String tripId = predsToUse.get(0).getTripId();
+				entities.add(FeedEntity.newBuilder()
+						.setId(getEntityId(tripId, entry.vehicleId))
+						.setTripUpdate(createTripUpdate(predsToUse))
+						.build());
+			} catch (Exception e) {
+				logger.error("Error creating trip update. {}", predsToUse, e);
+			}
+		}
+
+		entry.entities = entities;
+		entry.entitiesValidUntil = validUntil;
+	}
+
+	/**
+	 * Returns the formatter for the GTFS-realtime trip start date, creating
+	 * it if needed.
+	 *
+	 * @return the date formatter
+	 */
+	private SimpleDateFormat getDateFormatter() {
+		if (gtfsRealtimeDateFormatter == null) {
+			gtfsRealtimeDateFormatter = new SimpleDateFormat("yyyyMMdd");
+			Agency agency = Core.getInstance().getDbConfig().getFirstAgency();
+			if (agency != null)
+				gtfsRealtimeDateFormatter.setTimeZone(agency.getTimeZone());
+		}
+		return gtfsRealtimeDateFormatter;
+	}
+
+	/**
+	 * Create TripUpdate for the trip.
+	 *
+	 * @param predsForTrip
+	 * @return
+	 */
+	private TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
+		// Create the parent TripUpdate object that is returned.
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+
+		// Add the trip descriptor information
+		IpcPrediction firstPred = predsForTrip.get(0);
+		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+		if (firstPred.getRouteId() != null)
+			tripDescriptor.setRouteId(firstPred.getRouteId());
+		if (firstPred.getTripId() != null) {
+			tripDescriptor.setTripId(firstPred.getTripId());
+
+			long tripStartEpochTime = firstPred.getTripStartEpochTime();
+			String tripStartDateStr =
+					getDateFormatter().format(new Date(tripStartEpochTime));
+			tripDescriptor.setStartDate(tripStartDateStr);
+		}
+		tripUpdate.setTrip(tripDescriptor);
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
+		tripUpdate.setVehicle(vehicleDescriptor);
+
+		// Add the StopTimeUpdate information for each prediction
+		for (IpcPrediction pred : predsForTrip) {
+			StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder()
+					.setStopSequence(pred.getGtfsStopSeq())
+					.setStopId(pred.getStopId());
+
+			StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+			stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
+
+			// If schedule based prediction then set the uncertainty to special
+			// value so that client can tell
+			if (pred.isSchedBasedPred())
+				stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
+
+			// If vehicle is late and prediction is for a subsequent trip then
+			// the predictions are not as certain because it is reasonably
+			// likely that another vehicle will take over the subsequent trip.
+			// Takes precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+			if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
+				stopTimeEvent.setUncertainty(
+						LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
+
+			// If vehicle not making forward progress then set uncertainty to
+			// special value so that client can tell. Takes precedence over
+			// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+			if (pred.isDelayed())
+				stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
+
+			if (pred.isArrival())
+				stopTimeUpdate.setArrival(stopTimeEvent);
+			else
+				stopTimeUpdate.setDeparture(stopTimeEvent);
+
+			stopTimeUpdate
+					.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
+			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+		}
+
+		// Add timestamp
+		tripUpdate.setTimestamp(firstPred.getAvlTime() / Time.MS_PER_SEC);
+
+		// Return the results
+		return tripUpdate.build();
+	}
+
+}
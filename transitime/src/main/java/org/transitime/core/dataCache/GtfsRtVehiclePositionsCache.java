@@ -0,0 +1,357 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.Agency;
+import org.transitime.ipc.data.IpcSerializedFeed;
+import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+/**
+ * Maintains the GTFS-realtime VehiclePositions feed within the core system as
+ * an already serialized FeedMessage. The feed is only rebuilt when
+ * VehicleDataCache.updateVehicle() has changed the vehicle data, and no more
+ * frequently than transitime.core.vehiclePositionsFeedMinRebuildIntervalMsec.
+ * Since rebuilding is synchronized only a single thread rebuilds the feed
+ * while the other requesting threads wait for and then use the result. The
+ * gzip compressed version is also only created once per version of the feed.
+ * <p>
+ * Each version of the feed has an ETag so that clients that already have the
+ * current version don't need to be sent the data again.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtVehiclePositionsCache {
+
+	// Make this class available as a singleton
+	private static final GtfsRtVehiclePositionsCache singleton =
+			new GtfsRtVehiclePositionsCache();
+
+	// The most recently built feed
+	private volatile SerializedFeed feed = null;
+
+	// Part of the ETag so that the ETags are different after a restart, when
+	// the VehicleDataCache version starts over
+	private final String etagPrefix =
+			Long.toHexString(System.currentTimeMillis()) + "-";
+
+	// For outputting date in GTFS-realtime format. Only accessed while
+	// synchronized. Created when first needed since the agency timezone
+	// is not known when this class is loaded.
+	private SimpleDateFormat gtfsRealtimeDateFormatter = null;
+
+	private static IntegerConfigValue minRebuildIntervalMsec =
+			new IntegerConfigValue(
+					"transitime.core.vehiclePositionsFeedMinRebuildIntervalMsec",
+					1000,
+					"The GTFS-realtime VehiclePositions feed is only rebuilt "
+					+ "when vehicle data has changed, but no more frequently "
+					+ "than this. Keeps the feed from being rebuilt for every "
+					+ "request when there are many clients.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(GtfsRtVehiclePositionsCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A version of the serialized feed. The gzipped bytes are only created
+	 * if a client requests them.
+	 */
+	private static class SerializedFeed {
+		private final byte[] bytes;
+		private final long version;
+		private final long timeCreated;
+		private final String etag;
+		private volatile byte[] gzippedBytes = null;
+
+		private SerializedFeed(byte[] bytes, long version, long timeCreated,
+				String etag) {
+			this.bytes = bytes;
+			this.version = version;
+			this.timeCreated = timeCreated;
+			this.etag = etag;
+		}
+
+		/**
+		 * Returns the gzip compressed feed, compressing it if haven't done so
+		 * yet. Synchronized so that only compressed once.
+		 *
+		 * @return the gzipped bytes
+		 * @throws IOException
+		 */
+		private synchronized byte[] getGzippedBytes() throws IOException {
+			if (gzippedBytes == null) {
+				ByteArrayOutputStream out =
+						new ByteArrayOutputStream(bytes.length / 4);
+				GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+				gzipOut.write(bytes);
+				gzipOut.close();
+				gzippedBytes = out.toByteArray();
+			}
+			return gzippedBytes;
+		}
+	}
+
+	/**
+	 * Constructor declared private because singleton class
+	 */
+	private GtfsRtVehiclePositionsCache() {
+	}
+
+	/**
+	 * Returns singleton object for this class.
+	 *
+	 * @return
+	 */
+	public static GtfsRtVehiclePositionsCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the serialized GTFS-realtime VehiclePositions feed.
+	 *
+	 * @param etag
+	 *            The ETag of the version of the feed that the client already
+	 *            has. If it is the current version then the data is not
+	 *            returned. Can be null.
+	 * @param gzip
+	 *            If true then the data returned is gzip compressed
+	 * @return the feed
+	 */
+	public IpcSerializedFeed getFeed(String etag, boolean gzip) {
+		SerializedFeed currentFeed = feed;
+		if (currentFeed == null || !isCurrent(currentFeed))
+			currentFeed = rebuildFeed();
+
+		// If client already has current version then don't need to send it
+		if (currentFeed.etag.equals(etag))
+			return new IpcSerializedFeed(currentFeed.etag,
+					currentFeed.timeCreated, gzip, null);
+
+		byte[] data = currentFeed.bytes;
+		if (gzip) {
+			try {
+				data = currentFeed.getGzippedBytes();
+			} catch (IOException e) {
+				logger.error("Could not gzip GTFS-realtime VehiclePositions "
+						+ "feed so returning it uncompressed. {}",
+						e.getMessage(), e);
+				gzip = false;
+			}
+		}
+		return new IpcSerializedFeed(currentFeed.etag, currentFeed.timeCreated,
+				gzip, data);
+	}
+
+	/**
+	 * @param feed
+	 * @return true if the feed doesn't need to be rebuilt
+	 */
+	private boolean isCurrent(SerializedFeed feed) {
+		return feed.version == VehicleDataCache.getInstance().getVersion()
+				|| System.currentTimeMillis() - feed.timeCreated
+						< minRebuildIntervalMsec.getValue();
+	}
+
+	/**
+	 * Rebuilds the feed. Synchronized so that only a single thread rebuilds
+	 * the feed. Threads that were waiting for the rebuild simply use the
+	 * newly built feed.
+	 *
+	 * @return the current feed
+	 */
+	private synchronized SerializedFeed rebuildFeed() {
+		// If another thread rebuilt the feed while waiting then done
+		SerializedFeed currentFeed = feed;
+		if (currentFeed != null && isCurrent(currentFeed))
+			return currentFeed;
+
+		IntervalTimer timer = new IntervalTimer();
+
+		// Read version before building so that a change while building
+		// causes another rebuild
+		VehicleDataCache vehicleDataCache = VehicleDataCache.getInstance();
+		long versionBeingBuilt = vehicleDataCache.getVersion();
+		long now = System.currentTimeMillis();
+
+		FeedMessage message = createMessage(vehicleDataCache.getVehicles(),
+				now);
+		currentFeed = new SerializedFeed(message.toByteArray(),
+				versionBeingBuilt, now, etagPrefix + versionBeingBuilt);
+		feed = currentFeed;
+
+		logger.debug("Rebuilding GTFS-realtime VehiclePositions feed with {} "
+				+ "entities took {} msec", message.getEntityCount(),
+				timer.elapsedMsec());
+		return currentFeed;
+	}
+
+	/**
+	 * Returns the formatter for the GTFS-realtime trip start date, creating
+	 * it if needed.
+	 *
+	 * @return the date formatter
+	 */
+	private SimpleDateFormat getDateFormatter() {
+		if (gtfsRealtimeDateFormatter == null) {
+			gtfsRealtimeDateFormatter = new SimpleDateFormat("yyyyMMdd");
+			Agency agency = Core.getInstance().getDbConfig().getFirstAgency();
+			if (agency != null)
+				gtfsRealtimeDateFormatter.setTimeZone(agency.getTimeZone());
+		}
+		return gtfsRealtimeDateFormatter;
+	}
+
+	/**
+	 * Takes in IpcGtfsRealtimeVehicle and puts it into a GTFS-realtime
+	 * VehiclePosition object.
+	 *
+	 * @param vehicleData
+	 * @return the resulting VehiclePosition
+	 */
+	private VehiclePosition createVehiclePosition(
+			IpcVehicleGtfsRealtime vehicleData) {
+		// Create the parent VehiclePosition object that is returned.
+		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+
+		// If there is route information then add it via the TripDescriptor
+		if (vehicleData.getRouteId() != null
+				&& vehicleData.getRouteId().length() > 0) {
+			String tripStartDateStr =
+					getDateFormatter().format(new Date(vehicleData
+							.getTripStartEpochTime()));
+			TripDescriptor.Builder tripDescriptor =
+					TripDescriptor.newBuilder()
+							.setRouteId(vehicleData.getRouteId())
+							.setTripId(vehicleData.getTripId())
+							.setStartDate(tripStartDateStr);
+			vehiclePosition.setTrip(tripDescriptor);
+		}
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
+		// License plate information is optional so only add it if not null
+		if (vehicleData.getLicensePlate() != null)
+			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
+		vehiclePosition.setVehicle(vehicleDescriptor);
+
+		// Add the Position information
+		Position.Builder position =
+				Position.newBuilder().setLatitude(vehicleData.getLatitude())
+						.setLongitude(vehicleData.getLongitude());
+		// Heading and speed are optional so only add them if actually a
+		// valid number.
+		if (!Float.isNaN(vehicleData.getHeading())) {
+			position.setBearing(vehicleData.getHeading());
+		}
+		if (!Float.isNaN(vehicleData.getSpeed())) {
+			position.setSpeed(vehicleData.getSpeed());
+		}
+		vehiclePosition.setPosition(position);
+
+		// Convert the GPS timestamp information to an epoch time as
+		// number of milliseconds since 1970.
+		long gpsTime = vehicleData.getGpsTime();
+		vehiclePosition.setTimestamp(gpsTime / Time.MS_PER_SEC);
+
+		// Set the stop_id if at a stop or going to a stop
+		String stopId = vehicleData.getAtOrNextStopId();
+		if (stopId != null)
+			vehiclePosition.setStopId(stopId);
+
+		// Set current_status part of vehiclePosition if vehicle is actually
+		// predictable. If not predictable then the vehicle stop status will
+		// not be included in feed since it is not stopped nor in transit to.
+		if (vehicleData.isPredictable()) {
+			VehicleStopStatus currentStatus =
+					vehicleData.isAtStop() ? VehicleStopStatus.STOPPED_AT
+							: VehicleStopStatus.IN_TRANSIT_TO;
+			vehiclePosition.setCurrentStatus(currentStatus);
+
+			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
+				vehiclePosition.setCurrentStopSequence(
+						vehicleData.getAtOrNextGtfsStopSeq());
+		}
+
+		// Return the results
+		return vehiclePosition.build();
+	}
+
+	/**
+	 * Creates a GTFS-realtime message for the vehicles passed in.
+	 *
+	 * @param vehicles
+	 *            the data to be put into the GTFS-realtime message
+	 * @param now
+	 *            for the header timestamp
+	 * @return the GTFS-realtime FeedMessage
+	 */
+	private FeedMessage createMessage(
+			Iterable<? extends IpcVehicleGtfsRealtime> vehicles, long now) {
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+
+		FeedHeader.Builder feedheader =
+				FeedHeader
+						.newBuilder()
+						.setGtfsRealtimeVersion("1.0")
+						.setIncrementality(Incrementality.FULL_DATASET)
+						.setTimestamp(now / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		for (IpcVehicleGtfsRealtime vehicle : vehicles) {
+			FeedEntity.Builder vehiclePositionEntity =
+					FeedEntity.newBuilder().setId(vehicle.getId());
+
+			try {
+				VehiclePosition vehiclePosition =
+						createVehiclePosition(vehicle);
+				vehiclePositionEntity.setVehicle(vehiclePosition);
+				message.addEntity(vehiclePositionEntity);
+			} catch (Exception e) {
+				logger.error("Error parsing vehicle data for vehicle={}",
+						vehicle, e);
+			}
+		}
+
+		return message.build();
+	}
+
+}
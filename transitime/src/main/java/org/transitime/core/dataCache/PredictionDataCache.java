@@ -23,6 +23,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +41,7 @@ import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
+import org.transitime.utils.Timer;
 
 /**
  * For storing and retrieving predictions by stop.
@@ -57,6 +61,13 @@ import org.transitime.utils.Time;
  * route/stop. This way the contents will always be coherent and the 
  * caller does not need to synchronize, which would be difficult to
  * enforce.
+ * <p>
+ * The predictions for each route/stop/destination are stored as immutable
+ * snapshots that are replaced when the predictions are updated. Therefore
+ * the copies returned share the snapshots, and reading predictions never
+ * blocks or is blocked by the threads updating predictions. Expired 
+ * predictions are filtered out when reading and are periodically removed
+ * by a background sweeper.
  * 
  * @author SkiBu Smith
  */
@@ -79,18 +90,41 @@ public class PredictionDataCache {
 	// Keyed by MapKey using routeId/stopId.
 	// ConcurrentHashMap is used so that can associate a route/stop with a 
 	// PredictionsForRouteStop in a threadsafe way. Will always use same 
-	// PredictionsForRouteStop for a route/stop and synchronize any changes and 
-	// access to it so if multiple threads are making changes on a route/stop 
-	// those changes will be coherent and information will not be lost.
+	// PredictionsForRouteStop for a route/stop and synchronize any changes to 
+	// it so if multiple threads are making changes on a route/stop those 
+	// changes will be coherent and information will not be lost. Reading
+	// doesn't require synchronization since immutable snapshots are used.
 	private final ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>> 
 		predictionsMap =
 			new ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>>(1000);
 	
+	// Incremented each time the predictions change so that users of the
+	// cache can tell if they need to regenerate data
+	private final AtomicLong version = new AtomicLong();
+	
+	// How frequently expired predictions are removed
+	private static final int EXPIRED_PREDICTIONS_SWEEP_RATE_SEC = 10;
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionDataCache.class);
 
 	/********************** Member Functions **************************/
 	
+	/**
+	 * Constructor declared private because singleton class. Starts the
+	 * background sweeper that removes expired predictions.
+	 */
+	private PredictionDataCache() {
+		Timer.get().scheduleAtFixedRate(
+				// Call removeExpiredPredictions() using anonymous class
+				new Runnable() {
+					public void run() {
+						removeExpiredPredictions();
+					}
+				}, EXPIRED_PREDICTIONS_SWEEP_RATE_SEC,
+				EXPIRED_PREDICTIONS_SWEEP_RATE_SEC, TimeUnit.SECONDS);
+	}
+	
 	/**
 	 * Returns singleton object for this class. It will use the regular
 	 * SystemCurrentTime class for determining the time and whether any 
@@ -183,11 +217,9 @@ public class PredictionDataCache {
 		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
 				getPredictionsForRouteStop(routeShortName, stopId);
 		
-		// Remove old predictions so that they are not provided through the 
-		// API and such
-		for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-			preds.removeExpiredPredictions(getSystemTime());
-		}
+		// Old predictions are filtered out so that they are not provided 
+		// through the API and such
+		long currentTime = getSystemTime();
 
 		// Want to limit predictions to max time in future since if using
 		// schedule based predictions then generating predictions far into the 		
@@ -207,6 +239,8 @@ public class PredictionDataCache {
 		boolean nonEndOfTripPredFound = false;
 		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
 			for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
+				if (preds.getPredictionTime() < currentTime)
+					continue;
 				if (preds.isAtEndOfTrip())
 					endOfTripPredFound = true;
 				else
@@ -239,7 +273,8 @@ public class PredictionDataCache {
 					boolean allPredsForEndOfTrip = true;
 					for (IpcPrediction preds : predictions
 							.getPredictionsForRouteStop()) {
-						if (!preds.isAtEndOfTrip()) {
+						if (preds.getPredictionTime() >= currentTime
+								&& !preds.isAtEndOfTrip()) {
 							allPredsForEndOfTrip = false;
 							continue;
 						}
@@ -251,7 +286,7 @@ public class PredictionDataCache {
 			
 			// Direction ID is OK so clone prediction and add to list
 			IpcPredictionsForRouteStopDest clone =
-					predictions.getClone(maxPredictionsPerStop,
+					predictions.getClone(maxPredictionsPerStop, currentTime,
 							maxPredictionEpochTime, distanceToStop);
 			clonedPredictions.add(clone);
 		}
@@ -448,13 +483,15 @@ public class PredictionDataCache {
 				new ArrayList<IpcPredictionsForRouteStopDest>(5000);
 		
 		// Go through all PredictionsForRouteStop objects
+		long currentTime = getSystemTime();
 		Collection<List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop = 
 				predictionsMap.values();		
 		for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : predictionsByRouteStop) {
 			for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : predictionsForRouteStop) {
 				IpcPredictionsForRouteStopDest clonedPrediction = 
 						predictionForRouteStopDest.getClone(
-								maxPredictionsPerStop, maxSystemTimeForPrediction);
+								maxPredictionsPerStop, currentTime,
+								maxSystemTimeForPrediction, Double.NaN);
 				// If there were valid predictions then include it in array to
 				// be returned
 				if (!clonedPrediction.getPredictionsForRouteStop().isEmpty())
@@ -465,6 +502,45 @@ public class PredictionDataCache {
 		return allPredictions;
 	}
 	
+	/**
+	 * Removes the expired predictions from all of the
+	 * route/stop/destinations. Called periodically by the background sweeper
+	 * so that expired predictions don't accumulate for stops that are no
+	 * longer getting new predictions.
+	 */
+	private void removeExpiredPredictions() {
+		// Only makes sense for the core application, where there is a 
+		// system time
+		if (!Core.isCoreApplication())
+			return;
+		
+		try {
+			long currentTime = getSystemTime();
+			for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : 
+					predictionsMap.values()) {
+				for (IpcPredictionsForRouteStopDest predictions : 
+						predictionsForRouteStop) {
+					if (predictions.removeExpiredPredictions(currentTime))
+						version.incrementAndGet();
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Exception when removing expired predictions. {}", 
+					e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Returns the version of the predictions in the cache. Incremented each
+	 * time the predictions change so that users of the cache, such as feeds,
+	 * can tell if the predictions have changed without comparing them.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
 	/**
 	 * Updates predictions in the cache that are associated with a vehicle.
 	 * Removes any that are in oldPredictionsForVehicle and adds all the ones in
@@ -482,6 +558,8 @@ public class PredictionDataCache {
 		if (newPredictionsForVehicle == null)
 			newPredictionsForVehicle = new ArrayList<IpcPrediction>();
 		
+		version.incrementAndGet();
+		
 		// Can have several predictions for a route/stop/dest for a vehicle if
 		// the route is a relatively short loop. And if have unscheduled
 		// trips then won't have a unique trip identifier. Therefore to
@@ -529,6 +607,17 @@ public class PredictionDataCache {
 				}
 			}
 		}
+		
+		// Keep the GTFS-realtime TripUpdates feed current
+		String vehicleId = null;
+		if (!newPredictionsForVehicle.isEmpty())
+			vehicleId = newPredictionsForVehicle.get(0).getVehicleId();
+		else if (oldPredictionsForVehicle != null
+				&& !oldPredictionsForVehicle.isEmpty())
+			vehicleId = oldPredictionsForVehicle.get(0).getVehicleId();
+		if (vehicleId != null)
+			GtfsRtTripUpdatesCache.getInstance().updatePredictions(vehicleId,
+					newPredictionsForVehicle);
 	}
 	
 	/**
@@ -615,15 +704,21 @@ public class PredictionDataCache {
 			predictionsForStop = predictionsMap.get(key);
 
 			if (predictionsForStop == null) {
-				// No predictions so return empty array instead of null
+				// No predictions so return empty array instead of null.
+				// Use a CopyOnWriteArrayList since destinations are rarely
+				// added but the list is frequently read without locking.
 				predictionsForStop = 
-						new ArrayList<IpcPredictionsForRouteStopDest>(1);
+						new CopyOnWriteArrayList<IpcPredictionsForRouteStopDest>();
 				
 				// Need to update the predictions map with the 
 				// predictionsForStop list for this route/stop so that
 				// when this list of predictions is updated it will be
-				// kept around.
-				predictionsMap.putIfAbsent(key, predictionsForStop);
+				// kept around. If another thread added a list first then
+				// use that one.
+				List<IpcPredictionsForRouteStopDest> existingPredictionsForStop =
+						predictionsMap.putIfAbsent(key, predictionsForStop);
+				if (existingPredictionsForStop != null)
+					predictionsForStop = existingPredictionsForStop;
 			}
 		} else {
 			// No route specified so get predictions for all routes for the stop
@@ -646,10 +741,6 @@ public class PredictionDataCache {
 	/**
 	 * Returns PredictionsForRouteStop object associated with the specified
 	 * route/stop/destination specified by the trip and stopId parameters.
-	 * <p>
-	 * The returned PredictionsForRouteStop objects needs to be synchronized
-	 * when predictions accessed. Otherwise might access temporarily corrupt
-	 * state when a prediction is being updated.
 	 * 
 	 * @param trip
 	 * @param stopId
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -87,6 +88,10 @@ public class VehicleDataCache {
     // So can determine how long since data was read from db
     private long dbReadTime;
     
+    // Incremented each time vehicle data changes so that users of the
+    // cache, such as feeds, can tell if they need to regenerate data
+    private final AtomicLong version = new AtomicLong();
+    
 	// For filtering out info more than MAX_AGE since it means that the AVL info is
 	// obsolete and shouldn't be displayed.
     private static final int MAX_AGE_MSEC = 15 * Time.MS_PER_MIN;
@@ -545,5 +550,17 @@ public class VehicleDataCache {
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
 		updateVehiclesMap(vehicle);
+		
+		version.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the version of the vehicle data in the cache. Incremented each
+	 * time updateVehicle() is called.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version.get();
 	}
 }
@@ -0,0 +1,278 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.schedBasedPreds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.db.structs.Block;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Time;
+
+/**
+ * For SchedBasedPredsModule so that it doesn't need to search through all of
+ * the blocks each polling cycle. For each service day the blocks are put into
+ * an agenda sorted by the time that they enter the window for creating a
+ * schedule based vehicle, which is transitime.schedBasedPreds.beforeStartTimeMinutes
+ * before the block start time. The module can then sleep until the next block
+ * enters its window and only needs to handle the blocks that just did.
+ * <p>
+ * A block stays active until it leaves the window, which is
+ * transitime.schedBasedPreds.afterStartTimeMinutes after the block start time
+ * or, if that is negative, the end time of the block. The agenda is extended
+ * as service days roll over and is rebuilt if the configuration changes.
+ * <p>
+ * Not thread safe. Only to be used by the SchedBasedPredsModule thread.
+ *
+ * @author SkiBu Smith
+ *
+ */
+class BlockStartAgenda {
+
+	private final int beforeStartTimeSecs;
+	private final int afterStartTimeSecs;
+
+	// Blocks that have not yet entered their window, sorted by when they will
+	private final PriorityQueue<Entry> upcoming = new PriorityQueue<Entry>();
+
+	// Blocks currently within their window
+	private final List<Entry> active = new ArrayList<Entry>();
+
+	// Start of the service days that have already been added to the agenda
+	private final Set<Long> serviceDaysAdded = new HashSet<Long>();
+
+	// So can rebuild the agenda if the configuration changes
+	private DbConfig dbConfig = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(BlockStartAgenda.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A block for a service day along with its window.
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private final Block block;
+		private final long windowStartTime;
+		private final long windowEndTime;
+
+		private Entry(Block block, long windowStartTime, long windowEndTime) {
+			this.block = block;
+			this.windowStartTime = windowStartTime;
+			this.windowEndTime = windowEndTime;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return windowStartTime < other.windowStartTime ? -1
+					: (windowStartTime > other.windowStartTime ? 1 : 0);
+		}
+	}
+
+	/**
+	 * @param beforeStartTimeSecs
+	 *            How long before the block start time the window starts
+	 * @param afterStartTimeSecs
+	 *            How long after the block start time the window ends. If
+	 *            negative then the window ends at the block end time.
+	 */
+	BlockStartAgenda(int beforeStartTimeSecs, int afterStartTimeSecs) {
+		this.beforeStartTimeSecs = beforeStartTimeSecs;
+		this.afterStartTimeSecs = afterStartTimeSecs;
+	}
+
+	/**
+	 * The configuration that the agenda is built from. The agenda is rebuilt
+	 * if this changes. Like the other methods for accessing the Core this is
+	 * package-private so that it can be overridden when testing.
+	 *
+	 * @return the configuration
+	 */
+	DbConfig getDbConfig() {
+		return Core.getInstance().getDbConfig();
+	}
+
+	/**
+	 * @return for converting between epoch times and times of day
+	 */
+	Time getTime() {
+		return Core.getInstance().getTime();
+	}
+
+	/**
+	 * @param serviceDayStart
+	 * @return the service IDs for the service day
+	 */
+	List<String> getServiceIdsForDay(long serviceDayStart) {
+		return Core.getInstance().getServiceUtils()
+				.getServiceIdsForDay(serviceDayStart);
+	}
+
+	/**
+	 * @param serviceId
+	 * @return the blocks for the service ID
+	 */
+	Collection<Block> getBlocks(String serviceId) {
+		return dbConfig.getBlocks(serviceId);
+	}
+
+	/**
+	 * Converts the time into the service day to an epoch time. The time can
+	 * be more than 24 hours for blocks that go past midnight. Uses a
+	 * reference time at noon of the proper day so that daylight savings time
+	 * is handled properly.
+	 *
+	 * @param time
+	 * @param serviceDayStart
+	 * @param secsIntoServiceDay
+	 * @return the epoch time
+	 */
+	private static long getEpochTime(Time time, long serviceDayStart,
+			int secsIntoServiceDay) {
+		long referenceTime = serviceDayStart
+				+ (secsIntoServiceDay / Time.SEC_PER_DAY) * Time.DAY_IN_MSECS
+				+ 12 * Time.HOUR_IN_MSECS;
+		return time.getEpochTime(secsIntoServiceDay, referenceTime);
+	}
+
+	/**
+	 * Adds the blocks for the service day to the agenda, unless it has
+	 * already been added. Blocks whose window has already ended are not
+	 * added.
+	 *
+	 * @param serviceDayStart
+	 * @param now
+	 */
+	private void addServiceDay(long serviceDayStart, long now) {
+		if (!serviceDaysAdded.add(serviceDayStart))
+			return;
+
+		Time time = getTime();
+		int blocksAdded = 0;
+		for (String serviceId : getServiceIdsForDay(serviceDayStart)) {
+			for (Block block : getBlocks(serviceId)) {
+				long startTime =
+						getEpochTime(time, serviceDayStart, block.getStartTime());
+				long windowEndTime = afterStartTimeSecs >= 0 ?
+						startTime + afterStartTimeSecs * Time.MS_PER_SEC
+						: getEpochTime(time, serviceDayStart,
+								block.getEndTime());
+				if (windowEndTime <= now)
+					continue;
+
+				upcoming.add(new Entry(block,
+						startTime - beforeStartTimeSecs * Time.MS_PER_SEC,
+						windowEndTime));
+				++blocksAdded;
+			}
+		}
+
+		logger.info("Added {} blocks for service day {} to the schedule "
+				+ "based predictions agenda.",
+				blocksAdded, Time.dateStr(serviceDayStart));
+	}
+
+	/**
+	 * Makes sure the agenda covers the previous, current, and next service
+	 * days, since a block from the previous day can still be active after
+	 * midnight and a block from the next day can enter its window before
+	 * midnight. Rebuilds the agenda if the configuration changed.
+	 *
+	 * @param now
+	 */
+	private void update(long now) {
+		DbConfig currentDbConfig = getDbConfig();
+		if (currentDbConfig != dbConfig) {
+			upcoming.clear();
+			active.clear();
+			serviceDaysAdded.clear();
+			dbConfig = currentDbConfig;
+		}
+
+		Time time = getTime();
+		long today = time.getStartOfDay(now);
+		addServiceDay(time.getStartOfDay(
+				today - 12 * Time.HOUR_IN_MSECS), now);
+		addServiceDay(today, now);
+		addServiceDay(time.getStartOfDay(
+				today + 36 * Time.HOUR_IN_MSECS), now);
+
+		// Don't need to remember days that are long past
+		Iterator<Long> iterator = serviceDaysAdded.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() < today - 2 * Time.DAY_IN_MSECS)
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Moves the blocks that have entered their window into the active list
+	 * and returns them. Also drops the active blocks whose window has ended.
+	 *
+	 * @param now
+	 * @return Blocks that just entered their window
+	 */
+	List<Block> getBlocksEnteringWindow(long now) {
+		update(now);
+
+		Iterator<Entry> iterator = active.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().windowEndTime <= now)
+				iterator.remove();
+		}
+
+		List<Block> blocks = new ArrayList<Block>();
+		while (!upcoming.isEmpty() && upcoming.peek().windowStartTime < now) {
+			Entry entry = upcoming.poll();
+			if (entry.windowEndTime <= now)
+				continue;
+			active.add(entry);
+			blocks.add(entry.block);
+		}
+		return blocks;
+	}
+
+	/**
+	 * @return All blocks currently within their window, as of the last call
+	 *         to getBlocksEnteringWindow()
+	 */
+	List<Block> getActiveBlocks() {
+		List<Block> blocks = new ArrayList<Block>(active.size());
+		for (Entry entry : active)
+			blocks.add(entry.block);
+		return blocks;
+	}
+
+	/**
+	 * @return Epoch time when the next block enters its window, or
+	 *         Long.MAX_VALUE if there are none in the agenda
+	 */
+	long getNextWindowStartTime() {
+		return upcoming.isEmpty() ?
+				Long.MAX_VALUE : upcoming.peek().windowStartTime;
+	}
+}
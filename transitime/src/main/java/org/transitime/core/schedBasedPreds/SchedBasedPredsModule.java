@@ -60,6 +60,13 @@ import org.transitime.utils.Time;
  * the block or the schedule based vehicle is timed out via TimeoutHandlerModule
  * due to it being transitime.timeout.allowableNoAvlForSchedBasedPredictions
  * after the scheduled departure time for the assignment.
+ * <p>
+ * If transitime.schedBasedPreds.useAgenda is set then instead of searching
+ * through the blocks every polling cycle a BlockStartAgenda is used. The
+ * module then wakes up when a block enters the window for creating a schedule
+ * based vehicle and handles just the blocks that did so. The blocks already
+ * within their window are still checked every polling cycle in case a vehicle
+ * assigned to one of them goes away.
  * 
  * @author SkiBu Smith
  *
@@ -94,6 +101,16 @@ public class SchedBasedPredsModule extends Module {
 					"How many minutes before a block start time should create "
 					+ "a schedule based vehicle for that block.");
 	
+	private static final BooleanConfigValue useAgenda =
+			new BooleanConfigValue("transitime.schedBasedPreds.useAgenda", 
+					false,
+					"If true then the blocks for each service day are sorted "
+					+ "by when they enter the window for creating a schedule "
+					+ "based vehicle and the module wakes up exactly when a "
+					+ "block does so, instead of searching through all the "
+					+ "blocks every polling cycle. Reduces CPU use for "
+					+ "agencies with many blocks.");
+	
 	private static IntegerConfigValue afterStartTimeMinutes =
 			new IntegerConfigValue(
 					"transitime.schedBasedPreds.afterStartTimeMinutes",
@@ -125,14 +142,12 @@ public class SchedBasedPredsModule extends Module {
 	}
 	
 	/**
-	 * Goes through all the blocks to find which ones don't have vehicles.
-	 * For those blocks create a schedule based vehicle with associated
-	 * predictions.
+	 * Determines all the block IDs already in use, including by schedule
+	 * based vehicles.
+	 * 
+	 * @return IDs of blocks that already have a vehicle
 	 */
-	private void createSchedBasedPredsAsNecessary() {
-		// Determine all the block IDs already in use so that can skip these
-		// when doing the somewhat expensive searching for currently active
-		// blocks.
+	private static Set<String> getBlockIdsAlreadyAssigned() {
 		Set<String> blockIdsAlreadyAssigned = new HashSet<String>();
 		Collection<IpcVehicleComplete> vehicles =
 				VehicleDataCache.getInstance()
@@ -142,6 +157,20 @@ public class SchedBasedPredsModule extends Module {
 			if (blockId != null)
 				blockIdsAlreadyAssigned.add(blockId);
 		}
+		return blockIdsAlreadyAssigned;
+	}
+	
+	/**
+	 * Goes through all the blocks to find which ones don't have vehicles.
+	 * For those blocks create a schedule based vehicle with associated
+	 * predictions. Public so that it can be called by an AVL replay that
+	 * uses a virtual clock.
+	 */
+	public static void createSchedBasedPredsAsNecessary() {
+		// Determine all the block IDs already in use so that can skip these
+		// when doing the somewhat expensive searching for currently active
+		// blocks.
+		Set<String> blockIdsAlreadyAssigned = getBlockIdsAlreadyAssigned();
 		
 		// Determine which blocks are coming up or currently active
 		List<Block> activeBlocks =
@@ -150,8 +179,47 @@ public class SchedBasedPredsModule extends Module {
 						beforeStartTimeMinutes.getValue() * Time.SEC_PER_MIN,
 						afterStartTimeMinutes.getValue() * Time.SEC_PER_MIN);
 		
+		createSchedBasedVehicles(activeBlocks, blockIdsAlreadyAssigned);
+	}
+	
+	/**
+	 * For the agenda mode. Creates schedule based vehicles for the blocks that
+	 * just entered their window. If checkAllActiveBlocks is set then also
+	 * does so for all of the blocks already within their window.
+	 * 
+	 * @param agenda
+	 * @param checkAllActiveBlocks
+	 */
+	private void createSchedBasedPredsUsingAgenda(BlockStartAgenda agenda,
+			boolean checkAllActiveBlocks) {
+		long now = Core.getInstance().getSystemTime();
+		List<Block> blocks = agenda.getBlocksEnteringWindow(now);
+		if (checkAllActiveBlocks)
+			blocks = agenda.getActiveBlocks();
+		if (blocks.isEmpty())
+			return;
+		
+		// Handle all the blocks as a single batch so that only need to 
+		// determine the assigned blocks once
+		createSchedBasedVehicles(blocks, getBlockIdsAlreadyAssigned());
+	}
+	
+	/**
+	 * Creates a schedule based vehicle for each of the blocks that doesn't
+	 * already have a vehicle.
+	 * 
+	 * @param blocks
+	 *            Blocks that are coming up or currently active
+	 * @param blockIdsAlreadyAssigned
+	 *            Blocks to skip
+	 */
+	private static void createSchedBasedVehicles(List<Block> blocks,
+			Set<String> blockIdsAlreadyAssigned) {
 		// For each block about to start see if no associated vehicle
-		for (Block block : activeBlocks) {
+		for (Block block : blocks) {
+			if (blockIdsAlreadyAssigned.contains(block.getId()))
+				continue;
+			
 			// Is there a vehicle associated with the block?
 			Collection<String> vehiclesForBlock = VehicleDataCache.getInstance()
 					.getVehiclesByBlockId(block.getId());
@@ -277,14 +345,23 @@ public class SchedBasedPredsModule extends Module {
 		if (!processImmediatelyAtStartup.getValue())
 			Time.sleep(timeBetweenPollingMsec.getValue());
 		
+		// If using an agenda then wake up whenever a block enters its window
+		if (useAgenda.getValue()) {
+			runUsingAgenda();
+			return;
+		}
+		
 		// Run forever
 		while (true) {
 			// For determining when to poll next
 			IntervalTimer timer = new IntervalTimer();
 
 			try {
-				// Do the actual work
-				createSchedBasedPredsAsNecessary();				
+				// Do the actual work. If replaying AVL data using a virtual
+				// clock then the replay does this itself at the proper 
+				// virtual times.
+				if (!Core.getInstance().isUsingVirtualClock())
+					createSchedBasedPredsAsNecessary();				
 			} catch (Exception e) {
 				logger.error(Markers.email(),
 						"Error with SchedBasedPredsModule for agencyId={}", 
@@ -298,5 +375,52 @@ public class SchedBasedPredsModule extends Module {
 				Time.sleep(sleepTime);
 		}
 	}
+	
+	/**
+	 * For when using a BlockStartAgenda. Wakes up when the next block enters
+	 * its window, but at least every polling cycle so that all of the active
+	 * blocks are checked and so that changes to the system time, such as for
+	 * playback, are handled.
+	 */
+	private void runUsingAgenda() {
+		BlockStartAgenda agenda = new BlockStartAgenda(
+				beforeStartTimeMinutes.getValue() * Time.SEC_PER_MIN,
+				afterStartTimeMinutes.getValue() * Time.SEC_PER_MIN);
+		long lastFullCheckTime = 0;
+		
+		// Run forever
+		while (true) {
+			IntervalTimer timer = new IntervalTimer();
+			long pollingMsec = timeBetweenPollingMsec.getValue();
+			
+			try {
+				boolean checkAllActiveBlocks = System.currentTimeMillis() 
+						>= lastFullCheckTime + pollingMsec;
+				if (checkAllActiveBlocks)
+					lastFullCheckTime = System.currentTimeMillis();
+				
+				if (!Core.getInstance().isUsingVirtualClock())
+					createSchedBasedPredsUsingAgenda(agenda, 
+							checkAllActiveBlocks);
+			} catch (Exception e) {
+				logger.error(Markers.email(),
+						"Error with SchedBasedPredsModule for agencyId={}", 
+						AgencyConfig.getAgencyId(), e);
+			}
+			
+			// Sleep until the next block enters its window, or until the
+			// next full check if that is sooner
+			long msecUntilNextBlock = agenda.getNextWindowStartTime()
+					- Core.getInstance().getSystemTime();
+			long msecUntilFullCheck = lastFullCheckTime + pollingMsec
+					- System.currentTimeMillis();
+			long sleepTime = Math.min(msecUntilNextBlock, msecUntilFullCheck);
+			
+			// Don't spin if processing took a while
+			sleepTime = Math.max(sleepTime, Time.MS_PER_SEC - timer.elapsedMsec());
+			if (sleepTime > 0)
+				Time.sleep(sleepTime);
+		}
+	}
 
 }
@@ -21,8 +21,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.slf4j.Logger;
@@ -38,6 +40,12 @@ import org.transitime.utils.Time;
 /**
  * For retrieving historic AVL based data from database so that travel times can
  * be determined.
+ * <p>
+ * So that memory use is bounded the data is intended to be read in and
+ * processed one service day at a time, using getEndOfServiceDay() to
+ * determine the time range. Since the data is grouped by service day all
+ * of the data for a vehicle trip is then read in together. Within the time
+ * range the data is read in pages using keyset pagination on the time.
  * 
  * @author SkiBu Smith
  * 
@@ -53,7 +61,9 @@ public class DataFetcher {
 
 //	private Map<String, Calendar> gtfsCalendars = null;
 	
-	private java.util.Calendar calendar = null;
+	// So that dayOfYear() can be called from multiple threads when the
+	// data is being processed in parallel each thread gets its own calendar
+	private final ThreadLocal<java.util.Calendar> calendar;
 	
 //	private List<Integer> specialDaysOfWeek = null;
 
@@ -77,8 +87,13 @@ public class DataFetcher {
 		// agency. Use the currently active config rev.
 		int configRev = ActiveRevisions.get(dbName).getConfigRev();
 		List<Agency> agencies = Agency.getAgencies(dbName, configRev);
-		TimeZone timezone = agencies.get(0).getTimeZone();
-		calendar = new GregorianCalendar(timezone);		
+		final TimeZone timezone = agencies.get(0).getTimeZone();
+		calendar = new ThreadLocal<java.util.Calendar>() {
+			@Override
+			protected java.util.Calendar initialValue() {
+				return new GregorianCalendar(timezone);
+			}
+		};
 	}
 	
 	/**
@@ -94,10 +109,35 @@ public class DataFetcher {
 		// trips that span midnight. But this doesn't work for trips that
 		// span 3am.
 		Date adjustedDate = new Date(date.getTime()-3*Time.MS_PER_HOUR);
+		java.util.Calendar calendar = this.calendar.get();
 		calendar.setTime(adjustedDate);
 		return calendar.get(java.util.Calendar.DAY_OF_YEAR);
 	}
 	
+	/**
+	 * Returns the end of the service day for the specified date. This is
+	 * the boundary used by dayOfYear() so all of the data for a service day,
+	 * and therefore all the data for a vehicle trip, is before the returned 
+	 * time. This way data can be read in and processed one service day at
+	 * a time.
+	 * 
+	 * @param date
+	 * @return the end of the service day
+	 */
+	public Date getEndOfServiceDay(Date date) {
+		// Determine beginning of the next day for the adjusted date
+		java.util.Calendar calendar = this.calendar.get();
+		calendar.setTime(new Date(date.getTime()-3*Time.MS_PER_HOUR));
+		calendar.set(java.util.Calendar.HOUR_OF_DAY, 0);
+		calendar.set(java.util.Calendar.MINUTE, 0);
+		calendar.set(java.util.Calendar.SECOND, 0);
+		calendar.set(java.util.Calendar.MILLISECOND, 0);
+		calendar.add(java.util.Calendar.DAY_OF_YEAR, 1);
+		
+		// Undo the adjustment
+		return new Date(calendar.getTimeInMillis() + 3*Time.MS_PER_HOUR);
+	}
+	
 //	/**
 //	 * NOTE: Deprecated because haven't yet figured out how to deal with special
 //	 * days of the week.
@@ -213,6 +253,87 @@ public class DataFetcher {
 		list.add(arrDep);
 	}
 	
+	/**
+	 * For reading a page of data from the db when using keyset pagination.
+	 */
+	private interface PageReader<T> {
+		/**
+		 * Reads in up to maxResults rows, ordered by time, starting at
+		 * pageBeginTime.
+		 */
+		List<T> read(Date pageBeginTime, int maxResults);
+		
+		/**
+		 * Returns the time of the row, which is what the rows are ordered by.
+		 */
+		long getTime(T row);
+	}
+	
+	/**
+	 * Reads in all the data for the time range using keyset pagination.
+	 * Instead of using an offset, which makes the db skip through all the 
+	 * previous rows and gets slower and slower for each page, each page 
+	 * starts at the time of the last row of the previous page. Since several 
+	 * rows can have the same time the rows at the boundary time are 
+	 * remembered so that they are not added twice.
+	 * 
+	 * @param reader
+	 *            For actually reading a page of data
+	 * @param beginTime
+	 * @param batchSize
+	 *            Max number of rows per page
+	 * @param description
+	 *            For logging
+	 * @return All of the rows
+	 */
+	private static <T> List<T> readUsingKeysetPagination(PageReader<T> reader,
+			Date beginTime, int batchSize, String description) {
+		List<T> results = new ArrayList<T>();
+		
+		// The rows with time equal to pageBeginTime that have already been
+		// added to the results
+		Set<T> rowsAtPageBeginTime = new HashSet<T>();
+		
+		Date pageBeginTime = beginTime;
+		boolean morePages;
+		do {
+			List<T> batchList = reader.read(pageBeginTime, batchSize);
+			if (batchList == null)
+				throw new RuntimeException("Could not read " + description 
+						+ " from database.");
+			
+			for (T row : batchList) {
+				if (reader.getTime(row) != pageBeginTime.getTime()
+						|| !rowsAtPageBeginTime.contains(row))
+					results.add(row);
+			}
+			
+			// If got a full page then there is likely more data
+			morePages = batchList.size() == batchSize;
+			if (morePages) {
+				long lastTime = reader.getTime(batchList.get(batchSize - 1));
+				if (lastTime == pageBeginTime.getTime()) {
+					// All of the rows in the page have the same time so 
+					// can't make progress. Read a larger page instead.
+					batchSize *= 2;
+				} else {
+					rowsAtPageBeginTime.clear();
+					pageBeginTime = new Date(lastTime);
+				}
+				
+				// Remember rows at the new page begin time so that they 
+				// are not added again
+				for (int i = batchList.size() - 1; i >= 0
+						&& reader.getTime(batchList.get(i)) == lastTime; --i)
+					rowsAtPageBeginTime.add(batchList.get(i));
+			}
+
+			logger.info("Read in total of {} {}", results.size(), description); 
+		} while (morePages);
+
+		return results;
+	}
+	
 	/**
 	 * Reads arrivals/departures from db into so can be processed.
 	 * 
@@ -222,43 +343,42 @@ public class DataFetcher {
 	 * @return
 	 */
 	public Map<DbDataMapKey, List<ArrivalDeparture>> readArrivalsDepartures(
-			String dbName, Date beginTime, Date endTime) {
+			final String dbName, Date beginTime, final Date endTime) {
 		IntervalTimer timer = new IntervalTimer();
 
 		// For returning the results
 		Map<DbDataMapKey, List<ArrivalDeparture>> resultsMap = 
 				new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
 		
-		// For keeping track of which rows should be returned by the batch.
-		int firstResult = 0;
 		// Batch size of 50k found to be significantly faster than 10k,
 		// by about a factor of 2. Since sometimes using really large
 		// batches of data using 500k
 		int batchSize = 500000;  // Also known as maxResults
-		// The temporary list for the loop that contains a batch of results
-		List<ArrivalDeparture> arrDepBatchList;
-		// Read in batch of 50k rows of data and process it
-		do {				
-			arrDepBatchList = ArrivalDeparture.getArrivalsDeparturesFromDb(
-					dbName, 
-					beginTime, endTime, 
-					// Order results by time so that process them in the same
-					// way that a vehicle travels.
-					"ORDER BY time", // SQL clause
-					firstResult, batchSize,
-					null); // arrivalOrDeparture. Null means read in both
-			
-			// Add arrivals/departures to map
-			for (ArrivalDeparture arrDep : arrDepBatchList) {
-				addArrivalDepartureToMap(resultsMap, arrDep);
-			}
-			
-			logger.info("Read in total of {} arrival/departures", 
-					firstResult+arrDepBatchList.size());
-			
-			// Update firstResult for reading next batch of data
-			firstResult += batchSize;
-		} while (arrDepBatchList.size() == batchSize);
+		List<ArrivalDeparture> arrDeps = readUsingKeysetPagination(
+				new PageReader<ArrivalDeparture>() {
+					@Override
+					public List<ArrivalDeparture> read(Date pageBeginTime,
+							int maxResults) {
+						return ArrivalDeparture.getArrivalsDeparturesFromDb(
+								dbName, 
+								pageBeginTime, endTime, 
+								// Order results by time so that process them 
+								// in the same way that a vehicle travels.
+								"ORDER BY time", // SQL clause
+								0, maxResults,
+								null); // arrivalOrDeparture. Null means both
+					}
+
+					@Override
+					public long getTime(ArrivalDeparture arrDep) {
+						return arrDep.getTime();
+					}
+				}, beginTime, batchSize, "arrival/departures");
+
+		// Add arrivals/departures to map
+		for (ArrivalDeparture arrDep : arrDeps) {
+			addArrivalDepartureToMap(resultsMap, arrDep);
+		}
 
 		logger.info("Reading arrival/departures took {} msec", 
 				timer.elapsedMsec());
@@ -293,44 +413,44 @@ public class DataFetcher {
 	 * @return
 	 */
 	private Map<DbDataMapKey, List<Match>> readMatches(
-			String projectId, Date beginTime, Date endTime) {
+			final String projectId, Date beginTime, final Date endTime) {
 		IntervalTimer timer = new IntervalTimer();
 		
 		// For returning the results
 		Map<DbDataMapKey, List<Match>> resultsMap = 
 				new HashMap<DbDataMapKey, List<Match>>();
 		
-		// For keeping track of which rows should be returned by the batch.
-		int firstResult = 0;
 		// Batch size of 50k found to be significantly faster than 10k,
 		// by about a factor of 2.  Since sometimes using really large
 		// batches of data using 500k
 		int batchSize = 500000;  // Also known as maxResults
-		// The temporary list for the loop that contains a batch of results
-		List<Match> matchBatchList;
-		// Read in batch of 50k rows of data and process it
-		do {				
-			matchBatchList = Match.getMatchesFromDb(
-					projectId, 
-					beginTime, endTime, 
-					// Only want matches that are not at a stop since for that
-					// situation instead using arrivals/departures. 
-					// Order results by time so that process them in the same
-					// way that a vehicle travels.
-					"AND atStop = false ORDER BY avlTime", // SQL clause
-					firstResult, batchSize);
-			
-			// Add arrivals/departures to map
-			for (Match match : matchBatchList) {
-				addMatchToMap(resultsMap, match);
-			}
-			
-			logger.info("Read in total of {} matches", 
-					firstResult+matchBatchList.size());
-			
-			// Update firstResult for reading next batch of data
-			firstResult += batchSize;
-		} while (matchBatchList.size() == batchSize);
+		List<Match> matches = readUsingKeysetPagination(
+				new PageReader<Match>() {
+					@Override
+					public List<Match> read(Date pageBeginTime, 
+							int maxResults) {
+						return Match.getMatchesFromDb(
+								projectId, 
+								pageBeginTime, endTime, 
+								// Only want matches that are not at a stop 
+								// since for that situation instead using 
+								// arrivals/departures. Order results by time 
+								// so that process them in the same way that a
+								// vehicle travels.
+								"AND atStop = false ORDER BY avlTime", 
+								0, maxResults);
+					}
+
+					@Override
+					public long getTime(Match match) {
+						return match.getTime();
+					}
+				}, beginTime, batchSize, "matches");
+
+		// Add matches to map
+		for (Match match : matches) {
+			addMatchToMap(resultsMap, match);
+		}
 
 		logger.info("Reading matches took {} msec", timer.elapsedMsec());
 
@@ -340,7 +460,10 @@ public class DataFetcher {
 
 	/**
 	 * Reads arrival/departure times and matches from the db and puts the
-	 * data into the arrivalDepartureMap and matchesMap members.
+	 * data into the arrivalDepartureMap and matchesMap members. Any data
+	 * previously read in is replaced. To keep memory use bounded the time
+	 * range should be a single service day, as determined by
+	 * getEndOfServiceDay().
 	 * 
 	 * @param agencyId
 	 * @param beginTime
@@ -0,0 +1,437 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.travelTimes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringConfigValue;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.MapKey;
+import org.transitime.utils.Time;
+import org.transitime.utils.Timer;
+
+/**
+ * Keeps track of how vehicles are currently traveling compared to the
+ * historic travel times so that predictions can react to current conditions,
+ * such as a traffic incident, instead of having to wait for the travel times
+ * to be updated by the UpdateTravelTimes application.
+ * <p>
+ * Each time a vehicle departs a stop and then arrives at the next stop the
+ * actual travel time for the stop path is compared to the historic travel
+ * time for the trip. The ratio of the two is kept as an exponentially
+ * weighted moving average per trip pattern and stop path. Using a ratio
+ * means that an observation from one trip can be applied to the other trips
+ * of the trip pattern even though their historic travel times differ. The
+ * ratio is only used if it was updated recently so that old observations
+ * don't affect predictions. Memory use is bounded since there is at most one
+ * entry per stop path, and stale entries are removed.
+ * <p>
+ * If transitime.travelTimes.onlineCheckpointFile is set then the estimates
+ * are periodically written to a file and are read back in at startup so
+ * that they are not lost when the core system is restarted.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class OnlineTravelTimes {
+
+	// Keyed on trip pattern ID and stop path index. A ConcurrentMap so that
+	// the estimates can be updated atomically by multiple AVL threads.
+	private final ConcurrentMap<StopPathKey, Estimate> estimates =
+			new ConcurrentHashMap<StopPathKey, Estimate>();
+
+	// The last departure for each vehicle so that when the vehicle arrives at
+	// the next stop the travel time for the stop path can be determined.
+	// Keyed on vehicle ID.
+	private final Map<String, ArrivalDeparture> lastDepartures =
+			new ConcurrentHashMap<String, ArrivalDeparture>();
+
+	// Volatile since getInstance() uses double checked locking. This way
+	// don't need to synchronize every time travel times are determined.
+	private static volatile OnlineTravelTimes singleton = null;
+
+	// The ratio of actual to historic travel times is limited to this range
+	// so that a bad arrival or departure time doesn't wildly affect the
+	// predictions.
+	private static final double MIN_RATIO = 0.5;
+	private static final double MAX_RATIO = 3.0;
+
+	private static BooleanConfigValue enabled =
+			new BooleanConfigValue("transitime.travelTimes.online.enabled",
+					false,
+					"If true then the travel times used for predictions are "
+					+ "adjusted using how vehicles have recently actually "
+					+ "traveled compared to the historic travel times.");
+
+	private static DoubleConfigValue smoothingFactor =
+			new DoubleConfigValue(
+					"transitime.travelTimes.online.smoothingFactor",
+					0.3,
+					"Weight, from 0.0 to 1.0, of a new observation in the "
+					+ "exponentially weighted moving average of how vehicles "
+					+ "are currently traveling. Larger values react more "
+					+ "quickly but are noisier.");
+
+	private static IntegerConfigValue minObservations =
+			new IntegerConfigValue(
+					"transitime.travelTimes.online.minObservations",
+					2,
+					"Number of recent observations needed for a stop path "
+					+ "before its travel time is adjusted.");
+
+	private static IntegerConfigValue maxAgeMinutes =
+			new IntegerConfigValue(
+					"transitime.travelTimes.online.maxAgeMinutes",
+					30,
+					"If a stop path hasn't been traveled for this many "
+					+ "minutes then its historic travel time is used "
+					+ "unadjusted.");
+
+	private static StringConfigValue checkpointFile =
+			new StringConfigValue(
+					"transitime.travelTimes.onlineCheckpointFile",
+					"File where the current travel time estimates are "
+					+ "periodically written so that they are not lost when "
+					+ "the core system is restarted. If not set then the "
+					+ "estimates are not checkpointed.");
+
+	private static IntegerConfigValue checkpointIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.travelTimes.online.checkpointIntervalSecs",
+					60,
+					"How frequently the travel time estimates are written to "
+					+ "the checkpoint file.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(OnlineTravelTimes.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * For keying the estimates on trip pattern and stop path.
+	 */
+	private static class StopPathKey extends MapKey {
+		private StopPathKey(String tripPatternId, int stopPathIndex) {
+			super(tripPatternId, stopPathIndex);
+		}
+
+		private String getTripPatternId() {
+			return (String) o1;
+		}
+
+		private int getStopPathIndex() {
+			return (int) o2;
+		}
+
+		@Override
+		public String toString() {
+			return "StopPathKey ["
+					+ "tripPatternId=" + o1
+					+ ", stopPathIndex=" + o2 + "]";
+		}
+	}
+
+	/**
+	 * The current estimate for a stop path. Immutable so that it can be read
+	 * without synchronization.
+	 */
+	private static class Estimate {
+		private final double ratio;
+		private final int observations;
+		private final long lastUpdateTime;
+
+		private Estimate(double ratio, int observations, long lastUpdateTime) {
+			this.ratio = ratio;
+			this.observations = observations;
+			this.lastUpdateTime = lastUpdateTime;
+		}
+	}
+
+	/**
+	 * Returns the singleton, creating it if necessary. Reads in the
+	 * checkpoint file when first created.
+	 *
+	 * @return the singleton
+	 */
+	public static OnlineTravelTimes getInstance() {
+		if (singleton == null) {
+			synchronized (OnlineTravelTimes.class) {
+				if (singleton == null)
+					singleton = new OnlineTravelTimes();
+			}
+		}
+		return singleton;
+	}
+
+	/**
+	 * Constructor declared private because singleton class. Reads in the
+	 * checkpoint and starts the timer for writing it.
+	 */
+	private OnlineTravelTimes() {
+		if (checkpointFile.getValue() == null)
+			return;
+
+		readCheckpoint();
+
+		Timer.get().scheduleAtFixedRate(
+				// Call writeCheckpoint() using anonymous class
+				new Runnable() {
+					public void run() {
+						writeCheckpoint();
+					}
+				}, checkpointIntervalSecs.getValue(),
+				checkpointIntervalSecs.getValue(), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return true if transitime.travelTimes.online.enabled is set
+	 */
+	public static boolean isEnabled() {
+		return enabled.getValue();
+	}
+
+	/**
+	 * @return the current time, which is the AVL time when in playback mode
+	 */
+	private static long now() {
+		return Core.getInstance().getSystemTime();
+	}
+
+	/**
+	 * Returns true if the estimate is recent enough to be used.
+	 *
+	 * @param estimate
+	 * @param now
+	 * @return true if not stale
+	 */
+	private static boolean isCurrent(Estimate estimate, long now) {
+		return now - estimate.lastUpdateTime
+				<= maxAgeMinutes.getValue() * Time.MS_PER_MIN;
+	}
+
+	/**
+	 * Called for each new arrival/departure. Departures are remembered for
+	 * the vehicle. For an arrival, if the previous departure for the vehicle
+	 * was from the previous stop of the same trip, then the actual travel
+	 * time for the stop path is used to update the estimate.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public void handleArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		String vehicleId = arrivalDeparture.getVehicleId();
+		if (arrivalDeparture.isDeparture()) {
+			lastDepartures.put(vehicleId, arrivalDeparture);
+			return;
+		}
+
+		// It is an arrival. Make sure have departure from the previous stop
+		// of the same trip.
+		ArrivalDeparture departure = lastDepartures.remove(vehicleId);
+		if (departure == null
+				|| departure.getBlock() != arrivalDeparture.getBlock()
+				|| departure.getTripIndex() != arrivalDeparture.getTripIndex()
+				|| departure.getStopPathIndex() + 1
+						!= arrivalDeparture.getStopPathIndex())
+			return;
+
+		// Determine the historic travel time for the stop path
+		Trip trip = arrivalDeparture.getBlock().getTrip(
+				arrivalDeparture.getTripIndex());
+		if (trip == null)
+			return;
+		TravelTimesForStopPath travelTimesForStopPath = trip
+				.getTravelTimesForStopPath(arrivalDeparture.getStopPathIndex());
+		if (travelTimesForStopPath == null)
+			return;
+		int historicTravelTimeMsec =
+				travelTimesForStopPath.getStopPathTravelTimeMsec();
+		if (historicTravelTimeMsec <= 0)
+			return;
+
+		// Determine how actual travel time compares to the historic one
+		long actualTravelTimeMsec =
+				arrivalDeparture.getTime() - departure.getTime();
+		double ratio = (double) actualTravelTimeMsec / historicTravelTimeMsec;
+		ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio));
+
+		// Update the moving average. If the previous estimate is stale then
+		// start over. Vehicles on other AVL threads can finish the same stop
+		// path at the same time so only replace the estimate if it hasn't
+		// changed since it was read. Otherwise try again with the new one
+		// so that no observation is lost.
+		long now = now();
+		StopPathKey key = new StopPathKey(trip.getTripPattern().getId(),
+				arrivalDeparture.getStopPathIndex());
+		Estimate estimate;
+		boolean updated;
+		do {
+			Estimate previous = estimates.get(key);
+			if (previous == null || !isCurrent(previous, now)) {
+				estimate = new Estimate(ratio, 1, now);
+			} else {
+				double alpha = smoothingFactor.getValue();
+				estimate = new Estimate(
+						alpha * ratio + (1.0 - alpha) * previous.ratio,
+						previous.observations + 1, now);
+			}
+			updated = previous == null ? 
+					estimates.putIfAbsent(key, estimate) == null
+					: estimates.replace(key, previous, estimate);
+		} while (!updated);
+
+		logger.debug("For vehicleId={} and {} actual travel time={} msec and "
+				+ "historic travel time={} msec so ratio now {}", vehicleId, 
+				key, actualTravelTimeMsec, historicTravelTimeMsec, 
+				estimate.ratio);
+	}
+
+	/**
+	 * Returns the factor that the historic travel times for the stop path
+	 * should be multiplied by to reflect how vehicles are currently
+	 * traveling. Returns 1.0 if not enabled or if there is not enough
+	 * recent data for the stop path.
+	 *
+	 * @param trip
+	 * @param stopPathIndex
+	 * @return the factor to multiply historic travel times by
+	 */
+	public double getTravelTimeRatio(Trip trip, int stopPathIndex) {
+		if (!isEnabled())
+			return 1.0;
+
+		Estimate estimate = estimates.get(
+				new StopPathKey(trip.getTripPattern().getId(), stopPathIndex));
+		if (estimate == null
+				|| estimate.observations < minObservations.getValue()
+				|| !isCurrent(estimate, now()))
+			return 1.0;
+
+		return estimate.ratio;
+	}
+
+	/**
+	 * Removes stale estimates so that memory isn't used for stop paths that
+	 * are not currently being traveled. An estimate is only removed if it
+	 * hasn't just been updated by an AVL thread.
+	 */
+	private void removeStaleEstimates() {
+		long now = now();
+		for (Map.Entry<StopPathKey, Estimate> entry : estimates.entrySet()) {
+			if (!isCurrent(entry.getValue(), now))
+				estimates.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes the current estimates to the checkpoint file. First writes to a
+	 * temporary file that is then renamed so that a partially written file is
+	 * never read. Also removes stale estimates. Errors are logged but not
+	 * thrown since the checkpoint is only an optimization.
+	 */
+	private void writeCheckpoint() {
+		removeStaleEstimates();
+
+		File file = new File(checkpointFile.getValue());
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				for (Map.Entry<StopPathKey, Estimate> entry : 
+						estimates.entrySet()) {
+					out.writeBoolean(true);
+					out.writeUTF(entry.getKey().getTripPatternId());
+					out.writeInt(entry.getKey().getStopPathIndex());
+					out.writeDouble(entry.getValue().ratio);
+					out.writeInt(entry.getValue().observations);
+					out.writeLong(entry.getValue().lastUpdateTime);
+				}
+				// Mark the end of the estimates
+				out.writeBoolean(false);
+			} finally {
+				out.close();
+			}
+
+			if (!tmpFile.renameTo(file)) {
+				// Rename can fail on some systems if file already exists
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Could not rename " + tmpFile
+							+ " to " + file);
+			}
+
+			logger.debug("Wrote {} online travel time estimates to {}",
+					estimates.size(), file);
+		} catch (Exception e) {
+			logger.error("Could not write online travel times checkpoint "
+					+ "file {}. {}", file, e.getMessage(), e);
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Reads in the estimates from the checkpoint file, if there is one.
+	 * Stale estimates are ignored.
+	 */
+	private void readCheckpoint() {
+		File file = new File(checkpointFile.getValue());
+		if (!file.exists())
+			return;
+
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (in.readBoolean()) {
+					StopPathKey key = 
+							new StopPathKey(in.readUTF(), in.readInt());
+					Estimate estimate = new Estimate(in.readDouble(), 
+							in.readInt(), in.readLong());
+					estimates.put(key, estimate);
+				}
+			} finally {
+				in.close();
+			}
+			removeStaleEstimates();
+
+			logger.info("Read {} current online travel time estimates from {}",
+					estimates.size(), file);
+		} catch (Exception e) {
+			logger.error("Could not read online travel times checkpoint file "
+					+ "{}. {}", file, e.getMessage(), e);
+		}
+	}
+}
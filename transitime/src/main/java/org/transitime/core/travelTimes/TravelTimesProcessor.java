@@ -25,11 +25,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.TemporalDifference;
 import org.transitime.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -57,6 +61,12 @@ import com.amazonaws.services.importexport.model.InvalidParameterException;
  * get greater accuracy (assuming that buses might consistently travel
  * differently on Monday compared to Friday even though they have the same
  * service ID.
+ * <p>
+ * If transitime.travelTimes.processingThreads is greater than 1 then the
+ * trips are aggregated, and the stop paths averaged, in parallel using a
+ * fork-join pool. Each partition of trips is aggregated into its own maps
+ * which are then merged in order, so the results are the same as when
+ * processing sequentially.
  *
  * @author SkiBu Smith
  *
@@ -137,6 +147,20 @@ public class TravelTimesProcessor {
 					+ "to make sure that don't get invalid travel times due to "
 					+ "bad data.");
 	
+	private static IntegerConfigValue processingThreads =
+			new IntegerConfigValue("transitime.travelTimes.processingThreads",
+					1,
+					"Number of threads to use for processing the historic "
+					+ "data into travel times. If greater than 1 then the "
+					+ "trips and stop paths are processed in parallel using "
+					+ "a fork-join pool. Can greatly speed up processing on "
+					+ "a machine with many cores.");
+	
+	// For parallel processing. The number of trips or stop paths that are
+	// processed by a single task without further splitting.
+	private final static int TRIPS_PER_TASK = 500;
+	private final static int STOP_PATHS_PER_TASK = 500;
+	
 	// The aggregate data processed from the historic db data.
 	// ProcessedDataMapKey combines tripId and stopPathIndex in 
 	// order to combine data for a particular tripId and stopPathIndex.
@@ -201,39 +225,102 @@ public class TravelTimesProcessor {
 	}
 
 	/**
-	 * Adds stop times for a stop path for a single trip to the stopTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param stopTimeMsec
+	 * The stop times and travel times aggregated from the historic data. When
+	 * processing sequentially this simply wraps the stopTimesMap and
+	 * travelTimesMap members. When processing in parallel each partition of
+	 * trips is aggregated into its own ProcessedDataMaps which are then
+	 * merged.
 	 */
-	private static void addStopTimeToMap(ProcessedDataMapKey mapKey,
-			int stopTimeMsec) {
-		List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
-		if (stopTimesForStop == null) {
-			stopTimesForStop = new ArrayList<Integer>();
-			stopTimesMap.put(mapKey, stopTimesForStop);
-		}
-		stopTimesForStop.add(stopTimeMsec);
+	private static class ProcessedDataMaps {
+		private final Map<ProcessedDataMapKey, List<Integer>> stopTimesMap;
+		private final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap;
+		
+		private ProcessedDataMaps() {
+			this(new HashMap<ProcessedDataMapKey, List<Integer>>(), 
+					new HashMap<ProcessedDataMapKey, List<List<Integer>>>());
+		}
+		
+		private ProcessedDataMaps(
+				Map<ProcessedDataMapKey, List<Integer>> stopTimesMap,
+				Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap) {
+			this.stopTimesMap = stopTimesMap;
+			this.travelTimesMap = travelTimesMap;
+		}
+		
+		/**
+		 * Adds stop times for a stop path for a single trip to the 
+		 * stopTimesMap.
+		 * 
+		 * @param mapKey
+		 * @param stopTimeMsec
+		 */
+		private void addStopTime(ProcessedDataMapKey mapKey, int stopTimeMsec) {
+			List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
+			if (stopTimesForStop == null) {
+				stopTimesForStop = new ArrayList<Integer>();
+				stopTimesMap.put(mapKey, stopTimesForStop);
+			}
+			stopTimesForStop.add(stopTimeMsec);
+		}
+		
+		/**
+		 * Adds travel times for stop path for a single trip to the 
+		 * travelTimesMap.
+		 * 
+		 * @param mapKey
+		 * @param travelTimesForStopPath
+		 */
+		private void addTravelTimes(ProcessedDataMapKey mapKey, 
+				List<Integer> travelTimesForStopPath) {
+			// If there is no data then simply return
+			if (travelTimesForStopPath == null 
+					|| travelTimesForStopPath.isEmpty())
+				return;
+			
+			List<List<Integer>> travelTimesForStop = travelTimesMap.get(mapKey);
+			if (travelTimesForStop == null) {
+				travelTimesForStop = new ArrayList<List<Integer>>();
+				travelTimesMap.put(mapKey, travelTimesForStop);
+			}
+			travelTimesForStop.add(travelTimesForStopPath);
+		}
+		
+		/**
+		 * Appends all of the data from other to this object. Since the data
+		 * is appended the order of the data is the same as if it had been
+		 * aggregated sequentially.
+		 * 
+		 * @param other
+		 */
+		private void addAll(ProcessedDataMaps other) {
+			for (Map.Entry<ProcessedDataMapKey, List<Integer>> entry : 
+					other.stopTimesMap.entrySet()) {
+				List<Integer> stopTimesForStop = stopTimesMap.get(entry.getKey());
+				if (stopTimesForStop == null)
+					stopTimesMap.put(entry.getKey(), entry.getValue());
+				else
+					stopTimesForStop.addAll(entry.getValue());
+			}
+			for (Map.Entry<ProcessedDataMapKey, List<List<Integer>>> entry : 
+					other.travelTimesMap.entrySet()) {
+				List<List<Integer>> travelTimesForStop =
+						travelTimesMap.get(entry.getKey());
+				if (travelTimesForStop == null)
+					travelTimesMap.put(entry.getKey(), entry.getValue());
+				else
+					travelTimesForStop.addAll(entry.getValue());
+			}
+		}
 	}
 	
 	/**
-	 * Adds travel times for stop path for a single trip to the travelTimesMap.
+	 * Returns number of threads to use for processing. If 1 then data is
+	 * processed sequentially.
 	 * 
-	 * @param mapKey
-	 * @param travelTimesForStopPath
+	 * @return number of threads
 	 */
-	private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
-			List<Integer> travelTimesForStopPath) {
-		// If there is no data then simply return
-		if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty())
-			return;
-		
-		List<List<Integer>> travelTimesForStop = travelTimesMap.get(mapKey);
-		if (travelTimesForStop == null) {
-			travelTimesForStop = new ArrayList<List<Integer>>();
-			travelTimesMap.put(mapKey, travelTimesForStop);
-		}
-		travelTimesForStop.add(travelTimesForStopPath);
+	private static int getProcessingThreads() {
+		return Math.max(processingThreads.getValue(), 1);
 	}
 	
 	/**
@@ -253,8 +340,11 @@ public class TravelTimesProcessor {
 	 * adherence isn't too bad adds the stop time to the stop wait map.
 	 * 
 	 * @param arrDep
+	 * @param maps
+	 *            Where the stop time is put
 	 */
-	private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+	private static void processFirstStopOfTrip(ArrivalDeparture arrDep,
+			ProcessedDataMaps maps) {
 		// Only need to handle departure for first stop in trip
 		if (arrDep.getStopPathIndex() != 0) 
 			return;
@@ -287,7 +377,7 @@ public class TravelTimesProcessor {
 						arrDep.getStopId());
 
 		// Add this stop time to map so it can be averaged
-		addStopTimeToMap(mapKeyForTravelTimes, lateTimeMsec);		
+		maps.addStopTime(mapKeyForTravelTimes, lateTimeMsec);		
 	}
 	
 	/**
@@ -662,10 +752,12 @@ public class TravelTimesProcessor {
 	 *            The first arrival/departure
 	 * @param arrDep2
 	 *            The second arrival/departure
+	 * @param maps
+	 *            Where the stop and travel times are put
 	 */
 	private void processDataBetweenTwoArrivalDepartures(
 			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
-			ArrivalDeparture arrDep2) {
+			ArrivalDeparture arrDep2, ProcessedDataMaps maps) {
 		// If schedule adherence is really far off then ignore the data
 		// point because it would skew the results.
 		TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -692,7 +784,7 @@ public class TravelTimesProcessor {
 			int dwellTimeMsec = (int) (arrDep2.getTime() - arrDep1.getTime());
 
 			// Add this stop time to map so it can be averaged
-			addStopTimeToMap(mapKeyForTravelTimes, dwellTimeMsec);		
+			maps.addStopTime(mapKeyForTravelTimes, dwellTimeMsec);		
 
 			return;
 		}
@@ -706,7 +798,7 @@ public class TravelTimesProcessor {
 			List<Integer> travelTimesForStopPath = 
 					determineTravelTimesForStopPath(dataFetcher, arrDep1, 
 							arrDep2);
-			addTravelTimesToMap(mapKeyForTravelTimes, travelTimesForStopPath);
+			maps.addTravelTimes(mapKeyForTravelTimes, travelTimesForStopPath);
 				
 			return;
 		}
@@ -720,9 +812,11 @@ public class TravelTimesProcessor {
 	 *            Contains arrival/departures and matches fetched from database
 	 * @param arrDepList
 	 *            List of ArrivalDepartures for vehicle for a trip
+	 * @param maps
+	 *            Where the stop and travel times are put
 	 */
 	private void aggregateTripDataIntoMaps(DataFetcher dataFetcher,
-			List<ArrivalDeparture> arrDepList) {
+			List<ArrivalDeparture> arrDepList, ProcessedDataMaps maps) {
 		
 		for (int i=0; i<arrDepList.size()-1; ++i) {
 			ArrivalDeparture arrDep1 = arrDepList.get(i);
@@ -735,14 +829,65 @@ public class TravelTimesProcessor {
 					continue;
 
 				// Handle first stop
-				processFirstStopOfTrip(arrDep1);
+				processFirstStopOfTrip(arrDep1, maps);
 			} 
 			
 			// Deal with normal travel times
 			ArrivalDeparture arrDep2 = arrDepList.get(i+1);				
-			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);							
+			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2,
+					maps);
 		}		
 	}
+	
+	/**
+	 * For aggregating the data for a range of trips in parallel. If the range
+	 * is too large it is split in two. Each range is aggregated into its own
+	 * ProcessedDataMaps and the results are merged in order.
+	 */
+	private class AggregateTripsTask extends RecursiveTask<ProcessedDataMaps> {
+		private final DataFetcher dataFetcher;
+		private final List<List<ArrivalDeparture>> arrDepLists;
+		private final int begin;
+		private final int end;
+		
+		private static final long serialVersionUID = 1L;
+
+		private AggregateTripsTask(DataFetcher dataFetcher,
+				List<List<ArrivalDeparture>> arrDepLists, int begin, int end) {
+			this.dataFetcher = dataFetcher;
+			this.arrDepLists = arrDepLists;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		protected ProcessedDataMaps compute() {
+			// If small enough then simply aggregate the trips
+			if (end - begin <= TRIPS_PER_TASK) {
+				ProcessedDataMaps maps = new ProcessedDataMaps();
+				for (int i = begin; i < end; ++i) {
+					List<ArrivalDeparture> arrDepList = arrDepLists.get(i);
+					debugLogTrip(arrDepList);
+					aggregateTripDataIntoMaps(dataFetcher, arrDepList, maps);
+				}
+				return maps;
+			}
+			
+			// Too large so split in two
+			int middle = (begin + end) / 2;
+			AggregateTripsTask firstHalf = 
+					new AggregateTripsTask(dataFetcher, arrDepLists, begin, 
+							middle);
+			AggregateTripsTask secondHalf = 
+					new AggregateTripsTask(dataFetcher, arrDepLists, middle, 
+							end);
+			firstHalf.fork();
+			ProcessedDataMaps secondHalfMaps = secondHalf.compute();
+			ProcessedDataMaps firstHalfMaps = firstHalf.join();
+			firstHalfMaps.addAll(secondHalfMaps);
+			return firstHalfMaps;
+		}
+	}
 		
 	/**
 	 * Converts the list of travel times such that times are grouped by segment
@@ -817,6 +962,137 @@ public class TravelTimesProcessor {
 			return null;
 	}
 	
+	/**
+	 * The historic data for a single trip/stop path, along with the resulting
+	 * averages once they have been determined by determineAverages().
+	 */
+	private static class StopPathData {
+		private final ProcessedDataMapKey mapKey;
+		private final Trip trip;
+		// Can be null if no valid travel times
+		private final List<List<Integer>> travelTimesBySegment;
+		// Can be null if no stop times
+		private final List<Integer> stopTimes;
+		private final boolean lastStopPathOfTrip;
+		private final double travelTimeSegLength;
+		
+		// The results
+		private List<Integer> averageTravelTimes;
+		private int averagedStopTime;
+		
+		private StopPathData(ProcessedDataMapKey mapKey, Trip trip,
+				List<List<Integer>> travelTimesBySegment,
+				List<Integer> stopTimes, boolean lastStopPathOfTrip,
+				double travelTimeSegLength) {
+			this.mapKey = mapKey;
+			this.trip = trip;
+			this.travelTimesBySegment = travelTimesBySegment;
+			this.stopTimes = stopTimes;
+			this.lastStopPathOfTrip = lastStopPathOfTrip;
+			this.travelTimeSegLength = travelTimeSegLength;
+		}
+	}
+	
+	/**
+	 * Determines the average travel times and stop time for the stop path
+	 * and stores them in the StopPathData. Only accesses the StopPathData so
+	 * can be called in parallel for different stop paths.
+	 * 
+	 * @param stopPathData
+	 */
+	private static void determineAverages(StopPathData stopPathData) {
+		// Determine average travel times for this trip/stop path
+		List<Integer> averageTravelTimes = new ArrayList<Integer>();
+		if (stopPathData.travelTimesBySegment != null) {
+			// For each segment, process travel times...
+			for (List<Integer> travelTimesByTripForSegment : 
+					stopPathData.travelTimesBySegment) {
+				int averageTravelTimeForSegment = Statistics
+						.filteredMean(travelTimesByTripForSegment, 
+								FRACTION_LIMIT_FOR_SEGMENT_TIMES);
+				averageTravelTimes.add(averageTravelTimeForSegment);
+			}
+		}
+		stopPathData.averageTravelTimes = averageTravelTimes;
+		
+		// Determine average stop time for this trip/stop
+		int averagedStopTime;
+		List<Integer> stopTimesForStopPathForTrip = stopPathData.stopTimes;
+		if (stopTimesForStopPathForTrip != null) { 
+			// For first stops of trip will be providing departure
+			// times so need to be conservative and bias the stop time
+			if (stopPathData.mapKey.getStopPathIndex() == 0) {
+				// First stop of trip so be extra conservative because
+				// don't want to determine that vehicles depart at 8:02
+				// when the doors actually shut at 8:01 and the vehicle
+				// starts moving slowly giving a slightly wrong departure
+				// time.
+				// Determine best stop time to use
+				averagedStopTime =
+						Statistics.biasedFilteredMean(
+								stopTimesForStopPathForTrip,
+								FRACTION_LIMIT_FOR_STOP_TIMES,
+								STD_DEV_BIAS_FOR_FIRST_STOP);
+				
+				// So far have determine when vehicle has departed. But should add
+				// a bit of a bias since passengers have to get on a few seconds
+				// before doors shut and vehicle starts moving.
+				averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
+			} else {
+				// Not first stop of trip
+				averagedStopTime = Statistics.filteredMean(
+						stopTimesForStopPathForTrip,
+						FRACTION_LIMIT_FOR_STOP_TIMES);
+			}
+		} else {
+			// No arrival and corresponding departure time for the stop. 
+			averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
+
+			// Not having stop time indicates possible problem unless it 
+			// is the last stop path for the trip. So if not the last stop  
+			// path for trip then log the problem.
+			if (!stopPathData.lastStopPathOfTrip) {
+				logger.debug("No stop times for {} even though there are " +
+					"travel times for that map key", stopPathData.mapKey);
+			}
+		}
+		stopPathData.averagedStopTime = averagedStopTime;
+	}
+	
+	/**
+	 * For determining the averages for a range of stop paths in parallel. If
+	 * the range is too large it is split in two.
+	 */
+	private static class AverageStopPathsTask extends RecursiveAction {
+		private final List<StopPathData> stopPathsData;
+		private final int begin;
+		private final int end;
+		
+		private static final long serialVersionUID = 1L;
+
+		private AverageStopPathsTask(List<StopPathData> stopPathsData,
+				int begin, int end) {
+			this.stopPathsData = stopPathsData;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// If small enough then simply process the stop paths
+			if (end - begin <= STOP_PATHS_PER_TASK) {
+				for (int i = begin; i < end; ++i)
+					determineAverages(stopPathsData.get(i));
+				return;
+			}
+			
+			// Too large so split in two
+			int middle = (begin + end) / 2;
+			invokeAll(new AverageStopPathsTask(stopPathsData, begin, middle),
+					new AverageStopPathsTask(stopPathsData, middle, end));
+		}
+	}
+	
 	/**
 	 * Takes the data from the stopTimesMap and travelTimesMap and creates
 	 * corresponding travel times. Puts those travel times into the
@@ -841,6 +1117,12 @@ public class TravelTimesProcessor {
 		combinedKeySet.addAll(travelTimesMap.keySet());
 		combinedKeySet.addAll(stopTimesMap.keySet());
 		
+		// The data for each stop path that is to be averaged. The config
+		// data from the trips is determined here, sequentially, since the
+		// trips are lazy loaded using the db session which is not thread safe.
+		List<StopPathData> stopPathsData = 
+				new ArrayList<StopPathData>(combinedKeySet.size());
+		
 		// For each trip/stop path that had historical arrivals/departures and 
 		// or matches in the database...
 		for (ProcessedDataMapKey mapKey : combinedKeySet) {
@@ -876,83 +1158,52 @@ public class TravelTimesProcessor {
 				continue;
 			}
 			
-			// Determine average travel times for this trip/stop path
+			// Determine the travel times grouped by segment. Only use the
+			// historic data if some of it for the trip was actually valid.
 			List<List<Integer>> travelTimesForStopPathForTrip =
 					travelTimesMap.get(mapKey);
-			List<Integer> averageTravelTimes = new ArrayList<Integer>();
+			List<List<Integer>> travelTimesBySegment = null;
 			if (travelTimesForStopPathForTrip != null) {
-				// Get the travel times, grouped by segment
-				List<List<Integer>> travelTimesBySegment =
+				travelTimesBySegment =
 						bySegment(travelTimesForStopPathForTrip, trip,
 								mapKey.getStopPathIndex());
-
-				// Only continue to process if some of the historic data for 
-				// the trip was actually valid
-				if (travelTimesBySegment != null) {
-					// For each segment, process travel times...
-					for (List<Integer> travelTimesByTripForSegment : 
-							travelTimesBySegment) {
-						int averageTravelTimeForSegment = Statistics
-								.filteredMean(travelTimesByTripForSegment, 
-										FRACTION_LIMIT_FOR_SEGMENT_TIMES);
-						averageTravelTimes.add(averageTravelTimeForSegment);
-					}
-				}
-			}
-			
-			// Determine average stop time for this trip/stop
-			int averagedStopTime;
-			List<Integer> stopTimesForStopPathForTrip = 
-					stopTimesMap.get(mapKey);
-			if (stopTimesForStopPathForTrip != null) { 
-				// For first stops of trip will be providing departure
-				// times so need to be conservative and bias the stop time
-				if (mapKey.getStopPathIndex() == 0) {
-					// First stop of trip so be extra conservative because
-					// don't want to determine that vehicles depart at 8:02
-					// when the doors actually shut at 8:01 and the vehicle
-					// starts moving slowly giving a slightly wrong departure
-					// time.
-					// Determine best stop time to use
-					averagedStopTime =
-							Statistics.biasedFilteredMean(
-									stopTimesForStopPathForTrip,
-									FRACTION_LIMIT_FOR_STOP_TIMES,
-									STD_DEV_BIAS_FOR_FIRST_STOP);
-					
-					// So far have determine when vehicle has departed. But should add
-					// a bit of a bias since passengers have to get on a few seconds
-					// before doors shut and vehicle starts moving.
-					averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
-				} else {
-					// Not first stop of trip
-					averagedStopTime = Statistics.filteredMean(
-							stopTimesForStopPathForTrip,
-							FRACTION_LIMIT_FOR_STOP_TIMES);
-				}
-			} else {
-				// No arrival and corresponding departure time for the stop. 
-				averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
-
-				// Not having stop time indicates possible problem unless it 
-				// is the last stop path for the trip. So if not the last stop  
-				// path for trip then log the problem.
-				if (mapKey.getStopPathIndex() != trip.getNumberStopPaths()-1) {
-					logger.debug("No stop times for {} even though there are " +
-						"travel times for that map key", mapKey);
-				}
 			}
 			
 			// Determine the travel time segment length actually used
 			double travelTimeSegLength = 
 					getTravelTimeSegmentLength(trip, mapKey.getStopPathIndex());
 			
-			// Put the results into TravelTimeInfo object and put into 
-			// TravelTimeInfo map so can be used to find best travel times 
-			// when there is no data for particular trip.
-			TravelTimeInfo travelTimeInfo = new TravelTimeInfo(trip,
-					mapKey.getStopPathIndex(), averagedStopTime,
-					averageTravelTimes, travelTimeSegLength);
+			stopPathsData.add(new StopPathData(mapKey, trip, 
+					travelTimesBySegment, stopTimesMap.get(mapKey),
+					mapKey.getStopPathIndex() == trip.getNumberStopPaths()-1,
+					travelTimeSegLength));
+		}
+
+		// Determine the averages, which is the expensive part. Can do this
+		// in parallel since only the data in StopPathData is accessed.
+		int threads = getProcessingThreads();
+		if (threads > 1) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new AverageStopPathsTask(stopPathsData, 0, 
+						stopPathsData.size()));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (StopPathData stopPathData : stopPathsData)
+				determineAverages(stopPathData);
+		}
+		
+		// Put the results into TravelTimeInfo object and put into 
+		// TravelTimeInfo map so can be used to find best travel times 
+		// when there is no data for particular trip.
+		for (StopPathData stopPathData : stopPathsData) {
+			TravelTimeInfo travelTimeInfo = new TravelTimeInfo(
+					stopPathData.trip, stopPathData.mapKey.getStopPathIndex(),
+					stopPathData.averagedStopTime,
+					stopPathData.averageTravelTimes,
+					stopPathData.travelTimeSegLength);
 			travelTimeInfoMap.add(travelTimeInfo);
 		}
 
@@ -968,6 +1219,11 @@ public class TravelTimesProcessor {
 	 * Reads in the Matches and the ArrivalDepartures from the database for the
 	 * time specified. Puts the data into the stopTimesMap and the travelTimesMap 
 	 * for further processing.
+	 * <p>
+	 * The data is read in and processed one service day at a time so that
+	 * only a single day of historic data needs to be in memory at once. Since
+	 * the data for a trip is all within a single service day this doesn't
+	 * affect the results.
 	 * 
 	 * @param projectId
 	 * @param specialDaysOfWeek
@@ -978,17 +1234,52 @@ public class TravelTimesProcessor {
 			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
 		// Read the arrivals/departures and matches into a DataFetcher
 		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
-		dataFetcher.readData(projectId, beginTime, endTime);
-		
-		// Process all the historic data read from the database. Puts 
-		// resulting data into stopTimesMap and travelTimesMap.
-		logger.info("Processing data into travel time maps...");
 		IntervalTimer intervalTimer = new IntervalTimer();
-		Collection<List<ArrivalDeparture>> arrivalDepartures =
-				dataFetcher.getArrivalDepartureMap().values();
-		for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-			debugLogTrip(arrDepList);
-			aggregateTripDataIntoMaps(dataFetcher, arrDepList);
+		
+		// The sequentially processed data goes directly into the members
+		ProcessedDataMaps maps = 
+				new ProcessedDataMaps(stopTimesMap, travelTimesMap);
+		
+		// If processing in parallel then need a pool
+		int threads = getProcessingThreads();
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		if (pool != null)
+			logger.info("Processing historic data using {} threads.", threads);
+		
+		try {
+			// Read in and process the data one service day at a time
+			Date windowBeginTime = beginTime;
+			while (windowBeginTime.before(endTime)) {
+				Date windowEndTime = dataFetcher.getEndOfServiceDay(windowBeginTime);
+				if (windowEndTime.after(endTime))
+					windowEndTime = endTime;
+			
+				logger.info("Reading and processing historic data for {} to {}", 
+						windowBeginTime, windowEndTime);
+				dataFetcher.readData(projectId, windowBeginTime, windowEndTime);
+		
+				// Process the historic data read from the database. Puts 
+				// resulting data into stopTimesMap and travelTimesMap.
+				Collection<List<ArrivalDeparture>> arrivalDepartures =
+						dataFetcher.getArrivalDepartureMap().values();
+				if (pool != null) {
+					// Partition the trips across the pool and merge the results
+					List<List<ArrivalDeparture>> arrDepLists = 
+							new ArrayList<List<ArrivalDeparture>>(arrivalDepartures);
+					maps.addAll(pool.invoke(new AggregateTripsTask(dataFetcher,
+							arrDepLists, 0, arrDepLists.size())));
+				} else {
+					for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
+						debugLogTrip(arrDepList);
+						aggregateTripDataIntoMaps(dataFetcher, arrDepList, maps);
+					}
+				}
+			
+				windowBeginTime = windowEndTime;
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdown();
 		}
 		
 		// Nice to log how long things took so can see progress and bottle necks
@@ -16,16 +16,19 @@
  */
 package org.transitime.db.hibernate;
 
+import java.io.File;
 import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -36,7 +39,12 @@ import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.exception.SQLGrammarException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.configData.DbSetupConfig;
+import org.transitime.db.structs.ArrivalDeparture;
 import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Match;
+import org.transitime.db.structs.Prediction;
+import org.transitime.db.structs.VehicleEvent;
 import org.transitime.logging.Markers;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
@@ -66,8 +74,21 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * with a batch then each item is individually written so that don't
  * lose any data.
  * 
+ * For agencies with lots of vehicles can set 
+ * transitime.db.dataDbLoggerHighThroughput to true. Then each of the main
+ * types of data has its own queue and writer thread, and large groups of
+ * objects are committed in each transaction. Combined with a large
+ * transitime.db.jdbcBatchSize this greatly reduces the number of round trips
+ * to the database.
+ * 
  * When in playback mode then don't want to store the data because it would
  * interfere with data stored when the application was run in real time. 
+ * If transitime.db.dataDbLoggerJournalDirectory is set then objects that
+ * don't fit into a full queue are written to a local DataDbLoggerJournal
+ * instead of being lost. A separate replayer thread puts the journaled
+ * objects back into the queue once the database is available again. 
+ * Optionally all objects can be written to the journal first.
+ * 
  * Therefore when running in playback mode set shouldStoreToDb to true
  * when calling getDataDbLogger().
  * 
@@ -85,9 +106,69 @@ public class DataDbLogger {
 	// The max value should be 1.0. 
 	private final double levels[] = { 0.5, 0.8, 1.00 };
 	
-	// The queue that objects to be stored are placed in
+	// The queue that objects to be stored are placed in. When in high
+	// throughput mode only used for objects that don't have their own queue.
 	private BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
 	
+	// When in high throughput mode these types of objects each get their
+	// own queue and writer thread so that they don't hold each other up
+	private static final Class<?>[] HIGH_THROUGHPUT_CLASSES = {
+			AvlReport.class, Match.class, ArrivalDeparture.class,
+			Prediction.class, VehicleEvent.class };
+	
+	// The separate queues for high throughput mode. Keyed by class. Empty
+	// if not in high throughput mode.
+	private final Map<Class<?>, BlockingQueue<Object>> queuesByClass =
+			new LinkedHashMap<Class<?>, BlockingQueue<Object>>();
+	
+	// All of the queues, including the default one, so can determine how 
+	// full they are
+	private final List<BlockingQueue<Object>> allQueues =
+			new ArrayList<BlockingQueue<Object>>();
+	
+	// Max number of objects committed in a single transaction
+	private final int maxObjectsPerTransaction;
+	
+	// How many objects to save before flushing the session. Should match
+	// the JDBC batch size so that each flush is a full JDBC batch.
+	private final int objectsPerFlush;
+	
+	// For each queue, how many objects were attempted to be added and how 
+	// many have been processed. An object is only processed once it has
+	// been committed, rejected by the db because of a problem with the
+	// data itself, written back to the journal, or dropped because the
+	// queue was full. Used by the journal replayer to determine when 
+	// replayed data has been dealt with so that the journal segment can be
+	// deleted.
+	private final Map<BlockingQueue<Object>, AtomicLong> attemptedCounts =
+			new HashMap<BlockingQueue<Object>, AtomicLong>();
+	private final Map<BlockingQueue<Object>, AtomicLong> processedCounts =
+			new HashMap<BlockingQueue<Object>, AtomicLong>();
+	
+	// Number of objects taken from the queues that could neither be 
+	// written to the db nor written back to the journal. If this changes
+	// while a journal segment is being replayed then the segment is kept
+	// so that its data is not lost.
+	private final AtomicLong unwrittenCount = new AtomicLong();
+	
+	// For writing objects to disk when they can't be written to the db 
+	// quickly enough. Null if journal not enabled.
+	private final DataDbLoggerJournal journal;
+	
+	// If all objects should go to the journal first
+	private final boolean journalAllWrites;
+	
+	// Set to false when a connection problem with the database is 
+	// encountered and back to true once data is successfully written. 
+	// So that don't replay the journal while the db is still down.
+	private volatile boolean dbAvailable = true;
+	
+	// Don't want replayed data to fill up the queue
+	private static final double MAX_QUEUE_LEVEL_FOR_REPLAY = 0.25;
+	
+	// How frequently the journal replayer checks for data to replay
+	private static final long JOURNAL_REPLAY_INTERVAL = 1 * Time.MS_PER_SEC;
+	
 	// When running in playback mode where getting AVLReports from database
 	// instead of from an AVL feed, then debugging and don't want to store
 	// derived data into the database because that would interfere with the
@@ -137,7 +218,8 @@ public class DataDbLogger {
 	 * @param shouldPauseToReduceQueue
 	 *            Specifies if should pause the thread calling add() if the
 	 *            queue is filling up. Useful for when in batch mode and dumping
-	 *            a whole bunch of data to the db really quickly.
+	 *            a whole bunch of data to the db really quickly. Ignored if
+	 *            the journal is enabled since then the overflow is journaled.
 	 * @return The DataDbLogger for the specified agencyId
 	 */
 	public static DataDbLogger getDataDbLogger(String agencyId,
@@ -171,35 +253,145 @@ public class DataDbLogger {
 	 */
 	private DataDbLogger(String agencyId, boolean shouldStoreToDb, 
 			boolean shouldPauseToReduceQueue) {
+		// Create the reusable heavy weight session factory and the journal 
+		// if configured
+		this(agencyId, shouldStoreToDb, shouldPauseToReduceQueue,
+				HibernateUtils.getSessionFactory(agencyId),
+				DataDbLoggerJournal.isEnabled() ? 
+						new DataDbLoggerJournal(agencyId) : null);
+	}
+	
+	/**
+	 * Constructor that uses the specified session factory and journal.
+	 * Package-private so that can be tested without a database.
+	 * 
+	 * @param agencyId
+	 * @param shouldStoreToDb
+	 * @param shouldPauseToReduceQueue
+	 * @param sessionFactory
+	 *            For writing to the db
+	 * @param journal
+	 *            For writing data to disk when the queue is full. Null if
+	 *            journal not to be used.
+	 */
+	DataDbLogger(String agencyId, boolean shouldStoreToDb, 
+			boolean shouldPauseToReduceQueue, SessionFactory sessionFactory,
+			DataDbLoggerJournal journal) {
 		this.agencyId = agencyId;
 		this.shouldStoreToDb = shouldStoreToDb;
 		this.shouldPauseToReduceQueue = shouldPauseToReduceQueue;
+		this.sessionFactory = sessionFactory;
+		this.journal = journal;
 		
-		// Create the reusable heavy weight session factory
-		sessionFactory = HibernateUtils.getSessionFactory(agencyId);
+		// Determine batching parameters before starting any writer threads
+		boolean highThroughput = DbSetupConfig.getDataDbLoggerHighThroughput();
+		maxObjectsPerTransaction = highThroughput ? 
+				DbSetupConfig.getDataDbLoggerGroupCommitSize() : 
+				HibernateUtils.BATCH_SIZE;
+		Integer jdbcBatchSize = DbSetupConfig.getJdbcBatchSize();
+		objectsPerFlush = jdbcBatchSize != null ? 
+				jdbcBatchSize : HibernateUtils.BATCH_SIZE;
 		
-		// Start up separate thread that reads from the queue and
-		// actually stores the data
-		NamedThreadFactory threadFactory = new NamedThreadFactory(getClass().getSimpleName());
+		// If in high throughput mode then create a separate queue for each of
+		// the main types of data
+		allQueues.add(queue);
+		if (highThroughput) {
+			for (Class<?> classForQueue : HIGH_THROUGHPUT_CLASSES) {
+				BlockingQueue<Object> queueForClass = 
+						new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
+				queuesByClass.put(classForQueue, queueForClass);
+				allQueues.add(queueForClass);
+			}
+		}
+		for (BlockingQueue<Object> q : allQueues) {
+			attemptedCounts.put(q, new AtomicLong());
+			processedCounts.put(q, new AtomicLong());
+		}
+		
+		journalAllWrites = journal != null 
+				&& DbSetupConfig.getDataDbLoggerJournalAllWrites();
+		
+		// Start up separate threads that read from the queues and
+		// actually store the data
+		startWriter(queue, getClass().getSimpleName());
+		for (Map.Entry<Class<?>, BlockingQueue<Object>> entry : 
+				queuesByClass.entrySet()) {
+			startWriter(entry.getValue(), getClass().getSimpleName() + "-"
+					+ entry.getKey().getSimpleName());
+		}
+		
+		if (highThroughput) {
+			logger.info("DataDbLogger for agencyId={} using high throughput "
+					+ "mode with maxObjectsPerTransaction={} and "
+					+ "objectsPerFlush={}", 
+					agencyId, maxObjectsPerTransaction, objectsPerFlush);
+		}
+		
+		// Start up thread that replays the journal into the queues
+		if (journal != null) {
+			NamedThreadFactory threadFactory = new NamedThreadFactory(
+					getClass().getSimpleName() + "-journalReplayer");
+			ExecutorService executor = 
+					Executors.newSingleThreadExecutor(threadFactory);
+			executor.execute(new Runnable() {
+				public void run() {
+					replayJournal();
+					}
+				});
+		}
+	}
+	
+	/**
+	 * Starts up separate thread that reads from the specified queue and
+	 * actually stores the data.
+	 * 
+	 * @param queueToProcess
+	 * @param threadName
+	 */
+	private void startWriter(final BlockingQueue<Object> queueToProcess,
+			String threadName) {
+		NamedThreadFactory threadFactory = new NamedThreadFactory(threadName);
 		ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
 		executor.execute(new Runnable() {
 			public void run() {
-				processData();
+				processData(queueToProcess);
 				}
 			});
-
 	}
 	
 	/**
-	 * Returns how much capacity of the queue is being used up. 
+	 * Returns the queue that the object should be put into. When in high
+	 * throughput mode the main types of data have their own queues.
+	 * 
+	 * @param o
+	 * @return the queue for the object
+	 */
+	private BlockingQueue<Object> getQueue(Object o) {
+		for (Map.Entry<Class<?>, BlockingQueue<Object>> entry : 
+				queuesByClass.entrySet()) {
+			if (entry.getKey().isInstance(o))
+				return entry.getValue();
+		}
+		return queue;
+	}
+	
+	/**
+	 * Returns how much capacity of the queue is being used up. If there are
+	 * multiple queues because in high throughput mode then the level of the
+	 * fullest one is returned.
 	 * 
 	 * @return a value between 0.0 and 1.0 indicating how much of queue being used
 	 */
 	public double queueLevel() {
-		int remainingCapacity = queue.remainingCapacity();
-		int totalCapacity = queue.size() + remainingCapacity;
-		double level = 1.0  - (double) remainingCapacity / totalCapacity;
-		return level;
+		double maxLevel = 0.0;
+		for (BlockingQueue<Object> q : allQueues) {
+			int remainingCapacity = q.remainingCapacity();
+			int totalCapacity = q.size() + remainingCapacity;
+			double level = 1.0  - (double) remainingCapacity / totalCapacity;
+			if (level > maxLevel)
+				maxLevel = level;
+		}
+		return maxLevel;
 	}
 	
 	/**
@@ -207,7 +399,10 @@ public class DataDbLogger {
 	 * @return items in queue
 	 */
 	public int queueSize() {
-		return queue.size();
+		int size = 0;
+		for (BlockingQueue<Object> q : allQueues)
+			size += q.size();
+		return size;
 	}
 	
 	/**
@@ -235,14 +430,16 @@ public class DataDbLogger {
 	 */
 	private Map<String, Integer> getClassNamesInQueue() {
 		Map<String, Integer> classNamesMap = new HashMap<String, Integer>();
-		for (Object o : queue) {
-			String className = o.getClass().getName();
-			Integer count = classNamesMap.get(className);
-			if (count == null) {
-				count = new Integer(0);
-				classNamesMap.put(className, count);
+		for (BlockingQueue<Object> q : allQueues) {
+			for (Object o : q) {
+				String className = o.getClass().getName();
+				Integer count = classNamesMap.get(className);
+				if (count == null) {
+					count = new Integer(0);
+					classNamesMap.put(className, count);
+				}
+				++count;
 			}
-			++count;
 		}
 		return classNamesMap;
 	}
@@ -253,10 +450,13 @@ public class DataDbLogger {
 	 * problem. The queue levels at which an e-mail is sent out is specified by
 	 * levels. If queue has reached capacity then an error message is logged.
 	 * 
+	 * If the queue is full and the journal is enabled then the object is
+	 * written to the journal instead so that it is not lost.
+	 * 
 	 * @param o
 	 *            The object that should be logged to the database
-	 * @return True if OK (object added to queue or logging disabled). False if
-	 *         queue was full.
+	 * @return True if OK (object added to queue or journal or logging 
+	 *         disabled). False if queue was full.
 	 */
 	public boolean add(Object o) {	
 		// If in playback mode then don't want to store the
@@ -265,8 +465,25 @@ public class DataDbLogger {
 		if (!shouldStoreToDb)
 			return true;
 		
+		// If all objects should be journaled first then simply write it to 
+		// the journal. The replayer will then add it to the queue.
+		if (journalAllWrites && journal.append(o))
+			return true;
+		
 		// Add the object to the queue
-		boolean success = queue.offer(o);
+		BlockingQueue<Object> queueForObject = getQueue(o);
+		attemptedCounts.get(queueForObject).incrementAndGet();
+		boolean success = queueForObject.offer(o);
+		
+		// If queue full then write the object to the journal, if there is 
+		// one, so that it is not lost
+		boolean journaled = false;
+		if (!success) {
+			// Object won't be processed from the queue so count it now
+			processedCounts.get(queueForObject).incrementAndGet();
+			if (journal != null)
+				journaled = journal.append(o);
+		}
 
 		double level = queueLevel();
 		int levelIndex = indexOfLevel(level);
@@ -277,10 +494,12 @@ public class DataDbLogger {
 					"DataDbLogger queue filling up " +
 					" for agencyId=" + agencyId +". It is now at " + 
 					String.format("%.1f", level*100) + "% capacity with " + 
-					queue.size() + " elements already in the queue."
+					queueSize() + " elements already in the queue."
 					:
 					"DataDbLogger queue is now completely full for agencyId=" + 
-					agencyId + ". LOSING DATA!!!";
+					agencyId + (journaled ? 
+							". Writing data to journal until database " +
+							"catches up." : ". LOSING DATA!!!");
 			
 			// Add to message the class names of the objects in the queue so 
 			// can see what objects are causing the problem
@@ -295,7 +514,7 @@ public class DataDbLogger {
 		}
 		
 		// If losing data then log such
-		if (!success) {
+		if (!success && !journaled) {
 			logger.error("DataDbLogger queue is now completely full for " +
 					"agencyId=" + agencyId + ". LOSING DATA!!! Failed to " +
 					"store object=[" + o + "]");
@@ -309,16 +528,18 @@ public class DataDbLogger {
 		// If shouldPauseToReduceQueue (because in batch mode or such) and
 		// if queue is starting to get more full then pause the calling
 		// thread for 10 seconds so that separate thread can clear out 
-		// queue a bit.
-		if (shouldPauseToReduceQueue && level > 0.2) {
+		// queue a bit. But if there is a journal then don't stall the 
+		// calling thread, such as the one processing AVL data, since any
+		// overflow simply goes to the journal.
+		if (shouldPauseToReduceQueue && journal == null && level > 0.2) {
 			logger.info("Pausing thread adding data to DataDbLogger queue " +
 					"so that queue can be cleared out. Level={}%", 
 					level*100.0);
 			Time.sleep(10 * Time.MS_PER_SEC);
 		}
 		
-		// Return whether was successful in adding object to queue
-		return success;
+		// Return whether was successful in adding object to queue or journal
+		return success || journaled;
 	}
 	
 	/**
@@ -329,14 +550,15 @@ public class DataDbLogger {
 	 * When the queue level drops down below 10% of a specified level
 	 * then an e-mail mail message is sent out indicating such. That way
 	 * a supervisor can see that the queue is being cleared out.
+	 * @param queueToProcess the queue to get the object from
 	 * @return The object to be stored in the database
 	 */
-	private Object get() {
+	private Object get(BlockingQueue<Object> queueToProcess) {
 		// Get the next object from the head of the queue
 		Object o = null;
 		do {
 			try {
-				o = queue.take();
+				o = queueToProcess.take();
 			} catch (InterruptedException e) {
 				// If interrupted simply try again
 			}
@@ -351,7 +573,7 @@ public class DataDbLogger {
 		if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
 			logger.error(Markers.email(), "DataDbLogger queue emptying out somewhat " +
 					" for agencyId=" + agencyId +". It is now at " + 
-					String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
+					String.format("%.1f", level*100) + "% capacity with " + queueSize() + 
 					" elements already in the queue. The maximum capacity was " +
 					String.format("%.1f", maxQueueLevel*100) + "%.");
 			indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
@@ -366,10 +588,11 @@ public class DataDbLogger {
 	
 	/**
 	 * Returns whether queue has any elements in it that should be stored.
+	 * @param queueToProcess
 	 * @return true if queue has data that should be stored to db
 	 */
-	private boolean queueHasData() {
-		return !queue.isEmpty();
+	private boolean queueHasData(BlockingQueue<Object> queueToProcess) {
+		return !queueToProcess.isEmpty();
 	}
 	
 	/**
@@ -378,8 +601,12 @@ public class DataDbLogger {
 	 * way can still store all of the good data from a batch.
 	 * 
 	 * @param o
+	 * @throws HibernateException
+	 *             If the object could not be committed. The caller
+	 *             determines whether should try again.
 	 */
-	private void processSingleObject(Object objectToBeStored) {
+	private void processSingleObject(Object objectToBeStored) 
+			throws HibernateException {
 		Session session = null;
 		Transaction tx = null;
 		try {
@@ -388,6 +615,7 @@ public class DataDbLogger {
 			logger.debug("Individually saving object {}", objectToBeStored);
 			session.save(objectToBeStored);
 			tx.commit();
+			dbAvailable = true;
 		} catch (HibernateException e) {
 			if (tx != null) {
 				try {
@@ -397,6 +625,7 @@ public class DataDbLogger {
 							+ "processSingleObject(). ", e2);
 				}
 			}
+			throw e;
 		} finally {			
 			if (session != null)
 				session.close();
@@ -430,21 +659,65 @@ public class DataDbLogger {
 		//   JDBCConnectionException (was not able to verify experimentally)
 		//   GenericJDBCException    (obtained when committing transaction with db turned off)
 		// So if exception is JDBCConnectionException or JDBCGenericException
-		// then should keep retrying until successful.
+		// then should keep retrying until successful. Same if the connection
+		// was lost, which can be indicated by other exception types.
 		boolean keepTryingTillSuccessfull = e instanceof JDBCConnectionException ||
-				                            e instanceof GenericJDBCException;
+				                            e instanceof GenericJDBCException ||
+				                            isConnectionLost(e);
 		return keepTryingTillSuccessfull;
 	}
 	
 	/**
-	 * Process a batch of data, as specified by BATCH_SIZE member. The goal
-	 * is to batch a few db writes together to reduce load on network and on
-	 * db machines. There this method will try to store multiple objects
-	 * from the queue at once, up to the BATCH_SIZE.
+	 * Returns true if the root cause of the exception indicates that the
+	 * connection to the database was lost, such as when the db was rebooted.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean isConnectionLost(HibernateException e) {
+		Throwable rootCause = HibernateUtils.getRootCause(e);
+		return rootCause instanceof SocketTimeoutException
+				|| (rootCause instanceof SQLException 
+						&& rootCause.getMessage() != null
+						&& rootCause.getMessage().contains("statement closed"));
+	}
+	
+	/**
+	 * Called for an object that was taken from the queue but could not be
+	 * written to the db, such as because of an unexpected exception. If
+	 * there is a journal then the object is written to it so that it will be
+	 * replayed. Otherwise the object is lost.
+	 * 
+	 * @param o
+	 */
+	private void handleUnwrittenObject(Object o) {
+		if (journal != null && journal.append(o))
+			return;
+		
+		unwrittenCount.incrementAndGet();
+		logger.error("DataDbLogger could not write object to database for "
+				+ "agencyId={}. LOSING DATA!!! Failed to store object=[{}]", 
+				agencyId, o);
+	}
+	
+	/**
+	 * Process a batch of data, as specified by maxObjectsPerTransaction 
+	 * member. The goal is to batch a few db writes together to reduce load 
+	 * on network and on db machines. There this method will try to store 
+	 * multiple objects from the queue at once, up to the 
+	 * maxObjectsPerTransaction. When in high throughput mode this can be
+	 * thousands of objects. The session is then flushed and cleared every
+	 * objectsPerFlush objects so that each flush is a full JDBC batch and
+	 * the session doesn't get too large.
 	 * 
 	 * If there is an exception with an object being written then the
 	 * batch of objects will be written individually so that all of the
-	 * good data will still be stored.
+	 * good data will still be stored. If the problem is with the connection
+	 * to the db then each object is retried until it is committed. Objects
+	 * are only counted as processed once they have been committed, rejected
+	 * because of a problem with the data itself, or written back to the
+	 * journal, so that the journal replayer doesn't delete a segment whose
+	 * data never made it to the db.
 	 * 
 	 *  When looked at Hibernate documentation on batch writing there is
 	 *  mention of using:
@@ -455,14 +728,20 @@ public class DataDbLogger {
 	 * But the above doesn't commit the data to the db until the transaction
 	 * commit is done. Therefore the need here isn't true Hibernate batch
 	 * processing. Instead, need to use a transaction for each batch.
+	 * 
+	 * @param queueToProcess the queue to get the objects from
 	 */
-	private void processBatchOfData() {
+	private void processBatchOfData(BlockingQueue<Object> queueToProcess) {
 		// Create an array for holding what is being written to db. If there
 		// is an exception with one of the objects, such as a constraint violation,
 		// then can try to write the objects one at a time to make sure that the
 		// the good ones are written. This way don't lose any good data even if
 		// an exception occurs while batching data.
-		List<Object> objectsForThisBatch = new ArrayList<Object>(HibernateUtils.BATCH_SIZE);
+		List<Object> objectsForThisBatch = new ArrayList<Object>();
+		
+		// How many of the objects from the start of objectsForThisBatch have
+		// been committed or rejected because of bad data
+		int numObjectsHandled = 0;
 		
 		Transaction tx = null;
 		Session session = null;
@@ -471,13 +750,15 @@ public class DataDbLogger {
 			int batchingCounter = 0;
 			do {	
 				// Get the object to be stored from the queue
-				Object objectToBeStored = get();
+				Object objectToBeStored = get(queueToProcess);
 				
 				objectsForThisBatch.add(objectToBeStored);
-			} while (queueHasData() && ++batchingCounter < HibernateUtils.BATCH_SIZE);
+			} while (queueHasData(queueToProcess) 
+					&& ++batchingCounter < maxObjectsPerTransaction);
 			
 			session = sessionFactory.openSession();
-			tx = session.beginTransaction();			
+			tx = session.beginTransaction();
+			int savedCounter = 0;
 			for (Object objectToBeStored : objectsForThisBatch) {				
 				// Write the data to the session. This doesn't yet
 				// actually write the data to the db though. That is only
@@ -485,6 +766,15 @@ public class DataDbLogger {
 				logger.debug("DataDbLogger batch saving object={}", 
 						objectToBeStored);
 				session.save(objectToBeStored);
+				
+				// If writing a large group of objects in the transaction 
+				// then flush a JDBC batch at a time and clear the session 
+				// so that it doesn't grow too large
+				if (++savedCounter % objectsPerFlush == 0
+						&& savedCounter < objectsForThisBatch.size()) {
+					session.flush();
+					session.clear();
+				}
 			}
 			
 			// Sometimes useful for debugging via the console
@@ -497,6 +787,8 @@ public class DataDbLogger {
 
 			// Actually do the commit
 			tx.commit();
+			dbAvailable = true;
+			numObjectsHandled = objectsForThisBatch.size();
 			
 			// Sometimes useful for debugging via the console
 			//System.err.println(new Date() + " Done committing. Took " 
@@ -509,16 +801,13 @@ public class DataDbLogger {
 			
 			// If there was a connection problem then create a whole session
 			// factory so that get new connections.
-			Throwable rootCause = HibernateUtils.getRootCause(e);
-			
-			if (rootCause instanceof SocketTimeoutException
-					|| (rootCause instanceof SQLException 
-							&& rootCause.getMessage().contains("statement closed"))) {
+			if (isConnectionLost(e)) {
 				logger.error(Markers.email(),
 						"Had a connection problem to the database for agencyId={}. "
 						+ "Likely means that the db was rebooted or that the "
 						+ "connection to it was lost. Therefore creating a new "
 						+ "SessionFactory so get new connections.", agencyId);
+				dbAvailable = false;
 				HibernateUtils.clearSessionFactory();
 				sessionFactory = HibernateUtils.getSessionFactory(agencyId);
 			} else {
@@ -577,6 +866,7 @@ public class DataDbLogger {
 						// all good data is written.
 						if (shouldKeepTryingBecauseConnectionException(e2)) {
 							shouldKeepTrying = true;
+							dbAvailable = false;
 							logger.error("Encountered database connection " +
 									"exception so will sleep for {} msec and " +
 									"will then try again.", TIME_BETWEEN_RETRIES);
@@ -591,6 +881,84 @@ public class DataDbLogger {
 								"msg=" + cause2.getMessage()); 
 					}
 				} while (shouldKeepTrying);
+				
+				// Object was either committed or rejected because of bad data
+				++numObjectsHandled;
+			}
+		} finally {
+			// If an unexpected exception occurred then the objects that 
+			// weren't committed or rejected still need to be stored
+			for (int i = numObjectsHandled; i < objectsForThisBatch.size(); ++i)
+				handleUnwrittenObject(objectsForThisBatch.get(i));
+			
+			// Keep track of how many objects from the queue have been dealt 
+			// with so that journal replayer knows when its data is written
+			processedCounts.get(queueToProcess).addAndGet(
+					objectsForThisBatch.size());
+		}
+	}
+	
+	/**
+	 * Waits until all of the objects that have been added to the queues so
+	 * far have been processed. Used by the journal replayer so that a 
+	 * journal segment is only deleted once its data has been written.
+	 */
+	private void waitUntilQueuedObjectsProcessed() {
+		for (BlockingQueue<Object> q : allQueues) {
+			long attempted = attemptedCounts.get(q).get();
+			while (processedCounts.get(q).get() < attempted)
+				Time.sleep(100);
+		}
+	}
+	
+	/**
+	 * Replays the segments of the journal into the queues so that the
+	 * journaled objects are written to the database. Only does so while the
+	 * database is available and the queues are not filling up so that
+	 * replaying doesn't interfere with new data. Each segment is deleted
+	 * once all of its objects have been processed. If some of the objects
+	 * could neither be written to the db nor back to the journal then the
+	 * segment is kept so that it is replayed again later. Runs indefinitely.
+	 */
+	private void replayJournal() {
+		while (true) {
+			Time.sleep(JOURNAL_REPLAY_INTERVAL);
+			try {
+				if (!dbAvailable)
+					continue;
+				
+				for (File segment : journal.getSegmentsToReplay()) {
+					long unwrittenCountBefore = unwrittenCount.get();
+					List<Object> objects = journal.readSegment(segment);
+					logger.info("Replaying {} objects from DataDbLogger "
+							+ "journal segment {}", objects.size(), segment);
+					
+					for (Object o : objects) {
+						// Wait if db not available or queue filling up so 
+						// that there is room for new data
+						while (!dbAvailable 
+								|| queueLevel() > MAX_QUEUE_LEVEL_FOR_REPLAY)
+							Time.sleep(JOURNAL_REPLAY_INTERVAL);
+						
+						BlockingQueue<Object> queueForObject = getQueue(o);
+						attemptedCounts.get(queueForObject).incrementAndGet();
+						queueForObject.put(o);
+					}
+					
+					// Only delete segment once its data has been written
+					waitUntilQueuedObjectsProcessed();
+					if (unwrittenCount.get() != unwrittenCountBefore) {
+						logger.error("Not all objects from DataDbLogger "
+								+ "journal segment {} could be written for "
+								+ "agencyId={}. Keeping the segment so that it "
+								+ "will be replayed again.", segment, agencyId);
+						break;
+					}
+					journal.deleteSegment(segment);
+				}
+			} catch (Exception e) {
+				logger.error("Error replaying DataDbLogger journal for "
+						+ "agencyId={}. {}", agencyId, e.getMessage(), e);
 			}
 		}
 	}
@@ -600,13 +968,15 @@ public class DataDbLogger {
 	 * processBatchOfData() so that data is batched as efficiently as possible.
 	 * Exceptions are caught such that this method will continue to run
 	 * indefinitely.
+	 * 
+	 * @param queueToProcess the queue to get the objects from
 	 */
-	private void processData() {
+	private void processData(BlockingQueue<Object> queueToProcess) {
 		while (true) {
 			try {
 				logger.debug("DataDbLogger.processData() processing batch of " +
 						"data to be stored in database.");
-				processBatchOfData();
+				processBatchOfData(queueToProcess);
 			} catch (Exception e) {
 				logger.error("Error writing data to database via DataDbLogger. " +
 						"Look for ERROR in log file to see if the database classes " +
@@ -640,7 +1010,7 @@ public class DataDbLogger {
 
 				
 		// Wait for all data to be processed
-		while(logger.queueHasData())
+		while(logger.queueSize() > 0)
 			Time.sleep(1000);
 	}
 
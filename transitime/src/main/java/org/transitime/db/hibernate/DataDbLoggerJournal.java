@@ -0,0 +1,415 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.DbSetupConfig;
+
+/**
+ * An append only journal on local disk for DataDbLogger. When the database
+ * is slow or down and the DataDbLogger queue fills up the objects are
+ * written to the journal instead of being lost. They are later replayed into
+ * the DataDbLogger queue once the database is available again.
+ * <p>
+ * The journal consists of segment files. Objects are appended to the current
+ * segment. When the segment gets too large, or when the replayer wants to
+ * replay it, the segment is closed and a new one is started. Only closed
+ * segments are replayed and a segment is deleted only after all of its
+ * objects have been written to the database. Segments left over from a
+ * previous run, such as after a crash, are replayed at startup.
+ * <p>
+ * Each record is the length of the serialized object followed by the
+ * serialized object itself. If the application crashes while writing a
+ * record then the partial record at the end of the segment is simply
+ * ignored.
+ * <p>
+ * append() only returns once the record has been forced to disk so that
+ * journaled objects survive an OS crash or power loss, not just the
+ * application stopping. The fsync is a group commit: while one thread is
+ * forcing the segment other threads can append, and a single fsync then
+ * covers all of the records appended before it started.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class DataDbLoggerJournal {
+
+	// Where the segment files are stored
+	private final File directory;
+
+	// For naming the segment files
+	private final String agencyId;
+
+	// The segment currently being written to. Null if no segment open.
+	private File currentSegmentFile = null;
+	private FileOutputStream fileOut = null;
+	private DataOutputStream out = null;
+	private long currentSegmentSize = 0;
+
+	// For naming the next segment file
+	private long nextSegmentNumber;
+
+	// For logging. Also used as the sequence number of the records for
+	// determining which records have been forced to disk.
+	private long journaledCount = 0;
+
+	// Number of records that are known to have been forced to disk. An
+	// AtomicLong instead of being guarded by syncLock since it is also 
+	// updated while synchronized on this, and syncLock is acquired before 
+	// this.
+	private final AtomicLong syncedCount = new AtomicLong();
+
+	// So that only one thread at a time forces the segment to disk while
+	// other threads can continue to append. Must be acquired before
+	// synchronizing on this.
+	private final Object syncLock = new Object();
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DataDbLoggerJournal.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. Determines the number to use for the next segment file
+	 * so that segments from a previous run are not overwritten.
+	 *
+	 * @param agencyId
+	 */
+	DataDbLoggerJournal(String agencyId) {
+		this(agencyId,
+				new File(DbSetupConfig.getDataDbLoggerJournalDirectory()));
+	}
+
+	/**
+	 * Constructor for using the specified directory instead of the
+	 * configured one. Package-private so that can be used for testing.
+	 *
+	 * @param agencyId
+	 * @param directory
+	 */
+	DataDbLoggerJournal(String agencyId, File directory) {
+		this.agencyId = agencyId;
+		this.directory = directory;
+		directory.mkdirs();
+
+		File[] existingSegments = getSegmentFiles();
+		nextSegmentNumber = existingSegments.length == 0 ?
+				0 : getSegmentNumber(existingSegments[
+						existingSegments.length - 1]) + 1;
+		if (existingSegments.length > 0) {
+			logger.warn("Found {} DataDbLogger journal segments in {} from a "
+					+ "previous run. They will be replayed into the database.",
+					existingSegments.length, directory);
+		}
+	}
+
+	/**
+	 * @return true if transitime.db.dataDbLoggerJournalDirectory is set
+	 */
+	public static boolean isEnabled() {
+		return DbSetupConfig.getDataDbLoggerJournalDirectory() != null;
+	}
+
+	/**
+	 * Returns the segment files in the journal directory for the agency,
+	 * sorted so that the oldest is first.
+	 *
+	 * @return array of segment files
+	 */
+	private File[] getSegmentFiles() {
+		final String prefix = agencyId + "_";
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+
+		// Since the segment numbers are zero padded sorting by name sorts
+		// by age
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * @param segmentFile
+	 * @return the segment number from the file name
+	 */
+	private long getSegmentNumber(File segmentFile) {
+		String name = segmentFile.getName();
+		return Long.parseLong(name.substring(agencyId.length() + 1,
+				name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Opens up a new segment file for writing.
+	 *
+	 * @throws IOException
+	 */
+	private void openNewSegment() throws IOException {
+		currentSegmentFile = new File(directory, String.format("%s_%015d%s",
+				agencyId, nextSegmentNumber++, SEGMENT_SUFFIX));
+		fileOut = new FileOutputStream(currentSegmentFile);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		currentSegmentSize = 0;
+	}
+
+	/**
+	 * Closes the current segment, if there is one, so that it can be
+	 * replayed. The segment is forced to disk first so that all records
+	 * appended so far are durable.
+	 */
+	private void closeCurrentSegment() {
+		if (out == null)
+			return;
+
+		try {
+			out.flush();
+			fileOut.getChannel().force(false);
+			markSynced(journaledCount);
+		} catch (IOException e) {
+			logger.error("Error forcing DataDbLogger journal segment {} to "
+					+ "disk. {}", currentSegmentFile, e.getMessage(), e);
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.error("Error closing DataDbLogger journal segment {}. {}",
+					currentSegmentFile, e.getMessage(), e);
+		}
+		out = null;
+		fileOut = null;
+		currentSegmentFile = null;
+	}
+
+	/**
+	 * Records that the records up through sequenceNumber have been forced
+	 * to disk.
+	 *
+	 * @param sequenceNumber
+	 */
+	private void markSynced(long sequenceNumber) {
+		long synced;
+		do {
+			synced = syncedCount.get();
+		} while (sequenceNumber > synced
+				&& !syncedCount.compareAndSet(synced, sequenceNumber));
+	}
+
+	/**
+	 * Makes sure that the record with the specified sequence number has been
+	 * forced to disk. If another thread already did so while this thread was
+	 * waiting then there is nothing to do. Otherwise forces all of the
+	 * records appended so far, so that a single fsync covers a whole batch
+	 * of concurrent appends.
+	 *
+	 * @param sequenceNumber
+	 * @throws IOException
+	 */
+	private void syncThrough(long sequenceNumber) throws IOException {
+		synchronized (syncLock) {
+			if (syncedCount.get() >= sequenceNumber)
+				return;
+
+			// Determine what is being synced. The data was already flushed
+			// to the file system by append().
+			FileOutputStream fileOutToSync;
+			long lastSequenceNumber;
+			synchronized (this) {
+				fileOutToSync = fileOut;
+				lastSequenceNumber = journaledCount;
+			}
+
+			try {
+				if (fileOutToSync != null) {
+					fileOutToSync.getChannel().force(false);
+					markSynced(lastSequenceNumber);
+					return;
+				}
+			} catch (ClosedChannelException e) {
+				// Closed by another thread, which forced it when closing
+			}
+			
+			// The segment was closed, which forces it to disk. But if that
+			// failed then the record is not durable.
+			if (syncedCount.get() < sequenceNumber)
+				throw new IOException("Journal segment was closed without "
+						+ "being forced to disk");
+		}
+	}
+
+	/**
+	 * Appends the object to the journal. Only returns once the record has
+	 * been forced to disk so that it isn't lost even if the OS crashes.
+	 *
+	 * @param o
+	 *            The object to be stored. Must be Serializable.
+	 * @return true if successfully written to the journal
+	 */
+	public boolean append(Object o) {
+		if (!(o instanceof Serializable)) {
+			logger.error("Cannot write object to DataDbLogger journal "
+					+ "because it is not Serializable. {}", o);
+			return false;
+		}
+
+		long sequenceNumber;
+		try {
+			// Serialize the object separately so can write its length first
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+			objectOut.writeObject(o);
+			objectOut.close();
+
+			synchronized (this) {
+				try {
+					if (out == null)
+						openNewSegment();
+					out.writeInt(bytes.size());
+					bytes.writeTo(out);
+					out.flush();
+					currentSegmentSize += 4 + bytes.size();
+					sequenceNumber = ++journaledCount;
+
+					// If segment large enough then start a new one next time.
+					// Closing forces the segment to disk.
+					if (currentSegmentSize >= DbSetupConfig
+							.getDataDbLoggerJournalSegmentSizeMB() 
+								* 1024L * 1024L)
+						closeCurrentSegment();
+				} catch (IOException e) {
+					closeCurrentSegment();
+					throw e;
+				}
+			}
+
+			// Force to disk outside of the lock so that other threads can
+			// append while syncing
+			syncThrough(sequenceNumber);
+			return true;
+		} catch (IOException e) {
+			logger.error("Could not write object to DataDbLogger journal "
+					+ "segment {}. {}", currentSegmentFile, e.getMessage(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the segments that are ready to be replayed, oldest first. If
+	 * the current segment has data then it is closed so that it is included.
+	 *
+	 * @return List of segment files, possibly empty
+	 */
+	public synchronized List<File> getSegmentsToReplay() {
+		if (currentSegmentSize > 0)
+			closeCurrentSegment();
+
+		List<File> segments = new ArrayList<File>();
+		for (File segment : getSegmentFiles()) {
+			if (!segment.equals(currentSegmentFile))
+				segments.add(segment);
+		}
+		return segments;
+	}
+
+	/**
+	 * Reads all of the objects from the segment. If the segment ends with a
+	 * partially written record, which can happen if the application crashed
+	 * while writing it, then that record is ignored.
+	 *
+	 * @param segment
+	 * @return the objects in the segment
+	 * @throws IOException
+	 */
+	public List<Object> readSegment(File segment) throws IOException {
+		List<Object> objects = new ArrayList<Object>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment)));
+		try {
+			while (true) {
+				byte[] bytes;
+				try {
+					bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					// End of segment, or partial record at the end
+					break;
+				}
+
+				ObjectInputStream objectIn =
+						new ObjectInputStream(new ByteArrayInputStream(bytes));
+				try {
+					objects.add(objectIn.readObject());
+				} catch (ClassNotFoundException e) {
+					logger.error("Could not read object from DataDbLogger "
+							+ "journal segment {}. {}", segment,
+							e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return objects;
+	}
+
+	/**
+	 * Deletes the segment once all of its objects have been written to the
+	 * database.
+	 *
+	 * @param segment
+	 */
+	public void deleteSegment(File segment) {
+		if (!segment.delete())
+			logger.error("Could not delete DataDbLogger journal segment {}",
+					segment);
+	}
+
+	/**
+	 * @return Number of objects written to the journal since startup
+	 */
+	public synchronized long getJournaledCount() {
+		return journaledCount;
+	}
+}
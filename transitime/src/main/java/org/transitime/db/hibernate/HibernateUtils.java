@@ -137,6 +137,16 @@ public class HibernateUtils {
 			config.setProperty("hibernate.connection.password", 
 					DbSetupConfig.getDbPassword());
 		
+		// If JDBC batch size configured then use it instead of the value
+		// from the hibernate config file. Also order the inserts so that
+		// objects of the same type are batched together.
+		Integer jdbcBatchSize = DbSetupConfig.getJdbcBatchSize();
+		if (jdbcBatchSize != null) {
+			config.setProperty("hibernate.jdbc.batch_size", 
+					Integer.toString(jdbcBatchSize));
+			config.setProperty("hibernate.order_inserts", "true");
+		}
+		
 		// Log info, but don't log password. This can just be debug logging
 		// even though it is important because the C3P0 connector logs the info.
 		logger.info("For Hibernate factory project dbName={} " +
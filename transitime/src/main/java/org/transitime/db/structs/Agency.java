@@ -80,11 +80,13 @@ public class Agency implements Serializable {
 	private final Extent extent;
 	
 
+	// Declared transient so that these cached objects are not included
+	// when a config snapshot is serialized
 	@Transient
-	private TimeZone timezone = null;
+	private transient TimeZone timezone = null;
 	
 	@Transient
-	private Time time = null;
+	private transient Time time = null;
 	
 	// Because Hibernate requires objects with composite Ids to be Serializable
 	private static final long serialVersionUID = -3381456129303325040L;
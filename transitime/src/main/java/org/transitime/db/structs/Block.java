@@ -21,8 +21,11 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,6 +41,7 @@ import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.OrderColumn;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
@@ -135,6 +139,18 @@ public final class Block implements Serializable {
 	@Column(length=500)
 	private final HashSet<String> routeIds;
 	
+	// When the schedule is eagerly loaded at startup this is set to an
+	// unmodifiable copy of the trips so that getTrips() doesn't need to
+	// check with Hibernate nor lock. Null if trips are lazy loaded.
+	@Transient
+	private volatile List<Trip> materializedTrips = null;
+	
+	// For quickly finding the trips that are active at a time of day instead
+	// of having to look at every trip. Lazily created since requires the
+	// trips to have been loaded.
+	@Transient
+	private transient volatile TripTimesIndex tripTimesIndex = null;
+	
 	// For making sure only lazy load trips collection via one thread
 	// at a time.
 	private static final Object lazyLoadingSyncObject = new Object();
@@ -368,6 +384,153 @@ public final class Block implements Serializable {
 		return true;
 	}
 	
+	/**
+	 * Start and end times of the trips of a block, sorted so that the trips
+	 * active at a time of day can be found with a binary search instead of
+	 * looking at every trip. Immutable. Package-private so that it can be
+	 * tested without needing Trip objects.
+	 */
+	static class TripTimesIndex {
+		// Start time of the first trip of the block
+		private final int firstTripStartTime;
+		
+		// For each trip, in block order, the max end time of the trips up to
+		// and including that trip. Non-decreasing so can binary search it.
+		private final int[] maxEndTimesInTripOrder;
+		
+		// The trip indexes sorted by trip start time, the corresponding start
+		// and end times, and the max end time of the trips up to and
+		// including that position.
+		private final int[] tripIndexesByStartTime;
+		private final int[] sortedStartTimes;
+		private final int[] endTimesByStartTime;
+		private final int[] maxEndTimesByStartTime;
+		
+		/**
+		 * @param startTimes
+		 *            Start time of each trip, in block order
+		 * @param endTimes
+		 *            End time of each trip, in block order
+		 */
+		TripTimesIndex(final int[] startTimes, int[] endTimes) {
+			int numTrips = startTimes.length;
+			firstTripStartTime = numTrips > 0 ? startTimes[0] : 0;
+			
+			maxEndTimesInTripOrder = new int[numTrips];
+			int maxEndTime = Integer.MIN_VALUE;
+			for (int i = 0; i < numTrips; ++i) {
+				maxEndTime = Math.max(maxEndTime, endTimes[i]);
+				maxEndTimesInTripOrder[i] = maxEndTime;
+			}
+			
+			Integer[] sortedIndexes = new Integer[numTrips];
+			for (int i = 0; i < numTrips; ++i)
+				sortedIndexes[i] = i;
+			Arrays.sort(sortedIndexes, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Integer.compare(startTimes[i1], startTimes[i2]);
+				}
+			});
+			
+			tripIndexesByStartTime = new int[numTrips];
+			sortedStartTimes = new int[numTrips];
+			endTimesByStartTime = new int[numTrips];
+			maxEndTimesByStartTime = new int[numTrips];
+			maxEndTime = Integer.MIN_VALUE;
+			for (int i = 0; i < numTrips; ++i) {
+				int tripIndex = sortedIndexes[i];
+				tripIndexesByStartTime[i] = tripIndex;
+				sortedStartTimes[i] = startTimes[tripIndex];
+				endTimesByStartTime[i] = endTimes[tripIndex];
+				maxEndTime = Math.max(maxEndTime, endTimes[tripIndex]);
+				maxEndTimesByStartTime[i] = maxEndTime;
+			}
+		}
+		
+		/**
+		 * Returns the index of the first trip whose end time is after
+		 * secondsIntoDay, as long as secondsIntoDay is after the start of the
+		 * first trip. Since trips are in order this is the trip where
+		 * secondsIntoDay lies between the end time of the previous trip and
+		 * the end time of the trip.
+		 * 
+		 * @param secondsIntoDay
+		 * @return index of trip, or -1 if no match
+		 */
+		int activeTripIndex(int secondsIntoDay) {
+			int numTrips = maxEndTimesInTripOrder.length;
+			if (numTrips == 0 || secondsIntoDay <= firstTripStartTime)
+				return -1;
+			
+			int low = 0;
+			int high = numTrips;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (maxEndTimesInTripOrder[mid] > secondsIntoDay)
+					high = mid;
+				else
+					low = mid + 1;
+			}
+			return low < numTrips ? low : -1;
+		}
+		
+		/**
+		 * Sets the bits for the trips where secondsIntoDay is after
+		 * allowableEarlySecs before the trip start time and before the trip
+		 * end time.
+		 * 
+		 * @param secondsIntoDay
+		 * @param allowableEarlySecs
+		 * @param tripIndexes
+		 *            Bits are set for the indexes of the active trips
+		 */
+		void setActiveTrips(int secondsIntoDay, int allowableEarlySecs,
+				BitSet tripIndexes) {
+			// Find the first trip with startTime - allowableEarlySecs at or
+			// after secondsIntoDay. Only trips before it can be active.
+			long limit = (long) secondsIntoDay + allowableEarlySecs;
+			int low = 0;
+			int high = sortedStartTimes.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (sortedStartTimes[mid] < limit)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			
+			// Go backwards until all the earlier trips have ended
+			for (int i = low - 1; i >= 0; --i) {
+				if (maxEndTimesByStartTime[i] <= secondsIntoDay)
+					break;
+				if (secondsIntoDay < endTimesByStartTime[i])
+					tripIndexes.set(tripIndexesByStartTime[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the TripTimesIndex for the block, creating it if necessary.
+	 * 
+	 * @return the index
+	 */
+	private TripTimesIndex getTripTimesIndex() {
+		TripTimesIndex index = tripTimesIndex;
+		if (index == null) {
+			List<Trip> trips = getTrips();
+			int[] startTimes = new int[trips.size()];
+			int[] endTimes = new int[trips.size()];
+			for (int i = 0; i < trips.size(); ++i) {
+				startTimes[i] = trips.get(i).getStartTime();
+				endTimes[i] = trips.get(i).getEndTime();
+			}
+			index = new TripTimesIndex(startTimes, endTimes);
+			tripTimesIndex = index;
+		}
+		return index;
+	}
+	
 	/**
 	 * Finds the trip for the block where secondsIntoDay lies between
 	 * the end time of the previous trip and the end time of the current
@@ -377,18 +540,7 @@ public final class Block implements Serializable {
 	 * @return index of trip, or -1 if no match
 	 */
 	private int activeTripIndex(int secondsIntoDay) {
-		List<Trip> trips = getTrips();
-		int previousTripEndTimeSecs = trips.get(0).getStartTime();
-		for (int i=0; i<trips.size(); ++i) {
-			Trip trip = trips.get(i);
-			int tripEndTimeSecs = trip.getEndTime();
-			if (secondsIntoDay > previousTripEndTimeSecs 
-					&& secondsIntoDay < tripEndTimeSecs) {
-				return i;
-			}
-		}
-
-		return -1;
+		return getTripTimesIndex().activeTripIndex(secondsIntoDay);
 	}
 	
 	/**
@@ -690,14 +842,29 @@ public final class Block implements Serializable {
 		// Convenience variable
 		String vehicleId = avlReport.getVehicleId();
 		
-		// Go through trips and find ones 
-		List<Trip> trips = getTrips();
-		for (Trip trip : trips) {			
-			// If time of avlReport is within reasonable time of the trip
-			// time then this trip should be returned.  
-			int secsInDayForAvlReport = 
-					Core.getInstance().getTime().getSecondsIntoDay(avlReport.getDate());
+		int secsInDayForAvlReport = 
+				Core.getInstance().getTime().getSecondsIntoDay(avlReport.getDate());
 
+		// Use the index to determine the candidate trips for the time, as
+		// well as for a day before and after to handle trips that span
+		// midnight, instead of looking at every trip
+		List<Trip> trips = getTrips();
+		TripTimesIndex index = getTripTimesIndex();
+		int allowableEarlyTimeSecs = 
+				CoreConfig.getAllowableEarlyForLayoverSeconds();
+		BitSet candidateTripIndexes = new BitSet(trips.size());
+		index.setActiveTrips(secsInDayForAvlReport, allowableEarlyTimeSecs, 
+				candidateTripIndexes);
+		index.setActiveTrips(secsInDayForAvlReport - Time.SEC_PER_DAY,
+				allowableEarlyTimeSecs, candidateTripIndexes);
+		index.setActiveTrips(secsInDayForAvlReport + Time.SEC_PER_DAY,
+				allowableEarlyTimeSecs, candidateTripIndexes);
+		
+		// Go through candidate trips, in block order, and add the active ones
+		for (int i = candidateTripIndexes.nextSetBit(0); i >= 0; 
+				i = candidateTripIndexes.nextSetBit(i + 1)) {
+			Trip trip = trips.get(i);
+			
 			// If the trip is active then add it to the list of active trips 
 			boolean tripIsActive = 
 					addTripIfActive(vehicleId, secsInDayForAvlReport, trip, tripsThatMatchTime);
@@ -767,6 +934,12 @@ public final class Block implements Serializable {
 	 * @return the trips as an unmodifiable collection
 	 */
 	public List<Trip> getTrips() {
+		// If trips were eagerly loaded then can simply return them without
+		// needing to check with Hibernate
+		List<Trip> theMaterializedTrips = materializedTrips;
+		if (theMaterializedTrips != null)
+			return theMaterializedTrips;
+		
 		// If trips already lazy loaded then simply return them
 		if (Hibernate.isInitialized(trips))
 			return Collections.unmodifiableList(trips);
@@ -913,6 +1086,40 @@ public final class Block implements Serializable {
 		return Collections.unmodifiableList(trips);
 	}
 	
+	/**
+	 * For when eagerly loading the schedule at startup. Loads the trips for
+	 * the block, along with the associated trip patterns, stop paths, and
+	 * schedule times, and then keeps an unmodifiable copy of the trips so that
+	 * getTrips() can return them without any locking or database access.
+	 * Intended to be called just once, before the block is accessed by
+	 * multiple threads.
+	 * 
+	 * @return the trips for the block
+	 */
+	public List<Trip> materializeTrips() {
+		// Read in the trips using the session that the block was read with.
+		// Can't use the lazy loading in getTrips() since that accesses the
+		// Core singleton, which isn't available while the config is still
+		// being read in.
+		synchronized (lazyLoadingSyncObject) {
+			if (!Hibernate.isInitialized(trips))
+				Hibernate.initialize(trips);
+		}
+		List<Trip> loadedTrips = trips;
+		
+		// Trip patterns, stop paths, and travel times are eagerly fetched by
+		// Hibernate along with the trips, but access them here so that
+		// everything is definitely in memory
+		for (Trip trip : loadedTrips) {
+			trip.getScheduleTimes().size();
+			trip.getTripPattern().getStopPaths().size();
+		}
+		
+		materializedTrips = 
+				Collections.unmodifiableList(new ArrayList<Trip>(loadedTrips));
+		return materializedTrips;
+	}
+	
 	/**
 	 * So can sync up loading of trip and trip pattern data when trips are all
 	 * read at once in another class as opposed to through Block.getTrips().
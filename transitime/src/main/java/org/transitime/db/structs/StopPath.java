@@ -38,6 +38,7 @@ import org.transitime.applications.Core;
 import org.transitime.configData.CoreConfig;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.utils.Geo;
+import org.transitime.utils.ProjectedPath;
 
 
 /**
@@ -127,6 +128,11 @@ public class StopPath implements Serializable, Lifecycle {
 	@Transient
 	private List<VectorWithHeading> vectors = null;
 	
+	// Primitive array version of the path so that spatial matching can
+	// quickly determine distances without creating objects. Lazily created.
+	@Transient
+	private transient volatile ProjectedPath projectedPath = null;
+	
 	// Because Hibernate requires objects with composite IDs to be Serializable
 	private static final long serialVersionUID = 8170734640228933095L;
 
@@ -560,6 +566,23 @@ public class StopPath implements Serializable, Lifecycle {
 		return vectors;
 	}
 	
+	/**
+	 * Returns the path as primitive arrays so that distances to segments can
+	 * be determined quickly. Created the first time it is needed. Since it
+	 * is immutable there is no harm if it is created more than once by
+	 * different threads.
+	 * 
+	 * @return the ProjectedPath for this stop path
+	 */
+	public ProjectedPath getProjectedPath() {
+		ProjectedPath path = projectedPath;
+		if (path == null) {
+			path = new ProjectedPath(locations);
+			projectedPath = path;
+		}
+		return path;
+	}
+	
 	/**
 	 * Returns the vector for the specified segment.
 	 * 
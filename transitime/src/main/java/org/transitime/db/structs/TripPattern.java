@@ -584,14 +584,15 @@ public class TripPattern implements Serializable, Lifecycle {
 	
 	/**
 	 * Returns the StopPath for this TripPattern as specified by the stopId
-	 * parameter. Uses a map so is reasonably fast. Synchronized to make sure
-	 * that only a single thread can initialize the transient map.
+	 * parameter. Uses a map so is reasonably fast. Not synchronized since the
+	 * transient map is only written to by onLoad(), before the TripPattern is
+	 * made available to other threads.
 	 * 
 	 * @param stopId
 	 * @return The StopPath specified by the stop ID, or null if this
 	 *         TripPattern does not contain that stop.
 	 */
-	public synchronized StopPath getStopPath(String stopId) {
+	public StopPath getStopPath(String stopId) {
 		// Return the StopPath specified by the stop ID
 		return stopPathsMap.get(stopId);
 	}
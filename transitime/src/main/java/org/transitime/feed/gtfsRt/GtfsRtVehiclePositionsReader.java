@@ -34,6 +34,7 @@ import org.transitime.utils.MathUtils;
 import org.transitime.utils.Time;
 
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.Position;
@@ -102,148 +103,149 @@ public class GtfsRtVehiclePositionsReader {
 	}
 	
 	/**
-	 * For each vehicle in the GTFS-realtime message put AvlReport into list.
+	 * Converts a GTFS-realtime entity into an AvlReport.
 	 * 
-	 * @param message
-	 *            Contains all of the VehiclePosition objects
-	 * @return List of AvlReports
+	 * @param entity
+	 * @return the AvlReport, or null if the entity is not a vehicle position
+	 *         or doesn't have the needed info
 	 */
-	private static Collection<AvlReport> processMessage(FeedMessage message) {
-		logger.info("Processing each individual AvlReport...");
-		IntervalTimer timer = new IntervalTimer();
+	private static AvlReport processEntity(FeedEntity entity) {
+		// If no vehicles in the entity then nothing to process 
+		if (!entity.hasVehicle())
+			return null;
 		
-		// The return value for the method
-		Collection<AvlReport> avlReportsReadIn = new ArrayList<AvlReport>();
+		// Get the object describing the vehicle
+		VehiclePosition vehicle = entity.getVehicle();
 		
-		// For each entity/vehicle process the data
-		for (FeedEntity entity : message.getEntityList()) {
-			// If no vehicles in the entity then nothing to process 
-			if (!entity.hasVehicle())
-				continue;
-			
-			// Get the object describing the vehicle
-			VehiclePosition vehicle = entity.getVehicle();
-			
-			// Determine vehicle ID. If no vehicle ID then can't handle it.
-			String vehicleId = getVehicleId(vehicle);
-			if (vehicleId == null) 
-				continue;
+		// Determine vehicle ID. If no vehicle ID then can't handle it.
+		String vehicleId = getVehicleId(vehicle);
+		if (vehicleId == null) 
+			return null;
 
-			// Determine the GPS time. If time is not available then use the
-			// current time. This is really a bad idea though because the 
-			// latency will be quite large, resulting in inaccurate predictions
-			// and arrival times. But better than not having a time at all.
-			long gpsTime;
-			if (vehicle.hasTimestamp())
-				gpsTime = vehicle.getTimestamp()*Time.MS_PER_SEC;
-			else {
-				logger.warn("For vehicleId={} GPS time not available in "
-						+ "GTFS-realtime feed so using system time, which is "
-						+ "not accurate!",
-						vehicleId);
-				gpsTime = System.currentTimeMillis();
-			}
-			
-			// Determine the position data
-		    Position position = vehicle.getPosition();
-		    
-		    // If no position then cannot handle the data
-		    if (!position.hasLatitude() || !position.hasLongitude())
-		    	continue;
-		    
-		    double lat = position.getLatitude();
-		    double lon = position.getLongitude();
-		    
-		    // Handle speed and heading
-		    float speed = Float.NaN;
-		    if (position.hasSpeed()) {
-		    	speed = position.getSpeed();
-		    }
-		    float heading = Float.NaN;
-		    if (position.hasBearing()) {
-		    	heading = position.getBearing();
-		    	
-		    	// rtd-denver at least sets bearing to 65535.0 when vehicle 
-		    	// not moving. For this special case reset heading to NaN.
-		    	if (heading == 65535.0)
-		    		heading = Float.NaN;
-		    }
-		    
-			// Create the core AVL object. The feed can provide a silly amount 
-		    // of precision so round to just 5 decimal places.
+		// Determine the GPS time. If time is not available then use the
+		// current time. This is really a bad idea though because the 
+		// latency will be quite large, resulting in inaccurate predictions
+		// and arrival times. But better than not having a time at all.
+		long gpsTime;
+		if (vehicle.hasTimestamp())
+			gpsTime = vehicle.getTimestamp()*Time.MS_PER_SEC;
+		else {
+			logger.warn("For vehicleId={} GPS time not available in "
+					+ "GTFS-realtime feed so using system time, which is "
+					+ "not accurate!",
+					vehicleId);
+			gpsTime = System.currentTimeMillis();
+		}
+		
+		// Determine the position data
+	    Position position = vehicle.getPosition();
+	    
+	    // If no position then cannot handle the data
+	    if (!position.hasLatitude() || !position.hasLongitude())
+	    	return null;
+	    
+	    double lat = position.getLatitude();
+	    double lon = position.getLongitude();
+	    
+	    // Handle speed and heading
+	    float speed = Float.NaN;
+	    if (position.hasSpeed()) {
+	    	speed = position.getSpeed();
+	    }
+	    float heading = Float.NaN;
+	    if (position.hasBearing()) {
+	    	heading = position.getBearing();
+	    	
+	    	// rtd-denver at least sets bearing to 65535.0 when vehicle 
+	    	// not moving. For this special case reset heading to NaN.
+	    	if (heading == 65535.0)
+	    		heading = Float.NaN;
+	    }
+	    
+		// Create the core AVL object. The feed can provide a silly amount 
+	    // of precision so round to just 5 decimal places.
             // AvlReport is expecting time in ms while the proto provides it in
-		    // seconds
-			AvlReport avlReport = new AvlReport(vehicleId, 
-					gpsTime,
-					MathUtils.round(lat, 5), MathUtils.round(lon, 5), speed,
-					heading,
-					"GTFS-rt",
-					null, // leadingVehicleId,
-					null, // driverId
-					getLicensePlate(vehicle), 
-					null, // passengerCount
-					Float.NaN); // passengerFullness
-			
-			// Determine vehicle assignment information. Trip assignments
-			// are more useful than route assignments so check trip
-			// assignment first.
-			if (vehicle.hasTrip()) {
-				TripDescriptor tripDescriptor = vehicle.getTrip();
-				if (tripDescriptor.hasTripId()) {
-					avlReport.setAssignment(tripDescriptor.getTripId(), 
-							AssignmentType.TRIP_ID);
-				} else if (tripDescriptor.hasRouteId()) {
-					avlReport.setAssignment(tripDescriptor.getRouteId(), 
-							AssignmentType.ROUTE_ID);
-				}
-			}
-			
-			avlReportsReadIn.add(avlReport);
-			
-			logger.debug("Processed {}", avlReport);
-		  }
+	    // seconds
+		AvlReport avlReport = new AvlReport(vehicleId, 
+				gpsTime,
+				MathUtils.round(lat, 5), MathUtils.round(lon, 5), speed,
+				heading,
+				"GTFS-rt",
+				null, // leadingVehicleId,
+				null, // driverId
+				getLicensePlate(vehicle), 
+				null, // passengerCount
+				Float.NaN); // passengerFullness
 		
-		logger.info("Successfully processed {} AVL reports from " +
-				"GTFS-realtime feed in {} msec",
-				avlReportsReadIn.size(), timer.elapsedMsec());
+		// Determine vehicle assignment information. Trip assignments
+		// are more useful than route assignments so check trip
+		// assignment first.
+		if (vehicle.hasTrip()) {
+			TripDescriptor tripDescriptor = vehicle.getTrip();
+			if (tripDescriptor.hasTripId()) {
+				avlReport.setAssignment(tripDescriptor.getTripId(), 
+						AssignmentType.TRIP_ID);
+			} else if (tripDescriptor.hasRouteId()) {
+				avlReport.setAssignment(tripDescriptor.getRouteId(), 
+						AssignmentType.ROUTE_ID);
+			}
+		}
 		
-		return avlReportsReadIn;
+		logger.debug("Processed {}", avlReport);
+		return avlReport;
 	}
 	
 	/**
-	 * Actually processes the GTFS-realtime file and calls handleAvlReport()
-	 * for each AvlReport.
+	 * Actually processes the GTFS-realtime file and returns the AvlReports.
+	 * The entities are parsed one at a time from the stream instead of
+	 * parsing the entire FeedMessage into memory first. This is done by
+	 * reading the FeedMessage fields directly: the header is skipped and
+	 * each entity is parsed separately, with the size counter reset each
+	 * time so that large feeds don't hit the protobuf size limit.
 	 */
 	public static Collection<AvlReport> process(InputStream inputStream) {
 		IntervalTimer timer = new IntervalTimer();
 		
-		// Create a CodedInputStream instead of just a regular InputStream
-		// so that can change the size limit. Otherwise if file is greater
-		// than 64MB get an exception.
+		// The return value for the method
+		Collection<AvlReport> avlReportsReadIn = new ArrayList<AvlReport>();
+		
 		CodedInputStream codedStream = 
 				CodedInputStream.newInstance(inputStream);
-		// What to use instead of default 64MB limit
-		final int GTFS_SIZE_LIMIT = 200000000;
-		codedStream.setSizeLimit(GTFS_SIZE_LIMIT);	
-		
-		// Actual read in the data into a protobuffer FeedMessage object.
-		// Would prefer to do this one VehiclePosition at a time using
-		// something like VehiclePosition.parseFrom(codedStream) so that
-		// wouldn't have to load entire protobuffer file into memory. But
-		// it never seemed to complete, even for just a single call to
-		// parseFrom(). Therefore loading in entire file at once.
-		FeedMessage feedMessage;
 		try {
-			feedMessage = FeedMessage.parseFrom(codedStream);
-			logger.info("Parsing GTFS-realtime file into a FeedMessage took " +
-					"{} msec", timer.elapsedMsec());
-			return processMessage(feedMessage);
+			while (true) {
+				int tag = codedStream.readTag();
+				if (tag == 0)
+					break;
+				
+				// If not an entity, such as the header, then skip it
+				if (WireFormat.getTagFieldNumber(tag) 
+						!= FeedMessage.ENTITY_FIELD_NUMBER) {
+					codedStream.skipField(tag);
+					continue;
+				}
+				
+				// Parse just the entity
+				int length = codedStream.readRawVarint32();
+				int oldLimit = codedStream.pushLimit(length);
+				FeedEntity entity = FeedEntity.parseFrom(codedStream);
+				codedStream.popLimit(oldLimit);
+				codedStream.resetSizeCounter();
+				
+				AvlReport avlReport = processEntity(entity);
+				if (avlReport != null)
+					avlReportsReadIn.add(avlReport);
+			}
 		} catch (IOException e) {
 			logger.error("Exception when reading GTFS-realtime data from " +
-					"input stream.", e);
-			return new ArrayList<AvlReport>();
+					"input stream. Read {} AVL reports before the exception.", 
+					avlReportsReadIn.size(), e);
 		}
 		
+		logger.info("Successfully processed {} AVL reports from " +
+				"GTFS-realtime feed in {} msec",
+				avlReportsReadIn.size(), timer.elapsedMsec());
+		
+		return avlReportsReadIn;
 	}
 	
 	/**
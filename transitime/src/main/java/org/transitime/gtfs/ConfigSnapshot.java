@@ -0,0 +1,480 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.StringConfigValue;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.db.structs.FareAttribute;
+import org.transitime.db.structs.FareRule;
+import org.transitime.db.structs.Frequency;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.Transfer;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A snapshot of all of the configuration data for a config rev, stored in a
+ * local file so that the core system can start up quickly without needing to
+ * read all of the data from the database. The snapshot is written once, when
+ * GtfsFileProcessor processes new GTFS data or else the first time the core
+ * system reads the config rev from the database.
+ * <p>
+ * The file starts with a fixed header containing a magic number, the format
+ * version, the config rev, the travel times rev, and a fingerprint of the
+ * structure of the serialized classes. This way a snapshot that is for a
+ * different revision, or that was written by an incompatible version of the
+ * software, is recognized as stale and the data is instead read from the
+ * database. The header is followed by the object graph of
+ * blocks, trips, trip patterns, stop paths, and the rest of the config data,
+ * written using standard Java serialization.
+ * <p>
+ * This is therefore a serialized cache, not a flat format that can be used
+ * in place. Reading it still deserializes the whole object graph, which is
+ * faster than reading it from the database through Hibernate but is not
+ * free.
+ * <p>
+ * Java serialization by itself does not catch a db struct class changing
+ * since the classes declare a serialVersionUID. A snapshot written before a
+ * field was added would then be read with the new field simply left null or
+ * 0. Therefore the fingerprint in the header covers the names and types of
+ * the serialized fields of all of the Transitime classes that can be reached
+ * from ConfigSnapshot. If the fingerprint doesn't match, as for any other
+ * problem reading the snapshot, the config is simply read from the database
+ * and a new snapshot is written.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class ConfigSnapshot implements Serializable {
+
+	private final List<Block> blocks;
+	private final List<Route> routes;
+	private final List<TripPattern> tripPatterns;
+	private final List<Stop> stops;
+	private final List<Agency> agencies;
+	private final List<Calendar> calendars;
+	private final List<CalendarDate> calendarDates;
+	private final List<FareAttribute> fareAttributes;
+	private final List<FareRule> fareRules;
+	private final List<Frequency> frequencies;
+	private final List<Transfer> transfers;
+
+	// For identifying snapshot files. Is "TSNP" in ASCII.
+	private static final int MAGIC_NUMBER = 0x54534E50;
+
+	// Needs to be incremented whenever the format of the file changes
+	private static final int FORMAT_VERSION = 2;
+
+	// Fingerprint of the serialized fields of the classes in the snapshot.
+	// Determined when first needed.
+	private static Long schemaFingerprint = null;
+
+	private static StringConfigValue snapshotDirectory =
+			new StringConfigValue("transitime.core.configSnapshotDirectory",
+					"Directory where snapshots of the configuration data "
+					+ "are stored so that the core system can start up "
+					+ "quickly without reading all of the configuration from "
+					+ "the database. If not set then snapshots are not used.");
+
+	private static final long serialVersionUID = -2857303598361372640L;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ConfigSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. The blocks need to have had their trips materialized so
+	 * that they are included in the snapshot.
+	 */
+	public ConfigSnapshot(List<Block> blocks, List<Route> routes,
+			List<TripPattern> tripPatterns, List<Stop> stops,
+			List<Agency> agencies, List<Calendar> calendars,
+			List<CalendarDate> calendarDates,
+			List<FareAttribute> fareAttributes, List<FareRule> fareRules,
+			List<Frequency> frequencies, List<Transfer> transfers) {
+		// Copy the lists since they might be unmodifiable views, which
+		// would be needlessly serialized as wrappers
+		this.blocks = new ArrayList<Block>(blocks);
+		this.routes = new ArrayList<Route>(routes);
+		this.tripPatterns = new ArrayList<TripPattern>(tripPatterns);
+		this.stops = new ArrayList<Stop>(stops);
+		this.agencies = new ArrayList<Agency>(agencies);
+		this.calendars = new ArrayList<Calendar>(calendars);
+		this.calendarDates = new ArrayList<CalendarDate>(calendarDates);
+		this.fareAttributes = new ArrayList<FareAttribute>(fareAttributes);
+		this.fareRules = new ArrayList<FareRule>(fareRules);
+		this.frequencies = new ArrayList<Frequency>(frequencies);
+		this.transfers = new ArrayList<Transfer>(transfers);
+	}
+
+	/**
+	 * Returns true if transitime.core.configSnapshotDirectory is set,
+	 * indicating that snapshots should be used.
+	 *
+	 * @return true if snapshots enabled
+	 */
+	public static boolean isEnabled() {
+		return snapshotDirectory.getValue() != null;
+	}
+
+	/**
+	 * Adds the class, and the Transitime classes that can be reached through
+	 * the declared types of its serialized fields, to the set of classes.
+	 * Classes outside of Transitime, such as String and ArrayList, are not
+	 * included since their serialized form doesn't change.
+	 *
+	 * @param c
+	 * @param classes
+	 */
+	private static void addSerializedClasses(Class<?> c,
+			Set<Class<?>> classes) {
+		if (c == null)
+			return;
+		if (c.isArray()) {
+			addSerializedClasses(c.getComponentType(), classes);
+			return;
+		}
+		if (!c.getName().startsWith("org.transitime.")
+				|| classes.contains(c))
+			return;
+		ObjectStreamClass desc = ObjectStreamClass.lookup(c);
+		if (desc == null)
+			return;
+
+		classes.add(c);
+		addSerializedClasses(c.getSuperclass(), classes);
+		for (ObjectStreamField streamField : desc.getFields()) {
+			try {
+				// Use the generic type so that the element types of lists
+				// are included
+				Field field = c.getDeclaredField(streamField.getName());
+				addClassesOfType(field.getGenericType(), classes);
+			} catch (NoSuchFieldException e) {
+				addSerializedClasses(streamField.getType(), classes);
+			}
+		}
+	}
+
+	/**
+	 * Adds the classes of a generic type, such as List&lt;Trip&gt;, to the
+	 * set of classes.
+	 *
+	 * @param type
+	 * @param classes
+	 */
+	private static void addClassesOfType(Type type, Set<Class<?>> classes) {
+		if (type instanceof Class) {
+			addSerializedClasses((Class<?>) type, classes);
+		} else if (type instanceof ParameterizedType) {
+			ParameterizedType parameterizedType = (ParameterizedType) type;
+			addClassesOfType(parameterizedType.getRawType(), classes);
+			for (Type argument : parameterizedType.getActualTypeArguments())
+				addClassesOfType(argument, classes);
+		} else if (type instanceof GenericArrayType) {
+			addClassesOfType(
+					((GenericArrayType) type).getGenericComponentType(),
+					classes);
+		} else if (type instanceof WildcardType) {
+			for (Type bound : ((WildcardType) type).getUpperBounds())
+				addClassesOfType(bound, classes);
+		} else if (type instanceof TypeVariable) {
+			for (Type bound : ((TypeVariable<?>) type).getBounds())
+				addClassesOfType(bound, classes);
+		}
+	}
+
+	/**
+	 * Returns a fingerprint of the names and types of the serialized fields
+	 * of all of the Transitime classes that can be in a snapshot. If a db
+	 * struct class is changed then the fingerprint changes, so a snapshot
+	 * written before the change is recognized as stale.
+	 *
+	 * @return the fingerprint
+	 */
+	static synchronized long getSchemaFingerprint() {
+		if (schemaFingerprint == null) {
+			// Sort by name so that the fingerprint doesn't depend on the
+			// order that the classes were found in
+			Set<Class<?>> classes = new TreeSet<Class<?>>(
+					new Comparator<Class<?>>() {
+						@Override
+						public int compare(Class<?> c1, Class<?> c2) {
+							return c1.getName().compareTo(c2.getName());
+						}
+					});
+			addSerializedClasses(ConfigSnapshot.class, classes);
+
+			// The fields from ObjectStreamClass are already in a consistent
+			// order
+			StringBuilder sb = new StringBuilder();
+			for (Class<?> c : classes) {
+				sb.append(c.getName()).append('{');
+				for (ObjectStreamField field : 
+						ObjectStreamClass.lookup(c).getFields()) {
+					sb.append(field.getName()).append(':')
+							.append(field.getType().getName()).append(';');
+				}
+				sb.append('}');
+			}
+
+			long fingerprint = 1125899906842597L;
+			for (int i = 0; i < sb.length(); ++i)
+				fingerprint = 31 * fingerprint + sb.charAt(i);
+			schemaFingerprint = fingerprint;
+
+			logger.debug("Config snapshot schema fingerprint={} for {} "
+					+ "classes", fingerprint, classes.size());
+		}
+		return schemaFingerprint;
+	}
+
+	/**
+	 * Returns the snapshot file for the agency and config rev.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @return the snapshot file
+	 */
+	private static File getFile(String agencyId, int configRev) {
+		return new File(snapshotDirectory.getValue(),
+				agencyId + "_configRev" + configRev + ".snapshot");
+	}
+
+	/**
+	 * Writes the snapshot to a file keyed by agency and config rev. First
+	 * writes to a temporary file that is then renamed so that a partially
+	 * written file is never read. Errors are logged but not thrown since
+	 * the snapshot is only an optimization.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 *            So can tell if snapshot is stale because travel times were
+	 *            updated after it was written
+	 */
+	public void write(String agencyId, int configRev, int travelTimesRev) {
+		if (!isEnabled())
+			return;
+
+		IntervalTimer timer = new IntervalTimer();
+		File file = getFile(agencyId, configRev);
+		File tmpFile = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmpFile), 1024 * 1024));
+
+			// Write the header
+			out.writeInt(MAGIC_NUMBER);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(configRev);
+			out.writeInt(travelTimesRev);
+			out.writeLong(getSchemaFingerprint());
+
+			// Write the data
+			ObjectOutputStream objectOut = new ObjectOutputStream(out);
+			objectOut.writeObject(this);
+			objectOut.close();
+			out = null;
+
+			if (!tmpFile.renameTo(file)) {
+				// Rename can fail on some systems if file already exists
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Could not rename " + tmpFile
+							+ " to " + file);
+			}
+
+			logger.info("Wrote config snapshot file {} for configRev={} "
+					+ "travelTimesRev={}. Size={} bytes. Took {} msec.",
+					file, configRev, travelTimesRev, file.length(),
+					timer.elapsedMsec());
+		} catch (IOException e) {
+			logger.error("Could not write config snapshot file {}. {}",
+					file, e.getMessage(), e);
+			tmpFile.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads in snapshot for the specified agency and config rev.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 *            The current travel times rev. If the snapshot was written for
+	 *            a different travel times rev then it is stale and null is
+	 *            returned.
+	 * @return The snapshot, or null if snapshots not enabled or if the
+	 *         snapshot is missing, stale, or could not be read
+	 */
+	public static ConfigSnapshot read(String agencyId, int configRev,
+			int travelTimesRev) {
+		if (!isEnabled())
+			return null;
+
+		File file = getFile(agencyId, configRev);
+		if (!file.exists()) {
+			logger.info("No config snapshot file {} so will read config "
+					+ "from database.", file);
+			return null;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 1024 * 1024));
+
+			// Make sure the snapshot is for the right revs and format, and
+			// that the classes haven't changed since it was written
+			int magicNumber = in.readInt();
+			int formatVersion = in.readInt();
+			int snapshotConfigRev = in.readInt();
+			int snapshotTravelTimesRev = in.readInt();
+			long snapshotSchemaFingerprint = in.readLong();
+			if (magicNumber != MAGIC_NUMBER
+					|| formatVersion != FORMAT_VERSION
+					|| snapshotConfigRev != configRev
+					|| snapshotTravelTimesRev != travelTimesRev
+					|| snapshotSchemaFingerprint != getSchemaFingerprint()) {
+				logger.warn("Config snapshot file {} is stale so will read "
+						+ "config from database. formatVersion={} "
+						+ "configRev={} travelTimesRev={} "
+						+ "schemaFingerprint={} but expected "
+						+ "formatVersion={} configRev={} travelTimesRev={} "
+						+ "schemaFingerprint={}",
+						file, formatVersion, snapshotConfigRev,
+						snapshotTravelTimesRev, snapshotSchemaFingerprint,
+						FORMAT_VERSION, configRev, travelTimesRev,
+						getSchemaFingerprint());
+				return null;
+			}
+
+			// Read in the data
+			ObjectInputStream objectIn = new ObjectInputStream(in);
+			ConfigSnapshot snapshot = (ConfigSnapshot) objectIn.readObject();
+
+			logger.info("Read config snapshot file {} for configRev={} "
+					+ "travelTimesRev={}. Took {} msec.",
+					file, configRev, travelTimesRev, timer.elapsedMsec());
+			return snapshot;
+		} catch (Exception e) {
+			// Changes to the classes are caught by the schema fingerprint,
+			// but still might get an exception if the file is corrupted
+			logger.error("Could not read config snapshot file {} so will "
+					+ "read config from database. {}",
+					file, e.getMessage(), e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/************************** Getter Methods ***************************/
+
+	public List<Block> getBlocks() {
+		return blocks;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public List<TripPattern> getTripPatterns() {
+		return tripPatterns;
+	}
+
+	public List<Stop> getStops() {
+		return stops;
+	}
+
+	public List<Agency> getAgencies() {
+		return agencies;
+	}
+
+	public List<Calendar> getCalendars() {
+		return calendars;
+	}
+
+	public List<CalendarDate> getCalendarDates() {
+		return calendarDates;
+	}
+
+	public List<FareAttribute> getFareAttributes() {
+		return fareAttributes;
+	}
+
+	public List<FareRule> getFareRules() {
+		return fareRules;
+	}
+
+	public List<Frequency> getFrequencies() {
+		return frequencies;
+	}
+
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+}
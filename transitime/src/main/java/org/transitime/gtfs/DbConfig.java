@@ -30,6 +30,8 @@ import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.configData.CoreConfig;
+import org.transitime.core.BlocksInfo;
 import org.transitime.core.ServiceUtils;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ActiveRevisions;
@@ -60,7 +62,9 @@ import org.transitime.utils.Time;
  * DbConfig is intended for the core application such that the necessary top
  * level data can be read in at system startup. This doesn't read in all the
  * low-level data such as paths and travel times. Those items are very
- * voluminous and are therefore lazy loaded.
+ * voluminous and are therefore lazy loaded. But if
+ * transitime.core.eagerlyLoadSchedule is set then all of the schedule data
+ * is read in at startup so that it can be accessed without locking.
  * 
  * @author SkiBu Smith
  *
@@ -95,6 +99,9 @@ public class DbConfig {
 	private Map<String, List<TripPattern>> tripPatternsByRouteMap;
 	// For when reading in all trips from db. Keyed on tripId
 	private Map<String, Trip> tripsMap;
+	// For when schedule eagerly loaded at startup. Keyed on trip short name.
+	// Null if schedule is lazy loaded.
+	private Map<String, List<Trip>> tripsByShortNameMap = null;
 	// For trips that have been read in individually. Keyed on tripId.
 	private Map<String, Trip> individualTripsMap = new HashMap<String, Trip>();
 	// For trips that have been read in individually. Keyed on trip short name.
@@ -195,6 +202,17 @@ public class DbConfig {
 			// session.close();
 		}
 
+		// If re-reading the configuration for the running core then the
+		// service IDs and block indexes cached from the previous
+		// configuration are no longer valid. When first reading the
+		// configuration the Core is still being constructed so there is
+		// nothing to clear.
+		if (Core.isCoreApplication() 
+				&& Core.getInstance().getDbConfig() == this) {
+			Core.getInstance().getServiceUtils().clearCache();
+			BlocksInfo.clearCache();
+		}
+		
 		// Let user know what is going on
 		logger.info("Finished reading configuration data from database . "
 				+ "Took {} msec.", timer.elapsedMsec());
@@ -503,6 +521,19 @@ public class DbConfig {
 	 * @return The trip, or null if no such trip
 	 */
 	public Trip getTrip(String tripIdOrShortName) {
+		// If schedule was eagerly loaded then can get trip from the already
+		// read in data without needing to lock
+		if (tripsByShortNameMap != null) {
+			Trip trip = tripsMap.get(tripIdOrShortName);
+			if (trip != null)
+				return trip;
+			
+			List<Trip> tripsForShortName = 
+					tripsByShortNameMap.get(tripIdOrShortName);
+			if (tripsForShortName != null)
+				return getTripForCurrentService(tripsForShortName);
+		}
+		
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
 		// If trip not read in yet, do so now
@@ -641,6 +672,50 @@ public class DbConfig {
 		return routesMap;
 	}
 
+	/**
+	 * For when transitime.core.eagerlyLoadSchedule is set. Reads in all the
+	 * trips for all the blocks, along with their trip patterns, stop paths,
+	 * and schedule times, so that they are fully in memory and can be accessed
+	 * by multiple threads without locking. Also sets up the trip maps so that
+	 * getTrips() and getTrip() don't need to access the database.
+	 */
+	private void materializeSchedule() {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Eagerly loading trips for all {} blocks...", 
+				blocks.size());
+		
+		Map<String, Trip> allTripsMap = new HashMap<String, Trip>();
+		Map<String, List<Trip>> allTripsByShortNameMap = 
+				new HashMap<String, List<Trip>>();
+		for (Block block : blocks) {
+			for (Trip trip : block.materializeTrips()) {
+				// Same trip can be in multiple blocks, such as for 
+				// unscheduled blocks, so only add it once
+				if (allTripsMap.put(trip.getId(), trip) != null)
+					continue;
+				
+				String shortName = trip.getShortName();
+				if (shortName != null) {
+					List<Trip> tripsForShortName = 
+							allTripsByShortNameMap.get(shortName);
+					if (tripsForShortName == null) {
+						tripsForShortName = new ArrayList<Trip>(1);
+						allTripsByShortNameMap.put(shortName, 
+								tripsForShortName);
+					}
+					tripsForShortName.add(trip);
+				}
+			}
+		}
+		
+		tripsMap = Collections.unmodifiableMap(allTripsMap);
+		tripsByShortNameMap = 
+				Collections.unmodifiableMap(allTripsByShortNameMap);
+		
+		logger.info("Eagerly loading {} trips took {} msec", 
+				tripsMap.size(), timer.elapsedMsec());
+	}
+	
 	/**
 	 * Reads the individual data structures from the database.
 	 * 
@@ -655,6 +730,21 @@ public class DbConfig {
 		// and so that can read in TripPatterns later using the same session.
 		globalSession = HibernateUtils.getSession(agencyId);
 
+		// If there is an up to date snapshot of the config data then use it
+		// instead of reading everything from the database since it is
+		// much faster
+		int travelTimesRev = -1;
+		if (ConfigSnapshot.isEnabled()) {
+			travelTimesRev = 
+					ActiveRevisions.get(globalSession).getTravelTimesRev();
+			ConfigSnapshot snapshot = 
+					ConfigSnapshot.read(agencyId, configRev, travelTimesRev);
+			if (snapshot != null) {
+				processSnapshot(snapshot);
+				return;
+			}
+		}
+
 		// // NOTE. Thought that it might speed things up if would read in
 		// // trips, trip patterns, and stopPaths all at once so that can use a
 		// single
@@ -707,17 +797,7 @@ public class DbConfig {
 		agencies = Agency.getAgencies(globalSession, configRev);
 		calendars = Calendar.getCalendars(globalSession, configRev);
 		calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
-		
-		calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
-		for (CalendarDate calendarDate : calendarDates) {
-			Long time = calendarDate.getTime();
-			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
-			if (calendarDatesForDate == null) {
-				calendarDatesForDate = new ArrayList<CalendarDate>(1);
-				calendarDatesMap.put(time, calendarDatesForDate);
-			}
-			calendarDatesForDate.add(calendarDate);
-		}
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
 		
 		fareAttributes =
 				FareAttribute.getFareAttributes(globalSession, configRev);
@@ -727,6 +807,96 @@ public class DbConfig {
 
 		logger.debug("Reading everything else took {} msec",
 				timer.elapsedMsec());
+		
+		// If configured to do so, read in all of the schedule data now
+		// instead of lazy loading it while processing AVL data. Also need
+		// to do so if writing a snapshot since the snapshot needs to 
+		// contain all of the data.
+		if (CoreConfig.eagerlyLoadSchedule() || ConfigSnapshot.isEnabled())
+			materializeSchedule();
+		
+		// Write snapshot so that next time can start up quickly
+		if (ConfigSnapshot.isEnabled())
+			createSnapshot().write(agencyId, configRev, travelTimesRev);
+	}
+
+	/**
+	 * Creates a snapshot of the config data so that it can be written to a
+	 * file. The schedule must have already been materialized.
+	 * 
+	 * @return the snapshot
+	 */
+	private ConfigSnapshot createSnapshot() {
+		List<TripPattern> tripPatterns = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values()) {
+			tripPatterns.addAll(tripPatternsForRoute);
+		}
+		
+		return new ConfigSnapshot(blocks, routes, tripPatterns,
+				new ArrayList<Stop>(stopsMap.values()), agencies, calendars,
+				calendarDates, fareAttributes, fareRules, frequencies,
+				transfers);
+	}
+	
+	/**
+	 * Sets up all the config data using a snapshot that was read from a file
+	 * instead of from the database.
+	 * 
+	 * @param snapshot
+	 */
+	private void processSnapshot(ConfigSnapshot snapshot) {
+		blocks = snapshot.getBlocks();
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+
+		routes = snapshot.getRoutes();
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+
+		tripPatternsByRouteMap = 
+				putTripPatternsIntoMap(snapshot.getTripPatterns());
+		
+		List<Stop> stopsList = snapshot.getStops();
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+
+		agencies = snapshot.getAgencies();
+		calendars = snapshot.getCalendars();
+		calendarDates = snapshot.getCalendarDates();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = snapshot.getFareAttributes();
+		fareRules = snapshot.getFareRules();
+		frequencies = snapshot.getFrequencies();
+		transfers = snapshot.getTransfers();
+		
+		// The trips for the blocks were already materialized when the 
+		// snapshot was written so this just sets up the trip maps
+		materializeSchedule();
+	}
+	
+	/**
+	 * Creates map of calendar dates keyed by the epoch time of the date so
+	 * that can efficiently look up calendar dates.
+	 * 
+	 * @param calendarDates
+	 * @return map of calendar dates keyed by epoch time
+	 */
+	private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(
+			List<CalendarDate> calendarDates) {
+		Map<Long, List<CalendarDate>> map = 
+				new HashMap<Long, List<CalendarDate>>();
+		for (CalendarDate calendarDate : calendarDates) {
+			Long time = calendarDate.getTime();
+			List<CalendarDate> calendarDatesForDate = map.get(time);
+			if (calendarDatesForDate == null) {
+				calendarDatesForDate = new ArrayList<CalendarDate>(1);
+				map.put(time, calendarDatesForDate);
+			}
+			calendarDatesForDate.add(calendarDate);
+		}
+		return map;
 	}
 
 	/************************** Getter Methods ***************************/
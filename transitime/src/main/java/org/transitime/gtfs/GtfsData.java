@@ -2492,6 +2492,15 @@ public class GtfsData {
 				zipFileLastModifiedTime, notes);
 	}
 	
+	/**
+	 * Returns the config rev that the GTFS data is being stored as.
+	 * 
+	 * @return the config rev
+	 */
+	public int getConfigRev() {
+		return revs.getConfigRev();
+	}
+	
 	/*************************** Main Public Methods **********************/
 	
 	/**
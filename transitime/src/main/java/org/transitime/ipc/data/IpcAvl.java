@@ -122,7 +122,7 @@ public class IpcAvl implements Serializable {
 		private int passengerCount;
 		
 		private static final long serialVersionUID = 6220698347690060245L;
-		private static final short serializationVersion = 0;
+		private static final short serializationVersion = 1;
 
 		/*
 		 * Only to be used within this class.
@@ -151,18 +151,22 @@ public class IpcAvl implements Serializable {
 		private void writeObject(java.io.ObjectOutputStream stream)
 				throws IOException {
 			stream.writeShort(serializationVersion);
-			stream.writeObject(vehicleId);
-			stream.writeLong(time);
-			stream.writeFloat(latitude);
-			stream.writeFloat(longitude);
-			stream.writeFloat(speed);
-			stream.writeFloat(heading);
-			stream.writeObject(source);
-			stream.writeObject(assignmentId);
-			stream.writeObject(assignmentType);
-			stream.writeObject(driverId);
-			stream.writeObject(licensePlate);
-			stream.writeInt(passengerCount);
+			
+			// Since version 1 write in compact form where the IDs are
+			// interned and the time is written as a delta
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeString(vehicleId);
+			out.writeTime(time);
+			out.writeFloat(latitude);
+			out.writeFloat(longitude);
+			out.writeFloat(speed);
+			out.writeFloat(heading);
+			out.writeString(source);
+			out.writeString(assignmentId);
+			out.writeEnum(assignmentType);
+			out.writeString(driverId);
+			out.writeString(licensePlate);
+			out.writeVarInt(passengerCount);
 		}
 
 		/*
@@ -184,25 +188,42 @@ public class IpcAvl implements Serializable {
 		private void readObject(java.io.ObjectInputStream stream)
 				throws IOException, ClassNotFoundException {
 			short readVersion = stream.readShort();
-			if (serializationVersion != readVersion) {
+			if (serializationVersion < readVersion) {
 				throw new IOException("Serialization error when reading "
 						+ getClass().getSimpleName()
 						+ " object. Read serializationVersion=" + readVersion);
 			}
 
 			// serialization version is OK so read in object
-			vehicleId = (String) stream.readObject();
-			time = stream.readLong();
-			latitude = stream.readFloat();
-			longitude = stream.readFloat();
-			speed = stream.readFloat();
-			heading = stream.readFloat();
-			source = (String) stream.readObject();
-			assignmentId = (String) stream.readObject();
-			assignmentType = (AssignmentType) stream.readObject();
-			driverId = (String) stream.readObject();
-			licensePlate = (String) stream.readObject();
-			passengerCount = stream.readInt();
+			if (readVersion >= 1) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				vehicleId = in.readString();
+				time = in.readTime();
+				latitude = in.readFloat();
+				longitude = in.readFloat();
+				speed = in.readFloat();
+				heading = in.readFloat();
+				source = in.readString();
+				assignmentId = in.readString();
+				assignmentType = in.readEnum(AssignmentType.class);
+				driverId = in.readString();
+				licensePlate = in.readString();
+				passengerCount = in.readVarInt();
+			} else {
+				// Version 0 format
+				vehicleId = (String) stream.readObject();
+				time = stream.readLong();
+				latitude = stream.readFloat();
+				longitude = stream.readFloat();
+				speed = stream.readFloat();
+				heading = stream.readFloat();
+				source = (String) stream.readObject();
+				assignmentId = (String) stream.readObject();
+				assignmentType = (AssignmentType) stream.readObject();
+				driverId = (String) stream.readObject();
+				licensePlate = (String) stream.readObject();
+				passengerCount = stream.readInt();
+			}
 		}
 	}
 
@@ -0,0 +1,204 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * For reading IPC data objects that were written using IpcDataOutput. Keeps
+ * the same string table and previous time state as IpcDataOutput so must read
+ * the objects in the same order as they were written. Like IpcDataOutput the
+ * state for an ObjectInputStream is kept per thread so that no lock is
+ * needed.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcDataInput {
+
+	private final DataInput in;
+	private final State state;
+
+	// So that state can be shared by all objects read from an
+	// ObjectInputStream. Weak so that the state goes away along with the
+	// stream. Each thread has its own map so that no synchronization is
+	// needed.
+	private static final ThreadLocal<Map<ObjectInputStream, State>> 
+			stateByStream = new ThreadLocal<Map<ObjectInputStream, State>>() {
+				@Override
+				protected Map<ObjectInputStream, State> initialValue() {
+					return new WeakHashMap<ObjectInputStream, State>();
+				}
+			};
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The state shared by all objects read from a stream. Does not reference
+	 * the stream so that the stream can be garbage collected.
+	 */
+	private static class State {
+		private final List<String> strings = new ArrayList<String>();
+		private long previousTime = 0;
+	}
+
+	/**
+	 * Creates an IpcDataInput with its own state. For when reading from a
+	 * transport other than Java serialization.
+	 *
+	 * @param in
+	 */
+	public IpcDataInput(DataInput in) {
+		this(in, new State());
+	}
+
+	private IpcDataInput(DataInput in, State state) {
+		this.in = in;
+		this.state = state;
+	}
+
+	/**
+	 * Returns an IpcDataInput for the stream that shares state with all of
+	 * the other IpcDataInputs for the same stream. For use in the
+	 * readObject() method of a SerializationProxy. The stream must only be
+	 * read by a single thread, as is the case for RMI.
+	 *
+	 * @param stream
+	 * @return IpcDataInput for the stream
+	 */
+	public static IpcDataInput forStream(ObjectInputStream stream) {
+		Map<ObjectInputStream, State> statesForThread = stateByStream.get();
+		State state = statesForThread.get(stream);
+		if (state == null) {
+			state = new State();
+			statesForThread.put(stream, state);
+		}
+		return new IpcDataInput(stream, state);
+	}
+
+	/**
+	 * @return a long written by IpcDataOutput.writeUnsignedVarLong()
+	 * @throws IOException
+	 */
+	public long readUnsignedVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length long");
+	}
+
+	/**
+	 * @return a long written by IpcDataOutput.writeVarLong()
+	 * @throws IOException
+	 */
+	public long readVarLong() throws IOException {
+		long zigzag = readUnsignedVarLong();
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * @return an int written by IpcDataOutput.writeVarInt()
+	 * @throws IOException
+	 */
+	public int readVarInt() throws IOException {
+		return (int) readVarLong();
+	}
+
+	/**
+	 * @return an Integer written by IpcDataOutput.writeNullableInt()
+	 * @throws IOException
+	 */
+	public Integer readNullableInt() throws IOException {
+		return in.readBoolean() ? readVarInt() : null;
+	}
+
+	/**
+	 * @return an epoch time written by IpcDataOutput.writeTime()
+	 * @throws IOException
+	 */
+	public long readTime() throws IOException {
+		state.previousTime += readVarLong();
+		return state.previousTime;
+	}
+
+	/**
+	 * @return a string written by IpcDataOutput.writeString(). Can be null.
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+		long code = readUnsignedVarLong();
+		if (code == IpcDataOutput.NULL_STRING_CODE)
+			return null;
+
+		if (code == IpcDataOutput.NEW_STRING_CODE) {
+			String s = in.readUTF();
+			if (state.strings.size() < IpcDataOutput.MAX_STRINGS)
+				state.strings.add(s);
+			return s;
+		}
+
+		long index = code - IpcDataOutput.STRING_INDEX_OFFSET;
+		if (index >= state.strings.size())
+			throw new IOException("Invalid string index " + index
+					+ " when string table only has " + state.strings.size()
+					+ " strings");
+		return state.strings.get((int) index);
+	}
+
+	/**
+	 * Reads an enum written by IpcDataOutput.writeEnum(). If the name is not
+	 * one of the values of the enum, such as when it was written by a newer
+	 * version of the software, then null is returned.
+	 *
+	 * @param enumClass
+	 * @return the enum, or null
+	 * @throws IOException
+	 */
+	public <T extends Enum<T>> T readEnum(Class<T> enumClass)
+			throws IOException {
+		String name = readString();
+		if (name == null)
+			return null;
+		try {
+			return Enum.valueOf(enumClass, name);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public boolean readBoolean() throws IOException {
+		return in.readBoolean();
+	}
+
+	public float readFloat() throws IOException {
+		return in.readFloat();
+	}
+
+	public double readDouble() throws IOException {
+		return in.readDouble();
+	}
+}
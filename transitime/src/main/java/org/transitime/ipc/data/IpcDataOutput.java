@@ -0,0 +1,233 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * For writing IPC data objects in a compact binary form. The IPC objects,
+ * such as the ones for all predictions or all vehicles, contain the same
+ * route, stop, trip, and block IDs over and over again, and times that are
+ * close to each other. Therefore strings are interned, so that a string is
+ * only written once per stream and afterwards just its index is written.
+ * Times are written as variable length deltas from the previous time
+ * written. Integers are written as variable length zigzag encoded values so
+ * that small values only take a single byte.
+ * <p>
+ * The string table and previous time are state shared by all of the objects
+ * written to a stream, and IpcDataInput keeps the same state when reading.
+ * When used from the writeObject() method of a SerializationProxy the state
+ * is associated with the ObjectOutputStream via forStream() so that it is
+ * shared by all of the IPC objects in an RMI response. The association is
+ * kept per thread, since an ObjectOutputStream is written by a single thread,
+ * so that serializing doesn't require a lock shared by all RMI calls. For
+ * other transports,
+ * such as a socket, an IpcDataOutput can simply be created for the
+ * connection.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcDataOutput {
+
+	private final DataOutput out;
+	private final State state;
+
+	// So that state can be shared by all objects written to an
+	// ObjectOutputStream. Weak so that the state goes away along with the
+	// stream. Each thread has its own map so that no synchronization is
+	// needed.
+	private static final ThreadLocal<Map<ObjectOutputStream, State>> 
+			stateByStream = new ThreadLocal<Map<ObjectOutputStream, State>>() {
+				@Override
+				protected Map<ObjectOutputStream, State> initialValue() {
+					return new WeakHashMap<ObjectOutputStream, State>();
+				}
+			};
+
+	// Codes written for strings. Otherwise the index in the string table
+	// plus STRING_INDEX_OFFSET is written.
+	static final int NULL_STRING_CODE = 0;
+	static final int NEW_STRING_CODE = 1;
+	static final int STRING_INDEX_OFFSET = 2;
+
+	// So that the string table can't grow without bound for a long lived
+	// stream such as a socket. Strings encountered after the table is full
+	// are simply written in full each time.
+	static final int MAX_STRINGS = 65536;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The state shared by all objects written to a stream. Does not reference
+	 * the stream so that the stream can be garbage collected.
+	 */
+	private static class State {
+		private final Map<String, Integer> stringIndexes =
+				new HashMap<String, Integer>();
+		private long previousTime = 0;
+	}
+
+	/**
+	 * Creates an IpcDataOutput with its own state. For when writing to a
+	 * transport other than Java serialization.
+	 *
+	 * @param out
+	 */
+	public IpcDataOutput(DataOutput out) {
+		this(out, new State());
+	}
+
+	private IpcDataOutput(DataOutput out, State state) {
+		this.out = out;
+		this.state = state;
+	}
+
+	/**
+	 * Returns an IpcDataOutput for the stream that shares state with all of
+	 * the other IpcDataOutputs for the same stream. For use in the
+	 * writeObject() method of a SerializationProxy. The stream must only be
+	 * written to by a single thread, as is the case for RMI.
+	 *
+	 * @param stream
+	 * @return IpcDataOutput for the stream
+	 */
+	public static IpcDataOutput forStream(ObjectOutputStream stream) {
+		Map<ObjectOutputStream, State> statesForThread = stateByStream.get();
+		State state = statesForThread.get(stream);
+		if (state == null) {
+			state = new State();
+			statesForThread.put(stream, state);
+		}
+		return new IpcDataOutput(stream, state);
+	}
+
+	/**
+	 * Writes a non-negative long using as few bytes as possible, 7 bits per
+	 * byte.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeUnsignedVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Writes a long that can be negative using zigzag encoding so that values
+	 * near zero take few bytes.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeVarLong(long value) throws IOException {
+		writeUnsignedVarLong((value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Writes an int that can be negative using zigzag encoding.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeVarInt(int value) throws IOException {
+		writeVarLong(value);
+	}
+
+	/**
+	 * Writes an Integer that can be null.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeNullableInt(Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			writeVarInt(value);
+	}
+
+	/**
+	 * Writes an epoch time as the difference from the previous time written
+	 * to the stream.
+	 *
+	 * @param epochTime
+	 * @throws IOException
+	 */
+	public void writeTime(long epochTime) throws IOException {
+		writeVarLong(epochTime - state.previousTime);
+		state.previousTime = epochTime;
+	}
+
+	/**
+	 * Writes a string, which can be null. If the string has already been
+	 * written to the stream then just its index in the string table is
+	 * written.
+	 *
+	 * @param s
+	 * @throws IOException
+	 */
+	public void writeString(String s) throws IOException {
+		if (s == null) {
+			writeUnsignedVarLong(NULL_STRING_CODE);
+			return;
+		}
+
+		Integer index = state.stringIndexes.get(s);
+		if (index != null) {
+			writeUnsignedVarLong(index + STRING_INDEX_OFFSET);
+		} else {
+			writeUnsignedVarLong(NEW_STRING_CODE);
+			out.writeUTF(s);
+			if (state.stringIndexes.size() < MAX_STRINGS)
+				state.stringIndexes.put(s, state.stringIndexes.size());
+		}
+	}
+
+	/**
+	 * Writes an enum by name, so that reordering the enum values doesn't
+	 * change the format. Since the name is interned it only takes a byte or
+	 * two after the first time.
+	 *
+	 * @param e
+	 *            Can be null
+	 * @throws IOException
+	 */
+	public void writeEnum(Enum<?> e) throws IOException {
+		writeString(e != null ? e.name() : null);
+	}
+
+	public void writeBoolean(boolean b) throws IOException {
+		out.writeBoolean(b);
+	}
+
+	public void writeFloat(float f) throws IOException {
+		out.writeFloat(f);
+	}
+
+	public void writeDouble(double d) throws IOException {
+		out.writeDouble(d);
+	}
+}
@@ -219,7 +219,7 @@ public class IpcPrediction implements Serializable {
 		private boolean isArrival;
 
 		private static final long serialVersionUID = -8585283691951746718L;
-		private static final short currentSerializationVersion = 0;
+		private static final short currentSerializationVersion = 1;
 
 		/*
 		 * Only to be used within this class.
@@ -258,26 +258,29 @@ public class IpcPrediction implements Serializable {
 				throws IOException {
 			stream.writeShort(currentSerializationVersion);
 			
-			stream.writeObject(vehicleId);
-			stream.writeObject(routeId);
-			stream.writeObject(stopId);
-			stream.writeInt(gtfsStopSeq);
-			stream.writeObject(tripId);
-			stream.writeObject(tripPatternId);
-			stream.writeObject(blockId);
-			stream.writeLong(predictionTime);
-			stream.writeBoolean(atEndOfTrip);
-			stream.writeBoolean(schedBasedPred);
-			stream.writeLong(avlTime);
-			stream.writeLong(creationTime);
-			stream.writeLong(tripStartEpochTime);
-			stream.writeBoolean(affectedByWaitStop);
-			stream.writeObject(driverId);
-			stream.writeShort(passengerCount);
-			stream.writeFloat(passengerFullness);
-			stream.writeBoolean(isArrival);
-			stream.writeBoolean(isDelayed);
-			stream.writeBoolean(lateAndSubsequentTripSoMarkAsUncertain);
+			// Since version 1 write in compact form where the IDs are
+			// interned and the times are written as deltas
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeString(vehicleId);
+			out.writeString(routeId);
+			out.writeString(stopId);
+			out.writeVarInt(gtfsStopSeq);
+			out.writeString(tripId);
+			out.writeString(tripPatternId);
+			out.writeString(blockId);
+			out.writeTime(predictionTime);
+			out.writeBoolean(atEndOfTrip);
+			out.writeBoolean(schedBasedPred);
+			out.writeTime(avlTime);
+			out.writeTime(creationTime);
+			out.writeTime(tripStartEpochTime);
+			out.writeBoolean(affectedByWaitStop);
+			out.writeString(driverId);
+			out.writeVarInt(passengerCount);
+			out.writeFloat(passengerFullness);
+			out.writeBoolean(isArrival);
+			out.writeBoolean(isDelayed);
+			out.writeBoolean(lateAndSubsequentTripSoMarkAsUncertain);
 		}
 
 		/*
@@ -297,26 +300,51 @@ public class IpcPrediction implements Serializable {
 			}
 
 			// serialization version is OK so read in object
-			vehicleId = (String) stream.readObject();
-			routeId = (String) stream.readObject();
-			stopId = (String) stream.readObject();
-			gtfsStopSeq = stream.readInt();
-			tripId = (String) stream.readObject();
-			tripPatternId = (String) stream.readObject();
-			blockId = (String) stream.readObject();
-			predictionTime = stream.readLong();
-			atEndOfTrip = stream.readBoolean();
-			schedBasedPred = stream.readBoolean();
-			avlTime = stream.readLong();
-			creationTime = stream.readLong();
-			tripStartEpochTime = stream.readLong();
-			affectedByWaitStop = stream.readBoolean();
-			driverId = (String) stream.readObject();
-			passengerCount = stream.readShort();
-			passengerFullness = stream.readFloat();
-			isArrival = stream.readBoolean();
-			isDelayed = stream.readBoolean();
-			lateAndSubsequentTripSoMarkAsUncertain = stream.readBoolean();
+			if (readVersion >= 1) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				vehicleId = in.readString();
+				routeId = in.readString();
+				stopId = in.readString();
+				gtfsStopSeq = in.readVarInt();
+				tripId = in.readString();
+				tripPatternId = in.readString();
+				blockId = in.readString();
+				predictionTime = in.readTime();
+				atEndOfTrip = in.readBoolean();
+				schedBasedPred = in.readBoolean();
+				avlTime = in.readTime();
+				creationTime = in.readTime();
+				tripStartEpochTime = in.readTime();
+				affectedByWaitStop = in.readBoolean();
+				driverId = in.readString();
+				passengerCount = (short) in.readVarInt();
+				passengerFullness = in.readFloat();
+				isArrival = in.readBoolean();
+				isDelayed = in.readBoolean();
+				lateAndSubsequentTripSoMarkAsUncertain = in.readBoolean();
+			} else {
+				// Version 0 format
+				vehicleId = (String) stream.readObject();
+				routeId = (String) stream.readObject();
+				stopId = (String) stream.readObject();
+				gtfsStopSeq = stream.readInt();
+				tripId = (String) stream.readObject();
+				tripPatternId = (String) stream.readObject();
+				blockId = (String) stream.readObject();
+				predictionTime = stream.readLong();
+				atEndOfTrip = stream.readBoolean();
+				schedBasedPred = stream.readBoolean();
+				avlTime = stream.readLong();
+				creationTime = stream.readLong();
+				tripStartEpochTime = stream.readLong();
+				affectedByWaitStop = stream.readBoolean();
+				driverId = (String) stream.readObject();
+				passengerCount = stream.readShort();
+				passengerFullness = stream.readFloat();
+				isArrival = stream.readBoolean();
+				isDelayed = stream.readBoolean();
+				lateAndSubsequentTripSoMarkAsUncertain = stream.readBoolean();
+			}
 		}
 
 		/*
@@ -22,7 +22,7 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 import org.transitime.applications.Core;
@@ -31,10 +31,15 @@ import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.Geo;
-import org.transitime.utils.TrimmableArrayList;
 
 /**
  * Contains list of predictions for a route/stop/destination. 
+ * <p>
+ * On the server side the predictions are stored as an immutable snapshot.
+ * When the predictions are changed a new snapshot is created and published,
+ * with the version incremented, while holding the lock on this object. This
+ * way readers never need to lock and a copy of an object can simply share
+ * the snapshot instead of copying the predictions.
  *
  * @author SkiBu Smith
  *
@@ -58,10 +63,14 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	// For when providing predictions based on location
 	private final double distanceToStop;
 	
-	// The predictions associated with the route/stop/dest
-	private final List<IpcPrediction> predictionsForRouteStopDest;
+	// The predictions associated with the route/stop/dest, ordered by
+	// prediction time. On the server side this is an immutable snapshot that
+	// is replaced, not modified, when the predictions change. Volatile so
+	// that readers see the latest snapshot without locking.
+	private volatile List<IpcPrediction> predictionsForRouteStopDest;
 
-	private final static int INITIAL_CAPACITY = 5;
+	// Incremented each time a new snapshot of the predictions is published
+	private volatile long version = 0;
 	
 	private static final long serialVersionUID = 5875028328864504842L;
 
@@ -99,7 +108,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 				trip != null ? trip.getDirectionId() : null;
 		this.distanceToStop = distanceToStop;
 		this.predictionsForRouteStopDest = 
-				new TrimmableArrayList<IpcPrediction>(INITIAL_CAPACITY);
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
@@ -130,15 +139,20 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = tripPattern.getHeadsign();
 		this.directionId = tripPattern.getDirectionId();
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
-
+		this.predictionsForRouteStopDest = 
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
-	 * Constructor for cloning a PredictionsForRouteStop object.
+	 * Constructor for cloning a PredictionsForRouteStop object. Since the
+	 * predictions are an immutable snapshot they are shared with the clone
+	 * instead of being copied. No locking is needed.
 	 * 
 	 * @param toClone
 	 * @param maxPredictionsPerStop
+	 * @param minSystemTimeForPrediction
+	 *            Predictions before this time are expired and are not
+	 *            included
 	 * @param maxSystemTimeForPrediction
 	 *            Max point in future want predictions for. This way can limit
 	 *            predictions when requesting a large number of them.
@@ -147,8 +161,8 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 */
 	private IpcPredictionsForRouteStopDest(
 			IpcPredictionsForRouteStopDest toClone,
-			int maxPredictionsPerStop, long maxSystemTimeForPrediction, 
-			double distanceToStop) {
+			int maxPredictionsPerStop, long minSystemTimeForPrediction,
+			long maxSystemTimeForPrediction, double distanceToStop) {
 		this.routeId = toClone.routeId;
 		this.routeShortName = toClone.routeShortName;
 		this.routeName = toClone.routeName;
@@ -160,20 +174,27 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.directionId = toClone.directionId;
 		this.distanceToStop = distanceToStop;
 		
-		// Copy all the prediction info. Do while synchronized since another
-		// thread could otherwise be changing the data.
-		synchronized (toClone) {	
-			int size = Math.min(toClone.predictionsForRouteStopDest.size(),
-					maxPredictionsPerStop);
-			this.predictionsForRouteStopDest = new ArrayList<IpcPrediction>(size);			
-			for (int i=0; i<size; ++i) {
-				IpcPrediction prediction = toClone.predictionsForRouteStopDest.get(i);
-				// If prediction exceeds max time then done
-				if (prediction.getPredictionTime() > maxSystemTimeForPrediction)
-					break;
-				this.predictionsForRouteStopDest.add(i, prediction);
-			}
-		}
+		this.version = toClone.version;
+		
+		// Determine the range of the snapshot that is wanted. Since the 
+		// predictions are ordered by time the expired ones are at the 
+		// beginning and the ones too far into the future are at the end.
+		List<IpcPrediction> snapshot = toClone.predictionsForRouteStopDest;
+		int begin = 0;
+		while (begin < snapshot.size() && snapshot.get(begin)
+				.getPredictionTime() < minSystemTimeForPrediction)
+			++begin;
+		int end = begin;
+		while (end < snapshot.size() 
+				&& end - begin < maxPredictionsPerStop
+				&& snapshot.get(end).getPredictionTime() 
+					<= maxSystemTimeForPrediction)
+			++end;
+		
+		// Share the snapshot instead of copying it
+		this.predictionsForRouteStopDest = 
+				begin == 0 && end == snapshot.size() ? 
+						snapshot : snapshot.subList(begin, end);
 	}
 	
 	/**
@@ -242,7 +263,8 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = null;
 		this.directionId = directionId;
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
+		this.predictionsForRouteStopDest = 
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
@@ -262,7 +284,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		private double distanceToStop;
 		private List<IpcPrediction> predictionsForRouteStop;
 
-		private static final short currentSerializationVersion = 1;
+		private static final short currentSerializationVersion = 2;
 		private static final long serialVersionUID = -2312925771271829358L;
 
 		/*
@@ -279,7 +301,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			this.headsign = p.headsign;
 			this.directionId = p.directionId;
 			this.distanceToStop = p.distanceToStop;
-			this.predictionsForRouteStop = p.predictionsForRouteStopDest;
+			// Copy since the predictions could be an immutable view of a
+			// snapshot, which is not necessarily serializable
+			this.predictionsForRouteStop = 
+					new ArrayList<IpcPrediction>(p.predictionsForRouteStopDest);
 		}
 
 		/*
@@ -292,18 +317,22 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 				throws IOException {
 			stream.writeShort(currentSerializationVersion);
 			
-			stream.writeObject(routeId);
-			stream.writeObject(routeShortName);
-			stream.writeObject(routeName);
-			stream.writeInt(routeOrder);
-			stream.writeObject(stopId);
-			stream.writeObject(stopName);
-			stream.writeObject(headsign);
-			stream.writeObject(directionId);
-			stream.writeDouble(distanceToStop);
+			// Since version 2 write in compact form where the IDs and names
+			// are interned since they are repeated for many objects
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeString(routeId);
+			out.writeString(routeShortName);
+			out.writeString(routeName);
+			out.writeVarInt(routeOrder);
+			out.writeString(stopId);
+			out.writeString(stopName);
+			out.writeString(headsign);
+			out.writeString(directionId);
+			out.writeDouble(distanceToStop);
+			out.writeNullableInt(stopCode);
+			// The IpcPredictions also write themselves in compact form
+			// using the same string table
 			stream.writeObject(predictionsForRouteStop);
-			// Can be null so use writeObject()
-			stream.writeObject(stopCode);
 		}
 		
 		/*
@@ -322,6 +351,24 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			}
 
 			// serialization version is OK so read in object
+			if (readVersion >= 2) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				routeId = in.readString();
+				routeShortName = in.readString();
+				routeName = in.readString();
+				routeOrder = in.readVarInt();
+				stopId = in.readString();
+				stopName = in.readString();
+				headsign = in.readString();
+				directionId = in.readString();
+				distanceToStop = in.readDouble();
+				stopCode = in.readNullableInt();
+				predictionsForRouteStop =
+						(List<IpcPrediction>) stream.readObject();
+				return;
+			}
+			
+			// Version 0 and 1 format
 			routeId = (String) stream.readObject();
 			routeShortName = (String) stream.readObject();
 			routeName = (String) stream.readObject();
@@ -372,9 +419,9 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 
 	/**
-	 * Gets a copy of this object. This is done with the object being
-	 * copied synchronized so that the predictions remain coherent. Limits
-	 * number of predictions to maxPredictionsPerStop.
+	 * Gets a copy of this object. The copy shares the current immutable
+	 * snapshot of the predictions so no locking or copying of predictions is
+	 * needed. Limits number of predictions to maxPredictionsPerStop.
 	 * 
 	 * @param maxPredictionsPerStop
 	 * @param distanceFromStop
@@ -385,17 +432,17 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			double distanceToStop) {
 		// Get copy of predictions. Don't limit by how far predictions
 		// are into the future. Therefore maxPredictionTime set to
-		// Integer.MAX_VALUE and currentTime set to 0L because it 
-		// doesn't matter.
+		// Long.MAX_VALUE. And don't filter out expired predictions.
 		IpcPredictionsForRouteStopDest clone = new IpcPredictionsForRouteStopDest(this,
-				maxPredictionsPerStop, Long.MAX_VALUE, distanceToStop);
+				maxPredictionsPerStop, Long.MIN_VALUE, Long.MAX_VALUE, 
+				distanceToStop);
 		return clone;
 	}
 	
 	/**
-	 * Gets a copy of this object. This is done with the object being copied
-	 * synchronized so that the predictions remain coherent. Limits number of
-	 * predictions to maxPredictionsPerStop.
+	 * Gets a copy of this object. The copy shares the current immutable
+	 * snapshot of the predictions so no locking or copying of predictions is
+	 * needed. Limits number of predictions to maxPredictionsPerStop.
 	 * 
 	 * @param maxPredictionsPerStop
 	 *            Won't copy more then this number of predictions
@@ -409,50 +456,97 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop,
 			long maxSystemTimeForPrediction, double distanceToStop) {
 		IpcPredictionsForRouteStopDest clone = new IpcPredictionsForRouteStopDest(
-				this, maxPredictionsPerStop, maxSystemTimeForPrediction, distanceToStop);
+				this, maxPredictionsPerStop, Long.MIN_VALUE, 
+				maxSystemTimeForPrediction, distanceToStop);
 		return clone;
 	}
 	
 	/**
-	 * Removes a prediction.
-	 * <p>
-	 * Not sure if really need to synchronize removal of predictions
-	 * from list since it is only a single operation. But synching
-	 * it is certainly the safe thing to do.
+	 * Gets a copy of this object without the expired predictions. The copy
+	 * shares the current immutable snapshot of the predictions so no locking
+	 * or copying of predictions is needed. Limits number of predictions to
+	 * maxPredictionsPerStop.
+	 * 
+	 * @param maxPredictionsPerStop
+	 *            Won't copy more then this number of predictions
+	 * @param currentTime
+	 *            Predictions before this time are expired and are not
+	 *            included. Should use Core.getInstance().getSystemTime() so
+	 *            that works even when in playback mode.
+	 * @param maxSystemTimeForPrediction
+	 *            Max point in future want predictions for. This way can limit
+	 *            predictions when requesting a large number of them.
+	 * @param distanceToStop
+	 *            For when getting predictions by location
+	 * @return
+	 */
+	public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop,
+			long currentTime, long maxSystemTimeForPrediction, 
+			double distanceToStop) {
+		IpcPredictionsForRouteStopDest clone = new IpcPredictionsForRouteStopDest(
+				this, maxPredictionsPerStop, currentTime, 
+				maxSystemTimeForPrediction, distanceToStop);
+		return clone;
+	}
+	
+	/**
+	 * Publishes a new snapshot of the predictions. Must be called while 
+	 * synchronized on this object so that updates are not lost.
+	 * 
+	 * @param newPredictions
+	 *            Ordered by prediction time. Must not be modified afterwards.
+	 */
+	private void publish(List<IpcPrediction> newPredictions) {
+		predictionsForRouteStopDest = 
+				Collections.unmodifiableList(newPredictions);
+		++version;
+	}
+	
+	/**
+	 * Removes a prediction. Synchronized so that other changes to the 
+	 * predictions are not lost. Readers are not blocked since a new snapshot
+	 * is published.
 	 * 
 	 * @param oldPrediction
 	 */
 	public synchronized void removePrediction(IpcPrediction oldPrediction) {
-		predictionsForRouteStopDest.remove(oldPrediction);
+		if (!predictionsForRouteStopDest.contains(oldPrediction))
+			return;
+		
+		List<IpcPrediction> newPredictions = 
+				new ArrayList<IpcPrediction>(predictionsForRouteStopDest);
+		newPredictions.remove(oldPrediction);
+		publish(newPredictions);
 	}
 
 	/**
-	 * Removes predictions that are older than the current time. Useful for when
-	 * getting predictions. Synchronized because don't want predictions list to
-	 * be changing by another thread when removing predictions.
+	 * Removes predictions that are older than the current time. Called
+	 * periodically by PredictionDataCache so that expired predictions don't
+	 * accumulate. Synchronized so that other changes to the predictions are
+	 * not lost. A new snapshot is only published if there were expired
+	 * predictions.
 	 * 
 	 * @param currentTime
-	 *            Should use PredictionDataCache.systemTime.get() so that works
+	 *            Should use Core.getInstance().getSystemTime() so that works
 	 *            even when in playback mode.
+	 * @return true if there were expired predictions that were removed
 	 */
-	public synchronized void removeExpiredPredictions(long currentTime) {
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
-			// Remove predictions that are expired. It makes sense to do this 
-			// here when adding predictions since only need to take out 
-			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
-			} else {
-				// The subsequent predictions are later so if this one is
-				// into the future then the remaining ones are too. 
-				// Therefore done.
-				return;
-			}
-		}
+	public synchronized boolean removeExpiredPredictions(long currentTime) {
+		// Since predictions are ordered by time the expired ones are at 
+		// the beginning
+		List<IpcPrediction> predictions = predictionsForRouteStopDest;
+		int numberExpired = 0;
+		while (numberExpired < predictions.size() 
+				&& predictions.get(numberExpired).getPredictionTime() 
+					< currentTime)
+			++numberExpired;
+		
+		if (numberExpired == 0)
+			return false;
 		
+		publish(new ArrayList<IpcPrediction>(
+				predictions.subList(numberExpired, predictions.size())));
+		return true;
 	}
 	
 	/**
@@ -460,7 +554,9 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 * vehicle.
 	 * <p>
 	 * Synchronized because there are multiple steps in removing old predictions
-	 * and creating new ones.
+	 * and creating new ones. The changes are made to a copy of the
+	 * predictions which is then published as a new snapshot so that readers
+	 * always see a coherent set of predictions without locking.
 	 * 
 	 * @param newPredsForRouteStopDest
 	 *            The new predictions for the vehicle
@@ -478,38 +574,36 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		// Determine which vehicle we are updating predictions for
 		String vehicleId = newPredsForRouteStopDest.get(0).getVehicleId();
 		
-		// Go through current predictions and get rid of existing ones for
-		// this vehicle or ones that have expired
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
+		// Go through current predictions and keep the ones that are not for 
+		// this vehicle and that have not expired
+		List<IpcPrediction> predictions = new ArrayList<IpcPrediction>(
+				predictionsForRouteStopDest.size() 
+				+ newPredsForRouteStopDest.size());
+		for (IpcPrediction currentPrediction : predictionsForRouteStopDest) {
 			// Remove existing predictions for this vehicle
-			if (currentPrediction.getVehicleId().equals(vehicleId)) {
-				iterator.remove();
+			if (currentPrediction.getVehicleId().equals(vehicleId))
 				continue;
-			}
 			
 			// Remove predictions that are expired. It makes sense to do this 
 			// here when adding predictions since only need to take out 
 			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
+			if (currentPrediction.getPredictionTime() < currentTime)
 				continue;
-			}
+			
+			predictions.add(currentPrediction);
 		}
 
 		// Go through list and insert the new predictions into the 
 		// appropriate places
 		for (IpcPrediction newPredForRouteStop : newPredsForRouteStopDest) {
 			boolean insertedPrediction = false;
-			for (int i=0; i<predictionsForRouteStopDest.size(); ++i) {
+			for (int i=0; i<predictions.size(); ++i) {
 				// If the new prediction is before the previous prediction
 				// in currentPredsForRouteStop then insert it.
 				if (newPredForRouteStop.getPredictionTime() < 
-						predictionsForRouteStopDest.get(i).getPredictionTime()) {			
+						predictions.get(i).getPredictionTime()) {			
 					// Actually add the prediction to the list
-					predictionsForRouteStopDest.add(i, newPredForRouteStop);
+					predictions.add(i, newPredForRouteStop);
 					insertedPrediction = true;
 					
 					// Done with the inner for loop so break out of loop
@@ -521,9 +615,11 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			// If didn't find that the prediction was before one of the 
 			// existing ones then insert it onto the end
 			if (!insertedPrediction) {
-				predictionsForRouteStopDest.add(newPredForRouteStop);
+				predictions.add(newPredForRouteStop);
 			}
 		}
+		
+		publish(predictions);
 	}
 	
 	@Override
@@ -610,4 +706,14 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	public int getRouteOrder() {
 		return routeOrder;
 	}
+	
+	/**
+	 * The version of the snapshot of the predictions. Incremented each time
+	 * the predictions change. Only meaningful on the server side.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
 }
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * An already serialized feed, such as a GTFS-realtime FeedMessage, for IPC via
+ * RMI. Includes an ETag and last modified time so that clients can support
+ * conditional requests. If the client already has the current version of the
+ * feed then the data is not included.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcSerializedFeed implements Serializable {
+
+	private final String etag;
+	private final long lastModified;
+	private final boolean gzipped;
+	// Null if the client already has the current version
+	private final byte[] data;
+
+	private static final long serialVersionUID = -3815940282672014567L;
+
+	/********************** Member Functions **************************/
+
+	public IpcSerializedFeed(String etag, long lastModified, boolean gzipped,
+			byte[] data) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.gzipped = gzipped;
+		this.data = data;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcSerializedFeed ["
+				+ "etag=" + etag
+				+ ", lastModified=" + lastModified
+				+ ", gzipped=" + gzipped
+				+ ", dataLength=" + (data != null ? data.length : null)
+				+ "]";
+	}
+
+	/**
+	 * @return Identifies the version of the feed
+	 */
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return Epoch time in msec of when the feed was built
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true if the data is gzip compressed
+	 */
+	public boolean isGzipped() {
+		return gzipped;
+	}
+
+	/**
+	 * @return The serialized feed, or null if the client already has the
+	 *         current version
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return true if the client already has the current version of the feed
+	 */
+	public boolean isNotModified() {
+		return data == null;
+	}
+}
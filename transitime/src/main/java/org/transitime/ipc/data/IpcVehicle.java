@@ -229,7 +229,7 @@ public class IpcVehicle implements Serializable {
 		protected String vehicleType;
 
 		private static final long serialVersionUID = -4996254752417270043L;
-		private static final short currentSerializationVersion = 0;
+		private static final short currentSerializationVersion = 1;
 
 		/*
 		 * Only to be used within this class.
@@ -267,26 +267,31 @@ public class IpcVehicle implements Serializable {
 				throws IOException {
 		    stream.writeShort(currentSerializationVersion);
 		    
-			stream.writeObject(blockId);
-			stream.writeObject(blockAssignmentMethod);
+			// Since version 1 write in compact form where the IDs are
+			// interned and the times are written as deltas
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeString(blockId);
+			out.writeEnum(blockAssignmentMethod);
+			// IpcAvl also writes itself in compact form
 			stream.writeObject(avl);
-			stream.writeFloat(heading);
-			stream.writeObject(routeId);
-			stream.writeObject(routeShortName);
-			stream.writeObject(routeName);
-			stream.writeObject(tripId);
-			stream.writeObject(tripPatternId);
-			stream.writeObject(directionId);
-		    stream.writeObject(headsign);
-			stream.writeBoolean(predictable);
-			stream.writeBoolean(schedBasedPred);
-			stream.writeObject(realTimeSchdAdh);
-			stream.writeBoolean(isDelayed);
-		    stream.writeBoolean(isLayover);
-		    stream.writeLong(layoverDepartureTime);
-		    stream.writeObject(nextStopId);
-		    stream.writeObject(nextStopName);
-		    stream.writeObject(vehicleType);
+			out.writeFloat(heading);
+			out.writeString(routeId);
+			out.writeString(routeShortName);
+			out.writeString(routeName);
+			out.writeString(tripId);
+			out.writeString(tripPatternId);
+			out.writeString(directionId);
+			out.writeString(headsign);
+			out.writeBoolean(predictable);
+			out.writeBoolean(schedBasedPred);
+			out.writeNullableInt(realTimeSchdAdh != null ? 
+					realTimeSchdAdh.getTemporalDifference() : null);
+			out.writeBoolean(isDelayed);
+			out.writeBoolean(isLayover);
+			out.writeTime(layoverDepartureTime);
+			out.writeString(nextStopId);
+			out.writeString(nextStopName);
+			out.writeString(vehicleType);
 		}
 
 		/*
@@ -306,6 +311,35 @@ public class IpcVehicle implements Serializable {
 			}
 
 			// serialization version is OK so read in object
+			if (readVersion >= 1) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				blockId = in.readString();
+				blockAssignmentMethod = 
+						in.readEnum(BlockAssignmentMethod.class);
+				avl = (IpcAvl) stream.readObject();
+				heading = in.readFloat();
+				routeId = in.readString();
+				routeShortName = in.readString();
+				routeName = in.readString();
+				tripId = in.readString();
+				tripPatternId = in.readString();
+				directionId = in.readString();
+				headsign = in.readString();
+				predictable = in.readBoolean();
+				schedBasedPred = in.readBoolean();
+				Integer schedAdhMsec = in.readNullableInt();
+				realTimeSchdAdh = schedAdhMsec != null ? 
+						new TemporalDifference(schedAdhMsec) : null;
+				isDelayed = in.readBoolean();
+				isLayover = in.readBoolean();
+				layoverDepartureTime = in.readTime();
+				nextStopId = in.readString();
+				nextStopName = in.readString();
+				vehicleType = in.readString();
+				return;
+			}
+			
+			// Version 0 format
 			blockId = (String) stream.readObject();
 			blockAssignmentMethod = (BlockAssignmentMethod) stream.readObject();
 			avl = (IpcAvl) stream.readObject();
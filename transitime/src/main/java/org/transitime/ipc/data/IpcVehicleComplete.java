@@ -168,7 +168,7 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 		private double distanceOfNextStopFromTripStart;
 		private double distanceAlongTrip;
 
-		private static final short currentSerializationVersion = 0;
+		private static final short currentSerializationVersion = 1;
 		
 		private static final long serialVersionUID = 6982458672576764027L;
 
@@ -195,11 +195,13 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 			// Write the data for this class
 			stream.writeShort(currentSerializationVersion);
 			
-		    stream.writeObject(originStopId);
-		    stream.writeObject(destinationId);
-		    stream.writeDouble(distanceToNextStop);
-		    stream.writeDouble(distanceOfNextStopFromTripStart);
-		    stream.writeDouble(distanceAlongTrip);
+			// Since version 1 write in compact form
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeString(originStopId);
+			out.writeString(destinationId);
+			out.writeDouble(distanceToNextStop);
+			out.writeDouble(distanceOfNextStopFromTripStart);
+			out.writeDouble(distanceAlongTrip);
 		}
 
 		/*
@@ -222,8 +224,14 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 			}
 
 			// Read in data for this class
-			originStopId = (String) stream.readObject();
-			destinationId = (String) stream.readObject();
+			if (readVersion >= 1) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				originStopId = in.readString();
+				destinationId = in.readString();
+			} else {
+				originStopId = (String) stream.readObject();
+				destinationId = (String) stream.readObject();
+			}
 			distanceToNextStop = stream.readDouble();
 			distanceOfNextStopFromTripStart = stream.readDouble();
 			distanceAlongTrip = stream.readDouble();
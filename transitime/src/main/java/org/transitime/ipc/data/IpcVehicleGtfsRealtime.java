@@ -157,7 +157,7 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 		protected Integer atOrNextGtfsStopSeq;
 		protected long tripStartEpochTime; 
 		
-		private static final short currentSerializationVersion = 0;
+		private static final short currentSerializationVersion = 1;
 		private static final long serialVersionUID = 5804716921925188073L;
 
 		protected GtfsRealtimeVehicleSerializationProxy(IpcVehicleGtfsRealtime v) {
@@ -182,10 +182,12 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 			// Write the data for this class
 			stream.writeShort(currentSerializationVersion);
 			
-			stream.writeBoolean(atStop);
-			stream.writeObject(atOrNextStopId);
-			stream.writeObject(atOrNextGtfsStopSeq);
-		    stream.writeLong(tripStartEpochTime);
+			// Since version 1 write in compact form
+			IpcDataOutput out = IpcDataOutput.forStream(stream);
+			out.writeBoolean(atStop);
+			out.writeString(atOrNextStopId);
+			out.writeNullableInt(atOrNextGtfsStopSeq);
+			out.writeTime(tripStartEpochTime);
 		}
 
 		/*
@@ -208,10 +210,18 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 			}
 
 			// Read in data for this class
-			atStop = stream.readBoolean();
-			atOrNextStopId = (String) stream.readObject();
-			atOrNextGtfsStopSeq = (Integer) stream.readObject();
-			tripStartEpochTime = stream.readLong();
+			if (readVersion >= 1) {
+				IpcDataInput in = IpcDataInput.forStream(stream);
+				atStop = in.readBoolean();
+				atOrNextStopId = in.readString();
+				atOrNextGtfsStopSeq = in.readNullableInt();
+				tripStartEpochTime = in.readTime();
+			} else {
+				atStop = stream.readBoolean();
+				atOrNextStopId = (String) stream.readObject();
+				atOrNextGtfsStopSeq = (Integer) stream.readObject();
+				tripStartEpochTime = stream.readLong();
+			}
 		}
 		
 		/*
@@ -125,4 +125,21 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+	
+	/**
+	 * Returns the GTFS-realtime TripUpdates feed, already serialized as a
+	 * protobuf FeedMessage. The feed is maintained by the server as the
+	 * predictions change so it is much less expensive than getting all
+	 * predictions and creating the feed on the client.
+	 * 
+	 * @param changedSinceSecs
+	 *            If greater than 0 then a DIFFERENTIAL feed is returned with
+	 *            just the trips that changed since this epoch time in seconds,
+	 *            usually the header timestamp of the previous feed. If 0 then
+	 *            the FULL_DATASET feed is returned.
+	 * @return the serialized GTFS-realtime FeedMessage
+	 * @throws RemoteException
+	 */
+	public byte[] getGtfsRtTripUpdatesFeed(long changedSinceSecs)
+			throws RemoteException;
 }
@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitime.ipc.data.IpcActiveBlock;
+import org.transitime.ipc.data.IpcSerializedFeed;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -70,6 +71,23 @@ public interface VehiclesInterface extends Remote {
 	public Collection<IpcVehicleGtfsRealtime> getGtfsRealtime()
 			throws RemoteException;
 
+	/**
+	 * Gets from server the GTFS-realtime VehiclePositions feed, already
+	 * serialized as a protobuf FeedMessage. The feed is maintained by the
+	 * server and is only rebuilt when vehicle data changes.
+	 * 
+	 * @param etag
+	 *            ETag of the version of the feed that the client already has,
+	 *            or null. If it is still the current version then the data is
+	 *            not returned.
+	 * @param gzip
+	 *            If true then the data is returned gzip compressed
+	 * @return the serialized feed along with its ETag
+	 * @throws RemoteException
+	 */
+	public IpcSerializedFeed getGtfsRtVehiclePositionsFeed(String etag,
+			boolean gzip) throws RemoteException;
+
 	/**
 	 * Gets from server IpcVehicle info for specified vehicle.
 	 * 
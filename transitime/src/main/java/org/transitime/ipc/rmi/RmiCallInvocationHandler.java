@@ -51,24 +51,17 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	// for a proxied object.
 	private final RmiStubInfo info;
 	
-	// For keeping track of number of total and current RMI calls.
-	// Don't actually need to use Atomic variables since
-	// not doing a change & get.
-	private static class Counts {
-		long total = 0L;
-		int current = 0;
-	}
-	
 	// For limiting how many RMI calls are in process for a particular
 	// host. Don't want too many calls at once because if the server
 	// gets stops or slows due to something like a stop the world 
 	// garbage collection want to make sure that a web server doesn't
-	// keep on creating new connections. Keyed on agencyId.
-	private static final ConcurrentHashMap<String, Counts> currentCallsByAgencyMap =
-			new ConcurrentHashMap<String, Counts>();
+	// keep on creating new connections. Also keeps track of the number
+	// of total and current RMI calls. Keyed on agencyId.
+	private static final ConcurrentHashMap<String, RmiCallLimiter> limitersByAgencyMap =
+			new ConcurrentHashMap<String, RmiCallLimiter>();
 	
 	// Set default value to 25 
-	private static int maxConcurrentCallsPerProject = 25;
+	private static volatile int maxConcurrentCallsPerProject = 25;
 	
 	// Logging
 	private static final Logger logger = 
@@ -95,7 +88,9 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	}
 	
 	/**
-	 * For if need to change max concurrent calls per project
+	 * For if need to change max concurrent calls per project. The actual
+	 * limit used by RmiCallLimiter adapts to how the server is performing but
+	 * is never more than this value.
 	 * 
 	 * @param maxConcurrentCalls
 	 *            New value for max concurrent calls per project
@@ -114,7 +109,7 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	 * @return Enumeration of agency IDs
 	 */
 	public static Set<String> getAgencies() {
-		return currentCallsByAgencyMap.keySet();
+		return limitersByAgencyMap.keySet();
 	}
 	
 	/**
@@ -125,7 +120,7 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	 * @return
 	 */
 	public static int getCount(String agencyId) {
-		return getAccessCounter(agencyId).current;
+		return getLimiter(agencyId).getCallsInProcess();
 	}
 	
 	/**
@@ -136,23 +131,26 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	 * @return
 	 */
 	public static long getTotalCount(String agencyId) {
-		return getAccessCounter(agencyId).total;
+		return getLimiter(agencyId).getTotalCalls();
 	}
 	
 	/**
-	 * For keeping track of how many outstanding RMI calls there are per
-	 * agency. Also keeps track of total RMI calls per agency.
+	 * Returns the RmiCallLimiter for the agency, creating it if necessary.
+	 * The limiter limits how many outstanding RMI calls there are per agency
+	 * and also keeps track of statistics such as total RMI calls and the
+	 * latency of each remote method.
 	 * 
 	 * @param agencyId
 	 * @return
 	 */
-	private static Counts getAccessCounter(String agencyId) {
-		Counts counter = currentCallsByAgencyMap.get(agencyId);
-		if (counter == null) {
-			currentCallsByAgencyMap.putIfAbsent(agencyId, new Counts());
-			counter = currentCallsByAgencyMap.get(agencyId);
+	public static RmiCallLimiter getLimiter(String agencyId) {
+		RmiCallLimiter limiter = limitersByAgencyMap.get(agencyId);
+		if (limiter == null) {
+			limitersByAgencyMap.putIfAbsent(agencyId,
+					new RmiCallLimiter(agencyId));
+			limiter = limitersByAgencyMap.get(agencyId);
 		}
-		return counter;
+		return limiter;
 	}
 	
 	private static class ConcurrentAccessException extends Throwable {
@@ -284,7 +282,8 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 	
 	/**
 	 * Checks to see how many RMI calls are currently active for the project. If
-	 * not too many then the RMI call is invoked. But if too many then
+	 * not too many then the RMI call is invoked. If too many then waits briefly
+	 * in the RmiCallLimiter queue, and if a call still can't be made then
 	 * ConcurrentAccessException is thrown.
 	 * 
 	 * @param method
@@ -304,30 +303,29 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 		// collecting, denial of service attack, etc) don't want to
 		// burden the project even more with additional calls. 
 		// Therefore when behind want to return as quickly as possible.
-		Counts accessCounter = getAccessCounter(info.getAgencyId());
-		accessCounter.total++;
-		if (accessCounter.current >= getMaxConcurrentCallsPerProject()) {
+		RmiCallLimiter limiter = getLimiter(info.getAgencyId());
+		if (!limiter.acquire()) {
 			// Currently too many RMI calls is progress so log error
 			// and throw exception
-			String message = "Reached MAX_CURRENT_CALLS_PER_PROJECT="
-					+ getMaxConcurrentCallsPerProject()
-					+ " of concurrent RMI calls when calling remote "
-					+ "method " + info.getClassName() + "."
+			String message = "Reached limit of " + limiter.getLimit()
+					+ " concurrent RMI calls, with " 
+					+ limiter.getQueuedCalls() + " calls queued, when "
+					+ "calling remote method " + info.getClassName() + "."
 					+ method.getName() + "() for project "
 					+ info.getAgencyId() + " so throwing exception.";
 			logger.error(message);
 			throw new ConcurrentAccessException(message);
 		} else {
+			IntervalTimer timer = new IntervalTimer();
 			try {
-				// Keep track that another RMI call is being initiated
-				accessCounter.current++;
-				
 				// Actually make the RMI call
 				Object result = lowLevelInvoke(method, args);
 				return result;
 			} finally {
-				// Make sure that access counter decrement no matter what
-				accessCounter.current--;
+				// Make sure that limiter is released no matter what
+				limiter.release(
+						info.getClassName() + "." + method.getName(), 
+						timer.elapsedMsec());
 			}
 		}
 	}
@@ -0,0 +1,313 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.rmi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.utils.LatencyHistogram;
+
+/**
+ * Limits how many RMI calls a client, such as a web server, can have in
+ * process at once for an agency. If the server slows down, such as due to a
+ * stop the world garbage collection, don't want the client to keep on
+ * creating new connections and making the situation worse.
+ * <p>
+ * If a call can't be made right away it waits in a short queue. If the queue
+ * is full, or if the call waits too long, then it is rejected. The limit on
+ * concurrent calls adapts to how the server is performing. When a call is
+ * slow the limit is reduced and when calls are fast the limit is slowly
+ * increased again, up to the configured maximum. This way load is shed
+ * gracefully when the server is having trouble.
+ * <p>
+ * Also keeps a latency histogram for each remote method so can see which
+ * methods back up.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class RmiCallLimiter {
+
+	private final String agencyId;
+
+	// Current number of calls being processed, and the current limit
+	private final AtomicInteger callsInProcess = new AtomicInteger();
+	private volatile int limit;
+
+	// For slowly increasing the limit when calls are fast
+	private final AtomicInteger fastCallsSinceLimitChange = new AtomicInteger();
+	private volatile long lastLimitDecreaseTime = 0;
+
+	// For statistics
+	private final AtomicLong totalCalls = new AtomicLong();
+	private final AtomicLong rejectedCalls = new AtomicLong();
+	private final AtomicInteger queuedCalls = new AtomicInteger();
+
+	// For waiting in the queue. Only used when the limit has been reached.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition callCompleted = lock.newCondition();
+
+	// Keyed on "className.methodName"
+	private final ConcurrentHashMap<String, LatencyHistogram> latencyByMethod =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+
+	// Don't want to reduce the limit for every slow call when there are many
+	// at once since they are most likely all due to the same problem
+	private static final long MIN_MSEC_BETWEEN_LIMIT_DECREASES = 1000;
+
+	private static IntegerConfigValue minConcurrentCalls =
+			new IntegerConfigValue("transitime.rmi.minConcurrentCalls", 5,
+					"When RMI calls to an agency server are slow the limit on "
+					+ "how many concurrent calls a client can make is "
+					+ "reduced, but never below this value.");
+
+	private static IntegerConfigValue maxQueuedCalls =
+			new IntegerConfigValue("transitime.rmi.maxQueuedCalls", 25,
+					"How many RMI calls to an agency server can wait for "
+					+ "other calls to complete when the limit on concurrent "
+					+ "calls has been reached. Additional calls are "
+					+ "rejected.");
+
+	private static IntegerConfigValue maxQueueWaitMsec =
+			new IntegerConfigValue("transitime.rmi.maxQueueWaitMsec", 500,
+					"How long an RMI call can wait for other calls to "
+					+ "complete before it is rejected.");
+
+	private static IntegerConfigValue slowCallMsec =
+			new IntegerConfigValue("transitime.rmi.slowCallMsec", 2000,
+					"If an RMI call takes longer than this then the limit on "
+					+ "concurrent calls to the agency server is reduced so "
+					+ "that load is shed.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(RmiCallLimiter.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. The limit starts at the max.
+	 *
+	 * @param agencyId
+	 */
+	public RmiCallLimiter(String agencyId) {
+		this.agencyId = agencyId;
+		this.limit = RmiCallInvocationHandler.getMaxConcurrentCallsPerProject();
+	}
+
+	/**
+	 * Tries to start a call without waiting.
+	 *
+	 * @return true if call can be made
+	 */
+	private boolean tryAcquire() {
+		while (true) {
+			int current = callsInProcess.get();
+			if (current >= limit)
+				return false;
+			if (callsInProcess.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Call before making an RMI call. If the limit of concurrent calls has
+	 * been reached then waits in the queue for up to
+	 * transitime.rmi.maxQueueWaitMsec. If true is returned then release()
+	 * must be called once the call has completed.
+	 *
+	 * @return true if the call can be made, false if it should be rejected
+	 */
+	public boolean acquire() {
+		totalCalls.incrementAndGet();
+
+		// Usual case where limit has not been reached
+		if (tryAcquire())
+			return true;
+
+		// Limit reached. If queue already full then reject the call.
+		if (queuedCalls.incrementAndGet() > maxQueuedCalls.getValue()) {
+			queuedCalls.decrementAndGet();
+			rejectedCalls.incrementAndGet();
+			return false;
+		}
+
+		// Wait in the queue for another call to complete
+		try {
+			long remainingNanos =
+					TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMsec.getValue());
+			lock.lock();
+			try {
+				while (!tryAcquire()) {
+					if (remainingNanos <= 0) {
+						rejectedCalls.incrementAndGet();
+						return false;
+					}
+					remainingNanos = callCompleted.awaitNanos(remainingNanos);
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			rejectedCalls.incrementAndGet();
+			return false;
+		} finally {
+			queuedCalls.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Call once an RMI call that was allowed by acquire() has completed.
+	 * Records the latency and adjusts the limit.
+	 *
+	 * @param methodName
+	 *            "className.methodName" of the call, for the latency
+	 *            histogram
+	 * @param latencyMsec
+	 *            How long the call took
+	 */
+	public void release(String methodName, long latencyMsec) {
+		callsInProcess.decrementAndGet();
+
+		getLatencyHistogram(methodName).record(latencyMsec);
+		adjustLimit(methodName, latencyMsec);
+
+		// If there are calls waiting in the queue then let one know that
+		// it can proceed
+		if (queuedCalls.get() > 0) {
+			lock.lock();
+			try {
+				callCompleted.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Reduces the limit if the call was slow. If it was fast then slowly
+	 * increases the limit, up to the configured maximum. Uses additive
+	 * increase and multiplicative decrease so that load is shed quickly but
+	 * recovered gradually.
+	 *
+	 * @param methodName
+	 * @param latencyMsec
+	 */
+	private void adjustLimit(String methodName, long latencyMsec) {
+		int maxLimit = RmiCallInvocationHandler.getMaxConcurrentCallsPerProject();
+		int currentLimit = limit;
+
+		if (latencyMsec > slowCallMsec.getValue()) {
+			long now = System.currentTimeMillis();
+			if (now - lastLimitDecreaseTime < MIN_MSEC_BETWEEN_LIMIT_DECREASES)
+				return;
+			lastLimitDecreaseTime = now;
+			fastCallsSinceLimitChange.set(0);
+
+			int newLimit = Math.max(Math.min(minConcurrentCalls.getValue(),
+					maxLimit), currentLimit * 3 / 4);
+			if (newLimit < currentLimit) {
+				limit = newLimit;
+				logger.warn("RMI call {}() for agencyId={} took {} msec so "
+						+ "reducing limit of concurrent calls from {} to {}.",
+						methodName, agencyId, latencyMsec, currentLimit,
+						newLimit);
+			}
+		} else if (currentLimit < maxLimit) {
+			// Increase the limit by one after a limit's worth of fast calls
+			if (fastCallsSinceLimitChange.incrementAndGet() >= currentLimit) {
+				fastCallsSinceLimitChange.set(0);
+				limit = currentLimit + 1;
+				logger.debug("Increased limit of concurrent RMI calls for "
+						+ "agencyId={} to {}", agencyId, currentLimit + 1);
+			}
+		} else if (currentLimit > maxLimit) {
+			// Max was lowered via
+			// RmiCallInvocationHandler.setMaxConcurrentCallsPerProject()
+			limit = maxLimit;
+		}
+	}
+
+	/**
+	 * Returns the latency histogram for the method, creating it if necessary.
+	 *
+	 * @param methodName
+	 * @return the histogram
+	 */
+	private LatencyHistogram getLatencyHistogram(String methodName) {
+		LatencyHistogram histogram = latencyByMethod.get(methodName);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			LatencyHistogram existing =
+					latencyByMethod.putIfAbsent(methodName, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return Number of RMI calls currently being processed
+	 */
+	public int getCallsInProcess() {
+		return callsInProcess.get();
+	}
+
+	/**
+	 * @return Number of RMI calls currently waiting in the queue
+	 */
+	public int getQueuedCalls() {
+		return queuedCalls.get();
+	}
+
+	/**
+	 * @return Current limit on concurrent calls
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return Total number of RMI calls attempted, including rejected ones
+	 */
+	public long getTotalCalls() {
+		return totalCalls.get();
+	}
+
+	/**
+	 * @return Number of RMI calls rejected because of the limit
+	 */
+	public long getRejectedCalls() {
+		return rejectedCalls.get();
+	}
+
+	/**
+	 * @return Latency histograms keyed on "className.methodName"
+	 */
+	public Map<String, LatencyHistogram> getLatencyByMethod() {
+		return latencyByMethod;
+	}
+}
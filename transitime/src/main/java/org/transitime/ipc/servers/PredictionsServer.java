@@ -25,6 +25,7 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.core.dataCache.GtfsRtTripUpdatesCache;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Location;
 import org.transitime.gtfs.StopsByLoc;
@@ -130,6 +131,14 @@ public class PredictionsServer
 				maxSystemTimeForPrediction);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getGtfsRtTripUpdatesFeed(long)
+	 */
+	@Override
+	public byte[] getGtfsRtTripUpdatesFeed(long changedSinceSecs) {
+		return GtfsRtTripUpdatesCache.getInstance().getFeed(changedSinceSecs);
+	}
+
 	// If stops are relatively close then should order routes based on route
 	// order instead of distance.
 	private static double DISTANCE_AT_WHICH_ROUTES_GROUPED = 80.0;
@@ -27,11 +27,13 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.core.BlocksInfo;
+import org.transitime.core.dataCache.GtfsRtVehiclePositionsCache;
 import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VehicleConfig;
 import org.transitime.ipc.data.IpcBlock;
+import org.transitime.ipc.data.IpcSerializedFeed;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -125,6 +127,15 @@ public class VehiclesServer extends AbstractServer
 			throws RemoteException {
 		return getGtfsRealtimeSerializableCollection(vehicleDataCache.getVehicles());
 	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getGtfsRtVehiclePositionsFeed(java.lang.String, boolean)
+	 */
+	@Override
+	public IpcSerializedFeed getGtfsRtVehiclePositionsFeed(String etag,
+			boolean gzip) throws RemoteException {
+		return GtfsRtVehiclePositionsCache.getInstance().getFeed(etag, gzip);
+	}
 	
 
 	/* (non-Javadoc)
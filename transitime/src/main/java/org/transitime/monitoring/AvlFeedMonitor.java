@@ -21,8 +21,12 @@ import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.avl.AvlExecutor;
+import org.transitime.avl.AvlExecutorLane;
+import org.transitime.avl.VehicleIngestionStats;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
+import org.transitime.configData.AvlConfig;
 import org.transitime.core.AvlProcessor;
 import org.transitime.core.BlocksInfo;
 import org.transitime.db.structs.Block;
@@ -91,7 +95,9 @@ public class AvlFeedMonitor extends MonitorBase {
 				+ ageOfAvlReport / Time.MS_PER_SEC 
 				+ " secs old while allowable age is " 
 				+ allowableNoAvlSecs.getValue()	+ " secs as specified by "
-				+ "parameter " + allowableNoAvlSecs.getID() + " .",
+				+ "parameter " + allowableNoAvlSecs.getID() + " ."
+				+ avlLanesMessage()
+				+ avlIngestionMessage(),
 				ageOfAvlReport / Time.MS_PER_SEC);
 		
 		if (ageOfAvlReport > 
@@ -104,6 +110,96 @@ public class AvlFeedMonitor extends MonitorBase {
 		}
 	}
 
+	/**
+	 * If AVL reports are being sharded by vehicle into lanes then returns
+	 * info on the lane with the deepest queue and on the lane with the
+	 * largest latency so can see if a lane is getting behind. The max latency
+	 * is for the time since the previous monitoring check. When using JMS
+	 * there is no AvlExecutor so nothing is reported.
+	 * 
+	 * @return Message describing the lanes, or empty string if not sharding
+	 */
+	private String avlLanesMessage() {
+		// Don't want to create the AvlExecutor, and its threads, just for 
+		// monitoring
+		if (AvlConfig.shouldUseJms())
+			return "";
+		
+		List<AvlExecutorLane> lanes = AvlExecutor.getInstance().getLanes();
+		if (lanes.isEmpty())
+			return "";
+		
+		AvlExecutorLane deepestLane = null;
+		AvlExecutorLane slowestLane = null;
+		long slowestLaneMaxLatency = -1;
+		long rejectedCount = 0;
+		for (AvlExecutorLane lane : lanes) {
+			if (deepestLane == null 
+					|| lane.getQueueSize() > deepestLane.getQueueSize())
+				deepestLane = lane;
+			long maxLatency = lane.getAndResetMaxLatencyMsec();
+			if (maxLatency > slowestLaneMaxLatency) {
+				slowestLane = lane;
+				slowestLaneMaxLatency = maxLatency;
+			}
+			rejectedCount += lane.getRejectedCount();
+		}
+		
+		return " AVL lanes=" + lanes.size() 
+				+ ", max queue depth=" + deepestLane.getQueueSize() 
+				+ " for lane " + deepestLane.getLaneNumber()
+				+ ", max latency=" + slowestLaneMaxLatency 
+				+ " msec for lane " + slowestLane.getLaneNumber()
+				+ " (average " + slowestLane.getAverageLatencyMsec() 
+				+ " msec), rejected reports=" + rejectedCount + ".";
+	}
+	
+	/**
+	 * Summarizes the per vehicle AVL ingestion statistics so that can see
+	 * if reports for a particular vehicle are getting behind or are being
+	 * dropped. The summary is also logged so that it is available even when
+	 * the monitor is not triggered.
+	 * 
+	 * @return Message describing the ingestion stats, or empty string if no
+	 *         AVL reports have been queued
+	 */
+	private String avlIngestionMessage() {
+		VehicleIngestionStats mostLagging = null;
+		VehicleIngestionStats mostDropped = null;
+		long queuedCount = 0;
+		long coalescedCount = 0;
+		long droppedCount = 0;
+		long processedCount = 0;
+		int numVehicles = 0;
+		for (VehicleIngestionStats stats : VehicleIngestionStats.getAll()) {
+			++numVehicles;
+			queuedCount += stats.getQueuedCount();
+			coalescedCount += stats.getCoalescedCount();
+			droppedCount += stats.getDroppedCount();
+			processedCount += stats.getProcessedCount();
+			if (mostLagging == null 
+					|| stats.getLagMsec() > mostLagging.getLagMsec())
+				mostLagging = stats;
+			if (mostDropped == null 
+					|| stats.getDroppedCount() > mostDropped.getDroppedCount())
+				mostDropped = stats;
+		}
+		if (numVehicles == 0)
+			return "";
+		
+		String message = " AVL ingestion for " + numVehicles 
+				+ " vehicles: queued=" + queuedCount 
+				+ ", coalesced=" + coalescedCount 
+				+ ", dropped=" + droppedCount 
+				+ ", processed=" + processedCount 
+				+ ", max lag=" + mostLagging.getLagMsec() 
+				+ " msec for vehicleId=" + mostLagging.getVehicleId()
+				+ ", max dropped=" + mostDropped.getDroppedCount()
+				+ " for vehicleId=" + mostDropped.getVehicleId() + ".";
+		logger.info(message.trim());
+		return message;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.transitime.monitoring.MonitorBase#triggered()
 	 */
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, such as for how long RMI calls take. Latencies
+ * are counted in buckets whose sizes grow roughly logarithmically so that
+ * percentiles can be determined with reasonable accuracy using very little
+ * memory. Recording a latency only uses atomic operations so it can be done
+ * by many threads at once without locking.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class LatencyHistogram {
+
+	// Upper bound, inclusive, in msec of each bucket. The last bucket is for
+	// everything larger.
+	private static final long[] BUCKET_UPPER_BOUNDS_MSEC = { 1, 2, 3, 5, 7,
+			10, 15, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 1500,
+			2000, 3000, 5000, 7500, 10000, 15000, 20000, 30000, 60000,
+			Long.MAX_VALUE };
+
+	private final AtomicLongArray bucketCounts =
+			new AtomicLongArray(BUCKET_UPPER_BOUNDS_MSEC.length);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong maxMsec = new AtomicLong();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param latencyMsec
+	 */
+	public void record(long latencyMsec) {
+		int bucket = 0;
+		while (latencyMsec > BUCKET_UPPER_BOUNDS_MSEC[bucket])
+			++bucket;
+		bucketCounts.incrementAndGet(bucket);
+		count.incrementAndGet();
+
+		// Update the max
+		long currentMax = maxMsec.get();
+		while (latencyMsec > currentMax
+				&& !maxMsec.compareAndSet(currentMax, latencyMsec))
+			currentMax = maxMsec.get();
+	}
+
+	/**
+	 * @return Number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The largest latency recorded, in msec
+	 */
+	public long getMaxMsec() {
+		return maxMsec.get();
+	}
+
+	/**
+	 * Returns the latency that the specified fraction of the recorded
+	 * latencies are less than or equal to. Since latencies are only recorded
+	 * by bucket the upper bound of the bucket is returned, though never more
+	 * than the max latency.
+	 *
+	 * @param fraction
+	 *            For example 0.5 for the median or 0.99 for the 99th
+	 *            percentile
+	 * @return the latency in msec, or 0 if no latencies have been recorded
+	 */
+	public long getPercentileMsec(double fraction) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+
+		long countNeeded = (long) Math.ceil(total * fraction);
+		long countSoFar = 0;
+		for (int bucket = 0; bucket < BUCKET_UPPER_BOUNDS_MSEC.length;
+				++bucket) {
+			countSoFar += bucketCounts.get(bucket);
+			if (countSoFar >= countNeeded)
+				return Math.min(BUCKET_UPPER_BOUNDS_MSEC[bucket], getMaxMsec());
+		}
+		return getMaxMsec();
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram ["
+				+ "count=" + getCount()
+				+ ", p50=" + getPercentileMsec(0.5)
+				+ ", p99=" + getPercentileMsec(0.99)
+				+ ", max=" + getMaxMsec()
+				+ "]";
+	}
+}
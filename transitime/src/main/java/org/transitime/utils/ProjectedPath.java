@@ -0,0 +1,225 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.List;
+
+import org.transitime.db.structs.Location;
+
+/**
+ * A path, such as a stop path, stored as primitive arrays with everything
+ * that can be precomputed already computed. This way the distance from a
+ * location to a segment of the path, and how far along the segment the
+ * location matches, can be determined without creating any objects and
+ * without any trigonometry. This is important because these are determined
+ * for a great many segments for every AVL report.
+ * <p>
+ * Uses the same equirectangular approximation as Geo.distance(). For each
+ * segment the meters per degree of longitude is precomputed using the
+ * latitude of the middle of the segment. The location is then projected
+ * into local meters relative to the start of the segment.
+ * <p>
+ * The results are therefore an approximation of the ones from
+ * Geo.distance(Location, Vector) and Geo.matchDistanceAlongVector(), which
+ * instead use the mid latitude of each pair of points. The difference in
+ * the east-west component is roughly the north-south offset between the
+ * location and the middle of the segment divided by the radius of the
+ * earth, times the tangent of the latitude. For locations and segments
+ * within 1 km of each other this is under 0.15 m for the distance to the
+ * segment and under 0.3 m for the distance along the segment at latitudes
+ * up to 60 degrees. This is far smaller than AVL error, but callers should
+ * not expect the results to be identical.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class ProjectedPath {
+
+	// Latitudes and longitudes of the vertices of the path, in degrees
+	private final double[] lats;
+	private final double[] lons;
+
+	// For each segment, meters per degree of longitude
+	private final double[] metersPerDegreeLon;
+
+	// For each segment, the length in meters as determined by Geo.distance()
+	private final double[] segmentLengths;
+
+	// For each segment, the distance along the path to the beginning of the
+	// segment. Has an extra element at the end for the total length.
+	private final double[] distancesAlongPath;
+
+	private static final double METERS_PER_DEGREE_LAT =
+			Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the projected path from the locations of the vertices.
+	 *
+	 * @param locations
+	 *            The vertices of the path
+	 */
+	public ProjectedPath(List<Location> locations) {
+		int numVertices = locations.size();
+		int numSegments = Math.max(numVertices - 1, 0);
+
+		lats = new double[numVertices];
+		lons = new double[numVertices];
+		for (int i = 0; i < numVertices; ++i) {
+			lats[i] = locations.get(i).getLat();
+			lons[i] = locations.get(i).getLon();
+		}
+
+		metersPerDegreeLon = new double[numSegments];
+		segmentLengths = new double[numSegments];
+		distancesAlongPath = new double[numSegments + 1];
+		for (int i = 0; i < numSegments; ++i) {
+			metersPerDegreeLon[i] = METERS_PER_DEGREE_LAT
+					* Math.cos(Math.toRadians((lats[i] + lats[i + 1]) / 2));
+			// Use same method as Vector.length() so that lengths are
+			// consistent with the rest of the system
+			segmentLengths[i] =
+					Geo.distance(locations.get(i), locations.get(i + 1));
+			distancesAlongPath[i + 1] =
+					distancesAlongPath[i] + segmentLengths[i];
+		}
+	}
+
+	/**
+	 * Returns the fraction, from 0.0 to 1.0, of the way along the segment that
+	 * the point best matches to. The point and the end of the segment are
+	 * relative to the beginning of the segment and are in meters.
+	 *
+	 * @param bx
+	 *            x of end of segment
+	 * @param by
+	 *            y of end of segment
+	 * @param px
+	 *            x of the point
+	 * @param py
+	 *            y of the point
+	 * @return fraction along segment
+	 */
+	private static double fractionAlongSegment(double bx, double by,
+			double px, double py) {
+		double lengthSquared = bx * bx + by * by;
+
+		// Handle zero length segment as special case so don't divide by zero
+		if (lengthSquared == 0.0)
+			return 0.0;
+
+		double fraction = (px * bx + py * by) / lengthSquared;
+		if (fraction <= 0.0)
+			return 0.0;
+		if (fraction > 1.0)
+			return 1.0;
+		return fraction;
+	}
+
+	/**
+	 * Returns the distance in meters from the location to the specified
+	 * segment. If the location is before the beginning or after the end of
+	 * the segment then the distance to the corresponding end point is
+	 * returned. An approximation of Geo.distance(Location, Vector) that is
+	 * much faster. For locations within 1 km of the segment the result is
+	 * within 0.15 m of it at latitudes up to 60 degrees. See the class
+	 * description for details.
+	 *
+	 * @param segmentIndex
+	 * @param lat
+	 *            Latitude of the location
+	 * @param lon
+	 *            Longitude of the location
+	 * @return distance to segment in meters
+	 */
+	public double distanceToSegment(int segmentIndex, double lat, double lon) {
+		double lonScale = metersPerDegreeLon[segmentIndex];
+		double bx = (lons[segmentIndex + 1] - lons[segmentIndex]) * lonScale;
+		double by = (lats[segmentIndex + 1] - lats[segmentIndex])
+				* METERS_PER_DEGREE_LAT;
+		double px = (lon - lons[segmentIndex]) * lonScale;
+		double py = (lat - lats[segmentIndex]) * METERS_PER_DEGREE_LAT;
+
+		double fraction = fractionAlongSegment(bx, by, px, py);
+		double dx = px - fraction * bx;
+		double dy = py - fraction * by;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Returns how far along the segment, in meters, the location best matches
+	 * to. Will be between 0.0 and the length of the segment. An
+	 * approximation of Geo.matchDistanceAlongVector() that is much faster.
+	 * For locations within 1 km of the segment the result is within 0.3 m of
+	 * it at latitudes up to 60 degrees. See the class description for
+	 * details.
+	 *
+	 * @param segmentIndex
+	 * @param lat
+	 *            Latitude of the location
+	 * @param lon
+	 *            Longitude of the location
+	 * @return distance along segment in meters
+	 */
+	public double distanceAlongSegment(int segmentIndex, double lat,
+			double lon) {
+		double lonScale = metersPerDegreeLon[segmentIndex];
+		double bx = (lons[segmentIndex + 1] - lons[segmentIndex]) * lonScale;
+		double by = (lats[segmentIndex + 1] - lats[segmentIndex])
+				* METERS_PER_DEGREE_LAT;
+		double px = (lon - lons[segmentIndex]) * lonScale;
+		double py = (lat - lats[segmentIndex]) * METERS_PER_DEGREE_LAT;
+
+		return fractionAlongSegment(bx, by, px, py)
+				* segmentLengths[segmentIndex];
+	}
+
+	/**
+	 * @return Number of segments in the path
+	 */
+	public int getNumberSegments() {
+		return segmentLengths.length;
+	}
+
+	/**
+	 * @param segmentIndex
+	 * @return Length of the segment in meters
+	 */
+	public double getSegmentLength(int segmentIndex) {
+		return segmentLengths[segmentIndex];
+	}
+
+	/**
+	 * Returns distance along the path to the beginning of the specified
+	 * segment. If segmentIndex is the number of segments then the total
+	 * length of the path is returned.
+	 *
+	 * @param segmentIndex
+	 * @return distance in meters
+	 */
+	public double getDistanceAlongPath(int segmentIndex) {
+		return distancesAlongPath[segmentIndex];
+	}
+
+	/**
+	 * @return Total length of the path in meters
+	 */
+	public double getLength() {
+		return distancesAlongPath[distancesAlongPath.length - 1];
+	}
+}
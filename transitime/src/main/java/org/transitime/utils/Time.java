@@ -35,6 +35,10 @@ import org.transitime.gtfs.DbConfig;
  * <code> TimeZone.setDefault(TimeZone.getTimeZone(timeZoneStr));</code> before
  * this class is initialized. Otherwise the SimpleDateFormat objects will
  * wrongly use the system default timezone.
+ * <p>
+ * The methods for converting between epoch times and times of day, which
+ * are called for every AVL report, do not lock. They use a table of
+ * timezone offsets instead of a shared Calendar.
  * 
  * @author SkiBu Smith
  * 
@@ -75,69 +79,177 @@ public class Time {
 	public static final long NSEC_PER_MSEC = 1000000;
 	public static final long MSEC_IN_NSECS = NSEC_PER_MSEC;
 	
-	// These two are for reading in dates in various formats
-	private static final DateFormat defaultDateFormat =
-			SimpleDateFormat.getDateInstance(DateFormat.SHORT);
-	private static final DateFormat dateFormatDashesShortYear =
-			new SimpleDateFormat("MM-dd-yy");
+	// SimpleDateFormat objects are not thread safe so each thread gets its
+	// own copy via a ThreadLocal. These two are for reading in dates in
+	// various formats.
+	private static final ThreadLocal<DateFormat> defaultDateFormat =
+			new ThreadLocal<DateFormat>() {
+				@Override
+				protected DateFormat initialValue() {
+					return SimpleDateFormat.getDateInstance(DateFormat.SHORT);
+				}
+			};
+	private static final ThreadLocal<DateFormat> dateFormatDashesShortYear =
+			threadLocalDateFormat("MM-dd-yy", null);
 
 	
-	private static final DateFormat readableDateFormat =
-			new SimpleDateFormat("MM-dd-yyyy");
+	private static final ThreadLocal<DateFormat> readableDateFormat =
+			threadLocalDateFormat("MM-dd-yyyy", null);
 	
-	private static final DateFormat readableDateFormat24 = 
-			new SimpleDateFormat("MM-dd-yyyy HH:mm:ss z");
+	private static final ThreadLocal<DateFormat> readableDateFormat24 = 
+			threadLocalDateFormat("MM-dd-yyyy HH:mm:ss z", null);
 	
-	private static final DateFormat readableDateFormat24NoSecs = 
-		new SimpleDateFormat("MM-dd-yyyy HH:mm");
+	private static final ThreadLocal<DateFormat> readableDateFormat24NoSecs = 
+			threadLocalDateFormat("MM-dd-yyyy HH:mm", null);
 
-	private static final DateFormat readableDateFormat24Msec = 
-			new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS z");
+	private static final ThreadLocal<DateFormat> readableDateFormat24Msec = 
+			threadLocalDateFormat("MM-dd-yyyy HH:mm:ss.SSS z", null);
 	
-	private static final DateFormat readableDateFormat24NoTimeZoneMsec = 
-			new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS");
+	private static final ThreadLocal<DateFormat> readableDateFormat24NoTimeZoneMsec = 
+			threadLocalDateFormat("MM-dd-yyyy HH:mm:ss.SSS", null);
 	
-	private static final DateFormat readableDateFormat24NoTimeZoneNoMsec = 
-			new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
+	private static final ThreadLocal<DateFormat> readableDateFormat24NoTimeZoneNoMsec = 
+			threadLocalDateFormat("MM-dd-yyyy HH:mm:ss", null);
 
-	private static final DateFormat timeFormat24 =
-			new SimpleDateFormat("HH:mm:ss z");
+	private static final ThreadLocal<DateFormat> timeFormat24 =
+			threadLocalDateFormat("HH:mm:ss z", null);
 
-	private static final DateFormat timeFormat24NoTimezone =
-			new SimpleDateFormat("HH:mm:ss");
+	private static final ThreadLocal<DateFormat> timeFormat24NoTimezone =
+			threadLocalDateFormat("HH:mm:ss", null);
 	
-	private static final DateFormat timeFormat24Msec =
-			new SimpleDateFormat("HH:mm:ss.SSS z");
+	private static final ThreadLocal<DateFormat> timeFormat24Msec =
+			threadLocalDateFormat("HH:mm:ss.SSS z", null);
 
-	private static final DateFormat timeFormat24MsecNoTimeZone =
-			new SimpleDateFormat("HH:mm:ss.SSS");
+	private static final ThreadLocal<DateFormat> timeFormat24MsecNoTimeZone =
+			threadLocalDateFormat("HH:mm:ss.SSS", null);
 
 	// Sun, 06 Nov 1994 08:49:37 GMT  ; RFC 822, updated by RFC 1123
-	private static final DateFormat httpFormat =
-			new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+	private static final ThreadLocal<DateFormat> httpFormat =
+			threadLocalDateFormat("EEE, dd MMM yyyy HH:mm:ss z",
+					TimeZone.getTimeZone("GMT"));
 	
-	// Note that this one is not static. It is for when need to include
+	// Note that these are not static. They are for when need to include
 	// timezone via a Time object.
-	private final DateFormat readableDateFormat24MsecForTimeZone =
-			new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS z");
-	private final DateFormat readableTimeFormatForTimeZone =
-			new SimpleDateFormat("HH:mm:ss");
-	private final DateFormat readableDateFormatForTimeZone =
-			new SimpleDateFormat("MM-dd-yyyy");
+	private final ThreadLocal<DateFormat> readableDateFormat24MsecForTimeZone;
+	private final ThreadLocal<DateFormat> readableTimeFormatForTimeZone;
+	private final ThreadLocal<DateFormat> readableDateFormatForTimeZone;
 	
 	// So can output headings and such with a consistent number of decimal places
 	private static final DecimalFormat oneDigitFormat = new DecimalFormat("0.0");
 
-	// Have a shared calendar so don't have to keep creating one
-	private Calendar calendar;
+	// Have a shared calendar so don't have to keep creating one. Only used
+	// by getDayOfYear().
+	private final Calendar calendar;
+	
+	// For converting between epoch times and times of day without having to
+	// synchronize on a Calendar. The timezone offsets are looked up in an
+	// immutable table that is replaced if a time outside of it is used.
+	private final TimeZone timeZone;
+	private volatile OffsetTable offsetTable;
+	
+	// How many days the offset table covers, centered on the first time
+	// that it is used for
+	private static final int OFFSET_TABLE_DAYS = 800;
 	
 	/******************* Methods ******************/
 	
+	/**
+	 * Timezone offsets for a range of days so that the offset for an epoch
+	 * time can be determined without locking. For each UTC day there is the
+	 * offset at the beginning of the day and, if the offset changes during
+	 * the day due to daylight savings time, the time of the change and the
+	 * offset after it. Timezones change their offset at most once a day so
+	 * this is sufficient.
+	 */
+	private static class OffsetTable {
+		// The UTC day number, epoch time / MS_PER_DAY, of the first day
+		private final long firstDay;
+		private final int[] offsetAtStartOfDay;
+		// Long.MAX_VALUE if offset doesn't change during the day
+		private final long[] transitionTime;
+		private final int[] offsetAfterTransition;
+		
+		private OffsetTable(TimeZone timeZone, long centerTime) {
+			firstDay = floorDiv(centerTime, MS_PER_DAY) - OFFSET_TABLE_DAYS / 2;
+			offsetAtStartOfDay = new int[OFFSET_TABLE_DAYS];
+			transitionTime = new long[OFFSET_TABLE_DAYS];
+			offsetAfterTransition = new int[OFFSET_TABLE_DAYS];
+			
+			for (int i = 0; i < OFFSET_TABLE_DAYS; ++i) {
+				long dayStart = (firstDay + i) * MS_PER_DAY;
+				long dayEnd = dayStart + MS_PER_DAY - 1;
+				int startOffset = timeZone.getOffset(dayStart);
+				int endOffset = timeZone.getOffset(dayEnd);
+				offsetAtStartOfDay[i] = startOffset;
+				offsetAfterTransition[i] = endOffset;
+				if (startOffset == endOffset) {
+					transitionTime[i] = Long.MAX_VALUE;
+				} else {
+					// Binary search for the first msec with the new offset
+					long low = dayStart;
+					long high = dayEnd;
+					while (high - low > 1) {
+						long mid = (low + high) >>> 1;
+						if (timeZone.getOffset(mid) == startOffset)
+							low = mid;
+						else
+							high = mid;
+					}
+					transitionTime[i] = high;
+				}
+			}
+		}
+		
+		private boolean contains(long epochTime) {
+			long index = floorDiv(epochTime, MS_PER_DAY) - firstDay;
+			return index >= 0 && index < OFFSET_TABLE_DAYS;
+		}
+		
+		private int getOffset(long epochTime) {
+			int index = (int) (floorDiv(epochTime, MS_PER_DAY) - firstDay);
+			return epochTime < transitionTime[index] ? 
+					offsetAtStartOfDay[index] : offsetAfterTransition[index];
+		}
+		
+		/**
+		 * For when converting a local time to an epoch time. The local time
+		 * is within a day of the epoch time so only need to look at
+		 * transitions for the adjacent days. Same as Calendar, for a local
+		 * time that doesn't exist because clocks were set forward the offset
+		 * before the transition is used, and for an ambiguous local time
+		 * because clocks were set back the offset after the transition is
+		 * used.
+		 * 
+		 * @param localTime
+		 *            Must be at least a day within the table
+		 * @return the offset to subtract from the local time
+		 */
+		private int getOffsetForLocalTime(long localTime) {
+			int index = (int) (floorDiv(localTime, MS_PER_DAY) - firstDay);
+			for (int i = index - 1; i <= index + 1; ++i) {
+				if (transitionTime[i] != Long.MAX_VALUE) {
+					long epochTimeUsingNewOffset = 
+							localTime - offsetAfterTransition[i];
+					return epochTimeUsingNewOffset >= transitionTime[i] ? 
+							offsetAfterTransition[i] : offsetAtStartOfDay[i];
+				}
+			}
+			return offsetAtStartOfDay[index];
+		}
+	}
+	
 	public Time(DbConfig dbConfig) {
 		Agency agency = dbConfig.getFirstAgency();
-		this.calendar =
-				agency != null ? new GregorianCalendar(agency.getTimeZone())
-						: new GregorianCalendar();
+		this.timeZone = 
+				agency != null ? agency.getTimeZone() : TimeZone.getDefault();
+		this.calendar = new GregorianCalendar(timeZone);
+		
+		readableDateFormat24MsecForTimeZone = 
+				threadLocalDateFormat("MM-dd-yyyy HH:mm:ss.SSS z", null);
+		readableTimeFormatForTimeZone = 
+				threadLocalDateFormat("HH:mm:ss", null);
+		readableDateFormatForTimeZone = 
+				threadLocalDateFormat("MM-dd-yyyy", null);
 	}
 	
 	/**
@@ -152,15 +264,91 @@ public class Time {
 	 */
 	public Time(String timeZoneStr) {
 		// If no time zone string specified then use local timezone
-		if (timeZoneStr == null)
-			return;
-		
-		TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
+		TimeZone formatTimeZone = 
+				timeZoneStr != null ? TimeZone.getTimeZone(timeZoneStr) : null;
+		this.timeZone = 
+				formatTimeZone != null ? formatTimeZone : TimeZone.getDefault();
 		this.calendar = new GregorianCalendar(timeZone);
 		
-		readableDateFormat24MsecForTimeZone.setCalendar(this.calendar);
-		readableTimeFormatForTimeZone.setCalendar(this.calendar);
-		readableDateFormatForTimeZone.setCalendar(this.calendar);
+		readableDateFormat24MsecForTimeZone = threadLocalDateFormat(
+				"MM-dd-yyyy HH:mm:ss.SSS z", formatTimeZone);
+		readableTimeFormatForTimeZone = 
+				threadLocalDateFormat("HH:mm:ss", formatTimeZone);
+		readableDateFormatForTimeZone = 
+				threadLocalDateFormat("MM-dd-yyyy", formatTimeZone);
+	}
+	
+	/**
+	 * Returns a ThreadLocal so that each thread gets its own SimpleDateFormat
+	 * since SimpleDateFormat is not thread safe.
+	 * 
+	 * @param pattern
+	 * @param timeZone
+	 *            If null then the default timezone is used
+	 * @return ThreadLocal for the DateFormat
+	 */
+	private static ThreadLocal<DateFormat> threadLocalDateFormat(
+			final String pattern, final TimeZone timeZone) {
+		return new ThreadLocal<DateFormat>() {
+			@Override
+			protected DateFormat initialValue() {
+				DateFormat format = new SimpleDateFormat(pattern);
+				if (timeZone != null)
+					format.setTimeZone(timeZone);
+				return format;
+			}
+		};
+	}
+	
+	/**
+	 * Like Math.floorDiv(), which isn't available in Java 7, so that get the
+	 * proper day for times before 1970.
+	 */
+	private static long floorDiv(long x, long y) {
+		long result = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			--result;
+		return result;
+	}
+	
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+	
+	/**
+	 * Returns the offset of the timezone from UTC at the specified time,
+	 * taking into account daylight savings time. Lock free since uses an
+	 * immutable OffsetTable. If the time is outside of the current table then
+	 * a new one is created for that time.
+	 * 
+	 * @param epochTime
+	 * @return offset in msec to add to UTC time to get local time
+	 */
+	private int getOffset(long epochTime) {
+		OffsetTable table = offsetTable;
+		if (table == null || !table.contains(epochTime)) {
+			table = new OffsetTable(timeZone, epochTime);
+			offsetTable = table;
+		}
+		return table.getOffset(epochTime);
+	}
+	
+	/**
+	 * Converts a local time, the msec since epoch as if the timezone were
+	 * UTC, into an epoch time. Handles daylight savings time transitions
+	 * the same way that Calendar does. Lock free.
+	 * 
+	 * @param localTime
+	 * @return epoch time
+	 */
+	private long localTimeToEpochTime(long localTime) {
+		OffsetTable table = offsetTable;
+		if (table == null || !table.contains(localTime - MS_PER_DAY)
+				|| !table.contains(localTime + MS_PER_DAY)) {
+			table = new OffsetTable(timeZone, localTime);
+			offsetTable = table;
+		}
+		return localTime - table.getOffsetForLocalTime(localTime);
 	}
 	
 	/**
@@ -170,15 +358,8 @@ public class Time {
 	 * @return seconds into the day
 	 */
 	public int getSecondsIntoDay(long epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTimeInMillis(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
-					calendar.get(Calendar.MINUTE) * 60          +
-					calendar.get(Calendar.SECOND);
-		}
+		return (int) (floorMod(epochTime + getOffset(epochTime), MS_PER_DAY) 
+				/ MS_PER_SEC);
 	}
 	
 	/**
@@ -211,16 +392,20 @@ public class Time {
 	 * @return msec into the day
 	 */
 	public int getMsecsIntoDay(Date epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTime(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000 +
-					calendar.get(Calendar.MINUTE) * 60 * 1000          +
-					calendar.get(Calendar.SECOND) * 1000               +
-					calendar.get(Calendar.MILLISECOND);
-		}
+		long time = epochTime.getTime();
+		return (int) floorMod(time + getOffset(time), MS_PER_DAY);
+	}
+	
+	/**
+	 * Returns the epoch time of the start of the day that the epoch time is
+	 * in, using the timezone of this Time object. Lock free.
+	 * 
+	 * @param epochTime
+	 * @return start of the day
+	 */
+	public long getStartOfDay(long epochTime) {
+		long localTime = epochTime + getOffset(epochTime);
+		return localTimeToEpochTime(localTime - floorMod(localTime, MS_PER_DAY));
 	}
 	
 	/**
@@ -281,56 +466,7 @@ public class Time {
 	 * @return epoch time
 	 */
 	public long getEpochTime(int secondsIntoDay, Date referenceDate) {
-		// Need to sync the calendar since reusing it.
-		synchronized (calendar) {
-			// Determine seconds, minutes, and hours
-			int seconds = secondsIntoDay % 60;
-			int minutesIntoDay = secondsIntoDay / 60;
-			int minutes = minutesIntoDay % 60;
-			int hoursIntoDay = minutesIntoDay / 60;
-			int hours = hoursIntoDay % 24;
-			
-			// Set the calendar to use the reference time so that get the
-			// proper date.
-			calendar.setTime(referenceDate);
-			
-			// Set the seconds, minutes, and hours so that the calendar has
-			// the proper time. Need to also set milliseconds because otherwise
-			// would use milliseconds from the referenceDate.
-			calendar.set(Calendar.MILLISECOND, 0);
-			calendar.set(Calendar.SECOND, seconds);
-			calendar.set(Calendar.MINUTE, minutes);
-			calendar.set(Calendar.HOUR_OF_DAY, hours);
-			
-			// Get the epoch time
-			long epochTime = calendar.getTimeInMillis();
-			
-			// Need to make sure that didn't have a problem around midnight. 
-			// For example, a vehicle is supposed to depart a layover at 
-			// 00:05:00 right after midnight but the AVL time might be for
-			// 23:57:13, which is actually for the previous day. If would
-			// simply set the hours, minutes and seconds then would wrongly
-			// get an epoch time for the previous day. Could have the same
-			// problem if the AVL time is right after midnight but the 
-			// secondsIntoDay is just before midnight. Therefore if the 
-			// resulting epoch time is too far away then adjust the epoch
-			// time by plus or minus day. Note: originally used 12 hours
-			// instead of 20 hours but that caused problems when trying to 
-			// determine if a block is active because it might have started
-			// more than 12 hours ago. By using 20 hours we are much more likely
-			// to get the correct day because will only correct if really far 
-			// off.
-			if (epochTime > referenceDate.getTime() + 20 * MS_PER_HOUR) {
-				// subtract a day
-				epochTime -= MS_PER_DAY;
-			} else if (epochTime < referenceDate.getTime() - 20 * MS_PER_HOUR) {
-				// add a day
-				epochTime += MS_PER_DAY;
-			}
-			
-			// Get the results
-			return epochTime;
-		}
+		return getEpochTime(secondsIntoDay, referenceDate.getTime());
 	}
 	
 	/**
@@ -344,7 +480,43 @@ public class Time {
 	 * @return epoch time
 	 */
 	public long getEpochTime(int secondsIntoDay, long referenceTime) {
-		return getEpochTime(secondsIntoDay, new Date(referenceTime));
+		// Determine the local start of the day of the reference time.
+		// Local times are msec since epoch as if the timezone were UTC.
+		long localReferenceTime = referenceTime + getOffset(referenceTime);
+		long localStartOfDay = 
+				localReferenceTime - floorMod(localReferenceTime, MS_PER_DAY);
+		
+		// Only use the time of day portion of secondsIntoDay, as was done
+		// when setting the hours, minutes, and seconds of a Calendar
+		long localTime = localStartOfDay 
+				+ (secondsIntoDay % SEC_PER_DAY) * (long) MS_PER_SEC;
+		long epochTime = localTimeToEpochTime(localTime);
+		
+		// Need to make sure that didn't have a problem around midnight. 
+		// For example, a vehicle is supposed to depart a layover at 
+		// 00:05:00 right after midnight but the AVL time might be for
+		// 23:57:13, which is actually for the previous day. If would
+		// simply set the hours, minutes and seconds then would wrongly
+		// get an epoch time for the previous day. Could have the same
+		// problem if the AVL time is right after midnight but the 
+		// secondsIntoDay is just before midnight. Therefore if the 
+		// resulting epoch time is too far away then adjust the epoch
+		// time by plus or minus day. Note: originally used 12 hours
+		// instead of 20 hours but that caused problems when trying to 
+		// determine if a block is active because it might have started
+		// more than 12 hours ago. By using 20 hours we are much more likely
+		// to get the correct day because will only correct if really far 
+		// off.
+		if (epochTime > referenceTime + 20 * MS_PER_HOUR) {
+			// subtract a day
+			epochTime -= MS_PER_DAY;
+		} else if (epochTime < referenceTime - 20 * MS_PER_HOUR) {
+			// add a day
+			epochTime += MS_PER_DAY;
+		}
+		
+		// Get the results
+		return epochTime;
 	}
 	
 	/**
@@ -383,7 +555,7 @@ public class Time {
 	 * @throws ParseException
 	 */
 	public Date parseUsingTimezone(String dateStr) throws ParseException {
-		return readableDateFormatForTimeZone.parse(dateStr);
+		return readableDateFormatForTimeZone.get().parse(dateStr);
 	}
 	
 	/**
@@ -398,31 +570,31 @@ public class Time {
 	public static Date parse(String datetimeStr) throws ParseException {
 		// First try with timezone and msec, the most complete form
 		try {
-			Date date = readableDateFormat24Msec.parse(datetimeStr);
+			Date date = readableDateFormat24Msec.get().parse(datetimeStr);
 			return date;
 		} catch (ParseException e) {}
 
 		// Got exception so try without timezone but still try msec
 		try {
-			Date date = readableDateFormat24NoTimeZoneMsec.parse(datetimeStr);
+			Date date = readableDateFormat24NoTimeZoneMsec.get().parse(datetimeStr);
 			return date;
 		} catch (ParseException e) {}
 		
 		// Still not working so try without seconds but with timezone
 		try {
-			Date date = readableDateFormat24.parse(datetimeStr);
+			Date date = readableDateFormat24.get().parse(datetimeStr);
 			return date;
 		} catch (ParseException e) {}
 		
 		// Still not working so try without msecs and without timezone
 		try {
-			Date date = readableDateFormat24NoTimeZoneNoMsec.parse(datetimeStr);
+			Date date = readableDateFormat24NoTimeZoneNoMsec.get().parse(datetimeStr);
 			return date;
 		} catch (ParseException e) {}
 		
 		// Still not working so try without seconds and without timezone
 		try {
-			Date date = readableDateFormat24NoSecs.parse(datetimeStr);
+			Date date = readableDateFormat24NoSecs.get().parse(datetimeStr);
 			return date;
 		} catch (ParseException e) {}
 		
@@ -430,7 +602,7 @@ public class Time {
 		// specification so this attempt needs to be done after trying all
 		// the other formats.
 		try {
-		    Date date = readableDateFormat.parse(datetimeStr);
+		    Date date = readableDateFormat.get().parse(datetimeStr);
 		    return date;
 		} catch (ParseException e) {}
 		
@@ -449,13 +621,13 @@ public class Time {
 	 */
 	public static Date parseDate(String dateStr) throws ParseException {
 		try {
-			return defaultDateFormat.parse(dateStr);
+			return defaultDateFormat.get().parse(dateStr);
 		} catch (ParseException e) {}
 
 		// Try using "-" instead of "/" as separator. Having the date formatter
 		// specify only two digits for the year means it also works when 4
 		// digits are used, making it pretty versatile.
-		return dateFormatDashesShortYear.parse(dateStr);		
+		return dateFormatDashesShortYear.get().parse(dateStr);		
 	}
 	
 	/**
@@ -687,7 +859,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateStr(long epochTime) {
-		return readableDateFormat.format(epochTime);
+		return readableDateFormat.get().format(epochTime);
 	}
 	
 	/**
@@ -696,7 +868,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateStr(Date epochTime) {
-		return readableDateFormat.format(epochTime);
+		return readableDateFormat.get().format(epochTime);
 	}
 	
 	/**
@@ -705,7 +877,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateTimeStr(long epochTime) {
-		return readableDateFormat24.format(epochTime);
+		return readableDateFormat24.get().format(epochTime);
 	}
 	
 	/**
@@ -715,7 +887,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateTimeStr(Date epochTime) {
-		return readableDateFormat24.format(epochTime.getTime());
+		return readableDateFormat24.get().format(epochTime.getTime());
 	}	
 	
 	/**
@@ -725,7 +897,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateTimeStrMsec(long epochTime) {
-		return readableDateFormat24Msec.format(epochTime);
+		return readableDateFormat24Msec.get().format(epochTime);
 	}
 	
 	/**
@@ -736,11 +908,11 @@ public class Time {
 	 * @return
 	 */
 	public String dateTimeStrMsecForTimezone(long epochTime) {
-		return readableDateFormat24MsecForTimeZone.format(epochTime);
+		return readableDateFormat24MsecForTimeZone.get().format(epochTime);
 	}
 	
 	public String timeStrForTimezone(long epochTime) {
-		return readableTimeFormatForTimeZone.format(epochTime);
+		return readableTimeFormatForTimeZone.get().format(epochTime);
 	}
 	
 	/**
@@ -751,7 +923,7 @@ public class Time {
 	 * @return
 	 */
 	public static String dateTimeStrMsec(Date epochTime) {
-		return readableDateFormat24Msec.format(epochTime.getTime());
+		return readableDateFormat24Msec.get().format(epochTime.getTime());
 	}	
 	
 	/**
@@ -761,7 +933,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStr(long epochTime) {
-		return timeFormat24.format(epochTime);
+		return timeFormat24.get().format(epochTime);
 	}
 
 	/**
@@ -781,7 +953,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStrNoTimeZone(long epochTime) {
-		return timeFormat24NoTimezone.format(epochTime);
+		return timeFormat24NoTimezone.get().format(epochTime);
 	}
 	
 	/**
@@ -801,7 +973,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStrMsec(Date epochTime) {
-		return timeFormat24Msec.format(epochTime.getTime());
+		return timeFormat24Msec.get().format(epochTime.getTime());
 	}
 	
 	/**
@@ -812,7 +984,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStrMsec(long epochTime) {
-		return timeFormat24Msec.format(epochTime);
+		return timeFormat24Msec.get().format(epochTime);
 	}
 
 	/**
@@ -823,7 +995,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStrMsecNoTimeZone(long epochTime) {
-		return timeFormat24MsecNoTimeZone.format(epochTime);
+		return timeFormat24MsecNoTimeZone.get().format(epochTime);
 	}
 	
 	/**
@@ -834,7 +1006,7 @@ public class Time {
 	 * @return
 	 */
 	public static String timeStrMsecNoTimeZone(Date epochTime) {
-		return timeFormat24MsecNoTimeZone.format(epochTime);
+		return timeFormat24MsecNoTimeZone.get().format(epochTime);
 	}
 
 	/**
@@ -845,8 +1017,7 @@ public class Time {
 	 * @return
 	 */
 	public static String httpDate(long epochTime) {
-		httpFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-		return httpFormat.format(epochTime);
+		return httpFormat.get().format(epochTime);
 	}
 	
 	/**
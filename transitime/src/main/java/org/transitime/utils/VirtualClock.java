@@ -0,0 +1,86 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+/**
+ * A system time for replaying AVL data that is advanced by the replay instead
+ * of by the computer clock. Unlike SettableSystemTime the clock can also be
+ * set just for the current thread. This way multiple threads can each process
+ * an AVL report using the time of that report while other threads, such as
+ * the ones handling timeouts, see the time that the replay as a whole has
+ * reached.
+ * <p>
+ * When a clock is set for Core the modules that normally poll using the
+ * computer clock, such as TimeoutHandlerModule, leave it to the replay to
+ * drive them so that the results don't depend on how fast the replay runs.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class VirtualClock implements SystemTime {
+
+	// The time the replay as a whole has reached
+	private volatile long time;
+
+	// For when a thread is processing an AVL report with its own time.
+	// Null if thread should use the global time.
+	private final ThreadLocal<Long> threadTime = new ThreadLocal<Long>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param time
+	 *            The initial epoch time
+	 */
+	public VirtualClock(long time) {
+		this.time = time;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.utils.SystemTime#get()
+	 */
+	@Override
+	public long get() {
+		Long timeForThread = threadTime.get();
+		return timeForThread != null ? timeForThread : time;
+	}
+
+	/**
+	 * Sets the time for all threads that have not set their own time.
+	 *
+	 * @param time
+	 */
+	public void set(long time) {
+		this.time = time;
+	}
+
+	/**
+	 * Sets the time for just the current thread.
+	 *
+	 * @param time
+	 */
+	public void setForCurrentThread(long time) {
+		threadTime.set(time);
+	}
+
+	/**
+	 * So that the current thread goes back to using the global time.
+	 */
+	public void clearForCurrentThread() {
+		threadTime.remove();
+	}
+}
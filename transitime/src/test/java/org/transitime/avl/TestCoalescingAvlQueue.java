@@ -0,0 +1,176 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that CoalescingAvlQueue keeps vehicles in the order that they were
+ * first queued and only coalesces the reports for a vehicle when doing so
+ * doesn't lose information. Uses the default of 60 seconds for
+ * transitime.avl.maxCoalesceSecs.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestCoalescingAvlQueue extends TestCase {
+
+	private static final long BASE_TIME = 1420070400000L;
+
+	private static AvlClient avlClient(String vehicleId, int secsAfterBase) {
+		return avlClient(vehicleId, secsAfterBase, null, AssignmentType.UNSET);
+	}
+
+	private static AvlClient avlClient(String vehicleId, int secsAfterBase,
+			String assignmentId, AssignmentType assignmentType) {
+		AvlReport avlReport = new AvlReport(vehicleId,
+				BASE_TIME + secsAfterBase * Time.MS_PER_SEC, 37.8, -122.4,
+				Float.NaN, Float.NaN, "test");
+		avlReport.setAssignment(assignmentId, assignmentType);
+		return new AvlClient(avlReport);
+	}
+
+	/**
+	 * Takes the next runnable from the queue and returns the time of its AVL
+	 * report, in seconds after BASE_TIME.
+	 */
+	private static int pollSecs(CoalescingAvlQueue queue, String vehicleId) {
+		AvlClient avlClient = (AvlClient) queue.poll();
+		assertNotNull(avlClient);
+		assertEquals(vehicleId, avlClient.getAvlReport().getVehicleId());
+		return (int) ((avlClient.getAvlReport().getTime() - BASE_TIME)
+				/ Time.MS_PER_SEC);
+	}
+
+	public void testCoalescesAndKeepsOrder() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(10);
+		assertTrue(queue.offer(avlClient("v1", 0)));
+		assertTrue(queue.offer(avlClient("v2", 5)));
+		assertTrue(queue.offer(avlClient("v1", 10)));
+		assertTrue(queue.offer(avlClient("v3", 12)));
+		assertTrue(queue.offer(avlClient("v1", 20)));
+		assertTrue(queue.offer(avlClient("v2", 25)));
+
+		// One slot per vehicle, in the order that the vehicles were first
+		// queued, each with the latest report for the vehicle
+		assertEquals(3, queue.size());
+		assertEquals(3, queue.getNumVehiclesWaiting());
+		assertEquals(20, pollSecs(queue, "v1"));
+		assertEquals(25, pollSecs(queue, "v2"));
+		assertEquals(12, pollSecs(queue, "v3"));
+		assertNull(queue.poll());
+		assertEquals(0, queue.getNumVehiclesWaiting());
+	}
+
+	public void testNotCoalescedAfterTaken() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(10);
+		assertTrue(queue.offer(avlClient("v1", 0)));
+		AvlClient taken = (AvlClient) queue.poll();
+
+		// Once the slot is taken from the queue a new report for the vehicle
+		// needs a new slot instead of changing the one being processed
+		assertTrue(queue.offer(avlClient("v1", 10)));
+		assertEquals(0, (taken.getAvlReport().getTime() - BASE_TIME)
+				/ Time.MS_PER_SEC);
+		assertEquals(1, queue.size());
+		assertEquals(10, pollSecs(queue, "v1"));
+	}
+
+	public void testAssignmentChangeNotCoalesced() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(10);
+		assertTrue(queue.offer(avlClient("v1", 0, "block1",
+				AssignmentType.BLOCK_ID)));
+		assertTrue(queue.offer(avlClient("v1", 10, "block2",
+				AssignmentType.BLOCK_ID)));
+		assertTrue(queue.offer(avlClient("v1", 20, "block2",
+				AssignmentType.BLOCK_ID)));
+
+		// The report with the first assignment is kept, and the later ones
+		// with the new assignment are coalesced with each other
+		assertEquals(2, queue.size());
+		assertEquals(0, pollSecs(queue, "v1"));
+		assertEquals(20, pollSecs(queue, "v1"));
+	}
+
+	public void testNotCoalescedBeyondMaxCoalesceTime() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(10);
+		assertTrue(queue.offer(avlClient("v1", 0)));
+		assertTrue(queue.offer(avlClient("v1", 30)));
+		assertTrue(queue.offer(avlClient("v1", 60)));
+		// More than 60 seconds after the first report coalesced into the
+		// slot so gets a new slot
+		assertTrue(queue.offer(avlClient("v1", 61)));
+		assertTrue(queue.offer(avlClient("v1", 90)));
+
+		assertEquals(2, queue.size());
+		assertEquals(60, pollSecs(queue, "v1"));
+		assertEquals(90, pollSecs(queue, "v1"));
+	}
+
+	public void testOlderReportNotCoalesced() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(10);
+		assertTrue(queue.offer(avlClient("v1", 30)));
+		assertTrue(queue.offer(avlClient("v1", 20)));
+
+		// The out of order report is queued separately so that AvlClient
+		// can filter it out as usual instead of it replacing a newer one
+		assertEquals(2, queue.size());
+		assertEquals(30, pollSecs(queue, "v1"));
+		assertEquals(20, pollSecs(queue, "v1"));
+	}
+
+	public void testFullQueue() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(2);
+		assertTrue(queue.offer(avlClient("v1", 0)));
+		assertTrue(queue.offer(avlClient("v2", 0)));
+
+		// No slot for another vehicle, but reports for the queued vehicles
+		// can still be coalesced
+		assertFalse(queue.offer(avlClient("v3", 5)));
+		assertTrue(queue.offer(avlClient("v1", 10)));
+		assertEquals(2, queue.getNumVehiclesWaiting());
+		try {
+			queue.add(avlClient("v3", 15));
+			fail("Expected IllegalStateException for full queue");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		assertEquals(10, pollSecs(queue, "v1"));
+		assertTrue(queue.offer(avlClient("v3", 20)));
+		assertEquals(0, pollSecs(queue, "v2"));
+		assertEquals(20, pollSecs(queue, "v3"));
+	}
+
+	public void testOnlyAcceptsAvlClients() {
+		CoalescingAvlQueue queue = new CoalescingAvlQueue(2);
+		try {
+			queue.offer(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			fail("Expected IllegalArgumentException for non-AvlClient");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
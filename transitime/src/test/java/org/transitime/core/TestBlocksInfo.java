@@ -0,0 +1,151 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.transitime.core.BlocksInfo.BlocksForService;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that the start time index of BlocksInfo finds the same blocks as
+ * looking at every block using the criteria of Block.isActive() and
+ * Block.isBeforeStartTime(), which is what BlocksInfo used to do.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestBlocksInfo extends TestCase {
+
+	private static final int[] ALLOWABLE_BEFORE_TIME_SECS = { 0, 1, 600,
+			30 * Time.SEC_PER_MIN };
+	private static final int[] ALLOWABLE_AFTER_START_TIME_SECS = { -1, 0, 1,
+			900, 4 * Time.SEC_PER_HOUR };
+
+	/**
+	 * Creates random blocks, including ones that go past midnight, with
+	 * duplicate start times, and with times on whole minutes so that times
+	 * exactly at a start or end time are tested.
+	 */
+	private static List<Block> randomBlocks(Random random, int numBlocks) {
+		List<Block> blocks = new ArrayList<Block>();
+		for (int i = 0; i < numBlocks; ++i) {
+			int startTime = random.nextInt(26 * Time.MIN_PER_HOUR)
+					* Time.SEC_PER_MIN + 3 * Time.SEC_PER_HOUR;
+			int endTime = startTime
+					+ (1 + random.nextInt(16 * Time.MIN_PER_HOUR))
+					* Time.SEC_PER_MIN;
+			blocks.add(new Block(0, "block" + i, "service", startTime,
+					endTime, new ArrayList<Trip>()));
+		}
+		return blocks;
+	}
+
+	private static void sortById(List<Block> blocks) {
+		Collections.sort(blocks, new Comparator<Block>() {
+			@Override
+			public int compare(Block b1, Block b2) {
+				return b1.getId().compareTo(b2.getId());
+			}
+		});
+	}
+
+	public void testActiveBlocksMatchLinearScan() {
+		Random random = new Random(17);
+		List<Block> blocks = randomBlocks(random, 300);
+		BlocksForService blocksForService = new BlocksForService(blocks);
+
+		// Times of day from the day before to the day after, since the index
+		// is used for the previous and next service days as well
+		for (int secsInDay = -Time.SEC_PER_DAY;
+				secsInDay < 2 * Time.SEC_PER_DAY;
+				secsInDay += 7 * Time.SEC_PER_MIN) {
+			for (int before : ALLOWABLE_BEFORE_TIME_SECS) {
+				for (int afterStart : ALLOWABLE_AFTER_START_TIME_SECS) {
+					// The same criteria as Block.isActive()
+					List<Block> expected = new ArrayList<Block>();
+					for (Block block : blocks) {
+						int allowableStartTime = block.getStartTime() - before;
+						int allowableEndTime = afterStart < 0 ?
+								block.getEndTime()
+								: block.getStartTime() + afterStart;
+						if (secsInDay > allowableStartTime
+								&& secsInDay < allowableEndTime)
+							expected.add(block);
+					}
+
+					List<Block> actual = new ArrayList<Block>();
+					blocksForService.addActiveBlocks(secsInDay, before,
+							afterStart, actual);
+					sortById(expected);
+					sortById(actual);
+					assertEquals("secsInDay=" + secsInDay + " before="
+							+ before + " afterStart=" + afterStart,
+							expected, actual);
+				}
+			}
+		}
+	}
+
+	public void testBlocksAboutToStartMatchLinearScan() {
+		Random random = new Random(23);
+		List<Block> blocks = randomBlocks(random, 300);
+		BlocksForService blocksForService = new BlocksForService(blocks);
+
+		for (int secsInDay = -Time.SEC_PER_DAY;
+				secsInDay < 2 * Time.SEC_PER_DAY;
+				secsInDay += 7 * Time.SEC_PER_MIN) {
+			for (int before : ALLOWABLE_BEFORE_TIME_SECS) {
+				// The same criteria as Block.isBeforeStartTime() for a
+				// single day
+				List<Block> expected = new ArrayList<Block>();
+				for (Block block : blocks) {
+					if (secsInDay > block.getStartTime() - before
+							&& secsInDay < block.getStartTime())
+						expected.add(block);
+				}
+
+				List<Block> actual = new ArrayList<Block>();
+				blocksForService.addBlocksStartingBetween(secsInDay,
+						secsInDay + before, actual);
+				sortById(expected);
+				sortById(actual);
+				assertEquals("secsInDay=" + secsInDay + " before=" + before,
+						expected, actual);
+			}
+		}
+	}
+
+	public void testNoBlocks() {
+		BlocksForService blocksForService =
+				new BlocksForService(new ArrayList<Block>());
+		List<Block> results = new ArrayList<Block>();
+		blocksForService.addActiveBlocks(12 * Time.SEC_PER_HOUR, 600, -1,
+				results);
+		blocksForService.addBlocksStartingBetween(12 * Time.SEC_PER_HOUR,
+				13 * Time.SEC_PER_HOUR, results);
+		assertTrue(results.isEmpty());
+	}
+}
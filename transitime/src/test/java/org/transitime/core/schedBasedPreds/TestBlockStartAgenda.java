@@ -0,0 +1,244 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.schedBasedPreds;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that BlockStartAgenda has the same blocks active as determining the
+ * window of every block for every service day would, as the agenda rolls
+ * over from one service day to the next. Includes blocks that go past
+ * midnight, blocks that enter their window before midnight, service that is
+ * only on weekdays, and a daylight savings time transition.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestBlockStartAgenda extends TestCase {
+
+	private static final String TIME_ZONE = "America/Los_Angeles";
+
+	private static final int BEFORE_START_TIME_SECS = 30 * Time.SEC_PER_MIN;
+
+	private final TimeZone timeZone = TimeZone.getTimeZone(TIME_ZONE);
+	private final Time time = new Time(TIME_ZONE);
+
+	private final List<Block> dailyBlocks = new ArrayList<Block>();
+	private final List<Block> weekdayBlocks = new ArrayList<Block>();
+
+	/**
+	 * An agenda that gets its schedule from this test instead of from the
+	 * Core.
+	 */
+	private class TestAgenda extends BlockStartAgenda {
+		private TestAgenda(int afterStartTimeSecs) {
+			super(BEFORE_START_TIME_SECS, afterStartTimeSecs);
+		}
+
+		@Override
+		DbConfig getDbConfig() {
+			return null;
+		}
+
+		@Override
+		Time getTime() {
+			return time;
+		}
+
+		@Override
+		List<String> getServiceIdsForDay(long serviceDayStart) {
+			return serviceIdsForDay(serviceDayStart);
+		}
+
+		@Override
+		Collection<Block> getBlocks(String serviceId) {
+			return serviceId.equals("daily") ? dailyBlocks : weekdayBlocks;
+		}
+	}
+
+	/**
+	 * A block for a service day along with its window, determined using a
+	 * Calendar.
+	 */
+	private static class Window {
+		private final Block block;
+		private final long start;
+		private final long end;
+
+		private Window(Block block, long start, long end) {
+			this.block = block;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dailyBlocks.add(block("morning", "daily", "06:00", "10:00"));
+		dailyBlocks.add(block("pastMidnight", "daily", "23:30", "25:30"));
+		dailyBlocks.add(block("earlyMorning", "daily", "00:10", "01:00"));
+		dailyBlocks.add(block("owl", "daily", "24:20", "26:00"));
+		weekdayBlocks.add(block("midday", "weekday", "12:00", "13:00"));
+	}
+
+	private static Block block(String blockId, String serviceId,
+			String startTime, String endTime) {
+		return new Block(0, blockId, serviceId,
+				Time.parseTimeOfDay(startTime), Time.parseTimeOfDay(endTime),
+				new ArrayList<Trip>());
+	}
+
+	private List<String> serviceIdsForDay(long serviceDayStart) {
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.setTimeInMillis(serviceDayStart);
+		int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+		List<String> serviceIds = new ArrayList<String>();
+		serviceIds.add("daily");
+		if (dayOfWeek != Calendar.SATURDAY && dayOfWeek != Calendar.SUNDAY)
+			serviceIds.add("weekday");
+		return serviceIds;
+	}
+
+	/**
+	 * Determines the epoch time of a time into a service day by setting the
+	 * fields of a Calendar. The time can be past midnight.
+	 */
+	private long epochTime(int year, int month, int day,
+			int secsIntoServiceDay) {
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.clear();
+		calendar.set(year, month - 1, day, secsIntoServiceDay
+				/ Time.SEC_PER_HOUR, (secsIntoServiceDay / Time.SEC_PER_MIN)
+				% Time.MIN_PER_HOUR, secsIntoServiceDay % Time.SEC_PER_MIN);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Determines the window of every block for every service day in the
+	 * month.
+	 */
+	private List<Window> allWindows(int year, int month,
+			int afterStartTimeSecs) {
+		List<Window> windows = new ArrayList<Window>();
+		for (int day = 1; day <= 31; ++day) {
+			long serviceDayStart = epochTime(year, month, day, 0);
+			for (String serviceId : serviceIdsForDay(serviceDayStart)) {
+				List<Block> blocks = serviceId.equals("daily") ?
+						dailyBlocks : weekdayBlocks;
+				for (Block block : blocks) {
+					long start = epochTime(year, month, day,
+							block.getStartTime());
+					long end = afterStartTimeSecs >= 0 ?
+							start + afterStartTimeSecs * Time.MS_PER_SEC
+							: epochTime(year, month, day, block.getEndTime());
+					windows.add(new Window(block,
+							start - BEFORE_START_TIME_SECS * Time.MS_PER_SEC,
+							end));
+				}
+			}
+		}
+		return windows;
+	}
+
+	private static List<String> sortedIds(Collection<Block> blocks) {
+		List<String> ids = new ArrayList<String>();
+		for (Block block : blocks)
+			ids.add(block.getId());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Steps through the time period a minute at a time and checks the agenda
+	 * against the windows determined for every block and service day.
+	 */
+	private void checkAgenda(int afterStartTimeSecs, long startTime,
+			long endTime, List<Window> windows) {
+		BlockStartAgenda agenda = new TestAgenda(afterStartTimeSecs);
+		int numEntered = 0;
+		for (long now = startTime; now < endTime; now += Time.MS_PER_MIN) {
+			numEntered += agenda.getBlocksEnteringWindow(now).size();
+
+			List<Block> expectedActive = new ArrayList<Block>();
+			long expectedNextWindowStart = Long.MAX_VALUE;
+			for (Window window : windows) {
+				if (window.start < now && now < window.end)
+					expectedActive.add(window.block);
+				if (window.start >= now)
+					expectedNextWindowStart =
+							Math.min(expectedNextWindowStart, window.start);
+			}
+			assertEquals("now=" + Time.dateTimeStr(now),
+					sortedIds(expectedActive),
+					sortedIds(agenda.getActiveBlocks()));
+			assertEquals("now=" + Time.dateTimeStr(now),
+					expectedNextWindowStart, agenda.getNextWindowStartTime());
+		}
+
+		// Each window that overlaps the time period entered exactly once
+		int expectedEntered = 0;
+		for (Window window : windows) {
+			if (window.end > startTime
+					&& window.start < endTime - Time.MS_PER_MIN)
+				++expectedEntered;
+		}
+		assertEquals(expectedEntered, numEntered);
+	}
+
+	/**
+	 * From Friday evening to Tuesday morning, which includes the weekend
+	 * where the weekday blocks aren't active, and the night of the daylight
+	 * savings time transition on Sunday, March 8, 2015.
+	 */
+	public void testRolloverAcrossWeekendAndDst() {
+		List<Window> windows = allWindows(2015, 3, -1);
+		checkAgenda(-1, epochTime(2015, 3, 6, 20 * Time.SEC_PER_HOUR),
+				epochTime(2015, 3, 10, 8 * Time.SEC_PER_HOUR), windows);
+	}
+
+	/**
+	 * When the agenda is first used after midnight the blocks from the
+	 * previous service day that go past midnight need to be active.
+	 */
+	public void testStartAfterMidnight() {
+		List<Window> windows = allWindows(2015, 3, -1);
+		checkAgenda(-1, epochTime(2015, 3, 11, 30 * Time.SEC_PER_MIN),
+				epochTime(2015, 3, 11, 3 * Time.SEC_PER_HOUR), windows);
+	}
+
+	public void testRolloverWithAfterStartTime() {
+		int afterStartTimeSecs = 15 * Time.SEC_PER_MIN;
+		List<Window> windows = allWindows(2015, 11, afterStartTimeSecs);
+		checkAgenda(afterStartTimeSecs,
+				epochTime(2015, 11, 1, 23 * Time.SEC_PER_HOUR),
+				epochTime(2015, 11, 3, 2 * Time.SEC_PER_HOUR), windows);
+	}
+}
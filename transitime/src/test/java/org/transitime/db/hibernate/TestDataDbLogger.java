@@ -0,0 +1,212 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.exception.GenericJDBCException;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that the DataDbLogger journal replayer only deletes a journal
+ * segment once all of its objects have actually been committed, even if the
+ * database goes down while the segment is being replayed. Uses a fake
+ * SessionFactory so that no database is needed.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestDataDbLogger extends TestCase {
+
+	private static final int NUM_OBJECTS = 50;
+
+	private File directory;
+
+	/**
+	 * A database that can be taken down. Commits fail with the same
+	 * exception that is obtained when committing with the db turned off.
+	 */
+	private static class FakeDb {
+		private boolean available = true;
+
+		// After this many successful commits the db goes down
+		private int commitsUntilDown;
+
+		private final List<Object> committed = new ArrayList<Object>();
+		private int failedCommits = 0;
+
+		private FakeDb(int commitsUntilDown) {
+			this.commitsUntilDown = commitsUntilDown;
+		}
+
+		private synchronized void setAvailable(boolean available) {
+			this.available = available;
+		}
+
+		private synchronized int getFailedCommits() {
+			return failedCommits;
+		}
+
+		private synchronized List<Object> getCommitted() {
+			return new ArrayList<Object>(committed);
+		}
+
+		private synchronized void commit(List<Object> pending) {
+			if (!available) {
+				++failedCommits;
+				throw new GenericJDBCException("Database down",
+						new SQLException("Database down"));
+			}
+			committed.addAll(pending);
+			if (--commitsUntilDown == 0)
+				available = false;
+		}
+
+		private SessionFactory getSessionFactory() {
+			return proxy(SessionFactory.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method,
+						Object[] args) {
+					if (method.getName().equals("openSession"))
+						return openSession();
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		private Session openSession() {
+			final List<Object> pending = new ArrayList<Object>();
+			final Transaction tx = proxy(Transaction.class,
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (method.getName().equals("commit"))
+								commit(pending);
+							else if (method.getName().equals("rollback"))
+								pending.clear();
+							else
+								throw new UnsupportedOperationException(
+										method.getName());
+							return null;
+						}
+					});
+			return proxy(Session.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method,
+						Object[] args) {
+					String name = method.getName();
+					if (name.equals("beginTransaction"))
+						return tx;
+					if (name.equals("save"))
+						pending.add(args[0]);
+					else if (!name.equals("flush") && !name.equals("clear")
+							&& !name.equals("close"))
+						throw new UnsupportedOperationException(name);
+					return null;
+				}
+			});
+		}
+	}
+
+	private static <T> T proxy(Class<T> c, InvocationHandler handler) {
+		return c.cast(Proxy.newProxyInstance(
+				TestDataDbLogger.class.getClassLoader(), new Class<?>[] { c },
+				handler));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = Files.createTempDirectory("dataDbLoggerJournal").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : getSegments())
+			file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	private File[] getSegments() {
+		return directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".journal");
+			}
+		});
+	}
+
+	public void testSegmentKeptUntilReplayedDataCommitted()
+			throws Exception {
+		DataDbLoggerJournal journal =
+				new DataDbLoggerJournal("test", directory);
+		Set<Object> objects = new HashSet<Object>();
+		for (int i = 0; i < NUM_OBJECTS; ++i) {
+			String o = "object" + i;
+			objects.add(o);
+			assertTrue(journal.append(o));
+		}
+
+		// The db goes down after the first commit of replayed data
+		FakeDb db = new FakeDb(1);
+		new DataDbLogger("test", true, false, db.getSessionFactory(),
+				journal);
+
+		// Wait until a commit of replayed data has failed
+		long endTime = System.currentTimeMillis() + 20 * Time.MS_PER_SEC;
+		while (db.getFailedCommits() == 0
+				&& System.currentTimeMillis() < endTime)
+			Time.sleep(50);
+		assertTrue(db.getFailedCommits() > 0);
+
+		// While the db is down the data isn't written so the segment needs
+		// to be kept
+		Time.sleep(3 * Time.MS_PER_SEC);
+		assertTrue(db.getCommitted().size() < NUM_OBJECTS);
+		assertEquals(1, getSegments().length);
+
+		// Once the db is back the data is written and then the segment is
+		// deleted
+		db.setAvailable(true);
+		endTime = System.currentTimeMillis() + 20 * Time.MS_PER_SEC;
+		while (getSegments().length > 0
+				&& System.currentTimeMillis() < endTime)
+			Time.sleep(50);
+		assertEquals(0, getSegments().length);
+
+		List<Object> committed = db.getCommitted();
+		assertEquals(NUM_OBJECTS, committed.size());
+		assertEquals(objects, new HashSet<Object>(committed));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.structs;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.Block.TripTimesIndex;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that the trip times index of Block finds the same trips as the
+ * linear scans through all of the trips of the block that were used
+ * before.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestTripTimesIndex extends TestCase {
+
+	private static final int[] ALLOWABLE_EARLY_SECS = { 0, 1,
+			10 * Time.SEC_PER_MIN, 2 * Time.SEC_PER_HOUR };
+
+	/**
+	 * Creates the start and end times of the trips for a random block. The
+	 * trips are mostly in order, but can overlap and can have a shorter trip
+	 * end before the previous trip does, and the block can go past midnight.
+	 * Times are on whole minutes so that times exactly at a start or end
+	 * time are tested.
+	 *
+	 * @return array of start times and array of end times
+	 */
+	private static int[][] randomTrips(Random random, int numTrips) {
+		int[] startTimes = new int[numTrips];
+		int[] endTimes = new int[numTrips];
+		int time = (4 + random.nextInt(18)) * Time.SEC_PER_HOUR;
+		for (int i = 0; i < numTrips; ++i) {
+			time += (random.nextInt(40) - 5) * Time.SEC_PER_MIN;
+			startTimes[i] = time;
+			endTimes[i] = time + (1 + random.nextInt(90)) * Time.SEC_PER_MIN;
+		}
+		return new int[][] { startTimes, endTimes };
+	}
+
+	/**
+	 * How Block.activeTripIndex(int) used to find the trip, by looking at
+	 * every trip. Note that previousTripEndTimeSecs was never updated so it
+	 * is always the start time of the first trip.
+	 */
+	private static int linearActiveTripIndex(int[] startTimes,
+			int[] endTimes, int secondsIntoDay) {
+		int previousTripEndTimeSecs = startTimes[0];
+		for (int i = 0; i < startTimes.length; ++i) {
+			if (secondsIntoDay > previousTripEndTimeSecs
+					&& secondsIntoDay < endTimes[i])
+				return i;
+		}
+		return -1;
+	}
+
+	public void testActiveTripIndexMatchesLinearScan() {
+		Random random = new Random(5);
+		for (int blockNum = 0; blockNum < 200; ++blockNum) {
+			int[][] trips = randomTrips(random, 1 + random.nextInt(30));
+			TripTimesIndex index = new TripTimesIndex(trips[0], trips[1]);
+			for (int secs = -Time.SEC_PER_DAY; secs < 2 * Time.SEC_PER_DAY;
+					secs += 3 * Time.SEC_PER_MIN) {
+				assertEquals("block=" + blockNum + " secs=" + secs,
+						linearActiveTripIndex(trips[0], trips[1], secs),
+						index.activeTripIndex(secs));
+			}
+		}
+	}
+
+	/**
+	 * Compares against the criteria that Block.getTripsCurrentlyActive()
+	 * used when looking at every trip, including checking a day before and
+	 * after for trips that span midnight.
+	 */
+	public void testActiveTripsMatchLinearScan() {
+		Random random = new Random(11);
+		for (int blockNum = 0; blockNum < 200; ++blockNum) {
+			int[][] trips = randomTrips(random, 1 + random.nextInt(30));
+			int[] startTimes = trips[0];
+			int[] endTimes = trips[1];
+			TripTimesIndex index = new TripTimesIndex(startTimes, endTimes);
+			for (int secs = 0; secs < Time.SEC_PER_DAY;
+					secs += 3 * Time.SEC_PER_MIN) {
+				for (int early : ALLOWABLE_EARLY_SECS) {
+					BitSet expected = new BitSet();
+					for (int i = 0; i < startTimes.length; ++i) {
+						for (int dayOffset = -1; dayOffset <= 1; ++dayOffset) {
+							int t = secs + dayOffset * Time.SEC_PER_DAY;
+							if (t > startTimes[i] - early && t < endTimes[i])
+								expected.set(i);
+						}
+					}
+
+					BitSet actual = new BitSet();
+					index.setActiveTrips(secs, early, actual);
+					index.setActiveTrips(secs - Time.SEC_PER_DAY, early,
+							actual);
+					index.setActiveTrips(secs + Time.SEC_PER_DAY, early,
+							actual);
+					assertEquals("block=" + blockNum + " secs=" + secs
+							+ " early=" + early, expected, actual);
+				}
+			}
+		}
+	}
+
+	public void testNoTrips() {
+		TripTimesIndex index = new TripTimesIndex(new int[0], new int[0]);
+		assertEquals(-1, index.activeTripIndex(12 * Time.SEC_PER_HOUR));
+		BitSet tripIndexes = new BitSet();
+		index.setActiveTrips(12 * Time.SEC_PER_HOUR, 600, tripIndexes);
+		assertTrue(tripIndexes.isEmpty());
+	}
+}
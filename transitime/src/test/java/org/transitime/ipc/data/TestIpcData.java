@@ -0,0 +1,302 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.AvlReport.AssignmentType;
+
+/**
+ * Tests that IpcDataOutput and IpcDataInput round trip values, both directly
+ * and through the SerializationProxy of an IPC object, and that the proxy
+ * can still read the format used before the compact encoding.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestIpcData extends TestCase {
+
+	private static final long[] LONGS = { 0, 1, -1, 63, -64, 64, -65, 127,
+			128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE,
+			1420070400000L, -1420070400000L, Long.MAX_VALUE, Long.MIN_VALUE };
+
+	private static final String[] STRINGS = { "route1", null, "stop1",
+			"route1", "", "stop1", "\u00e9t\u00e9", null, "" };
+
+	public void testVarLongRoundTrip() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcDataOutput out = new IpcDataOutput(new DataOutputStream(bytes));
+		for (long value : LONGS)
+			out.writeVarLong(value);
+		for (long value : LONGS) {
+			if (value >= 0)
+				out.writeUnsignedVarLong(value);
+		}
+
+		IpcDataInput in = new IpcDataInput(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		for (long value : LONGS)
+			assertEquals(value, in.readVarLong());
+		for (long value : LONGS) {
+			if (value >= 0)
+				assertEquals(value, in.readUnsignedVarLong());
+		}
+	}
+
+	public void testSmallValuesAreCompact() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcDataOutput out = new IpcDataOutput(new DataOutputStream(bytes));
+		out.writeVarInt(-64);
+		out.writeVarInt(63);
+		assertEquals(2, bytes.size());
+
+		// A repeated string is written as just its index
+		out.writeString("route1");
+		int sizeAfterFirst = bytes.size();
+		out.writeString("route1");
+		assertEquals(1, bytes.size() - sizeAfterFirst);
+
+		// Times close to the previous one only take a couple of bytes
+		out.writeTime(1420070400000L);
+		int sizeAfterTime = bytes.size();
+		out.writeTime(1420070405000L);
+		assertEquals(2, bytes.size() - sizeAfterTime);
+	}
+
+	public void testMixedValuesRoundTrip() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcDataOutput out = new IpcDataOutput(new DataOutputStream(bytes));
+		long time = 1420070400000L;
+		for (int i = 0; i < STRINGS.length; ++i) {
+			out.writeString(STRINGS[i]);
+			out.writeTime(time + i * 7919L - (i % 2) * 100000L);
+			out.writeNullableInt(i % 3 == 0 ? null : Integer.valueOf(-i));
+			out.writeEnum(i % 2 == 0 ? null : AssignmentType.values()[i
+					% AssignmentType.values().length]);
+			out.writeBoolean(i % 2 == 0);
+			out.writeFloat(i * 1.5f);
+			out.writeDouble(-i * 2.25);
+		}
+
+		IpcDataInput in = new IpcDataInput(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		for (int i = 0; i < STRINGS.length; ++i) {
+			assertEquals(STRINGS[i], in.readString());
+			assertEquals(time + i * 7919L - (i % 2) * 100000L, in.readTime());
+			assertEquals(i % 3 == 0 ? null : Integer.valueOf(-i),
+					in.readNullableInt());
+			assertEquals(i % 2 == 0 ? null : AssignmentType.values()[i
+					% AssignmentType.values().length],
+					in.readEnum(AssignmentType.class));
+			assertEquals(i % 2 == 0, in.readBoolean());
+			assertEquals(i * 1.5f, in.readFloat(), 0.0f);
+			assertEquals(-i * 2.25, in.readDouble(), 0.0);
+		}
+	}
+
+	public void testUnknownEnumNameReadAsNull() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcDataOutput out = new IpcDataOutput(new DataOutputStream(bytes));
+		out.writeString("NOT_AN_ASSIGNMENT_TYPE");
+
+		IpcDataInput in = new IpcDataInput(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		assertNull(in.readEnum(AssignmentType.class));
+	}
+
+	public void testInvalidStringIndex() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcDataOutput out = new IpcDataOutput(new DataOutputStream(bytes));
+		out.writeUnsignedVarLong(IpcDataOutput.STRING_INDEX_OFFSET + 5);
+
+		IpcDataInput in = new IpcDataInput(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		try {
+			in.readString();
+			fail("Expected IOException for string index not in table");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * The string table and previous time are shared by all of the objects in
+	 * a stream, so writes several objects, along with another object in
+	 * between, and makes sure they are all read back properly.
+	 */
+	public void testSerializationProxyRoundTrip()
+			throws IOException, ClassNotFoundException {
+		IpcAvl avl1 = new IpcAvl("v1", 1420070400000L, 37.7749f, -122.4194f,
+				4.5f, 270.0f, "GTFS-rt", "block1", AssignmentType.BLOCK_ID,
+				"driver1", "plate1", 12);
+		IpcAvl avl2 = new IpcAvl("v2", 1420070395000L, 37.8f, -122.4f,
+				Float.NaN, Float.NaN, "GTFS-rt", "block1",
+				AssignmentType.BLOCK_ID, null, null, 0);
+		IpcAvl avl3 = new IpcAvl("v1", 1420070410000L, 37.7751f, -122.4190f,
+				5.0f, 268.0f, "GTFS-rt", null, AssignmentType.UNSET,
+				"driver1", "plate1", -1);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(avl1);
+		out.writeObject("not an IPC object");
+		out.writeObject(avl2);
+		out.writeObject(avl3);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		assertAvlEquals(avl1, (IpcAvl) in.readObject());
+		assertEquals("not an IPC object", in.readObject());
+		assertAvlEquals(avl2, (IpcAvl) in.readObject());
+		assertAvlEquals(avl3, (IpcAvl) in.readObject());
+		in.close();
+	}
+
+	/**
+	 * Objects written to different streams don't share state, even when
+	 * written by the same thread.
+	 */
+	public void testSeparateStreamsHaveSeparateState()
+			throws IOException, ClassNotFoundException {
+		IpcAvl avl = new IpcAvl("v1", 1420070400000L, 37.7749f, -122.4194f,
+				4.5f, 270.0f, "GTFS-rt", "block1", AssignmentType.BLOCK_ID,
+				"driver1", "plate1", 12);
+
+		ByteArrayOutputStream bytes1 = new ByteArrayOutputStream();
+		ObjectOutputStream out1 = new ObjectOutputStream(bytes1);
+		ByteArrayOutputStream bytes2 = new ByteArrayOutputStream();
+		ObjectOutputStream out2 = new ObjectOutputStream(bytes2);
+		out1.writeObject(avl);
+		out2.writeObject(avl);
+		out1.close();
+		out2.close();
+
+		ObjectInputStream in2 = new ObjectInputStream(
+				new ByteArrayInputStream(bytes2.toByteArray()));
+		assertAvlEquals(avl, (IpcAvl) in2.readObject());
+		in2.close();
+	}
+
+	/**
+	 * Writes an IpcAvl the way it was written before the compact encoding,
+	 * serialization version 0, and makes sure that the current code can
+	 * still read it so that a newer client can talk to an older server.
+	 */
+	public void testReadsVersion0Format()
+			throws IOException, ClassNotFoundException {
+		IpcAvl avl = new IpcAvl("v1", 1420070400000L, 37.7749f, -122.4194f,
+				4.5f, 270.0f, "GTFS-rt", "block1", AssignmentType.BLOCK_ID,
+				"driver1", null, 12);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new Version0OutputStream(bytes);
+		out.writeObject(new Version0AvlProxy(avl));
+		out.writeObject(new Version0AvlProxy(avl));
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		assertAvlEquals(avl, (IpcAvl) in.readObject());
+		assertAvlEquals(avl, (IpcAvl) in.readObject());
+		in.close();
+	}
+
+	private static void assertAvlEquals(IpcAvl expected, IpcAvl actual) {
+		assertEquals(expected.getVehicleId(), actual.getVehicleId());
+		assertEquals(expected.getTime(), actual.getTime());
+		assertEquals(expected.getLatitude(), actual.getLatitude(), 0.0f);
+		assertEquals(expected.getLongitude(), actual.getLongitude(), 0.0f);
+		assertEquals(Float.floatToIntBits(expected.getSpeed()),
+				Float.floatToIntBits(actual.getSpeed()));
+		assertEquals(Float.floatToIntBits(expected.getHeading()),
+				Float.floatToIntBits(actual.getHeading()));
+		assertEquals(expected.getSource(), actual.getSource());
+		assertEquals(expected.getAssignmentId(), actual.getAssignmentId());
+		assertEquals(expected.getAssignmentType(), actual.getAssignmentType());
+		assertEquals(expected.getDriverId(), actual.getDriverId());
+		assertEquals(expected.getLicensePlate(), actual.getLicensePlate());
+		assertEquals(expected.getPassengerCount(), actual.getPassengerCount());
+	}
+
+	/**
+	 * Writes the data of an IpcAvl the same way that version 0 of
+	 * IpcAvl.SerializationProxy did.
+	 */
+	private static class Version0AvlProxy implements Serializable {
+		private final transient IpcAvl avl;
+
+		private static final long serialVersionUID = 1L;
+
+		private Version0AvlProxy(IpcAvl avl) {
+			this.avl = avl;
+		}
+
+		private void writeObject(ObjectOutputStream stream)
+				throws IOException {
+			stream.writeShort(0);
+			stream.writeObject(avl.getVehicleId());
+			stream.writeLong(avl.getTime());
+			stream.writeFloat(avl.getLatitude());
+			stream.writeFloat(avl.getLongitude());
+			stream.writeFloat(avl.getSpeed());
+			stream.writeFloat(avl.getHeading());
+			stream.writeObject(avl.getSource());
+			stream.writeObject(avl.getAssignmentId());
+			stream.writeObject(avl.getAssignmentType());
+			stream.writeObject(avl.getDriverId());
+			stream.writeObject(avl.getLicensePlate());
+			stream.writeInt(avl.getPassengerCount());
+		}
+	}
+
+	/**
+	 * Writes a Version0AvlProxy as if it were an IpcAvl.SerializationProxy
+	 * so that the reader uses the SerializationProxy to read the version 0
+	 * data.
+	 */
+	private static class Version0OutputStream extends ObjectOutputStream {
+		private Version0OutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc)
+				throws IOException {
+			if (desc.forClass() == Version0AvlProxy.class) {
+				try {
+					desc = ObjectStreamClass.lookup(Class.forName(
+							IpcAvl.class.getName() + "$SerializationProxy"));
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+			}
+			super.writeClassDescriptor(desc);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Vector;
+
+/**
+ * Tests that the distances determined by ProjectedPath are within the
+ * documented error bound of the ones determined by Geo, which is 0.15 m for
+ * the distance to a segment and 0.3 m for the distance along a segment for
+ * locations within 1 km of the segment at latitudes up to 60 degrees.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestProjectedPath extends TestCase {
+
+	private static final double[] LATITUDES = { 0.0, 37.8, -33.9, 47.6, 60.0 };
+
+	// Extent of the random paths and locations, in meters
+	private static final double EXTENT = 1000.0;
+
+	private static final double MAX_DISTANCE_ERROR = 0.15;
+	private static final double MAX_DISTANCE_ALONG_ERROR = 0.3;
+
+	/**
+	 * Returns a location offset randomly from the center by up to half of
+	 * EXTENT in each direction.
+	 */
+	private static Location randomLocation(Random random, Location center) {
+		return Geo.offset(center, (random.nextDouble() - 0.5) * EXTENT,
+				(random.nextDouble() - 0.5) * EXTENT);
+	}
+
+	public void testDistancesMatchGeo() {
+		// Fixed seed so that the test is repeatable
+		Random random = new Random(42);
+		for (double lat : LATITUDES) {
+			Location center = new Location(lat, -122.0);
+			for (int pathNum = 0; pathNum < 200; ++pathNum) {
+				List<Location> locations = new ArrayList<Location>();
+				int numVertices = 2 + random.nextInt(6);
+				for (int i = 0; i < numVertices; ++i)
+					locations.add(randomLocation(random, center));
+				ProjectedPath path = new ProjectedPath(locations);
+				assertEquals(numVertices - 1, path.getNumberSegments());
+
+				double length = 0.0;
+				for (int segment = 0; segment < path.getNumberSegments();
+						++segment) {
+					Vector vector = new Vector(locations.get(segment),
+							locations.get(segment + 1));
+					assertEquals(length, path.getDistanceAlongPath(segment),
+							1e-6);
+					assertEquals(vector.length(),
+							path.getSegmentLength(segment), 1e-6);
+					length += vector.length();
+
+					for (int i = 0; i < 20; ++i) {
+						Location loc = randomLocation(random, center);
+						assertEquals(Geo.distance(loc, vector),
+								path.distanceToSegment(segment, loc.getLat(),
+										loc.getLon()),
+								MAX_DISTANCE_ERROR);
+						assertEquals(Geo.matchDistanceAlongVector(loc, vector),
+								path.distanceAlongSegment(segment,
+										loc.getLat(), loc.getLon()),
+								MAX_DISTANCE_ALONG_ERROR);
+					}
+				}
+				assertEquals(length, path.getLength(), 1e-6);
+			}
+		}
+	}
+
+	public void testLocationsOnPath() {
+		List<Location> locations = new ArrayList<Location>();
+		locations.add(new Location(37.8, -122.4));
+		locations.add(new Location(37.801, -122.4));
+		locations.add(new Location(37.801, -122.398));
+		ProjectedPath path = new ProjectedPath(locations);
+
+		// The vertices themselves are at zero distance and at the ends of
+		// the segments
+		assertEquals(0.0, path.distanceToSegment(0, 37.8, -122.4), 1e-9);
+		assertEquals(0.0, path.distanceAlongSegment(0, 37.8, -122.4), 1e-9);
+		assertEquals(path.getSegmentLength(0),
+				path.distanceAlongSegment(0, 37.801, -122.4), 1e-6);
+		assertEquals(0.0, path.distanceToSegment(1, 37.801, -122.398), 1e-9);
+
+		// Before the start of a segment matches to the start
+		assertEquals(0.0, path.distanceAlongSegment(0, 37.799, -122.4), 1e-9);
+		assertEquals(Geo.distance(new Location(37.799, -122.4),
+				locations.get(0)),
+				path.distanceToSegment(0, 37.799, -122.4), MAX_DISTANCE_ERROR);
+	}
+
+	public void testZeroLengthSegment() {
+		List<Location> locations = new ArrayList<Location>();
+		locations.add(new Location(37.8, -122.4));
+		locations.add(new Location(37.8, -122.4));
+		ProjectedPath path = new ProjectedPath(locations);
+
+		Location loc = new Location(37.8005, -122.4);
+		assertEquals(0.0, path.getLength(), 0.0);
+		assertEquals(0.0, path.distanceAlongSegment(0, loc.getLat(),
+				loc.getLon()), 0.0);
+		assertEquals(Geo.distance(loc, locations.get(0)),
+				path.distanceToSegment(0, loc.getLat(), loc.getLon()),
+				MAX_DISTANCE_ERROR);
+	}
+}
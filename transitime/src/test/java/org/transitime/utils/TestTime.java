@@ -0,0 +1,166 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the lock free conversions of Time, which use a table of
+ * timezone offsets, give the same results as doing the conversions with a
+ * Calendar, especially around daylight savings time transitions.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestTime extends TestCase {
+
+	// Timezones with daylight savings time in the northern and southern
+	// hemispheres, one with a half hour offset, and one without daylight
+	// savings time.
+	private static final String[] TIME_ZONES = { "America/Los_Angeles",
+			"Europe/London", "Australia/Sydney", "Asia/Kolkata", "UTC" };
+
+	// Days that have daylight savings time transitions for at least one of
+	// the timezones. Each is the local date, year-month-day.
+	private static final int[][] DAYS = { { 2015, 3, 8 }, { 2015, 11, 1 },
+			{ 2015, 3, 29 }, { 2015, 10, 25 }, { 2015, 4, 5 }, { 2015, 10, 4 },
+			{ 2015, 7, 1 } };
+
+	/**
+	 * Returns the epoch time of the local midnight for the day, and the
+	 * couple of days around it, so that the DST transition is included.
+	 */
+	private static long startOfTestPeriod(TimeZone timeZone, int[] day) {
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.clear();
+		calendar.set(day[0], day[1] - 1, day[2] - 1);
+		return calendar.getTimeInMillis();
+	}
+
+	public void testSecondsIntoDayAndStartOfDay() {
+		for (String timeZoneStr : TIME_ZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
+			Time time = new Time(timeZoneStr);
+			Calendar calendar = new GregorianCalendar(timeZone);
+			for (int[] day : DAYS) {
+				long start = startOfTestPeriod(timeZone, day);
+				// Every 7.5 minutes for 3 days, plus the msec before each
+				for (long t = start; t < start + 3 * Time.MS_PER_DAY;
+						t += 450 * Time.MS_PER_SEC) {
+					for (long epochTime = t - 1; epochTime <= t; ++epochTime) {
+						calendar.setTimeInMillis(epochTime);
+						int expectedSecs =
+								calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60
+								+ calendar.get(Calendar.MINUTE) * 60
+								+ calendar.get(Calendar.SECOND);
+						assertEquals(timeZoneStr + " " + epochTime,
+								expectedSecs, time.getSecondsIntoDay(epochTime));
+						assertEquals(timeZoneStr + " " + epochTime,
+								Time.getStartOfDay(new Date(epochTime),
+										timeZone),
+								time.getStartOfDay(epochTime));
+					}
+				}
+			}
+		}
+	}
+
+	public void testEpochTimeFromSecondsIntoDay() {
+		for (String timeZoneStr : TIME_ZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
+			Time time = new Time(timeZoneStr);
+			for (int[] day : DAYS) {
+				long start = startOfTestPeriod(timeZone, day);
+				// Reference times every 37 minutes for 3 days
+				for (long referenceTime = start;
+						referenceTime < start + 3 * Time.MS_PER_DAY;
+						referenceTime += 37 * Time.MS_PER_MIN) {
+					// Times of day every 10 minutes, including ones past
+					// midnight such as for blocks that go into the next day
+					for (int secondsIntoDay = 0;
+							secondsIntoDay < 30 * Time.SEC_PER_HOUR;
+							secondsIntoDay += 601) {
+						assertEquals(timeZoneStr + " " + referenceTime + " "
+								+ secondsIntoDay,
+								calendarEpochTime(timeZone, secondsIntoDay,
+										referenceTime),
+								time.getEpochTime(secondsIntoDay,
+										referenceTime));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The offset table only covers a range of days so make sure that times
+	 * far outside of it, including before 1970, are handled.
+	 */
+	public void testTimesOutsideOfOffsetTable() {
+		String timeZoneStr = "America/New_York";
+		TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
+		Time time = new Time(timeZoneStr);
+		Calendar calendar = new GregorianCalendar(timeZone);
+		long[] epochTimes = { 1420070400000L, -86400000L * 400 + 12345,
+				2240611200000L, 1420070400000L + 4000 * Time.MS_PER_DAY, -1,
+				0 };
+		for (long epochTime : epochTimes) {
+			calendar.setTimeInMillis(epochTime);
+			int expectedSecs = calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60
+					+ calendar.get(Calendar.MINUTE) * 60
+					+ calendar.get(Calendar.SECOND);
+			assertEquals(expectedSecs, time.getSecondsIntoDay(epochTime));
+			assertEquals(Time.getStartOfDay(new Date(epochTime), timeZone),
+					time.getStartOfDay(epochTime));
+			assertEquals(calendarEpochTime(timeZone, 8 * Time.SEC_PER_HOUR,
+					epochTime),
+					time.getEpochTime(8 * Time.SEC_PER_HOUR, epochTime));
+		}
+	}
+
+	/**
+	 * How Time.getEpochTime() used to determine the epoch time, using a
+	 * Calendar.
+	 */
+	private static long calendarEpochTime(TimeZone timeZone,
+			int secondsIntoDay, long referenceTime) {
+		int seconds = secondsIntoDay % 60;
+		int minutesIntoDay = secondsIntoDay / 60;
+		int minutes = minutesIntoDay % 60;
+		int hoursIntoDay = minutesIntoDay / 60;
+		int hours = hoursIntoDay % 24;
+
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.setTimeInMillis(referenceTime);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, seconds);
+		calendar.set(Calendar.MINUTE, minutes);
+		calendar.set(Calendar.HOUR_OF_DAY, hours);
+		long epochTime = calendar.getTimeInMillis();
+
+		if (epochTime > referenceTime + 20 * Time.MS_PER_HOUR)
+			epochTime -= Time.MS_PER_DAY;
+		else if (epochTime < referenceTime - 20 * Time.MS_PER_HOUR)
+			epochTime += Time.MS_PER_DAY;
+		return epochTime;
+	}
+}
@@ -19,6 +19,7 @@ package org.transitime.api.data;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.bind.annotation.XmlAttribute;
@@ -26,6 +27,8 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.transitime.ipc.rmi.RmiCallInvocationHandler;
+import org.transitime.ipc.rmi.RmiCallLimiter;
+import org.transitime.utils.LatencyHistogram;
 
 /**
  *
@@ -52,15 +55,69 @@ public class ApiRmiServerStatus {
 		@XmlAttribute
 		private long rmiTotalCalls;
 
+		@XmlAttribute
+		private int rmiCallsQueued;
+
+		@XmlAttribute
+		private long rmiRejectedCalls;
+
+		@XmlAttribute
+		private int rmiConcurrentCallsLimit;
+
+		@XmlElement(name = "method")
+		private List<ApiRmiMethodLatency> methods;
+
 		@SuppressWarnings("unused")
 		protected ApiAgencyRmiServerStatus() {
 		}
 
-		public ApiAgencyRmiServerStatus(String agencyId, int rmiCallsInProcess,
-				long rmiTotalCalls) {
+		public ApiAgencyRmiServerStatus(String agencyId, 
+				RmiCallLimiter limiter) {
 			this.agencyId = agencyId;
-			this.rmiCallsInProcess = rmiCallsInProcess;
-			this.rmiTotalCalls = rmiTotalCalls;
+			this.rmiCallsInProcess = limiter.getCallsInProcess();
+			this.rmiTotalCalls = limiter.getTotalCalls();
+			this.rmiCallsQueued = limiter.getQueuedCalls();
+			this.rmiRejectedCalls = limiter.getRejectedCalls();
+			this.rmiConcurrentCallsLimit = limiter.getLimit();
+			
+			this.methods = new ArrayList<ApiRmiMethodLatency>();
+			for (Map.Entry<String, LatencyHistogram> entry : 
+					limiter.getLatencyByMethod().entrySet()) {
+				this.methods.add(new ApiRmiMethodLatency(entry.getKey(),
+						entry.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Latency statistics for a remote method
+	 */
+	private static class ApiRmiMethodLatency {
+		@XmlAttribute
+		private String name;
+		
+		@XmlAttribute
+		private long calls;
+		
+		@XmlAttribute
+		private long p50Msec;
+		
+		@XmlAttribute
+		private long p99Msec;
+		
+		@XmlAttribute
+		private long maxMsec;
+		
+		@SuppressWarnings("unused")
+		protected ApiRmiMethodLatency() {
+		}
+		
+		public ApiRmiMethodLatency(String name, LatencyHistogram histogram) {
+			this.name = name;
+			this.calls = histogram.getCount();
+			this.p50Msec = histogram.getPercentileMsec(0.5);
+			this.p99Msec = histogram.getPercentileMsec(0.99);
+			this.maxMsec = histogram.getMaxMsec();
 		}
 	}
 
@@ -81,8 +138,7 @@ public class ApiRmiServerStatus {
 			// Create an API object for this agency
 			ApiAgencyRmiServerStatus agencyStatus =
 					new ApiAgencyRmiServerStatus(agencyId,
-							RmiCallInvocationHandler.getCount(agencyId),
-							RmiCallInvocationHandler.getTotalCount(agencyId));
+							RmiCallInvocationHandler.getLimiter(agencyId));
 			agenciesData.add(agencyStatus);
 		}
 	}
@@ -19,21 +19,29 @@ package org.transitime.api.rootResources;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Date;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.api.gtfsRealtime.GtfsRtTripFeed;
 import org.transitime.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitime.feed.gtfsRt.OctalDecoder;
+import org.transitime.ipc.data.IpcSerializedFeed;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -46,17 +54,26 @@ import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 @Path("/key/{key}/agency/{agency}")
 public class GtfsRealtimeApi {
 
-	private final int MAX_GTFS_RT_CACHE_SECS = 15;
-
 	/********************** Member Functions **************************/
 
 	/**
-	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
+	 * For getting GTFS-realtime Vehicle Positions data for all vehicles. The
+	 * binary feed supports conditional requests using ETag and Last-Modified
+	 * so that clients that poll frequently get a 304 Not Modified response
+	 * if the vehicle data hasn't changed. If the client accepts gzip encoding
+	 * then the feed is returned gzipped. The feed is serialized, and gzipped,
+	 * by the server just once for each version.
 	 * 
 	 * @param stdParameters
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param request
+	 *            For evaluating the conditional request headers
+	 * @param ifNoneMatch
+	 *            The If-None-Match header, if any
+	 * @param acceptEncoding
+	 *            The Accept-Encoding header, if any
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -65,64 +82,99 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeVehiclePositionsFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@Context Request request,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding)
 			throws WebApplicationException {
 
 		// Make sure request is valid
 		stdParameters.validate();
 
-		// Determine if output should be in human readable format or in
-		// standard binary GTFS-realtime format.
-		final boolean humanFormatOutput = "human".equals(format);
-
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtVehicleFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									MAX_GTFS_RT_CACHE_SECS);
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
+		// If output should be in human readable format then output as
+		// plain text. Best to use MediaType.TEXT_PLAIN so that output is 
+		// formatted properly in web browser instead of newlines being removed.
+		if ("human".equals(format)) {
+			try {
+				// Output data in human readable format. First, convert
+				// the octal escaped message to regular UTF encoding.
+				FeedMessage message = GtfsRtVehicleFeed.getMessage(
+						stdParameters.getAgencyId());
+				String decodedMessage =
+						OctalDecoder.convertOctalEscapedString(message
+								.toString());
+				return Response.ok(decodedMessage).type(MediaType.TEXT_PLAIN)
+						.build();
+			} catch (Exception e) {
+				throw new WebApplicationException(e);
 			}
-		};
+		}
+
+		// Standard binary GTFS-realtime output. Get the already serialized
+		// feed, unless the client already has the current version.
+		boolean gzip =
+				acceptEncoding != null && acceptEncoding.contains("gzip");
+		IpcSerializedFeed feed;
+		try {
+			feed = GtfsRtVehicleFeed.getFeed(stdParameters.getAgencyId(),
+					getFirstEtag(ifNoneMatch), gzip);
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+
+		// If client already has the current version then respond with
+		// 304 Not Modified
+		EntityTag entityTag = new EntityTag(GtfsRtVehicleFeed.getEtag(feed));
+		Date lastModified = new Date(feed.getLastModified());
+		ResponseBuilder notModifiedResponse =
+				request.evaluatePreconditions(lastModified, entityTag);
+		if (notModifiedResponse == null && feed.isNotModified())
+			notModifiedResponse = Response.notModified(entityTag);
+		if (notModifiedResponse != null)
+			return notModifiedResponse.build();
+
+		ResponseBuilder response = Response.ok(feed.getData())
+				.type(MediaType.APPLICATION_OCTET_STREAM)
+				.tag(entityTag)
+				.lastModified(lastModified)
+				.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (feed.isGzipped())
+			response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		return response.build();
+	}
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+	/**
+	 * Returns the value of the first ETag in an If-None-Match header, without
+	 * the quotes and without the weak indicator.
+	 * 
+	 * @param ifNoneMatch
+	 *            The If-None-Match header. Can be null.
+	 * @return the ETag value, or null if there isn't one
+	 */
+	private static String getFirstEtag(String ifNoneMatch) {
+		if (ifNoneMatch == null)
+			return null;
+
+		String etag = ifNoneMatch.split(",")[0].trim();
+		if (etag.startsWith("W/"))
+			etag = etag.substring(2);
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+			etag = etag.substring(1, etag.length() - 1);
+		return etag.isEmpty() ? null : etag;
 	}
 
 	/**
-	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
+	 * For getting GTFS-realtime Trip Updates data for all trips. The feed is
+	 * maintained by the server so is obtained already serialized.
 	 * 
 	 * @param stdParameters
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param changedSince
+	 *            Optional. If set then a DIFFERENTIAL feed is output with just
+	 *            the trips that have changed since this epoch time in seconds,
+	 *            usually the header timestamp of the previous feed.
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -131,7 +183,8 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@QueryParam(value = "changedSince") Long changedSince)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -149,28 +202,30 @@ public class GtfsRealtimeApi {
 				humanFormatOutput ? MediaType.TEXT_PLAIN
 						: MediaType.APPLICATION_OCTET_STREAM;
 
+		// 0 means the full dataset instead of a differential feed
+		final long changedSinceSecs = changedSince != null ? changedSince : 0;
+
 		// Prepare a StreamingOutput object so can write using it
 		StreamingOutput stream = new StreamingOutput() {
 			public void write(OutputStream outputStream) throws IOException,
 					WebApplicationException {
 				try {
-					FeedMessage message =
-							GtfsRtTripFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									MAX_GTFS_RT_CACHE_SECS);
-
 					// Output in human readable format or in standard binary
 					// format
 					if (humanFormatOutput) {
 						// Output data in human readable format. First, convert
 						// the octal escaped message to regular UTF encoding.
+						FeedMessage message = GtfsRtTripFeed.getMessage(
+								stdParameters.getAgencyId(), changedSinceSecs);
 						String decodedMessage =
 								OctalDecoder.convertOctalEscapedString(message
 										.toString());
 						outputStream.write(decodedMessage.getBytes());
 					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
+						// Standard binary output. Already serialized by the
+						// server so simply write it out.
+						outputStream.write(GtfsRtTripFeed.getFeedBytes(
+								stdParameters.getAgencyId(), changedSinceSecs));
 					}
 				} catch (Exception e) {
 					throw new WebApplicationException(e);
@@ -55,6 +55,7 @@ import org.transitime.ipc.interfaces.PredictionsInterface;
 import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
 import org.transitime.ipc.interfaces.VehiclesInterface;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
 /**
@@ -443,10 +444,17 @@ public class RmiQuery {
 	
 	/**
 	 * Outputs in human readable format current snapshot of vehicle positions.
+	 * 
+	 * @throws RemoteException
 	 */
-	private static void getGtfsRtVehiclesPositions() {
-		GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-		FeedMessage message = feed.createMessage();
+	private static void getGtfsRtVehiclesPositions() throws RemoteException {
+		FeedMessage message;
+		try {
+			message = GtfsRtVehicleFeed.getMessage(agencyId);
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			return;
+		}
 		
 		// Output data in human readable format. First, convert
 		// the octal escaped message to regular UTF encoding.
@@ -470,10 +478,17 @@ public class RmiQuery {
 	/**
 	 * Outputs in human readable format current snapshot of trip updates,
 	 * which contains all the prediction information.
+	 * 
+	 * @throws RemoteException
 	 */
-	private static void getGtfsRtTripUpdates() {
-		GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-		FeedMessage message = feed.createMessage();
+	private static void getGtfsRtTripUpdates() throws RemoteException {
+		FeedMessage message;
+		try {
+			message = GtfsRtTripFeed.getMessage(agencyId, 0);
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			return;
+		}
 		
 		// Output data in human readable format. First, convert
 		// the octal escaped message to regular UTF encoding.